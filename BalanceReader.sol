@@ -0,0 +1,23 @@
+pragma solidity ^0.4.18;
+
+import './zeppelin-solidity/contracts/token/ERC20Basic.sol';
+
+/**
+ * @dev A read-only helper, reading the token balances of many holders at once.
+ *
+ * Meant to be called with eth_call only (it has no state, and costs nothing that way);
+ * so a single call replaces hundreds of separate balanceOf calls.
+ */
+contract BalanceReader {
+
+    /**
+     * @dev The balances of the holders of the token, in the same order.
+     */
+    function balancesOf(ERC20Basic token, address[] holders) public view returns (uint256[]) {
+        uint256[] memory balances = new uint256[](holders.length);
+        for (uint i = 0; i < holders.length; i++) {
+            balances[i] = token.balanceOf(holders[i]);
+        }
+        return balances;
+    }
+}
@@ -0,0 +1,66 @@
+package com.icodici.universa.utnp.bench;
+
+import com.icodici.universa.utnp.connectors.BulkTransferEncoder;
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import org.openjdk.jmh.annotations.*;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.DynamicArray;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.abi.datatypes.generated.Uint256;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ABI encoding of the <code>bulkTransfer</code> call, per bulk;
+ * <code>web3jFunctionEncoder</code> is the baseline of the generated contract wrapper.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BulkTransferEncodingBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int transfers;
+
+    private PackedTransfers packed;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        packed = BenchData.randomTransfers(transfers, 3);
+        buffer = new byte[BulkTransferEncoder.getCalldataLength(transfers)];
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return BulkTransferEncoder.encode(BenchData.TOKEN, packed);
+    }
+
+    @Benchmark
+    public int encodeIntoBuffer() {
+        return BulkTransferEncoder.encode(BenchData.TOKEN, packed, buffer, 0);
+    }
+
+    @Benchmark
+    public String web3jFunctionEncoder() {
+        final List<Address> addresses = new ArrayList<>(transfers);
+        final List<Uint256> amounts = new ArrayList<>(transfers);
+        for (int i = 0; i < transfers; i++) {
+            addresses.add(new Address(packed.getAddress(i)));
+            amounts.add(new Uint256(packed.getAmount(i)));
+        }
+        return FunctionEncoder.encode(new Function(
+                "bulkTransfer",
+                Arrays.<Type>asList(new Address(BenchData.TOKEN), new DynamicArray<>(addresses), new DynamicArray<>(amounts)),
+                Collections.<TypeReference<?>>emptyList()));
+    }
+}
@@ -0,0 +1,69 @@
+package com.icodici.universa.utnp.bench;
+
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the amounts between the tokens and the minimal units, per amount.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DecimalConversionBenchmark {
+
+    private static final int AMOUNTS = 1024;
+    private static final BigInteger DECIMALS = BigInteger.valueOf(BenchData.DECIMALS);
+
+    private String[] addresses;
+    private BigDecimal[] amounts;
+    private BigInteger[] units;
+    private PackedTransfers transfers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        addresses = BenchData.randomAddresses(AMOUNTS, 2);
+        amounts = BenchData.randomAmounts(AMOUNTS, 2);
+        units = new BigInteger[AMOUNTS];
+        for (int i = 0; i < AMOUNTS; i++) {
+            units[i] = EthereumUtils.intFromDecimal(amounts[i], DECIMALS);
+        }
+        transfers = new PackedTransfers(BenchData.DECIMALS, AMOUNTS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(AMOUNTS)
+    public void intFromDecimal(Blackhole blackhole) {
+        for (final BigDecimal amount : amounts) {
+            blackhole.consume(EthereumUtils.intFromDecimal(amount, DECIMALS));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(AMOUNTS)
+    public void valueWithDecimal(Blackhole blackhole) {
+        for (final BigInteger value : units) {
+            blackhole.consume(EthereumUtils.valueWithDecimal(value, DECIMALS));
+        }
+    }
+
+    /**
+     * The conversion actually used when the transfers are collected into the bulks (along with the address parsing).
+     */
+    @Benchmark
+    @OperationsPerInvocation(AMOUNTS)
+    public PackedTransfers packTransfer() {
+        transfers.removeFirst(transfers.size());
+        for (int i = 0; i < AMOUNTS; i++) {
+            transfers.add(addresses[i], amounts[i]);
+        }
+        return transfers;
+    }
+}
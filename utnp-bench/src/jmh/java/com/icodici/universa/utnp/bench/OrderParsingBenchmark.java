@@ -0,0 +1,98 @@
+package com.icodici.universa.utnp.bench;
+
+import com.icodici.universa.utnp.orders.BinaryOrderFile;
+import com.icodici.universa.utnp.orders.JSONOrderReader;
+import com.icodici.universa.utnp.orders.Order;
+import com.icodici.universa.utnp.orders.OrderValidator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the orders file, as done by both passes of <code>BulkSendCLI</code>:
+ * the plain streaming parse (the sending pass), and the parallel validation (the validation pass);
+ * also reading and skipping the same orders imported into the binary file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class OrderParsingBenchmark {
+
+    @Param({"1000000"})
+    public int orders;
+
+    private Path path;
+    private Path binaryPath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        path = BenchData.writeOrdersFile(orders, 1);
+        binaryPath = Files.createTempFile("utnp-bench-orders", ".bin");
+        Files.delete(binaryPath);
+        try (final JSONOrderReader reader = new JSONOrderReader(path);
+             final BinaryOrderFile.Writer writer = new BinaryOrderFile.Writer(binaryPath, 36, BenchData.DECIMALS)) {
+            Order order;
+            while ((order = reader.readNext()) != null) {
+                writer.write(order);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(binaryPath);
+    }
+
+    @Benchmark
+    public long parse(Blackhole blackhole) throws IOException {
+        try (final JSONOrderReader reader = new JSONOrderReader(path)) {
+            Order order;
+            while ((order = reader.readNext()) != null) {
+                blackhole.consume(order);
+            }
+            return reader.getNextIndex();
+        }
+    }
+
+    @Benchmark
+    public OrderValidator.Report parseAndValidate() throws IOException {
+        try (final JSONOrderReader reader = new JSONOrderReader(path)) {
+            return new OrderValidator(BenchData.DECIMALS).validate(reader, Long.MAX_VALUE);
+        }
+    }
+
+    @Benchmark
+    public long parseBinary(Blackhole blackhole) throws IOException {
+        try (final BinaryOrderFile.Reader reader = new BinaryOrderFile.Reader(binaryPath)) {
+            Order order;
+            while ((order = reader.readNext()) != null) {
+                blackhole.consume(order);
+            }
+            return reader.getNextIndex();
+        }
+    }
+
+    /**
+     * Resuming the run at the last order (the "skip" argument).
+     */
+    @Benchmark
+    public long skip() throws IOException {
+        try (final JSONOrderReader reader = new JSONOrderReader(path)) {
+            return reader.skip(orders - 1);
+        }
+    }
+
+    @Benchmark
+    public long skipBinary() throws IOException {
+        try (final BinaryOrderFile.Reader reader = new BinaryOrderFile.Reader(binaryPath)) {
+            return reader.skip(orders - 1);
+        }
+    }
+}
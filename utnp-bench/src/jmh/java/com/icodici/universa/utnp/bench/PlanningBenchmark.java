@@ -0,0 +1,59 @@
+package com.icodici.universa.utnp.bench;
+
+import com.icodici.universa.utnp.connectors.BulkTransferPlanner;
+import com.icodici.universa.utnp.connectors.BulkTransferPlanner.PlannedBulk;
+import com.icodici.universa.utnp.connectors.BulkSenderConnector;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting the stream of transfers into the bulks (offline, by the gas model), per transfer.
+ * The gas budget is not limiting, so the bulks have exactly the given number of transfers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PlanningBenchmark {
+
+    private static final int TRANSFERS = 100000;
+    private static final long UNLIMITED_GAS = Long.MAX_VALUE / 4;
+
+    @Param({"100", "1000", "10000"})
+    public int transfersPerBulk;
+
+    private String[] addresses;
+    private BigDecimal[] amounts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Some recipients repeat, as in the real distributions
+        addresses = BenchData.randomAddresses(TRANSFERS, 5);
+        for (int i = 7; i < TRANSFERS; i += 7) {
+            addresses[i] = addresses[i / 7];
+        }
+        amounts = BenchData.randomAmounts(TRANSFERS, 5);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSFERS)
+    public void plan(Blackhole blackhole) throws IOException {
+        final BulkTransferPlanner planner = new BulkTransferPlanner(
+                null, BenchData.TOKEN, BulkSenderConnector.UTNP_DECIMALS, UNLIMITED_GAS, transfersPerBulk);
+        for (int i = 0; i < TRANSFERS; i++) {
+            final PlannedBulk bulk = planner.offer(i, addresses[i], amounts[i]);
+            if (bulk != null) {
+                blackhole.consume(bulk);
+            }
+        }
+        PlannedBulk bulk;
+        while ((bulk = planner.flush()) != null) {
+            blackhole.consume(bulk);
+        }
+    }
+}
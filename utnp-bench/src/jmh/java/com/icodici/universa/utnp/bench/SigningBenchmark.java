@@ -0,0 +1,62 @@
+package com.icodici.universa.utnp.bench;
+
+import com.icodici.universa.utnp.connectors.BulkTransferEncoder;
+import com.icodici.universa.utnp.connectors.BulkTransferSigner;
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import org.openjdk.jmh.annotations.*;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.RawTransaction;
+import org.web3j.crypto.TransactionEncoder;
+import org.web3j.tx.ChainId;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and signing the <code>bulkTransfer</code> transaction, per bulk;
+ * <code>web3jTransactionEncoder</code> is the baseline of the web3j <code>RawTransactionManager</code>
+ * (the call data encoding is excluded from it).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SigningBenchmark {
+
+    private static final BigInteger
+            GAS_PRICE = BigInteger.valueOf(21000000000L),
+            GAS_LIMIT = BigInteger.valueOf(4500000),
+            NONCE = BigInteger.valueOf(1234);
+
+    @Param({"100", "1000", "10000"})
+    public int transfers;
+
+    private PackedTransfers packed;
+    private BulkTransferSigner signer;
+    private Credentials credentials;
+    private String calldataHex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        packed = BenchData.randomTransfers(transfers, 4);
+        signer = new BulkTransferSigner(BenchData.PRIVATE_KEY, BenchData.BULK_SENDER, GAS_PRICE);
+        credentials = Credentials.create(ECKeyPair.create(BenchData.PRIVATE_KEY));
+        calldataHex = Numeric.toHexString(BulkTransferEncoder.encode(BenchData.TOKEN, packed));
+    }
+
+    @Benchmark
+    public SignedTransaction sign() {
+        return signer.sign(BenchData.TOKEN, packed, NONCE, GAS_LIMIT);
+    }
+
+    @Benchmark
+    public byte[] web3jTransactionEncoder() {
+        final RawTransaction transaction = RawTransaction.createTransaction(
+                NONCE, GAS_PRICE, GAS_LIMIT, BenchData.BULK_SENDER, BigInteger.ZERO, calldataHex);
+        return TransactionEncoder.signMessage(transaction, ChainId.MAINNET, credentials);
+    }
+}
@@ -0,0 +1,104 @@
+package com.icodici.universa.utnp.bench;
+
+import com.icodici.universa.utnp.connectors.AbstractConnector;
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import org.web3j.crypto.Keys;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generator of the realistic benchmark inputs; the same seed gives the same data.
+ */
+final class BenchData {
+
+    static final String TOKEN = AbstractConnector.UTNP_MAINNET_CONTRACT_ADDRESS.toLowerCase();
+    static final String BULK_SENDER = "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7";
+    static final int DECIMALS = AbstractConnector.UTNP_DECIMALS.intValue();
+    static final byte[] PRIVATE_KEY = new BigInteger(
+            "4646464646464646464646464646464646464646464646464646464646464646", 16).toByteArray();
+
+    private BenchData() {
+    }
+
+    /**
+     * A random address, with the EIP-55 checksum (as the addresses usually come from the users).
+     */
+    static String randomAddress(Random random) {
+        return Keys.toChecksumAddress(String.format("0x%040x", new BigInteger(160, random)));
+    }
+
+    /**
+     * A random amount, as in the real distributions: mostly round numbers, some with a few decimals,
+     * and some with the full 18 decimals.
+     */
+    static BigDecimal randomAmount(Random random) {
+        final int kind = random.nextInt(10);
+        if (kind < 6) {
+            return BigDecimal.valueOf(1 + random.nextInt(100000));
+        } else if (kind < 9) {
+            return BigDecimal.valueOf(1 + random.nextInt(100000000), 2);
+        } else {
+            return new BigDecimal(new BigInteger(80, random).add(BigInteger.ONE), DECIMALS);
+        }
+    }
+
+    static String[] randomAddresses(int count, long seed) {
+        final Random random = new Random(seed);
+        final String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = randomAddress(random);
+        }
+        return result;
+    }
+
+    static BigDecimal[] randomAmounts(int count, long seed) {
+        final Random random = new Random(seed);
+        final BigDecimal[] result = new BigDecimal[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = randomAmount(random);
+        }
+        return result;
+    }
+
+    static PackedTransfers randomTransfers(int count, long seed) {
+        final String[] addresses = randomAddresses(count, seed);
+        final BigDecimal[] amounts = randomAmounts(count, seed);
+        final PackedTransfers result = new PackedTransfers(DECIMALS, count);
+        for (int i = 0; i < count; i++) {
+            result.add(addresses[i], amounts[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Write the JSON orders file in the format of {@link com.icodici.universa.utnp.orders.JSONOrderReader}.
+     */
+    static Path writeOrdersFile(int count, long seed) throws IOException {
+        final Path path = Files.createTempFile("utnp-bench-orders", ".json");
+        path.toFile().deleteOnExit();
+        final Random random = new Random(seed);
+        try (final Writer writer = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8), 1 << 16)) {
+            writer.write("{\"orders\": [");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    writer.write(", ");
+                }
+                writer.write(String.format("{\"uuid\": \"%s\", \"utnp_amount\": \"%s\", \"utnp_address\": \"%s\"}",
+                        new UUID(random.nextLong(), random.nextLong()),
+                        randomAmount(random).toPlainString(),
+                        randomAddress(random)));
+            }
+            writer.write("]}");
+        }
+        return path;
+    }
+}
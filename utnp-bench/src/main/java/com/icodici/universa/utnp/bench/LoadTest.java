@@ -0,0 +1,468 @@
+package com.icodici.universa.utnp.bench;
+
+import com.icodici.universa.utnp.BulkSendCLI;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.index.EventStore;
+import com.icodici.universa.utnp.orders.Order;
+import com.icodici.universa.utnp.orders.OrderReader;
+import com.icodici.universa.utnp.sim.NodeSimulator;
+import org.apache.commons.cli.*;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.Keys;
+import org.web3j.utils.Numeric;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test: sends the synthetic orders through the real {@link BulkSendCLI}
+ * to {@link NodeSimulator}, and reports the throughput and the latency of the transactions.
+ * <p>
+ * The arguments after <code>--</code> are passed to the CLI as is (e.g. <code>-- -f 16 -mb 500</code>).
+ */
+public class LoadTest {
+
+    private static final long SEED = 42;
+    private static final long MINING_POLL_INTERVAL_MS = 100;
+    private static final long STUCK_BLOCKS = 20;
+    private static final BigInteger BULK_SENDER_BALANCE = BigDecimal.valueOf(1000000000000L)
+            .movePointRight(BenchData.DECIMALS).toBigIntegerExact();
+
+    public static void main(String[] args) throws Exception {
+        final Options options = new Options();
+        options.addOption("h", "help", false, "display help");
+        options.addOption("n", "orders", true, "how many orders to send (default: 1000000)");
+        options.addOption("bt", "blocktime", true, "block time, in ms (default: 1000)");
+        options.addOption("gl", "gaslimit", true, "block gas limit (default: 8000000)");
+        options.addOption("bf", "basefee", true, "the base fee of the first block, in Gwei (default: 1)");
+        options.addOption("fb", "fixedbasefee", false, "keep the base fee fixed, regardless of the block fullness");
+        options.addOption("eb", "etherbalance", true, "the ether balance of the BulkSender owner (default: 1000)");
+        options.addOption("l", "latency", true, "the delay of every request, in ms (default: 0)");
+        options.addOption("lj", "jitter", true, "the jitter of the delay, in ms (default: 0)");
+        options.addOption("fr", "failurerate", true, "the share of the requests failed with HTTP 503 (default: 0)");
+        options.addOption("dr", "droprate", true, "the share of the transactions dropped from the pool (default: 0)");
+        options.addOption("nr", "noncerate", true, "the share of the transactions answered with “nonce too low” (default: 0)");
+        options.addOption("rb", "readbalances", false, "read all the balances back by the CLI \"balances\" mode "
+                + "(via the simulated BalanceReader), and check them");
+        options.addOption("rc", "reconcile", false, "match the orders to the transfers found on the chain by the CLI \"reconcile\" mode, "
+                + "and check that none is unpaid, underpaid or paid twice");
+        options.addOption("ix", "index", false, "index the token events by the CLI \"index\" mode (before the run, and "
+                + "catching up after it), and check the holders and the balances queried from the index");
+        options.addOption("ml", "maxlogs", true, "eth_getLogs refuses the queries matching more logs (default: 10000)");
+        options.addOption("sh", "shards", true, "send through so many (operator, BulkSender) shards at once (default: 1)");
+        options.addOption("ss", "starveshard", true, "give the first BulkSender only such a share of the tokens of all the orders, "
+                + "for the rest of them to be rebalanced to the other shards (default: all it needs)");
+        options.addOption("im", "import", false, "convert the orders into the binary file by the CLI \"import\" mode, "
+                + "and send (and check) them from it");
+        options.addOption("st", "stalltimeout", true, "stop waiting for the CLI if nothing is mined for so many seconds (default: 120)");
+
+        final CommandLine line;
+        try {
+            line = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.printf("Cannot parse the arguments: %s\n", e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if (line.hasOption("help")) {
+            new HelpFormatter().printHelp("LoadTest [options] [-- CLI options]", options);
+            return;
+        }
+
+        final int orderCount = Integer.parseInt(line.getOptionValue("orders", "1000000"));
+        final long stallTimeoutSeconds = Long.parseLong(line.getOptionValue("stalltimeout", "120"));
+        final int shardCount = Integer.parseInt(line.getOptionValue("shards", "1"));
+        final NodeSimulator.Config config = new NodeSimulator.Config();
+        config.blockTimeMs = Long.parseLong(line.getOptionValue("blocktime", "1000"));
+        config.blockGasLimit = Long.parseLong(line.getOptionValue("gaslimit", "8000000"));
+        config.initialBaseFee = new BigDecimal(line.getOptionValue("basefee", "1")).movePointRight(9).toBigIntegerExact();
+        config.baseFeeChangeDenominator = line.hasOption("fixedbasefee") ? 0 : config.baseFeeChangeDenominator;
+        config.etherBalance = new BigDecimal(line.getOptionValue("etherbalance", "1000")).movePointRight(18).toBigIntegerExact();
+        config.latencyMs = Long.parseLong(line.getOptionValue("latency", "0"));
+        config.latencyJitterMs = Long.parseLong(line.getOptionValue("jitter", "0"));
+        config.failureRate = Double.parseDouble(line.getOptionValue("failurerate", "0"));
+        config.dropRate = Double.parseDouble(line.getOptionValue("droprate", "0"));
+        config.nonceErrorRate = Double.parseDouble(line.getOptionValue("noncerate", "0"));
+        config.maxLogsPerQuery = Integer.parseInt(line.getOptionValue("maxlogs", "10000"));
+
+        // The CLI output goes to the file, only the report is printed; the debug logs would slow down the CLI
+        Configurator.setLevel("com.icodici.universa", Level.WARN);
+        final PrintStream out = System.out;
+        final Path workDir = Files.createTempDirectory("utnp-load");
+        final Path logPath = workDir.resolve("cli.log");
+        final PrintStream log = new PrintStream(new BufferedOutputStream(Files.newOutputStream(logPath)), false, "UTF-8");
+        System.setOut(log);
+
+        out.printf("Generating %s orders in %s...\n", orderCount, workDir);
+        final Path jsonPath = Files.move(BenchData.writeOrdersFile(orderCount, SEED), workDir.resolve("orders.json"));
+        final Map<String, BigInteger> expected = expectedBalances(jsonPath);
+        final Path ordersPath;
+        if (line.hasOption("import")) {
+            ordersPath = importOrders(out, jsonPath, workDir.resolve("orders.bin"));
+            if (!expected.equals(expectedBalances(ordersPath))) {
+                out.printf("ERROR: the imported orders differ from the JSON ones!\n");
+                System.exit(1);
+            }
+        } else {
+            ordersPath = jsonPath;
+        }
+        // Every shard has its own operator and BulkSender
+        final List<String> owners = new ArrayList<>(), keyPaths = new ArrayList<>(), bulkSenders = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            final ECKeyPair keyPair = Keys.createEcKeyPair();
+            owners.add("0x" + Keys.getAddress(keyPair));
+            final Path keyPath = workDir.resolve((i == 0) ? "key" : "key." + (i + 1));
+            Files.write(keyPath, Numeric.toHexStringNoPrefixZeroPadded(keyPair.getPrivateKey(), 64).getBytes(StandardCharsets.US_ASCII));
+            keyPaths.add(keyPath.toString());
+            bulkSenders.add((i == 0) ? BenchData.BULK_SENDER : String.format("0x%040x",
+                    Numeric.toBigInt(BenchData.BULK_SENDER).add(BigInteger.valueOf(i))));
+        }
+        final BigInteger firstBalance = line.hasOption("starveshard")
+                ? new BigDecimal(expected.values().stream().reduce(BigInteger.ZERO, BigInteger::add))
+                .multiply(new BigDecimal(line.getOptionValue("starveshard"))).toBigInteger()
+                : BULK_SENDER_BALANCE;
+
+        final List<String> cliArgs = new ArrayList<>();
+        final int exitCode;
+        try (final NodeSimulator simulator = new NodeSimulator(config,
+                BenchData.TOKEN, BenchData.BULK_SENDER, owners.get(0), firstBalance, 0)) {
+            for (int i = 1; i < shardCount; i++) {
+                simulator.addBulkSender(bulkSenders.get(i), owners.get(i), BULK_SENDER_BALANCE);
+            }
+            Collections.addAll(cliArgs,
+                    "-i", ordersPath.toString(),
+                    "-r", simulator.getUrl(),
+                    "-pk", String.join(",", keyPaths),
+                    "-bs", String.join(",", bulkSenders),
+                    "-e", BenchData.TOKEN,
+                    "-pi", workDir.resolve("payments.index").toString());
+            Collections.addAll(cliArgs, line.getArgs());
+            final Path indexPath = workDir.resolve("index");
+            if (line.hasOption("index")) {
+                // The genesis balance is read at block 0, before anything is sent
+                index(out, simulator, indexPath, "-fb", "1", "-gh", String.join(",", bulkSenders));
+                log.flush();
+            }
+            out.printf("Running BulkSendCLI %s\n", String.join(" ", cliArgs));
+            out.printf("(its output goes to %s)\n", logPath);
+
+            final long startedAt = System.nanoTime();
+            final Thread cli = new Thread(() -> BulkSendCLI.main(cliArgs.toArray(new String[0])), "bulk-send-cli");
+            cli.setDaemon(true);
+            cli.start();
+            // E.g. the CLI waits forever for the transaction dropped from the pool
+            long lastTransfersMined = 0, lastProgressAt = System.nanoTime();
+            while (cli.isAlive()) {
+                cli.join(MINING_POLL_INTERVAL_MS);
+                if (simulator.getTransfersMined() != lastTransfersMined) {
+                    lastTransfersMined = simulator.getTransfersMined();
+                    lastProgressAt = System.nanoTime();
+                } else if (System.nanoTime() - lastProgressAt > TimeUnit.SECONDS.toNanos(stallTimeoutSeconds)) {
+                    out.printf("WARNING: the CLI has stalled, nothing mined for %s s; not waiting for it any more\n",
+                            stallTimeoutSeconds);
+                    break;
+                }
+            }
+            final double cliSeconds = (System.nanoTime() - startedAt) / 1e9;
+            // The CLI returns once the last bulk is accepted; wait for the rest to be mined,
+            // unless they are stuck (behind the nonce gap left by the dropped transaction)
+            final long blocksToWait = simulator.getBlockNumber() + STUCK_BLOCKS;
+            while (simulator.getPendingCount() > 0 && simulator.getBlockNumber() < blocksToWait) {
+                Thread.sleep(MINING_POLL_INTERVAL_MS);
+            }
+            if (simulator.getPendingCount() > 0) {
+                out.printf("WARNING: %s transaction(s) are stuck in the pool\n", simulator.getPendingCount());
+            }
+            final double seconds = (System.nanoTime() - startedAt) / 1e9;
+            log.flush();
+
+            out.printf("\nCLI wall time: %.1f s; all mined in %.1f s\n", cliSeconds, seconds);
+            out.printf("Transfers mined: %s of %s (%.0f orders/s)\n",
+                    simulator.getTransfersMined(), orderCount, simulator.getTransfersMined() / seconds);
+            out.printf("Transactions mined: %s (%.2f tx/s), reverted: %s, dropped from the pool: %s, blocks: %s\n",
+                    simulator.getTransactionsMined(), simulator.getTransactionsMined() / seconds,
+                    simulator.getRevertedCount(), simulator.getDroppedCount(), simulator.getBlockNumber());
+            out.printf("Base fee at the end: %s Gwei\n", new BigDecimal(simulator.getBaseFee(), 9).stripTrailingZeros().toPlainString());
+            printPercentiles(out, "Send to mined", simulator.getInclusionLatenciesNanos());
+            printPercentiles(out, "Send to receipt seen", simulator.getConfirmationLatenciesNanos());
+            out.printf("Requests by method:\n");
+            simulator.getRequestCounts().forEach((method, count) -> out.printf("    %-28s %s\n", method, count));
+
+            boolean ok = verifyBalances(out, simulator, expected);
+            if (line.hasOption("readbalances")) {
+                ok &= readBalances(out, simulator, config, ordersPath, workDir.resolve("balances.csv"), expected);
+                log.flush();
+            }
+            if (line.hasOption("reconcile")) {
+                ok &= reconcile(out, simulator, ordersPath, bulkSenders, workDir.resolve("reconciliation.csv"));
+                log.flush();
+            }
+            if (line.hasOption("index")) {
+                index(out, simulator, indexPath);
+                ok &= queryIndex(out, simulator, indexPath, bulkSenders, workDir.resolve("holders.csv"), expected);
+                log.flush();
+            }
+            exitCode = ok ? 0 : 1;
+        } finally {
+            System.setOut(out);
+            log.close();
+        }
+        System.exit(exitCode);
+    }
+
+    private static void printPercentiles(PrintStream out, String title, long[] latenciesNanos) {
+        if (latenciesNanos.length == 0) {
+            out.printf("%s: no data\n", title);
+            return;
+        }
+        Arrays.sort(latenciesNanos);
+        out.printf("%s, ms: p50 %.0f, p90 %.0f, p99 %.0f, max %.0f\n", title,
+                percentile(latenciesNanos, 0.5), percentile(latenciesNanos, 0.9),
+                percentile(latenciesNanos, 0.99), latenciesNanos[latenciesNanos.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)] / 1e6;
+    }
+
+    /**
+     * The sum of the orders of every address (in lowercase).
+     */
+    private static Map<String, BigInteger> expectedBalances(Path ordersPath) throws IOException {
+        final Map<String, BigInteger> expected = new HashMap<>();
+        try (final OrderReader reader = OrderReader.open(ordersPath)) {
+            Order order;
+            while ((order = reader.readNext()) != null) {
+                expected.merge(order.address.toLowerCase(),
+                        EthereumUtils.intFromDecimal(order.amount, BigInteger.valueOf(BenchData.DECIMALS)),
+                        BigInteger::add);
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Check that every address has received exactly the sum of its orders.
+     */
+    private static boolean verifyBalances(PrintStream out, NodeSimulator simulator, Map<String, BigInteger> expected) {
+        long mismatches = 0;
+        for (final Map.Entry<String, BigInteger> entry : expected.entrySet()) {
+            final BigInteger actual = simulator.getTokenBalance(entry.getKey());
+            if (!actual.equals(entry.getValue()) && mismatches++ < 10) {
+                out.printf("ERROR: %s has got %s instead of %s\n", entry.getKey(), actual, entry.getValue());
+            }
+        }
+        if (mismatches == 0) {
+            out.printf("All %s recipients have got exactly their amounts.\n", expected.size());
+        } else {
+            out.printf("ERROR: %s of %s recipients have got wrong amounts!\n", mismatches, expected.size());
+        }
+        return mismatches == 0;
+    }
+
+    /**
+     * Convert the orders into the binary file by the CLI "import" mode.
+     */
+    private static Path importOrders(PrintStream out, Path jsonPath, Path binaryPath) throws IOException {
+        final String[] cliArgs = {"-i", jsonPath.toString(), "-im", binaryPath.toString()};
+        out.printf("Running BulkSendCLI %s\n", String.join(" ", cliArgs));
+        final long startedAt = System.nanoTime();
+        BulkSendCLI.main(cliArgs);
+        final double seconds = (System.nanoTime() - startedAt) / 1e9;
+        if (!Files.exists(binaryPath)) {
+            out.printf("ERROR: the orders are not imported!\n");
+            System.exit(1);
+        }
+        out.printf("Imported %.1f MB of JSON into %.1f MB in %.1f s\n",
+                Files.size(jsonPath) / 1e6, Files.size(binaryPath) / 1e6, seconds);
+        return binaryPath;
+    }
+
+    /**
+     * Read all the balances by the CLI "balances" mode, and check that they are the ones expected.
+     */
+    private static boolean readBalances(PrintStream out,
+                                        NodeSimulator simulator,
+                                        NodeSimulator.Config config,
+                                        Path ordersPath,
+                                        Path balancesPath,
+                                        Map<String, BigInteger> expected) throws IOException {
+        final List<String> cliArgs = new ArrayList<>();
+        Collections.addAll(cliArgs,
+                "-i", ordersPath.toString(),
+                "-r", simulator.getUrl(),
+                "-e", BenchData.TOKEN,
+                "-bl", balancesPath.toString());
+        if (config.balanceReaderAddress != null) {
+            Collections.addAll(cliArgs, "-br", config.balanceReaderAddress);
+        }
+        out.printf("\nRunning BulkSendCLI %s\n", String.join(" ", cliArgs));
+        final long requestsBefore = totalRequests(simulator);
+        final long startedAt = System.nanoTime();
+        BulkSendCLI.main(cliArgs.toArray(new String[0]));
+        final double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+        final Map<String, BigInteger> read = new HashMap<>();
+        if (Files.exists(balancesPath)) {
+            try (final BufferedReader reader = Files.newBufferedReader(balancesPath, StandardCharsets.UTF_8)) {
+                reader.readLine();
+                String csvLine;
+                while ((csvLine = reader.readLine()) != null) {
+                    final int comma = csvLine.indexOf(',');
+                    read.put(csvLine.substring(0, comma).toLowerCase(),
+                            new BigDecimal(csvLine.substring(comma + 1)).movePointRight(BenchData.DECIMALS).toBigIntegerExact());
+                }
+            }
+        }
+        out.printf("Read %s balances in %.1f s (%.0f balances/s), %s requests\n",
+                read.size(), seconds, read.size() / seconds, totalRequests(simulator) - requestsBefore);
+        if (!read.equals(expected)) {
+            out.printf("ERROR: the balances read differ from the ones expected (%s read, %s expected)!\n",
+                    read.size(), expected.size());
+            return false;
+        }
+        out.printf("All %s balances read are exactly the ones expected.\n", read.size());
+        return true;
+    }
+
+    /**
+     * Reconcile all the orders by the CLI "reconcile" mode (with the journals of the run), and check that
+     * every order is paid exactly once.
+     */
+    private static boolean reconcile(PrintStream out,
+                                     NodeSimulator simulator,
+                                     Path ordersPath,
+                                     List<String> bulkSenders,
+                                     Path reportPath) throws IOException {
+        final List<String> cliArgs = new ArrayList<>();
+        Collections.addAll(cliArgs,
+                "-i", ordersPath.toString(),
+                "-r", simulator.getUrl(),
+                "-bs", String.join(",", bulkSenders),
+                "-e", BenchData.TOKEN,
+                "-fb", "0",
+                "-rc", reportPath.toString());
+        out.printf("\nRunning BulkSendCLI %s\n", String.join(" ", cliArgs));
+        final long requestsBefore = simulator.getRequestCounts().getOrDefault("eth_getLogs", 0L);
+        final long startedAt = System.nanoTime();
+        BulkSendCLI.main(cliArgs.toArray(new String[0]));
+        final double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+        if (!Files.exists(reportPath)) {
+            out.printf("ERROR: the reconciliation report is not written!\n");
+            return false;
+        }
+        final List<String> problems = Files.readAllLines(reportPath, StandardCharsets.UTF_8);
+        problems.remove(0);
+        out.printf("Reconciled %s blocks in %.1f s, %s eth_getLogs requests\n", simulator.getBlockNumber() + 1, seconds,
+                simulator.getRequestCounts().getOrDefault("eth_getLogs", 0L) - requestsBefore);
+        if (!problems.isEmpty()) {
+            out.printf("ERROR: %s order(s) or transfer(s) are not paid exactly once, e.g.:\n", problems.size());
+            problems.stream().limit(10).forEach(problem -> out.printf("    %s\n", problem));
+            return false;
+        }
+        out.printf("Every order is paid exactly once.\n");
+        return true;
+    }
+
+    /**
+     * Create or catch up the index of the token events by the CLI "index" mode.
+     */
+    private static void index(PrintStream out, NodeSimulator simulator, Path indexPath, String... extraArgs) {
+        final List<String> cliArgs = new ArrayList<>();
+        Collections.addAll(cliArgs,
+                "-ix", indexPath.toString(),
+                "-r", simulator.getUrl(),
+                "-e", BenchData.TOKEN);
+        Collections.addAll(cliArgs, extraArgs);
+        out.printf("\nRunning BulkSendCLI %s\n", String.join(" ", cliArgs));
+        final long requestsBefore = totalRequests(simulator);
+        final long startedAt = System.nanoTime();
+        BulkSendCLI.main(cliArgs.toArray(new String[0]));
+        out.printf("Indexed up to block %s in %.1f s, %s requests\n", simulator.getBlockNumber(),
+                (System.nanoTime() - startedAt) / 1e9, totalRequests(simulator) - requestsBefore);
+    }
+
+    /**
+     * Check that the holders queried from the index by the CLI are exactly the ones expected
+     * (plus the rest of the BulkSender contracts), and measure the single balance queries; none may touch the node.
+     */
+    private static boolean queryIndex(PrintStream out,
+                                      NodeSimulator simulator,
+                                      Path indexPath,
+                                      List<String> bulkSenders,
+                                      Path holdersPath,
+                                      Map<String, BigInteger> expected) throws IOException {
+        final Map<String, BigInteger> expectedHolders = new HashMap<>(expected);
+        for (final String bulkSender : bulkSenders) {
+            final BigInteger rest = simulator.getTokenBalance(bulkSender);
+            if (rest.signum() != 0) {
+                expectedHolders.merge(bulkSender.toLowerCase(), rest, BigInteger::add);
+            }
+        }
+
+        final List<String> cliArgs = new ArrayList<>();
+        Collections.addAll(cliArgs, "-ix", indexPath.toString(), "-qh", holdersPath.toString());
+        out.printf("\nRunning BulkSendCLI %s\n", String.join(" ", cliArgs));
+        final long requestsBefore = totalRequests(simulator);
+        final long startedAt = System.nanoTime();
+        BulkSendCLI.main(cliArgs.toArray(new String[0]));
+        final double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+        final Map<String, BigInteger> holders = new HashMap<>();
+        if (Files.exists(holdersPath)) {
+            try (final BufferedReader reader = Files.newBufferedReader(holdersPath, StandardCharsets.UTF_8)) {
+                reader.readLine();
+                String csvLine;
+                while ((csvLine = reader.readLine()) != null) {
+                    final int comma = csvLine.indexOf(',');
+                    holders.put(csvLine.substring(0, comma),
+                            new BigDecimal(csvLine.substring(comma + 1)).movePointRight(BenchData.DECIMALS).toBigIntegerExact());
+                }
+            }
+        }
+        out.printf("Queried %s holders from the index in %.3f s\n", holders.size(), seconds);
+
+        // The single balance queries, at the last block and at the middle of the run
+        final List<String> addresses = new ArrayList<>(expectedHolders.keySet());
+        Collections.shuffle(addresses, new Random(SEED));
+        final int queryCount = Math.min(1000, addresses.size());
+        long mismatches = 0;
+        final long queriesStartedAt = System.nanoTime();
+        try (final EventStore store = EventStore.open(indexPath, false)) {
+            for (int i = 0; i < queryCount; i++) {
+                final String address = addresses.get(i);
+                store.getBalance(address, store.getLastBlock() / 2);
+                if (!store.getBalance(address, store.getLastBlock()).equals(expectedHolders.get(address))) {
+                    mismatches++;
+                }
+            }
+        }
+        out.printf("%s balance queries (at two blocks each) in %.1f ms, %.3f ms per query\n", queryCount,
+                (System.nanoTime() - queriesStartedAt) / 1e6, (System.nanoTime() - queriesStartedAt) / 1e6 / queryCount / 2);
+
+        if (totalRequests(simulator) != requestsBefore) {
+            out.printf("ERROR: querying the index has made %s requests to the node!\n", totalRequests(simulator) - requestsBefore);
+            return false;
+        }
+        if (!holders.equals(expectedHolders) || mismatches > 0) {
+            out.printf("ERROR: the index differs from the chain (%s holders indexed, %s expected; %s balances differ)!\n",
+                    holders.size(), expectedHolders.size(), mismatches);
+            return false;
+        }
+        out.printf("All %s holders in the index are exactly the ones expected.\n", holders.size());
+        return true;
+    }
+
+    private static long totalRequests(NodeSimulator simulator) {
+        return simulator.getRequestCounts().values().stream().mapToLong(Long::longValue).sum();
+    }
+}
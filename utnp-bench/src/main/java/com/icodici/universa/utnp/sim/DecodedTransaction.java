@@ -0,0 +1,163 @@
+package com.icodici.universa.utnp.sim;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.crypto.Hash;
+import org.web3j.crypto.Keys;
+import org.web3j.crypto.Sign;
+import org.web3j.rlp.*;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The raw signed transaction (as sent by <code>eth_sendRawTransaction</code>), decoded,
+ * with the sender recovered from the signature: either the legacy one or the EIP-1559 (type 2) one.
+ */
+class DecodedTransaction {
+
+    static final int EIP1559_TRANSACTION_TYPE = 0x02;
+
+    @NonNull
+    final String txhash;
+    @NonNull
+    final String from;
+    /**
+     * Whether the transaction is an EIP-1559 (type 2) one.
+     */
+    final boolean eip1559;
+    @NonNull
+    final BigInteger nonce;
+    /**
+     * The maximum total fee per gas; the gas price, for the legacy transaction.
+     */
+    @NonNull
+    final BigInteger maxFeePerGas;
+    /**
+     * The maximum fee per gas above the base fee; the gas price, for the legacy transaction.
+     */
+    @NonNull
+    final BigInteger maxPriorityFeePerGas;
+    @NonNull
+    final BigInteger gasLimit;
+    /**
+     * <code>null</code> for the contract creation.
+     */
+    @Nullable
+    final String to;
+    @NonNull
+    final BigInteger value;
+    @NonNull
+    final byte[] data;
+
+    private DecodedTransaction(@NonNull String txhash,
+                               @NonNull String from,
+                               boolean eip1559,
+                               @NonNull List<RlpType> fields) {
+        this.txhash = txhash;
+        this.from = from;
+        this.eip1559 = eip1559;
+        // Type 2: chain id, nonce, priority fee, max fee, gas limit, to, value, data, access list;
+        // legacy: nonce, gas price, gas limit, to, value, data
+        if (eip1559) {
+            this.nonce = toBigInteger(fields.get(1));
+            this.maxPriorityFeePerGas = toBigInteger(fields.get(2));
+            this.maxFeePerGas = toBigInteger(fields.get(3));
+        } else {
+            this.nonce = toBigInteger(fields.get(0));
+            this.maxFeePerGas = this.maxPriorityFeePerGas = toBigInteger(fields.get(1));
+        }
+        final int gasLimitIndex = eip1559 ? 4 : 2;
+        this.gasLimit = toBigInteger(fields.get(gasLimitIndex));
+        final byte[] toBytes = ((RlpString) fields.get(gasLimitIndex + 1)).getBytes();
+        this.to = (toBytes.length == 0) ? null : Numeric.toHexString(toBytes);
+        this.value = toBigInteger(fields.get(gasLimitIndex + 2));
+        this.data = ((RlpString) fields.get(gasLimitIndex + 3)).getBytes();
+    }
+
+    /**
+     * The gas price actually paid if mined in the block with this base fee
+     * (the base fee must not be above {@link #maxFeePerGas}).
+     */
+    @NonNull
+    BigInteger getEffectiveGasPrice(@NonNull BigInteger baseFee) {
+        return maxFeePerGas.min(baseFee.add(maxPriorityFeePerGas));
+    }
+
+    /**
+     * Decode the transaction: the legacy one, signed either by EIP-155 (with the chain id) or without it;
+     * or the EIP-1559 one.
+     *
+     * @throws IllegalArgumentException if the transaction is malformed or the signature is invalid.
+     */
+    @NonNull
+    static DecodedTransaction decode(@NonNull String hex) {
+        assert hex != null;
+
+        final byte[] raw = Numeric.hexStringToByteArray(hex);
+        // The typed transaction is the type byte followed by the RLP list; the legacy one is the RLP list
+        final boolean eip1559 = raw.length > 0 && raw[0] == EIP1559_TRANSACTION_TYPE;
+        if (raw.length > 0 && (raw[0] & 0xFF) < 0xC0 && !eip1559) {
+            throw new IllegalArgumentException("Unsupported transaction type " + raw[0]);
+        }
+        final byte[] rlp = eip1559 ? Arrays.copyOfRange(raw, 1, raw.length) : raw;
+        final List<RlpType> fields;
+        try {
+            fields = ((RlpList) RlpDecoder.decode(rlp).getValues().get(0)).getValues();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed transaction", e);
+        }
+        final int unsignedCount = eip1559 ? 9 : 6;
+        if (fields.size() != unsignedCount + 3) {
+            throw new IllegalArgumentException("Malformed transaction: " + fields.size() + " fields");
+        }
+
+        final long v = toBigInteger(fields.get(unsignedCount)).longValueExact();
+        final byte[] r = Numeric.toBytesPadded(toBigInteger(fields.get(unsignedCount + 1)), 32);
+        final byte[] s = Numeric.toBytesPadded(toBigInteger(fields.get(unsignedCount + 2)), 32);
+        final List<RlpType> signed = new ArrayList<>(fields.subList(0, unsignedCount));
+        final byte recoveryV;
+        if (eip1559) {
+            // The y parity of the signature, 0 or 1
+            recoveryV = (byte) (27 + v);
+        } else if (v == 27 || v == 28) {
+            recoveryV = (byte) v;
+        } else {
+            // EIP-155: v = chainId * 2 + 35 + recovery id; the chain id is signed instead of v, r, s
+            final long chainId = (v - 35) / 2;
+            recoveryV = (byte) (27 + (v - 35) % 2);
+            signed.addAll(Arrays.asList(RlpString.create(chainId), RlpString.create(new byte[0]), RlpString.create(new byte[0])));
+        }
+
+        final byte[] encoded = RlpEncoder.encode(new RlpList(signed));
+        final byte[] message;
+        if (eip1559) {
+            message = new byte[encoded.length + 1];
+            message[0] = EIP1559_TRANSACTION_TYPE;
+            System.arraycopy(encoded, 0, message, 1, encoded.length);
+        } else {
+            message = encoded;
+        }
+        final BigInteger publicKey;
+        try {
+            publicKey = Sign.signedMessageToKey(message, new Sign.SignatureData(recoveryV, r, s));
+        } catch (SignatureException e) {
+            throw new IllegalArgumentException("Invalid signature", e);
+        }
+        return new DecodedTransaction(Numeric.toHexString(Hash.sha3(raw)), "0x" + Keys.getAddress(publicKey), eip1559, fields);
+    }
+
+    @NonNull
+    private static BigInteger toBigInteger(@NonNull RlpType field) {
+        final byte[] bytes = ((RlpString) field).getBytes();
+        return (bytes.length == 0) ? BigInteger.ZERO : new BigInteger(1, bytes);
+    }
+
+    public String toString() {
+        return String.format("DecodedTransaction(%s, from=%s, nonce=%s)", txhash, from, nonce);
+    }
+}
@@ -0,0 +1,724 @@
+package com.icodici.universa.utnp.sim;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.icodici.universa.utnp.sim.SimulatedChain.RejectedException;
+import com.icodici.universa.utnp.sim.SimulatedChain.Transaction;
+import com.icodici.universa.utnp.sim.SimulatedChain.TransferLog;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.crypto.Hash;
+import org.web3j.utils.Numeric;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stand-in of the Ethereum node for the load tests: serves the JSON-RPC methods used by the connectors
+ * over HTTP on the loopback interface, on top of {@link SimulatedChain} (which models the UTNP token
+ * and the BulkSender contracts).
+ * <p>
+ * The block time, the base fee dynamics, the latency of the requests, and the failures (HTTP errors,
+ * transactions dropped from the pool, spurious “nonce too low” errors) are configurable with {@link Config}.
+ * Also counts the requests by method, and measures the latency of every transaction.
+ */
+public class NodeSimulator implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(NodeSimulator.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonNodeFactory json = JsonNodeFactory.instance;
+
+    private static final int HTTP_THREADS = 32;
+    /**
+     * The priority fee suggested by <code>eth_gasPrice</code> above the base fee.
+     */
+    private static final BigInteger SUGGESTED_PRIORITY_FEE = BigInteger.valueOf(1000000000);
+
+    /**
+     * The behaviour of the simulated node.
+     */
+    public static class Config {
+        /**
+         * How often the blocks are mined.
+         */
+        public long blockTimeMs = 1000;
+        public long blockGasLimit = 8000000;
+        public long chainId = 1;
+        public int decimals = 18;
+        /**
+         * The base fee of the first block, in wei.
+         */
+        @NonNull
+        public BigInteger initialBaseFee = BigInteger.valueOf(1000000000);
+        /**
+         * The base fee changes by at most 1/denominator per block (8 on the mainnet); 0 to keep it fixed.
+         */
+        public int baseFeeChangeDenominator = 8;
+        /**
+         * The ether balance of every address, in wei (the gas is not charged).
+         */
+        @NonNull
+        public BigInteger etherBalance = BigInteger.TEN.pow(21);
+        /**
+         * The address of the BalanceReader helper contract; <code>null</code> if it is not deployed.
+         */
+        @Nullable
+        public String balanceReaderAddress = "0x000000000000000000000000000000000000ba1a";
+        /**
+         * The <code>balancesOf</code> call for more holders fails (as if running out of the gas cap of the node).
+         */
+        public int maxHoldersPerBalancesCall = 5000;
+        /**
+         * The <code>eth_getLogs</code> query matching more logs is refused (as geth does).
+         */
+        public int maxLogsPerQuery = 10000;
+        /**
+         * The delay of every HTTP request (a batch is a single request); uniformly distributed
+         * in <code>latencyMs ± latencyJitterMs</code>.
+         */
+        public long latencyMs = 0;
+        public long latencyJitterMs = 0;
+        /**
+         * The share of the HTTP requests failed with 503.
+         */
+        public double failureRate = 0;
+        /**
+         * The share of the accepted transactions evicted from the pool before the next block (never mined).
+         */
+        public double dropRate = 0;
+        /**
+         * The share of the transactions accepted but answered with “nonce too low”
+         * (as the node which got the same transaction from the other peer first).
+         */
+        public double nonceErrorRate = 0;
+    }
+
+    @NonNull
+    private final Config config;
+    @NonNull
+    private final SimulatedChain chain;
+    @NonNull
+    private final HttpServer server;
+    @NonNull
+    private final ExecutorService httpExecutor;
+    @NonNull
+    private final ScheduledExecutorService miner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "node-simulator-miner");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * The transactions to evict from the pool before mining the next block.
+     */
+    @NonNull
+    private final Queue<String> toDrop = new ConcurrentLinkedQueue<>();
+    @NonNull
+    private final ConcurrentMap<String, AtomicLong> requestCounts = new ConcurrentSkipListMap<>();
+    @NonNull
+    private final AtomicLong droppedCount = new AtomicLong();
+
+
+    /**
+     * Constructor; starts serving and mining at once.
+     *
+     * @param bulkSenderOwner   the only account allowed to call <code>bulkTransfer</code>; <code>null</code> if anyone is.
+     * @param bulkSenderBalance the tokens owned by BulkSender initially, in the minimal units.
+     * @param port              the port to listen on (on the loopback interface only); 0 for any free port.
+     * @throws IOException if the port cannot be listened on.
+     */
+    public NodeSimulator(@NonNull Config config,
+                         @NonNull String tokenAddress,
+                         @NonNull String bulkSenderAddress,
+                         @Nullable String bulkSenderOwner,
+                         @NonNull BigInteger bulkSenderBalance,
+                         int port) throws IOException {
+        assert config != null;
+        assert config.blockTimeMs > 0 : config.blockTimeMs;
+        assert tokenAddress != null;
+        assert bulkSenderAddress != null;
+        assert bulkSenderBalance != null;
+        assert port >= 0 && port <= 65535 : port;
+
+        this.config = config;
+        this.chain = new SimulatedChain(tokenAddress, config.decimals,
+                bulkSenderAddress, bulkSenderOwner, bulkSenderBalance, config.blockGasLimit,
+                config.initialBaseFee, config.baseFeeChangeDenominator,
+                config.balanceReaderAddress, config.maxHoldersPerBalancesCall);
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        httpExecutor = Executors.newFixedThreadPool(HTTP_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable, "node-simulator-http-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(httpExecutor);
+        server.start();
+
+        miner.scheduleAtFixedRate(this::mineBlock, config.blockTimeMs, config.blockTimeMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deploy one more BulkSender contract (e.g. for the sharded sending).
+     *
+     * @param owner   the only account allowed to call its <code>bulkTransfer</code>; <code>null</code> if anyone is.
+     * @param balance the tokens owned by it initially, in the minimal units.
+     */
+    public void addBulkSender(@NonNull String address, @Nullable String owner, @NonNull BigInteger balance) {
+        assert address != null;
+        assert balance != null;
+        chain.addBulkSender(address, owner, balance);
+    }
+
+    /**
+     * The URL to pass to the connectors (the <code>rpc</code> option of the CLI).
+     */
+    @NonNull
+    public String getUrl() {
+        return String.format("http://%s:%s/", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    /**
+     * The number of the requests served, by JSON-RPC method (the requests in the batches are counted separately).
+     */
+    @NonNull
+    public Map<String, Long> getRequestCounts() {
+        final Map<String, Long> result = new TreeMap<>();
+        requestCounts.forEach((method, count) -> result.put(method, count.get()));
+        return result;
+    }
+
+    /**
+     * The token balance, in the minimal units.
+     */
+    @NonNull
+    public BigInteger getTokenBalance(@NonNull String address) {
+        assert address != null;
+        return chain.getBalance(address);
+    }
+
+    public long getBlockNumber() {
+        return chain.getBlockNumber();
+    }
+
+    /**
+     * The number of the token transfers done by the mined transactions.
+     */
+    public long getTransfersMined() {
+        return chain.getTransfersMined();
+    }
+
+    public long getTransactionsMined() {
+        return chain.getMinedTransactions().size();
+    }
+
+    /**
+     * The number of the transactions waiting in the pool.
+     */
+    public int getPendingCount() {
+        return chain.getPendingCount();
+    }
+
+    public long getRevertedCount() {
+        return chain.getRevertedCount();
+    }
+
+    /**
+     * The base fee of the next block, in wei.
+     */
+    @NonNull
+    public BigInteger getBaseFee() {
+        return chain.getBaseFee();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * The time from accepting every mined transaction to mining it.
+     */
+    @NonNull
+    public long[] getInclusionLatenciesNanos() {
+        return chain.getMinedTransactions().stream()
+                .mapToLong(transaction -> transaction.minedAtNanos - transaction.receivedAtNanos)
+                .toArray();
+    }
+
+    /**
+     * The time from accepting every mined transaction to the first request of its receipt after mining,
+     * i.e. until the client has learned about its confirmation.
+     */
+    @NonNull
+    public long[] getConfirmationLatenciesNanos() {
+        return chain.getMinedTransactions().stream()
+                .filter(transaction -> transaction.receiptSeenAtNanos != 0)
+                .mapToLong(transaction -> transaction.receiptSeenAtNanos - transaction.receivedAtNanos)
+                .toArray();
+    }
+
+    @Override
+    public void close() {
+        miner.shutdownNow();
+        server.stop(0);
+        httpExecutor.shutdownNow();
+    }
+
+    private void mineBlock() {
+        try {
+            String txhash;
+            while ((txhash = toDrop.poll()) != null) {
+                chain.drop(txhash);
+            }
+            final long blockNumber = chain.mineBlock();
+            logger.debug("Mined block {} with {} transactions at base fee {}",
+                    blockNumber, chain.getBlock(blockNumber).size(), chain.getBlockBaseFee(blockNumber));
+        } catch (RuntimeException e) {
+            // Don't let the scheduler stop mining
+            logger.error("Cannot mine the block", e);
+        }
+    }
+
+    private void handle(@NonNull HttpExchange exchange) throws IOException {
+        try {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final long delayMs = config.latencyMs + ((config.latencyJitterMs > 0)
+                    ? random.nextLong(-config.latencyJitterMs, config.latencyJitterMs + 1)
+                    : 0);
+            if (delayMs > 0) {
+                Thread.sleep(delayMs);
+            }
+            if (random.nextDouble() < config.failureRate) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            final JsonNode request;
+            try (final InputStream in = exchange.getRequestBody()) {
+                request = mapper.readTree(in);
+            }
+            final JsonNode response;
+            if (request.isArray()) {
+                final ArrayNode responses = json.arrayNode();
+                request.forEach(single -> responses.add(handleSingle(single)));
+                response = responses;
+            } else {
+                response = handleSingle(request);
+            }
+
+            final byte[] body = mapper.writeValueAsBytes(response);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot serve the request: {}", e.toString());
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @NonNull
+    private ObjectNode handleSingle(@NonNull JsonNode request) {
+        final String method = request.path("method").asText();
+        final JsonNode params = request.path("params");
+        requestCounts.computeIfAbsent(method, key -> new AtomicLong()).incrementAndGet();
+
+        final ObjectNode response = json.objectNode();
+        response.put("jsonrpc", "2.0");
+        response.set("id", request.get("id"));
+        try {
+            response.set("result", call(method, params));
+        } catch (RejectedException e) {
+            final ObjectNode error = response.putObject("error");
+            error.put("code", -32000);
+            error.put("message", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            final ObjectNode error = response.putObject("error");
+            error.put("code", -32602);
+            error.put("message", "invalid argument: " + e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            final ObjectNode error = response.putObject("error");
+            error.put("code", -32601);
+            error.put("message", "the method " + method + " does not exist/is not available");
+        }
+        return response;
+    }
+
+    @NonNull
+    private JsonNode call(@NonNull String method, @NonNull JsonNode params) throws RejectedException {
+        switch (method) {
+            case "web3_clientVersion":
+                return json.textNode("NodeSimulator/v1.0");
+            case "net_version":
+                return json.textNode(Long.toString(config.chainId));
+            case "eth_chainId":
+                return quantity(config.chainId);
+            case "eth_gasPrice":
+                return quantity(chain.getBaseFee().add(SUGGESTED_PRIORITY_FEE));
+            case "eth_feeHistory":
+                return feeHistory(Numeric.decodeQuantity(params.path(0).asText()).intValueExact(),
+                        blockNumber(params.path(1).asText()), params.path(2));
+            case "eth_blockNumber":
+                return quantity(chain.getBlockNumber());
+            case "eth_getBlockByNumber":
+                return block(blockNumber(params.path(0).asText()), params.path(1).asBoolean());
+            case "eth_getBalance":
+                // Only validated: every address has the same balance
+                address(params.path(0));
+                return quantity(config.etherBalance);
+            case "eth_getTransactionCount":
+                return quantity(chain.getNonce(address(params.path(0)), params.path(1).asText().equals("pending")));
+            case "eth_sendRawTransaction":
+                return json.textNode(sendRawTransaction(params.path(0).asText()));
+            case "eth_getTransactionByHash": {
+                final Transaction transaction = chain.getTransaction(params.path(0).asText());
+                return (transaction == null) ? json.nullNode() : transaction(transaction);
+            }
+            case "eth_getTransactionReceipt": {
+                final Transaction transaction = chain.getReceipt(params.path(0).asText());
+                return (transaction == null) ? json.nullNode() : receipt(transaction);
+            }
+            case "eth_call": {
+                final JsonNode call = params.path(0);
+                return json.textNode(Numeric.toHexString(chain.call(call.path("to").asText(null), callData(call))));
+            }
+            case "eth_getLogs":
+                return logs(params.path(0));
+            case "eth_estimateGas": {
+                final JsonNode call = params.path(0);
+                return quantity(chain.estimateGas(address(call.path("from")), call.path("to").asText(null), callData(call)));
+            }
+            default:
+                throw new UnsupportedOperationException(method);
+        }
+    }
+
+    @NonNull
+    private String sendRawTransaction(@NonNull String hex) throws RejectedException {
+        final DecodedTransaction decoded;
+        try {
+            decoded = DecodedTransaction.decode(hex);
+        } catch (IllegalArgumentException e) {
+            throw new RejectedException("invalid transaction: " + e.getMessage());
+        }
+        final String txhash = chain.submit(decoded);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < config.dropRate) {
+            droppedCount.incrementAndGet();
+            toDrop.add(txhash);
+        }
+        if (random.nextDouble() < config.nonceErrorRate) {
+            throw new RejectedException("nonce too low");
+        }
+        return txhash;
+    }
+
+    private long blockNumber(@NonNull String tag) {
+        switch (tag) {
+            case "earliest":
+                return 0;
+            case "latest":
+            case "pending":
+            case "":
+                return chain.getBlockNumber();
+            default:
+                return Numeric.decodeQuantity(tag).longValueExact();
+        }
+    }
+
+    @NonNull
+    private JsonNode block(long number, boolean fullTransactions) {
+        final List<String> txhashes = chain.getBlock(number);
+        if (txhashes == null) {
+            return json.nullNode();
+        }
+        final ObjectNode result = json.objectNode();
+        result.set("number", quantity(number));
+        result.put("hash", blockHash(number));
+        result.put("parentHash", (number == 0) ? Numeric.toHexString(new byte[32]) : blockHash(number - 1));
+        result.set("timestamp", quantity(chain.getBlockTimestamp(number)));
+        result.set("gasLimit", quantity(config.blockGasLimit));
+        result.set("baseFeePerGas", quantity(chain.getBlockBaseFee(number)));
+        long gasUsed = 0;
+        final ArrayNode transactions = result.putArray("transactions");
+        for (final String txhash : txhashes) {
+            final Transaction transaction = chain.getTransaction(txhash);
+            gasUsed += transaction.gasUsed;
+            if (fullTransactions) {
+                transactions.add(transaction(transaction));
+            } else {
+                transactions.add(txhash);
+            }
+        }
+        result.set("gasUsed", quantity(gasUsed));
+        result.putArray("uncles");
+        return result;
+    }
+
+    @NonNull
+    private ObjectNode feeHistory(int blockCount, long newestBlock, @NonNull JsonNode percentilesNode) {
+        if (blockCount <= 0) {
+            throw new IllegalArgumentException("block count must be positive");
+        }
+        final double[] percentiles = new double[percentilesNode.size()];
+        for (int i = 0; i < percentiles.length; i++) {
+            percentiles[i] = percentilesNode.get(i).asDouble();
+        }
+        final SimulatedChain.FeeHistory history = chain.getFeeHistory(blockCount, newestBlock, percentiles);
+        final ObjectNode result = json.objectNode();
+        result.set("oldestBlock", quantity(history.oldestBlock));
+        final ArrayNode baseFees = result.putArray("baseFeePerGas");
+        history.baseFeePerGas.forEach(fee -> baseFees.add(quantity(fee)));
+        final ArrayNode gasUsedRatios = result.putArray("gasUsedRatio");
+        history.gasUsedRatio.forEach(gasUsedRatios::add);
+        if (percentiles.length > 0) {
+            final ArrayNode rewards = result.putArray("reward");
+            for (final List<BigInteger> blockRewards : history.reward) {
+                final ArrayNode blockNode = rewards.addArray();
+                blockRewards.forEach(reward -> blockNode.add(quantity(reward)));
+            }
+        }
+        return result;
+    }
+
+    @NonNull
+    private ObjectNode transaction(@NonNull Transaction transaction) {
+        final DecodedTransaction decoded = transaction.decoded;
+        final ObjectNode result = json.objectNode();
+        result.put("hash", decoded.txhash);
+        result.set("nonce", quantity(decoded.nonce));
+        result.put("from", decoded.from);
+        result.put("to", decoded.to);
+        result.set("value", quantity(decoded.value));
+        result.set("gas", quantity(decoded.gasLimit));
+        if (decoded.eip1559) {
+            result.put("type", "0x2");
+            result.set("maxFeePerGas", quantity(decoded.maxFeePerGas));
+            result.set("maxPriorityFeePerGas", quantity(decoded.maxPriorityFeePerGas));
+        } else {
+            result.put("type", "0x0");
+        }
+        result.set("gasPrice", quantity(transaction.isMined()
+                ? decoded.getEffectiveGasPrice(chain.getBlockBaseFee(transaction.blockNumber))
+                : decoded.maxFeePerGas));
+        result.put("input", Numeric.toHexString(decoded.data));
+        if (transaction.isMined()) {
+            result.put("blockHash", blockHash(transaction.blockNumber));
+            result.set("blockNumber", quantity(transaction.blockNumber));
+            result.set("transactionIndex", quantity(transaction.indexInBlock));
+        } else {
+            result.putNull("blockHash");
+            result.putNull("blockNumber");
+            result.putNull("transactionIndex");
+        }
+        return result;
+    }
+
+    @NonNull
+    private ObjectNode receipt(@NonNull Transaction transaction) {
+        final DecodedTransaction decoded = transaction.decoded;
+        final String blockHash = blockHash(transaction.blockNumber);
+        final ObjectNode result = json.objectNode();
+        result.put("transactionHash", decoded.txhash);
+        result.set("transactionIndex", quantity(transaction.indexInBlock));
+        result.put("blockHash", blockHash);
+        result.set("blockNumber", quantity(transaction.blockNumber));
+        result.put("from", decoded.from);
+        result.put("to", decoded.to);
+        result.set("gasUsed", quantity(transaction.gasUsed));
+        result.set("cumulativeGasUsed", quantity(transaction.gasUsed));
+        result.set("effectiveGasPrice", quantity(decoded.getEffectiveGasPrice(chain.getBlockBaseFee(transaction.blockNumber))));
+        result.putNull("contractAddress");
+        result.put("status", transaction.success ? "0x1" : "0x0");
+        final ArrayNode logs = result.putArray("logs");
+        for (int logIndex = 0; logIndex < transaction.logs.size(); logIndex++) {
+            logs.add(log(transaction, logIndex));
+        }
+        return result;
+    }
+
+    /**
+     * The logs matching the filter of <code>eth_getLogs</code> (by the address and the topics).
+     *
+     * @throws RejectedException if more than {@link Config#maxLogsPerQuery} logs match.
+     */
+    @NonNull
+    private ArrayNode logs(@NonNull JsonNode filter) throws RejectedException {
+        final long fromBlock = blockNumber(filter.path("fromBlock").asText("latest"));
+        final long toBlock = blockNumber(filter.path("toBlock").asText("latest"));
+        final JsonNode address = filter.path("address");
+        final JsonNode topicsFilter = filter.path("topics");
+
+        final ArrayNode result = json.arrayNode();
+        if (!address.isMissingNode() && !address.isNull()
+                && !matches(address, chain.getTokenAddress())) {
+            return result;
+        }
+        for (final Transaction transaction : chain.getMinedTransactions(fromBlock, toBlock)) {
+            for (int logIndex = 0; logIndex < transaction.logs.size(); logIndex++) {
+                final ObjectNode log = log(transaction, logIndex);
+                final JsonNode topics = log.get("topics");
+                boolean match = true;
+                for (int i = 0; i < topicsFilter.size() && match; i++) {
+                    final JsonNode expected = topicsFilter.get(i);
+                    match = expected.isNull() || (i < topics.size() && matches(expected, topics.get(i).asText()));
+                }
+                if (match) {
+                    if (result.size() >= config.maxLogsPerQuery) {
+                        throw new RejectedException(String.format("query returned more than %s results", config.maxLogsPerQuery));
+                    }
+                    result.add(log);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether the value matches the filter value (either a single value, or an array of the alternatives).
+     */
+    private static boolean matches(@NonNull JsonNode filter, @NonNull String value) {
+        if (filter.isArray()) {
+            for (final JsonNode alternative : filter) {
+                if (alternative.asText().equalsIgnoreCase(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return filter.asText().equalsIgnoreCase(value);
+    }
+
+    @NonNull
+    private ObjectNode log(@NonNull Transaction transaction, int logIndex) {
+        final TransferLog transfer = transaction.logs.get(logIndex);
+        final ObjectNode log = json.objectNode();
+        log.put("removed", false);
+        log.set("logIndex", quantity(logIndex));
+        log.set("transactionIndex", quantity(transaction.indexInBlock));
+        log.put("transactionHash", transaction.decoded.txhash);
+        log.put("blockHash", blockHash(transaction.blockNumber));
+        log.set("blockNumber", quantity(transaction.blockNumber));
+        log.put("address", chain.getTokenAddress());
+        log.put("data", Numeric.toHexStringWithPrefixZeroPadded(transfer.value, 64));
+        final ArrayNode topics = log.putArray("topics");
+        topics.add(SimulatedChain.TRANSFER_EVENT_TOPIC);
+        topics.add(addressTopic(transfer.from));
+        topics.add(addressTopic(transfer.to));
+        return log;
+    }
+
+    @NonNull
+    private static String blockHash(long number) {
+        return Numeric.toHexString(Hash.sha3(Numeric.toBytesPadded(BigInteger.valueOf(number), 32)));
+    }
+
+    @NonNull
+    private static String addressTopic(@NonNull String address) {
+        return "0x000000000000000000000000" + Numeric.cleanHexPrefix(address);
+    }
+
+    @NonNull
+    private static String address(@NonNull JsonNode node) {
+        final String address = node.asText();
+        if (!address.startsWith("0x") || address.length() != 42) {
+            throw new IllegalArgumentException("not an address: " + address);
+        }
+        return address.toLowerCase();
+    }
+
+    @NonNull
+    private static byte[] callData(@NonNull JsonNode call) {
+        final JsonNode data = call.has("data") ? call.get("data") : call.path("input");
+        return Numeric.hexStringToByteArray(data.asText(""));
+    }
+
+    @NonNull
+    private static JsonNode quantity(long value) {
+        return quantity(BigInteger.valueOf(value));
+    }
+
+    @NonNull
+    private static JsonNode quantity(@NonNull BigInteger value) {
+        return json.textNode(Numeric.encodeQuantity(value));
+    }
+
+    /**
+     * Run the simulator standalone, until killed.
+     */
+    public static void main(String[] args) throws IOException {
+        final Options options = new Options();
+        options.addOption("h", "help", false, "display help");
+        options.addOption("p", "port", true, "the port to listen on (default: 8545)");
+        options.addOption("e", "erc20", true, "ERC20 contract address");
+        options.addOption("bs", "bulksender", true, "BulkSender contract address");
+        options.addOption("o", "owner", true, "the owner of BulkSender (default: anyone may call it)");
+        options.addOption("b", "balance", true, "the tokens owned by BulkSender (default: 1000000000)");
+        options.addOption("bt", "blocktime", true, "block time, in ms (default: 1000)");
+        options.addOption("gl", "gaslimit", true, "block gas limit (default: 8000000)");
+        options.addOption("bf", "basefee", true, "the base fee of the first block, in Gwei (default: 1)");
+        options.addOption("fb", "fixedbasefee", false, "keep the base fee fixed, regardless of the block fullness");
+        options.addOption("eb", "etherbalance", true, "the ether balance of every address (default: 1000)");
+        options.addOption("l", "latency", true, "the delay of every request, in ms (default: 0)");
+        options.addOption("lj", "jitter", true, "the jitter of the delay, in ms (default: 0)");
+        options.addOption("fr", "failurerate", true, "the share of the requests failed with HTTP 503 (default: 0)");
+        options.addOption("dr", "droprate", true, "the share of the transactions dropped from the pool (default: 0)");
+        options.addOption("nr", "noncerate", true, "the share of the transactions answered with “nonce too low” (default: 0)");
+
+        final CommandLine line;
+        try {
+            line = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.printf("Cannot parse the arguments: %s\n", e.getMessage());
+            return;
+        }
+        if (line.hasOption("help") || !line.hasOption("erc20") || !line.hasOption("bulksender")) {
+            new HelpFormatter().printHelp("NodeSimulator", options, true);
+            return;
+        }
+
+        final Config config = new Config();
+        config.blockTimeMs = Long.parseLong(line.getOptionValue("blocktime", "1000"));
+        config.blockGasLimit = Long.parseLong(line.getOptionValue("gaslimit", "8000000"));
+        config.initialBaseFee = new BigDecimal(line.getOptionValue("basefee", "1")).movePointRight(9).toBigIntegerExact();
+        config.baseFeeChangeDenominator = line.hasOption("fixedbasefee") ? 0 : config.baseFeeChangeDenominator;
+        config.etherBalance = new BigDecimal(line.getOptionValue("etherbalance", "1000")).movePointRight(18).toBigIntegerExact();
+        config.latencyMs = Long.parseLong(line.getOptionValue("latency", "0"));
+        config.latencyJitterMs = Long.parseLong(line.getOptionValue("jitter", "0"));
+        config.failureRate = Double.parseDouble(line.getOptionValue("failurerate", "0"));
+        config.dropRate = Double.parseDouble(line.getOptionValue("droprate", "0"));
+        config.nonceErrorRate = Double.parseDouble(line.getOptionValue("noncerate", "0"));
+        final BigInteger balance = new BigDecimal(line.getOptionValue("balance", "1000000000"))
+                .movePointRight(config.decimals).toBigIntegerExact();
+
+        final NodeSimulator simulator = new NodeSimulator(config,
+                line.getOptionValue("erc20"), line.getOptionValue("bulksender"), line.getOptionValue("owner"),
+                balance, Integer.parseInt(line.getOptionValue("port", "8545")));
+        System.out.printf("Serving JSON-RPC on %s\n", simulator.getUrl());
+    }
+}
@@ -0,0 +1,678 @@
+package com.icodici.universa.utnp.sim;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.crypto.Hash;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The state of the simulated chain: the account nonces, the transaction pool, the mined blocks,
+ * and the balances of the single ERC20 token, moved by the BulkSender contracts.
+ * <p>
+ * The contracts are modelled, not executed: <code>bulkTransfer</code> reverts unless it is called by
+ * the owner of that BulkSender, for the simulated token, with the matching non-empty arrays, and the BulkSender has
+ * enough tokens; its gas depends on the number of the transfers to the new holders and to the existing ones.
+ * <p>
+ * The base fee follows EIP-1559: it rises while the blocks are more than half full, and falls while they are
+ * less than half full; only the transactions paying at least the base fee are mined.
+ * Thread-safe.
+ */
+class SimulatedChain {
+
+    static final long TX_BASE_GAS = 21000;
+    static final long BULK_CALL_GAS = 25000;
+    static final long NEW_HOLDER_TRANSFER_GAS = 27000;
+    static final long EXISTING_HOLDER_TRANSFER_GAS = 12000;
+    static final long CALLDATA_ZERO_BYTE_GAS = 4;
+    static final long CALLDATA_NONZERO_BYTE_GAS = 68;
+    /**
+     * The replacement transaction (with the same nonce) must raise both fees by this many percent.
+     */
+    static final int REPLACEMENT_PRICE_BUMP_PERCENT = 10;
+    /**
+     * The blocks are half full on average, when the base fee is stable.
+     */
+    static final int ELASTICITY_MULTIPLIER = 2;
+
+    static final String TRANSFER_EVENT_TOPIC = Numeric.toHexString(
+            Hash.sha3("Transfer(address,address,uint256)".getBytes(StandardCharsets.US_ASCII)));
+    static final String BULK_TRANSFER_SELECTOR = selector("bulkTransfer(address,address[],uint256[])");
+    static final String BALANCE_OF_SELECTOR = selector("balanceOf(address)");
+    static final String DECIMALS_SELECTOR = selector("decimals()");
+    static final String TOTAL_SUPPLY_SELECTOR = selector("totalSupply()");
+    static final String BALANCES_OF_SELECTOR = selector("balancesOf(address,address[])");
+
+    /**
+     * The transaction rejected by the node (or the call reverted).
+     */
+    static class RejectedException extends Exception {
+        RejectedException(@NonNull String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The <code>Transfer</code> event emitted by the token.
+     */
+    static class TransferLog {
+        @NonNull
+        final String from;
+        @NonNull
+        final String to;
+        @NonNull
+        final BigInteger value;
+
+        TransferLog(@NonNull String from, @NonNull String to, @NonNull BigInteger value) {
+            this.from = from;
+            this.to = to;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The transaction known to the node: pending, or mined (then it has the receipt fields).
+     */
+    static class Transaction {
+        @NonNull
+        final DecodedTransaction decoded;
+        final long receivedAtNanos;
+
+        long blockNumber = -1;
+        int indexInBlock = -1;
+        long minedAtNanos = 0;
+        /**
+         * When the receipt has been requested for the first time after mining; 0 if not yet.
+         */
+        long receiptSeenAtNanos = 0;
+        boolean success = false;
+        long gasUsed = 0;
+        @NonNull
+        List<TransferLog> logs = Collections.emptyList();
+
+        Transaction(@NonNull DecodedTransaction decoded, long receivedAtNanos) {
+            this.decoded = decoded;
+            this.receivedAtNanos = receivedAtNanos;
+        }
+
+        boolean isMined() {
+            return blockNumber >= 0;
+        }
+    }
+
+    /**
+     * The fee history of the blocks (<code>eth_feeHistory</code>).
+     */
+    static class FeeHistory {
+        final long oldestBlock;
+        /**
+         * The base fees of the blocks, and of the next block after them.
+         */
+        @NonNull
+        final List<BigInteger> baseFeePerGas = new ArrayList<>();
+        @NonNull
+        final List<Double> gasUsedRatio = new ArrayList<>();
+        /**
+         * The priority fees paid in every block, by the requested percentiles (of the transactions, not weighted by gas).
+         */
+        @NonNull
+        final List<List<BigInteger>> reward = new ArrayList<>();
+
+        FeeHistory(long oldestBlock) {
+            this.oldestBlock = oldestBlock;
+        }
+    }
+
+    /**
+     * The outcome of the modelled call.
+     */
+    private static class Execution {
+        final boolean success;
+        final long gas;
+        @NonNull
+        final List<TransferLog> logs;
+
+        Execution(boolean success, long gas, @NonNull List<TransferLog> logs) {
+            this.success = success;
+            this.gas = gas;
+            this.logs = logs;
+        }
+    }
+
+    @NonNull
+    private final String tokenAddress;
+    /**
+     * The BulkSender contracts, with the only accounts allowed to call their <code>bulkTransfer</code>
+     * (<code>null</code> if anyone is).
+     */
+    @NonNull
+    private final Map<String, String> bulkSenderOwners = new HashMap<>();
+    private final long blockGasLimit;
+    private final int decimals;
+    /**
+     * The BalanceReader helper contract; <code>null</code> if it is not deployed.
+     */
+    @Nullable
+    private final String balanceReaderAddress;
+    private final int maxHoldersPerBalancesCall;
+    /**
+     * The base fee changes by at most 1/denominator per block; 0 if it never changes.
+     */
+    private final int baseFeeChangeDenominator;
+    /**
+     * The base fee of the next block.
+     */
+    @NonNull
+    private BigInteger baseFee;
+
+    @NonNull
+    private final Map<String, BigInteger> balances = new HashMap<>();
+    @NonNull
+    private BigInteger totalSupply;
+    /**
+     * The next nonce of every account, by the mined transactions.
+     */
+    @NonNull
+    private final Map<String, BigInteger> minedNonces = new HashMap<>();
+    /**
+     * The pending transactions of every account, by the nonce.
+     */
+    @NonNull
+    private final Map<String, TreeMap<BigInteger, Transaction>> pool = new HashMap<>();
+    /**
+     * All the known transactions (pending and mined), by the txhash.
+     */
+    @NonNull
+    private final Map<String, Transaction> transactions = new HashMap<>();
+    /**
+     * The txhashes of every block; block 0 is the empty genesis.
+     */
+    @NonNull
+    private final List<List<String>> blocks = new ArrayList<>();
+    @NonNull
+    private final List<Long> blockTimestamps = new ArrayList<>();
+    @NonNull
+    private final List<BigInteger> blockBaseFees = new ArrayList<>();
+    @NonNull
+    private final List<Long> blockGasUsed = new ArrayList<>();
+    /**
+     * The priority fees paid by the transactions of every block, sorted.
+     */
+    @NonNull
+    private final List<List<BigInteger>> blockPriorityFees = new ArrayList<>();
+
+    private long transfersMined = 0;
+    private long revertedCount = 0;
+
+
+    /**
+     * @param baseFeeChangeDenominator  the base fee changes by at most 1/denominator per block; 0 to keep it fixed.
+     * @param balanceReaderAddress      the BalanceReader helper contract; <code>null</code> if it is not deployed.
+     * @param maxHoldersPerBalancesCall the <code>balancesOf</code> call for more holders fails.
+     */
+    SimulatedChain(@NonNull String tokenAddress,
+                   int decimals,
+                   @NonNull String bulkSenderAddress,
+                   @Nullable String bulkSenderOwner,
+                   @NonNull BigInteger bulkSenderBalance,
+                   long blockGasLimit,
+                   @NonNull BigInteger initialBaseFee,
+                   int baseFeeChangeDenominator,
+                   @Nullable String balanceReaderAddress,
+                   int maxHoldersPerBalancesCall) {
+        this.tokenAddress = tokenAddress.toLowerCase();
+        this.decimals = decimals;
+        this.balanceReaderAddress = (balanceReaderAddress == null) ? null : balanceReaderAddress.toLowerCase();
+        this.maxHoldersPerBalancesCall = maxHoldersPerBalancesCall;
+        this.blockGasLimit = blockGasLimit;
+        this.baseFee = initialBaseFee;
+        this.baseFeeChangeDenominator = baseFeeChangeDenominator;
+        this.totalSupply = BigInteger.ZERO;
+        addBulkSender(bulkSenderAddress, bulkSenderOwner, bulkSenderBalance);
+        blocks.add(Collections.emptyList());
+        blockTimestamps.add(System.currentTimeMillis() / 1000);
+        blockBaseFees.add(initialBaseFee);
+        blockGasUsed.add(0L);
+        blockPriorityFees.add(Collections.emptyList());
+    }
+
+    /**
+     * Deploy one more BulkSender contract, owning the newly minted tokens.
+     *
+     * @param owner the only account allowed to call its <code>bulkTransfer</code>; <code>null</code> if anyone is.
+     */
+    synchronized void addBulkSender(@NonNull String address, @Nullable String owner, @NonNull BigInteger balance) {
+        assert !bulkSenderOwners.containsKey(address.toLowerCase()) : address;
+
+        bulkSenderOwners.put(address.toLowerCase(), (owner == null) ? null : owner.toLowerCase());
+        balances.merge(address.toLowerCase(), balance, BigInteger::add);
+        totalSupply = totalSupply.add(balance);
+    }
+
+    /**
+     * Accept the transaction into the pool, checking it as geth does.
+     *
+     * @throws RejectedException with the geth error message.
+     */
+    @NonNull
+    synchronized String submit(@NonNull DecodedTransaction decoded) throws RejectedException {
+        final Transaction existing = transactions.get(decoded.txhash);
+        if (existing != null) {
+            throw new RejectedException(existing.isMined() ? "nonce too low" : "already known");
+        }
+        if (decoded.nonce.compareTo(getMinedNonce(decoded.from)) < 0) {
+            throw new RejectedException("nonce too low");
+        }
+        if (decoded.gasLimit.compareTo(BigInteger.valueOf(blockGasLimit)) > 0) {
+            throw new RejectedException("exceeds block gas limit");
+        }
+        if (decoded.maxPriorityFeePerGas.compareTo(decoded.maxFeePerGas) > 0) {
+            throw new RejectedException("max priority fee per gas higher than max fee per gas");
+        }
+        final TreeMap<BigInteger, Transaction> accountPool = pool.computeIfAbsent(decoded.from, key -> new TreeMap<>());
+        final Transaction replaced = accountPool.get(decoded.nonce);
+        if (replaced != null) {
+            if (decoded.maxFeePerGas.compareTo(bumped(replaced.decoded.maxFeePerGas)) < 0
+                    || decoded.maxPriorityFeePerGas.compareTo(bumped(replaced.decoded.maxPriorityFeePerGas)) < 0) {
+                throw new RejectedException("replacement transaction underpriced");
+            }
+            transactions.remove(replaced.decoded.txhash);
+        }
+        final Transaction transaction = new Transaction(decoded, System.nanoTime());
+        accountPool.put(decoded.nonce, transaction);
+        transactions.put(decoded.txhash, transaction);
+        return decoded.txhash;
+    }
+
+    /**
+     * Forget the pending transaction, as if the node has evicted it from the pool.
+     */
+    synchronized void drop(@NonNull String txhash) {
+        final Transaction transaction = transactions.get(txhash);
+        if (transaction != null && !transaction.isMined()) {
+            transactions.remove(txhash);
+            pool.get(transaction.decoded.from).remove(transaction.decoded.nonce);
+        }
+    }
+
+    /**
+     * Mine the next block from the pool: the executable transactions (without the nonce gaps) which fit the gas limit
+     * and pay at least the base fee.
+     *
+     * @return the number of the new block.
+     */
+    synchronized long mineBlock() {
+        final long blockNumber = blocks.size();
+        final long now = System.nanoTime();
+        final List<String> included = new ArrayList<>();
+        final List<BigInteger> priorityFees = new ArrayList<>();
+        long gasLeft = blockGasLimit;
+        for (final Map.Entry<String, TreeMap<BigInteger, Transaction>> account : pool.entrySet()) {
+            final TreeMap<BigInteger, Transaction> accountPool = account.getValue();
+            BigInteger nextNonce = getMinedNonce(account.getKey());
+            Transaction next;
+            while ((next = accountPool.get(nextNonce)) != null && next.decoded.gasLimit.longValue() <= gasLeft
+                    && next.decoded.maxFeePerGas.compareTo(baseFee) >= 0) {
+                accountPool.remove(nextNonce);
+                priorityFees.add(next.decoded.getEffectiveGasPrice(baseFee).subtract(baseFee));
+                final Execution execution = execute(next.decoded, true);
+                next.blockNumber = blockNumber;
+                next.indexInBlock = included.size();
+                next.minedAtNanos = now;
+                next.success = execution.success;
+                next.gasUsed = execution.success ? execution.gas : next.decoded.gasLimit.longValue();
+                next.logs = execution.logs;
+                if (!execution.success) {
+                    revertedCount++;
+                }
+                transfersMined += execution.logs.size();
+                gasLeft -= next.gasUsed;
+                included.add(next.decoded.txhash);
+                nextNonce = nextNonce.add(BigInteger.ONE);
+            }
+            minedNonces.put(account.getKey(), nextNonce);
+        }
+        blocks.add(included);
+        blockTimestamps.add(System.currentTimeMillis() / 1000);
+        Collections.sort(priorityFees);
+        blockPriorityFees.add(priorityFees);
+        blockBaseFees.add(baseFee);
+        blockGasUsed.add(blockGasLimit - gasLeft);
+        baseFee = getNextBaseFee(baseFee, blockGasLimit - gasLeft);
+        return blockNumber;
+    }
+
+    /**
+     * The base fee of the block after the one with this base fee and gas used, by EIP-1559.
+     */
+    @NonNull
+    private BigInteger getNextBaseFee(@NonNull BigInteger parentBaseFee, long parentGasUsed) {
+        final long target = blockGasLimit / ELASTICITY_MULTIPLIER;
+        if (baseFeeChangeDenominator == 0 || parentGasUsed == target) {
+            return parentBaseFee;
+        }
+        final BigInteger delta = parentBaseFee.multiply(BigInteger.valueOf(Math.abs(parentGasUsed - target)))
+                .divide(BigInteger.valueOf(target)).divide(BigInteger.valueOf(baseFeeChangeDenominator));
+        return (parentGasUsed > target)
+                ? parentBaseFee.add(delta.max(BigInteger.ONE))
+                : parentBaseFee.subtract(delta);
+    }
+
+    /**
+     * The gas the transaction would use.
+     *
+     * @throws RejectedException if it would revert.
+     */
+    synchronized long estimateGas(@NonNull String from, @Nullable String to, @NonNull byte[] data) throws RejectedException {
+        final Execution execution = execute(from.toLowerCase(), (to == null) ? null : to.toLowerCase(), data, Long.MAX_VALUE, false);
+        if (!execution.success) {
+            throw new RejectedException("gas required exceeds allowance or always failing transaction");
+        }
+        return execution.gas;
+    }
+
+    /**
+     * The result of the read-only call (<code>eth_call</code>) to the token or to BalanceReader;
+     * empty for any other contract.
+     */
+    @NonNull
+    synchronized byte[] call(@Nullable String to, @NonNull byte[] data) {
+        if (to == null || data.length < 4) {
+            return new byte[0];
+        }
+        final String selector = Numeric.toHexString(data, 0, 4, true);
+        if (to.toLowerCase().equals(balanceReaderAddress) && selector.equals(BALANCES_OF_SELECTOR)) {
+            return balancesOf(data);
+        }
+        if (!to.toLowerCase().equals(tokenAddress)) {
+            return new byte[0];
+        }
+        if (selector.equals(BALANCE_OF_SELECTOR) && data.length >= 36) {
+            return Numeric.toBytesPadded(getBalance(readAddress(data, 4)), 32);
+        } else if (selector.equals(DECIMALS_SELECTOR)) {
+            return Numeric.toBytesPadded(BigInteger.valueOf(decimals), 32);
+        } else if (selector.equals(TOTAL_SUPPLY_SELECTOR)) {
+            return Numeric.toBytesPadded(totalSupply, 32);
+        }
+        return new byte[0];
+    }
+
+    /**
+     * <code>balancesOf(token, holders)</code> of BalanceReader: the <code>uint256[]</code> of the balances;
+     * empty (as reverted) if the token is unknown or there are too many holders.
+     */
+    @NonNull
+    private byte[] balancesOf(@NonNull byte[] data) {
+        final String[] holders;
+        try {
+            if (!readAddress(data, 4).equals(tokenAddress)) {
+                return new byte[0];
+            }
+            holders = readAddressArray(data, readWord(data, 4 + 32).intValueExact() + 4);
+        } catch (RuntimeException e) {
+            return new byte[0];
+        }
+        if (holders.length > maxHoldersPerBalancesCall) {
+            return new byte[0];
+        }
+        final byte[] result = new byte[32 * (2 + holders.length)];
+        System.arraycopy(Numeric.toBytesPadded(BigInteger.valueOf(32), 32), 0, result, 0, 32);
+        System.arraycopy(Numeric.toBytesPadded(BigInteger.valueOf(holders.length), 32), 0, result, 32, 32);
+        for (int i = 0; i < holders.length; i++) {
+            System.arraycopy(Numeric.toBytesPadded(getBalance(holders[i]), 32), 0, result, 32 * (2 + i), 32);
+        }
+        return result;
+    }
+
+    @NonNull
+    String getTokenAddress() {
+        return tokenAddress;
+    }
+
+    @NonNull
+    synchronized BigInteger getBalance(@NonNull String address) {
+        return balances.getOrDefault(address.toLowerCase(), BigInteger.ZERO);
+    }
+
+    /**
+     * The next nonce of the account: by the mined transactions, or also by the pending ones without the gaps.
+     */
+    @NonNull
+    synchronized BigInteger getNonce(@NonNull String address, boolean pending) {
+        BigInteger nonce = getMinedNonce(address.toLowerCase());
+        if (pending) {
+            final TreeMap<BigInteger, Transaction> accountPool = pool.get(address.toLowerCase());
+            while (accountPool != null && accountPool.containsKey(nonce)) {
+                nonce = nonce.add(BigInteger.ONE);
+            }
+        }
+        return nonce;
+    }
+
+    synchronized long getBlockNumber() {
+        return blocks.size() - 1;
+    }
+
+    /**
+     * The txhashes of the block; <code>null</code> if there is no such block yet.
+     */
+    @Nullable
+    synchronized List<String> getBlock(long number) {
+        return (number >= 0 && number < blocks.size()) ? blocks.get((int) number) : null;
+    }
+
+    synchronized long getBlockTimestamp(long number) {
+        return blockTimestamps.get((int) number);
+    }
+
+    @NonNull
+    synchronized BigInteger getBlockBaseFee(long number) {
+        return blockBaseFees.get((int) number);
+    }
+
+    /**
+     * The base fee of the next block.
+     */
+    @NonNull
+    synchronized BigInteger getBaseFee() {
+        return baseFee;
+    }
+
+    /**
+     * The fee history of up to <code>blockCount</code> blocks ending with <code>newestBlock</code>.
+     *
+     * @param rewardPercentiles the percentiles of the priority fees to report for every block, ascending.
+     */
+    @NonNull
+    synchronized FeeHistory getFeeHistory(int blockCount, long newestBlock, @NonNull double[] rewardPercentiles) {
+        final long newest = Math.min(newestBlock, getBlockNumber());
+        final long oldest = Math.max(0, newest - blockCount + 1);
+        final FeeHistory result = new FeeHistory(oldest);
+        for (long number = oldest; number <= newest; number++) {
+            result.baseFeePerGas.add(blockBaseFees.get((int) number));
+            result.gasUsedRatio.add((double) blockGasUsed.get((int) number) / blockGasLimit);
+            final List<BigInteger> priorityFees = blockPriorityFees.get((int) number);
+            final List<BigInteger> rewards = new ArrayList<>(rewardPercentiles.length);
+            for (final double percentile : rewardPercentiles) {
+                rewards.add(priorityFees.isEmpty()
+                        ? BigInteger.ZERO
+                        : priorityFees.get((int) Math.max(0, Math.ceil(percentile / 100 * priorityFees.size()) - 1)));
+            }
+            result.reward.add(rewards);
+        }
+        result.baseFeePerGas.add((newest == getBlockNumber())
+                ? baseFee
+                : blockBaseFees.get((int) newest + 1));
+        return result;
+    }
+
+    @Nullable
+    synchronized Transaction getTransaction(@NonNull String txhash) {
+        return transactions.get(txhash.toLowerCase());
+    }
+
+    /**
+     * The mined transaction; <code>null</code> if it is not mined (yet).
+     * The first request after mining is remembered, to measure the time to confirmation.
+     */
+    @Nullable
+    synchronized Transaction getReceipt(@NonNull String txhash) {
+        final Transaction transaction = transactions.get(txhash.toLowerCase());
+        if (transaction == null || !transaction.isMined()) {
+            return null;
+        }
+        if (transaction.receiptSeenAtNanos == 0) {
+            transaction.receiptSeenAtNanos = System.nanoTime();
+        }
+        return transaction;
+    }
+
+    /**
+     * All the mined transactions.
+     */
+    @NonNull
+    synchronized List<Transaction> getMinedTransactions() {
+        return getMinedTransactions(0, getBlockNumber());
+    }
+
+    /**
+     * The transactions mined in the blocks from <code>fromBlock</code> to <code>toBlock</code> (inclusive), in order.
+     */
+    @NonNull
+    synchronized List<Transaction> getMinedTransactions(long fromBlock, long toBlock) {
+        final List<Transaction> result = new ArrayList<>();
+        for (long number = Math.max(0, fromBlock); number <= Math.min(toBlock, getBlockNumber()); number++) {
+            for (final String txhash : blocks.get((int) number)) {
+                result.add(transactions.get(txhash));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of the transactions in the pool (including those which cannot be mined because of the nonce gaps).
+     */
+    synchronized int getPendingCount() {
+        return pool.values().stream().mapToInt(Map::size).sum();
+    }
+
+    synchronized long getTransfersMined() {
+        return transfersMined;
+    }
+
+    synchronized long getRevertedCount() {
+        return revertedCount;
+    }
+
+    @NonNull
+    private BigInteger getMinedNonce(@NonNull String address) {
+        return minedNonces.getOrDefault(address, BigInteger.ZERO);
+    }
+
+    @NonNull
+    private Execution execute(@NonNull DecodedTransaction decoded, boolean apply) {
+        return execute(decoded.from, decoded.to, decoded.data, decoded.gasLimit.longValue(), apply);
+    }
+
+    /**
+     * Model the call: the gas it takes, and whether it succeeds; optionally, apply its effects.
+     */
+    @NonNull
+    private Execution execute(@NonNull String from, @Nullable String to, @NonNull byte[] data, long gasLimit, boolean apply) {
+        long gas = TX_BASE_GAS;
+        for (final byte b : data) {
+            gas += (b == 0) ? CALLDATA_ZERO_BYTE_GAS : CALLDATA_NONZERO_BYTE_GAS;
+        }
+        if (to == null || !bulkSenderOwners.containsKey(to)) {
+            // Plain transfer of ether, or a call of an unknown contract: nothing to model
+            return new Execution(gas <= gasLimit, gas, Collections.emptyList());
+        }
+
+        gas += BULK_CALL_GAS;
+        final String[] recipients;
+        final BigInteger[] amounts;
+        try {
+            if (data.length < 4 || !Numeric.toHexString(data, 0, 4, true).equals(BULK_TRANSFER_SELECTOR)) {
+                throw new IllegalArgumentException("Unknown BulkSender method");
+            }
+            if (!readAddress(data, 4).equals(tokenAddress)) {
+                throw new IllegalArgumentException("Unknown token");
+            }
+            recipients = readAddressArray(data, readWord(data, 4 + 32).intValueExact() + 4);
+            amounts = readWordArray(data, readWord(data, 4 + 64).intValueExact() + 4);
+        } catch (RuntimeException e) {
+            return new Execution(false, gas, Collections.emptyList());
+        }
+        final String owner = bulkSenderOwners.get(to);
+        if ((owner != null && !from.equals(owner))
+                || recipients.length == 0 || recipients.length != amounts.length) {
+            return new Execution(false, gas, Collections.emptyList());
+        }
+
+        final Map<String, BigInteger> changed = new HashMap<>();
+        final List<TransferLog> logs = new ArrayList<>(recipients.length);
+        BigInteger senderBalance = getBalance(to);
+        for (int i = 0; i < recipients.length; i++) {
+            final BigInteger recipientBalance = changed.getOrDefault(recipients[i], getBalance(recipients[i]));
+            gas += (recipientBalance.signum() == 0) ? NEW_HOLDER_TRANSFER_GAS : EXISTING_HOLDER_TRANSFER_GAS;
+            if (senderBalance.compareTo(amounts[i]) < 0 || gas > gasLimit) {
+                return new Execution(false, gas, Collections.emptyList());
+            }
+            senderBalance = senderBalance.subtract(amounts[i]);
+            changed.put(recipients[i], recipientBalance.add(amounts[i]));
+            logs.add(new TransferLog(to, recipients[i], amounts[i]));
+        }
+        if (apply) {
+            balances.putAll(changed);
+            balances.put(to, senderBalance);
+        }
+        return new Execution(true, gas, logs);
+    }
+
+    @NonNull
+    private static BigInteger bumped(@NonNull BigInteger fee) {
+        return fee.multiply(BigInteger.valueOf(100 + REPLACEMENT_PRICE_BUMP_PERCENT)).divide(BigInteger.valueOf(100));
+    }
+
+    @NonNull
+    private static String selector(@NonNull String signature) {
+        return Numeric.toHexString(Hash.sha3(signature.getBytes(StandardCharsets.US_ASCII)), 0, 4, true);
+    }
+
+    @NonNull
+    private static BigInteger readWord(@NonNull byte[] data, int offset) {
+        if (offset < 0 || offset + 32 > data.length) {
+            throw new IllegalArgumentException("Truncated call data");
+        }
+        return new BigInteger(1, Arrays.copyOfRange(data, offset, offset + 32));
+    }
+
+    @NonNull
+    private static String readAddress(@NonNull byte[] data, int offset) {
+        readWord(data, offset);
+        return Numeric.toHexString(data, offset + 12, 20, true);
+    }
+
+    @NonNull
+    private static String[] readAddressArray(@NonNull byte[] data, int offset) {
+        final int length = readWord(data, offset).intValueExact();
+        final String[] result = new String[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = readAddress(data, offset + 32 * (i + 1));
+        }
+        return result;
+    }
+
+    @NonNull
+    private static BigInteger[] readWordArray(@NonNull byte[] data, int offset) {
+        final int length = readWord(data, offset).intValueExact();
+        final BigInteger[] result = new BigInteger[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = readWord(data, offset + 32 * (i + 1));
+        }
+        return result;
+    }
+}
@@ -1,22 +1,73 @@
 package com.icodici.universa.utnp;
 
+import com.icodici.universa.utnp.connectors.AbstractConnector.EthereumConnection;
+import com.icodici.universa.utnp.connectors.BulkBalanceReader;
 import com.icodici.universa.utnp.connectors.BulkSenderConnector;
+import com.icodici.universa.utnp.connectors.BulkTransferEncoder;
+import com.icodici.universa.utnp.connectors.BulkTransferPipeline;
+import com.icodici.universa.utnp.connectors.BulkTransferPlanner;
+import com.icodici.universa.utnp.connectors.BulkTransferPlanner.PlannedBulk;
+import com.icodici.universa.utnp.connectors.BulkTransferSigner;
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import com.icodici.universa.utnp.connectors.RawTransactionConnector;
+import com.icodici.universa.utnp.connectors.ShardedSender;
+import com.icodici.universa.utnp.connectors.ShardedSender.Shard;
+import com.icodici.universa.utnp.connectors.TransactionBroadcaster;
+import com.icodici.universa.utnp.connectors.TransactionRevertedException;
+import com.icodici.universa.utnp.connectors.TransferLogScanner;
 import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.TransactionFees;
+import com.icodici.universa.utnp.index.EventIndexer;
+import com.icodici.universa.utnp.index.EventStore;
+import com.icodici.universa.utnp.index.TokenEvent;
+import com.icodici.universa.utnp.journal.PaymentIndex;
+import com.icodici.universa.utnp.journal.PaymentRecorder;
+import com.icodici.universa.utnp.journal.SendJournal;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import com.icodici.universa.utnp.journal.SendJournal.Entry;
+import com.icodici.universa.utnp.journal.SignedTransactionFile.Reader;
+import com.icodici.universa.utnp.journal.SignedTransactionFile.Record;
+import com.icodici.universa.utnp.journal.SignedTransactionFile.Writer;
+import com.icodici.universa.utnp.metrics.MetricsExporter;
+import com.icodici.universa.utnp.metrics.MetricsRegistry;
+import com.icodici.universa.utnp.orders.BinaryOrderFile;
+import com.icodici.universa.utnp.orders.LongHashSet;
+import com.icodici.universa.utnp.orders.Order;
+import com.icodici.universa.utnp.orders.OrderReader;
+import com.icodici.universa.utnp.orders.OrderValidator;
+import com.icodici.universa.utnp.orders.PaymentReconciler;
 import org.apache.commons.cli.*;
 import org.checkerframework.checker.nullness.qual.NonNull;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.spongycastle.util.encoders.Hex;
+import org.web3j.tx.ChainId;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 
 /**
@@ -30,21 +81,94 @@ import java.util.stream.Collectors;
 public class BulkSendCLI {
 
     public static BigDecimal DEFAULT_GAS_PRICE_GWEI = new BigDecimal("21");
+    /**
+     * The fees of the replacing transactions are never raised above this (unless the explicit gas price is higher).
+     */
+    public static final BigDecimal DEFAULT_FEE_CAP_GWEI = new BigDecimal("100");
+
+    public static final String DEFAULT_PAYMENT_INDEX = "~/.utnp/paid-orders.index";
+
+    /**
+     * When signing offline, the signed transactions are forced to the disk after every so many bulks.
+     */
+    static final int SIGNED_SYNC_EVERY = 64;
 
-    public static long BULK_SIZE = 100;
+    /**
+     * When reading the balances, the progress is printed after every so many of them.
+     */
+    static final int BALANCES_PROGRESS_EVERY = 100000;
 
     private static final Options options = new Options();
 
+    /**
+     * The printouts of the bulk results, to be waited for before the summary.
+     */
+    @NonNull
+    private final List<CompletableFuture<Void>> printedResults = new ArrayList<>();
+
     static {
         options.addOption("h", "help", false, "display help");
-        options.addOption("i", "input", true, "JSON input file");
-        options.addOption("s", "skip", true, "how many records to skip from the JSON file (default: 0)");
-        options.addOption("n", "number", true, "how many records to take from the JSON file (default: all records)");
-        options.addOption("r", "rpc", true, "geth RPC URL (e.g. “http://localhost:8548”)");
-        options.addOption("pk", "privatekey", true, "the file with private key");
-        options.addOption("bs", "bulksender", true, "BulkSender contract address");
+        options.addOption("i", "input", true, "orders file: JSON, CSV (by the “.csv” extension) or binary (see \"import\")");
+        options.addOption("s", "skip", true, "how many orders to skip from the orders file (default: 0)");
+        options.addOption("j", "journal", true, "the journal file, to resume the interrupted run (default: input file + “.journal”; "
+                + "the shards journal into “.journal.1”, “.journal.2”, etc)");
+        options.addOption("pi", "paymentindex", true, "the index of the orders paid by all the runs, to never pay an order twice (default: "
+                + DEFAULT_PAYMENT_INDEX + ")");
+        options.addOption("n", "number", true, "how many orders to take from the orders file (default: all orders)");
+        options.addOption("r", "rpc", true, "geth RPC URL (e.g. “http://localhost:8548”, or “ws://localhost:8546” "
+                + "to get the new blocks pushed); several comma-separated HTTP URLs to spread the requests over several nodes");
+        options.addOption("pk", "privatekey", true, "the file with private key; several comma-separated files "
+                + "to send through several shards at once, one per \"bulksender\"");
+        options.addOption("bs", "bulksender", true, "BulkSender contract address; several comma-separated addresses "
+                + "to send through several shards at once, one per \"privatekey\"");
         options.addOption("e", "erc20", true, "ERC20 contract address");
-        options.addOption("gp", "gasprice", true, "gas price (in Gwei; default: 1.1)");
+        options.addOption("gp", "gasprice", true, "gas price of the new transactions (in Gwei; default: suggested by the node, "
+                + "or " + DEFAULT_GAS_PRICE_GWEI + " if signing offline)");
+        options.addOption("fc", "feecap", true, "the fee per gas is never raised above this, in Gwei (default: "
+                + DEFAULT_FEE_CAP_GWEI + ")");
+        options.addOption("rd", "replacedelay", true, "replace the transaction not mined for so many seconds "
+                + "with the one paying the higher fees; 0 to never replace, and not wait for the bulks to be mined (default: "
+                + BulkTransferPipeline.DEFAULT_REPLACEMENT_DEADLINE_MS / 1000 + ")");
+        options.addOption("mg", "maxgas", true, "gas budget of a single bulk transaction (default: "
+                + BulkTransferPlanner.DEFAULT_MAX_GAS_PER_BULK + ")");
+        options.addOption("mb", "maxbulk", true, "maximum number of transfers in a single bulk transaction (default: "
+                + BulkTransferPlanner.DEFAULT_MAX_TRANSFERS_PER_BULK + ")");
+        options.addOption("f", "inflight", true, "how many bulk transactions may be sent but not mined yet (default: "
+                + BulkTransferPipeline.DEFAULT_MAX_IN_FLIGHT + ")");
+        options.addOption("rb", "rpcbatch", true, "maximum number of JSON-RPC requests in a single batch, 1 to disable batching (default: "
+                + EthereumConnection.DEFAULT_MAX_BATCH_SIZE + ")");
+        options.addOption("sg", "sign", true, "instead of sending, sign the bulk transactions into the file, to broadcast them later; "
+                + "works offline if \"nonce\" is given");
+        options.addOption("nc", "nonce", true, "the nonce of the first transaction to sign (default: taken from the node)");
+        options.addOption("bc", "broadcast", true, "broadcast the transactions signed into the file earlier; needs only \"rpc\" "
+                + "(the orders of the mined ones are recorded to \"paymentindex\")");
+        options.addOption("rt", "rate", true, "how many transactions per second to broadcast (default: unlimited)");
+        options.addOption("bl", "balances", true, "instead of sending, read the token balances of all the recipients of the orders "
+                + "into the CSV file; needs only \"input\", \"rpc\" and \"erc20\"");
+        options.addOption("rc", "reconcile", true, "instead of sending, match the orders to the token transfers from BulkSender "
+                + "found on the chain, and write the orders unpaid, underpaid or paid twice into the CSV file; "
+                + "needs \"input\", \"rpc\", \"bulksender\", \"erc20\" and \"fromblock\"");
+        options.addOption("fb", "fromblock", true, "the first block to look for the transfers in, to \"reconcile\"");
+        options.addOption("tb", "toblock", true, "the last block to look for the transfers in, to \"reconcile\" (default: latest)");
+        options.addOption("ix", "index", true, "instead of sending, update the local index of the token Transfer and Burn events "
+                + "in the directory (creating it if needed); needs \"rpc\" and \"erc20\" (and \"fromblock\" to create it); "
+                + "or, with any \"query...\" option, query the index (without \"rpc\")");
+        options.addOption("gh", "genesisholders", true, "comma-separated addresses holding the tokens before \"fromblock\", "
+                + "to create the \"index\" (e.g. the token deployer; their balances are read at the previous block)");
+        options.addOption("si", "snapshotinterval", true, "to create the \"index\", snapshot all the balances every so many blocks "
+                + "(default: " + EventStore.DEFAULT_SNAPSHOT_INTERVAL + ")");
+        options.addOption("ab", "atblock", true, "the block to query the \"index\" at (default: the last indexed one)");
+        options.addOption("qb", "querybalance", true, "print the balance of the address, from the \"index\"");
+        options.addOption("qh", "queryholders", true, "write the balances of all the holders into the CSV file, from the \"index\"");
+        options.addOption("qx", "queryhistory", true, "print all the events of the address, from the \"index\"");
+        options.addOption("qu", "queryburned", false, "print the totals burned by all the burners, from the \"index\"");
+        options.addOption("im", "import", true, "instead of sending, validate the JSON or CSV orders of \"input\" and convert them "
+                + "into the new binary orders file, read faster (and skipped instantly) by the later runs");
+        options.addOption("br", "balancereader", true, "BalanceReader contract address, to read many balances by a single call "
+                + "(default: read them one by one)");
+        options.addOption("mp", "metricsport", true, "serve the metrics for Prometheus on http://127.0.0.1:<port>/metrics");
+        options.addOption("mf", "metricsfile", true, "dump the metrics (in Prometheus text format) to the file, every "
+                + MetricsExporter.DEFAULT_DUMP_INTERVAL_MS / 1000 + " seconds and at the end");
     }
 
     /**
@@ -55,265 +179,2070 @@ public class BulkSendCLI {
         formatter.printHelp("java -jar BulkSendCLI", BulkSendCLI.options);
     }
 
-    private void executeBulkSend(@NonNull BulkSenderConnector utnpConnector,
-                                 @NonNull final String erc20Address,
-                                 @NonNull List<BulkSenderConnector.SingleTransfer> bulkRequests) {
-        System.out.printf(" >>> Sending bulk %s\n", bulkRequests.size());
+    /**
+     * Submit a bulk to the sending pipeline; the result is printed once the node accepts the transaction.
+     * Once the bulk is mined successfully, its orders are recorded to the payment index.
+     *
+     * @return <code>false</code> if the pipeline has failed, so no more bulks can be sent.
+     */
+    private boolean executeBulkSend(@NonNull BulkTransferPipeline pipeline,
+                                    @NonNull PaymentRecorder recorder,
+                                    @NonNull PlannedBulk bulk,
+                                    @NonNull List<String> uuids) throws InterruptedException {
+        final BulkRange range = new BulkRange(
+                bulk.firstOrderIndex, bulk.getLastOrderIndex(), uuids);
+        System.out.printf(" >>> Sending bulk %s (%s, estimated gas %s)\n",
+                bulk.transfers.size(), range, bulk.estimatedGas);
+
+        recorder.expect(range, bulk.transfers);
+        final CompletableFuture<String> txidFuture;
+        try {
+            txidFuture = pipeline.submit(bulk.transfers, bulk.gasLimit, range);
+        } catch (IllegalStateException e) {
+            System.out.printf("ERROR: sending stopped before order %s: %s\n", range.firstOrderIndex, Objects.toString(e.getCause(), e.getMessage()));
+            return false;
+        }
+        printResult(range, txidFuture);
+        return true;
+    }
+
+    private void printResult(@NonNull BulkRange range, @NonNull CompletableFuture<String> txidFuture) {
+        final CompletableFuture<Void> printed = txidFuture.handle((txid, throwable) -> {
+            if (throwable == null) {
+                System.out.printf(" <<< Result transaction for %s: %s\n", range, txid);
+            } else {
+                System.out.printf(" <<< FAILED to send %s: %s\n", range, throwable.getCause());
+            }
+            return null;
+        });
+        // The shards print from their own threads
+        synchronized (printedResults) {
+            printedResults.add(printed);
+        }
+    }
+
+    /**
+     * Summary of the orders found during the validation pass.
+     */
+    private static class OrdersSummary {
+        final long count;
+        @NonNull
+        final BigDecimal total;
+
+        OrdersSummary(long count, @NonNull BigDecimal total) {
+            this.count = count;
+            this.total = total;
+        }
+    }
+
+    /**
+     * Validation pass: stream through the orders that will be sent, validate every one of them
+     * and calculate the total amount.
+     * All the problems are printed at once, rather than stopping on the first one.
+     *
+     * @return <code>null</code> if some order is invalid (the errors are already printed).
+     */
+    @Nullable
+    private OrdersSummary validateOrders(@NonNull final Path inputPath,
+                                         long skipOrders,
+                                         long numberOrders,
+                                         @NonNull final PaymentIndex paymentIndex) throws IOException {
+        return validateOrders(inputPath, skipOrders, numberOrders, Collections.emptyNavigableMap(), paymentIndex);
+    }
+
+    /**
+     * Validation pass over the orders which are not planned yet (by the resumed sharded run);
+     * the duplicate addresses are looked for within every range of the unplanned orders.
+     *
+     * @param planned the last order index of every planned range, by its first order index.
+     * @return <code>null</code> if some order is invalid (the errors are already printed).
+     */
+    @Nullable
+    private OrdersSummary validateOrders(@NonNull final Path inputPath,
+                                         long skipOrders,
+                                         long numberOrders,
+                                         @NonNull final NavigableMap<Long, Long> planned,
+                                         @NonNull final PaymentIndex paymentIndex) throws IOException {
+        assert inputPath != null;
+        assert planned != null;
+        assert paymentIndex != null;
+
+        final OrderValidator validator = new OrderValidator(BulkSenderConnector.UTNP_DECIMALS.intValue(), paymentIndex);
+        final OrderValidator.Report report = new OrderValidator.Report();
+        final long end = (numberOrders == Long.MAX_VALUE) ? Long.MAX_VALUE : skipOrders + numberOrders;
+        try (final OrderReader reader = OrderReader.open(inputPath)) {
+            if (reader.skip(skipOrders) < skipOrders) {
+                System.out.printf("ERROR: \"skip\" argument must be not more than %s!\n", reader.getNextIndex());
+                return null;
+            }
+
+            while (reader.getNextIndex() < end) {
+                final long index = reader.getNextIndex();
+                final long plannedUntil = Math.min(end, ShardedSender.getPlannedUntil(planned, index));
+                if (plannedUntil > index) {
+                    if (reader.skip(plannedUntil - index) < plannedUntil - index) {
+                        break;
+                    }
+                    continue;
+                }
+                final Long nextPlanned = planned.higherKey(index);
+                final long rangeEnd = (nextPlanned == null) ? end : Math.min(end, nextPlanned);
+                final OrderValidator.Report rangeReport = validator.validate(reader, rangeEnd - index);
+                report.count += rangeReport.count;
+                report.total = report.total.add(rangeReport.total);
+                report.errors.addAll(rangeReport.errors);
+                report.warnings.addAll(rangeReport.warnings);
+                if (reader.getNextIndex() < rangeEnd) {
+                    // The file is over
+                    break;
+                }
+            }
+
+            if (numberOrders != Long.MAX_VALUE && reader.getNextIndex() < end) {
+                System.out.printf("ERROR: \"skip\"+\"number\" arguments must be not more than %s!\n", reader.getNextIndex());
+                return null;
+            }
+        }
 
-        final String txid = utnpConnector.bulkTransfer(
-                erc20Address, BulkSenderConnector.UTNP_DECIMALS, bulkRequests);
-        System.out.printf(" <<< Result transaction: %s\n", txid);
-        System.out.printf(" <<< Done\n");
+        for (final OrderValidator.Problem warning : report.warnings) {
+            System.out.printf("WARNING: suspicious %s\n", warning);
+        }
+        if (!report.warnings.isEmpty()) {
+            System.out.printf("\nWARNING WARNING WARNING: %s suspicious entry/entries!\n\n", report.warnings.size());
+        }
+        for (final OrderValidator.Problem error : report.errors) {
+            System.out.printf("ERROR: %s\n", error);
+        }
+        if (!report.isValid()) {
+            System.out.printf("\nERROR: %s invalid order(s) of %s; nothing is sent.\n", report.errors.size(), report.count);
+            return null;
+        }
+        return new OrdersSummary(report.count, report.total);
     }
 
-    private void executeTotalSend(@NonNull final String rpcUrl,
+    private void executeTotalSend(@NonNull final EthereumConnection ethereumConnection,
                                   @NonNull final String bulkSenderAddress,
                                   @NonNull final String erc20Address,
                                   @NonNull final byte[] privateKey,
-                                  @NonNull final JSONArray ordersPayload,
+                                  @NonNull final Path inputPath,
                                   long skipOrders,
                                   long numberOrders,
-                                  @NonNull final BigDecimal gasPriceGwei) {
-        assert rpcUrl != null;
+                                  @Nullable final BigDecimal gasPriceGwei,
+                                  @NonNull final BigDecimal feeCapGwei,
+                                  long replaceDelaySeconds,
+                                  long maxGasPerBulk,
+                                  int maxTransfersPerBulk,
+                                  int maxInFlight,
+                                  @NonNull final Path journalPath,
+                                  @NonNull final Path paymentIndexPath) throws IOException, InterruptedException {
+        assert ethereumConnection != null;
         assert bulkSenderAddress != null;
         assert bulkSenderAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : bulkSenderAddress;
         assert erc20Address != null;
         assert erc20Address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : erc20Address;
         assert privateKey != null;
         assert privateKey.length == EthereumUtils.PRIVATE_KEY_SIZE : privateKey.length;
-        assert ordersPayload != null;
-        assert ordersPayload.length() > 0 : ordersPayload;
-        assert gasPriceGwei != null;
-        assert gasPriceGwei.compareTo(BigDecimal.ZERO) > 0 : gasPriceGwei;
-
-        System.out.printf("Started with:\n    --skip %s --number %s\n", skipOrders, numberOrders);
-        System.out.printf("Next launch should use:\n    --skip %s \n", skipOrders + numberOrders);
-
-        final List<BulkSenderConnector.SingleTransfer> requests = new LinkedList<>();
-        final List<Map> objectToDoubleCheck = new LinkedList<>();
-        final HashMap<String, Integer> addressUsageCounts = new HashMap<>();
-
-        long currentSkip = skipOrders;
-
-        BigDecimal total = BigDecimal.ZERO;
-        for (final Object o : ordersPayload) {
-            if (skipOrders > 0) {
-                skipOrders--;
-                continue;
+        assert inputPath != null;
+        assert gasPriceGwei == null || gasPriceGwei.compareTo(BigDecimal.ZERO) > 0 : gasPriceGwei;
+        assert feeCapGwei != null;
+        assert feeCapGwei.compareTo(BigDecimal.ZERO) > 0 : feeCapGwei;
+        assert replaceDelaySeconds >= 0 : replaceDelaySeconds;
+        assert maxGasPerBulk > 0 : maxGasPerBulk;
+        assert maxTransfersPerBulk > 0 : maxTransfersPerBulk;
+        assert maxInFlight > 0 : maxInFlight;
+        assert journalPath != null;
+        assert paymentIndexPath != null;
+
+        final String runDescription = String.format("bulksender=%s erc20=%s skip=%s number=%s",
+                bulkSenderAddress.toLowerCase(), erc20Address.toLowerCase(), skipOrders,
+                (numberOrders == Long.MAX_VALUE) ? "all" : numberOrders);
+        final SendJournal journal;
+        try {
+            journal = new SendJournal(journalPath, runDescription, skipOrders);
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot open the journal: %s\n", e.getMessage());
+            return;
+        }
+        final PaymentIndex paymentIndex;
+        try {
+            paymentIndex = new PaymentIndex(paymentIndexPath);
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot open the payment index: %s\n", e.getMessage());
+            journal.close();
+            return;
+        }
+
+        try {
+            // Continue after the orders already planned in the previous launches, if any.
+            final long firstOrder = journal.getNextOrderIndex();
+            final long ordersLeft = (numberOrders == Long.MAX_VALUE) ? Long.MAX_VALUE : skipOrders + numberOrders - firstOrder;
+            final List<Entry> unconfirmed = journal.getUnconfirmed();
+            if (journal.isResumed()) {
+                System.out.printf("Resuming from the journal %s:\n    %s bulk(s) to re-broadcast, continuing from order %s\n",
+                        journalPath, unconfirmed.size(), firstOrder);
             }
-            if (numberOrders == 0) {
-                continue;
+
+            // The first pass over the file validates everything before anything is sent;
+            // the second one streams the orders into the bulks.
+            final OrdersSummary summary = validateOrders(inputPath, firstOrder, ordersLeft, paymentIndex);
+            if (summary == null) {
+                return;
             }
-            numberOrders--;
 
-            final JSONObject jo = (JSONObject) o;
-            final String uuid = jo.getString("uuid");
-            final BigDecimal utnp_amount = jo.getBigDecimal("utnp_amount");
-            final String address = jo.getString("utnp_address").toLowerCase();
+            System.out.printf("Orders to send: %s, starting from order %s\n", summary.count, firstOrder);
+            System.out.printf("Total amount: %s\n", summary.total);
+            System.out.printf("Journal: %s (relaunch with the same arguments to resume)\n", journalPath);
+            System.out.printf("Payment index: %s (%s keys)\n", paymentIndexPath, paymentIndex.getKeyCount());
+
+            final BigDecimal gwei = new BigDecimal("0.000000001");
 
-            // Order data validations
-            {
-                if (!address.matches("^0x[0-9a-f]{40}$")) {
-                    System.out.printf("ERROR: address \"%s\" is invalid!\n", jo.getString("utnp_address"));
-                    System.exit(-1);
+            final BulkSenderConnector utnpConnector = new BulkSenderConnector(
+                    ethereumConnection,
+                    bulkSenderAddress,
+                    privateKey,
+                    (gasPriceGwei == null) ? null : EthereumUtils.valueInWei(gasPriceGwei.multiply(gwei)),
+                    EthereumUtils.valueInWei(feeCapGwei.multiply(gwei)),
+                    BigInteger.valueOf(maxGasPerBulk));
+
+            try {
+                if (!checkBalances(utnpConnector, bulkSenderAddress, erc20Address, summary,
+                        maxGasPerBulk, maxTransfersPerBulk)) {
+                    return;
+                }
+
+                final PaymentRecorder recorder = new PaymentRecorder(journal, paymentIndex);
+                final Map<Long, PackedTransfers> unconfirmedTransfers;
+                try {
+                    unconfirmedTransfers = readTransfers(inputPath, unconfirmed);
+                } catch (IOException e) {
+                    System.out.printf("ERROR: cannot read the orders of the bulks to re-broadcast: %s\n", e.getMessage());
+                    return;
                 }
-                addressUsageCounts.merge(address, 1, Integer::sum);
-            }
 
-            total = total.add(utnp_amount);
+                final BulkTransferPipeline pipeline;
+                try {
+                    pipeline = new BulkTransferPipeline(
+                            utnpConnector, erc20Address, maxInFlight, recorder, replaceDelaySeconds * 1000);
+                } catch (IOException e) {
+                    System.out.printf("ERROR: cannot get the nonce or the fees from the node: %s\n", e.getMessage());
+                    return;
+                }
 
-            requests.add(new BulkSenderConnector.SingleTransfer(address, utnp_amount));
-            final long finalCurrentSkip = currentSkip;
-            objectToDoubleCheck.add(
-                    new HashMap() {{
-                        put("skip", finalCurrentSkip);
-                        put("uuid", uuid);
-                        put("utnp_amount", utnp_amount.toPlainString());
-                        put("utnp_address", address);
-                    }}
-            );
+                try {
+                    // The journaled transactions might have been sent or not; send them again, as is.
+                    for (final Entry entry : unconfirmed) {
+                        System.out.printf(" >>> Re-broadcasting bulk (%s): %s\n", entry.range, entry.transaction.txhash);
+                        recorder.expect(entry.range, unconfirmedTransfers.get(entry.range.firstOrderIndex));
+                        printResult(entry.range, pipeline.resubmit(entry.getVariants(), entry.range));
+                    }
 
-            currentSkip++;
-        }
-        System.out.printf("Total amount: %s\n", total);
+                    sendOrders(inputPath, firstOrder, summary.count, utnpConnector, erc20Address,
+                            maxGasPerBulk, maxTransfersPerBulk, pipeline, recorder);
 
-        // Overall validation
-        {
-            final Map<String, Integer> duplicatedAddressesWithCounts = addressUsageCounts.entrySet()
-                    .stream()
-                    .filter(e -> e.getValue() > 1)
-                    .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
+                    // Without the replacement, nothing can speed up the stuck ones; they are left to the relaunch
+                    if (replaceDelaySeconds > 0 && pipeline.getInFlightCount() > 0) {
+                        System.out.printf("Waiting for %s bulk(s) in flight to be mined...\n", pipeline.getInFlightCount());
+                        pipeline.awaitMined();
+                    }
+                } catch (IllegalStateException e) {
+                    System.out.printf("ERROR: re-broadcasting stopped: %s\n", Objects.toString(e.getCause(), e.getMessage()));
+                } finally {
+                    pipeline.close();
+                    CompletableFuture.allOf(printedResults.toArray(new CompletableFuture[0])).join();
+                }
 
-            if (!duplicatedAddressesWithCounts.isEmpty()) {
-                System.out.printf("\nWARNING WARNING WARNING: %s suspicious duplicate entry/entries!\n", duplicatedAddressesWithCounts.size());
-                for (Map.Entry<String, Integer> entry : duplicatedAddressesWithCounts.entrySet()) {
-                    System.out.printf("  > %s : %s withdrawal(s)\n", entry.getKey(), entry.getValue());
+                System.out.printf("Mined so far: %s bulk(s), gas used: %s\n", pipeline.getMinedCount(), pipeline.getGasUsed());
+                if (pipeline.getInFlightCount() > 0) {
+                    System.out.printf("%s bulk(s) are not mined yet, so their orders are not recorded to the payment index; "
+                            + "relaunch with the same arguments (and \"replacedelay\" above 0) to wait for them.\n", pipeline.getInFlightCount());
+                }
+                final Throwable failure = pipeline.getFailure();
+                if (failure instanceof TransactionRevertedException) {
+                    System.out.printf("ERROR: %s\n", failure.getMessage());
+                    System.out.printf("The reverted bulk is not retried on relaunch; check the BulkSender allowance and balance.\n");
+                    System.out.printf("Its orders are not recorded to the payment index %s, so another run may send them.\n",
+                            paymentIndexPath);
+                    return;
+                } else if (failure != null) {
+                    System.out.printf("ERROR: not all the bulks have been sent: %s\n", failure.getMessage());
+                    System.out.printf("Relaunch with the same arguments to retry.\n");
+                    return;
                 }
-                System.out.println();
+                System.out.println("Done!");
+            } finally {
+                utnpConnector.close();
             }
+        } finally {
+            paymentIndex.close();
+            journal.close();
+        }
+    }
+
+    /**
+     * Pre-flight check, before anything is sent: the BulkSender contract must hold enough tokens for all the orders,
+     * and the operator must hold enough ether to pay for the gas of all the bulks
+     * (by the gas model, as if every recipient were a new holder; at the current fees).
+     * The bulks re-broadcast from the journal are not counted, as they might be mined already.
+     *
+     * @return <code>false</code> if something is insufficient (the errors are already printed).
+     */
+    private static boolean checkBalances(@NonNull final BulkSenderConnector utnpConnector,
+                                         @NonNull final String bulkSenderAddress,
+                                         @NonNull final String erc20Address,
+                                         @NonNull final OrdersSummary summary,
+                                         long maxGasPerBulk,
+                                         int maxTransfersPerBulk) {
+        final BigInteger decimals = BulkSenderConnector.UTNP_DECIMALS;
+        // All the reads at once; the repeated ones are served from the cache
+        final CompletableFuture<BigInteger> tokenDecimals = utnpConnector.getTokenDecimalsAsync(erc20Address);
+        final CompletableFuture<BigInteger> tokenBalance = utnpConnector.getTokenBalanceAsync(erc20Address, bulkSenderAddress);
+        final CompletableFuture<BigInteger> etherBalance = utnpConnector.getEtherBalanceAsync(utnpConnector.getOperatorAddress());
+
+        if (!checkDecimals(tokenDecimals, erc20Address)) {
+            return false;
         }
 
-        final Map overallStructureToDoubleCheck = new HashMap() {{
-            put("orders", objectToDoubleCheck);
-        }};
-        final JSONObject overallJSONToDoubleCheck = (JSONObject) JSONObject.wrap(overallStructureToDoubleCheck);
+        final long maxGas = BulkTransferPlanner.estimateMaxTotalGas(summary.count, maxGasPerBulk, maxTransfersPerBulk);
+        try {
+            final TransactionFees fees = utnpConnector.getFeePolicy().getFees();
+            final BigInteger requiredTokens = EthereumUtils.intFromDecimal(summary.total, decimals);
+            final BigInteger availableTokens = tokenBalance.join();
+            final BigInteger requiredWei = BigInteger.valueOf(maxGas).multiply(fees.maxFeePerGas);
+            final BigInteger availableWei = etherBalance.join();
 
-//        try {
-//            Files.write(
-//                    Paths.get("./doublecheck-production.json"),
-//                    Collections.singleton(overallJSONToDoubleCheck.toString(2)),
-//                    StandardCharsets.UTF_8);
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
+            System.out.printf("BulkSender token balance: %s (needed: %s)\n",
+                    EthereumUtils.valueWithDecimal(availableTokens, decimals), summary.total);
+            System.out.printf("Operator %s ether balance: %s (needed at most: %s for %s gas at %s)\n",
+                    utnpConnector.getOperatorAddress(), EthereumUtils.valueOfWei(availableWei),
+                    EthereumUtils.valueOfWei(requiredWei), maxGas, fees);
 
-        // Now we have `requests` calculated
+            boolean sufficient = true;
+            if (availableTokens.compareTo(requiredTokens) < 0) {
+                System.out.printf("ERROR: the BulkSender contract %s holds %s tokens less than needed!\n",
+                        bulkSenderAddress, EthereumUtils.valueWithDecimal(requiredTokens.subtract(availableTokens), decimals));
+                sufficient = false;
+            }
+            if (availableWei.compareTo(requiredWei) < 0) {
+                System.out.printf("ERROR: the operator %s may run out of ether for the gas; %s ether more is needed!\n",
+                        utnpConnector.getOperatorAddress(), EthereumUtils.valueOfWei(requiredWei.subtract(availableWei)));
+                sufficient = false;
+            }
+            if (!sufficient) {
+                System.out.printf("Nothing is sent.\n");
+            }
+            return sufficient;
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot get the fees from the node: %s\n", e.getMessage());
+            return false;
+        } catch (CompletionException e) {
+            System.out.printf("ERROR: cannot read the balances: %s\n", Objects.toString(e.getCause(), e.getMessage()));
+            return false;
+        }
+    }
 
-        final BigDecimal
-                gwei = new BigDecimal("0.000000001"),
-                gasPrice = gasPriceGwei.multiply(gwei);
+    /**
+     * Check that the token has the expected decimals; if they cannot be read, only warn.
+     *
+     * @return <code>false</code> if the decimals differ (the error is already printed).
+     */
+    private static boolean checkDecimals(@NonNull final CompletableFuture<BigInteger> tokenDecimals,
+                                         @NonNull final String erc20Address) {
+        final BigInteger decimals = BulkSenderConnector.UTNP_DECIMALS;
+        try {
+            if (!tokenDecimals.join().equals(decimals)) {
+                System.out.printf("ERROR: the token %s has %s decimals, not %s; nothing is sent.\n",
+                        erc20Address, tokenDecimals.join(), decimals);
+                return false;
+            }
+        } catch (CompletionException e) {
+            System.out.printf("WARNING: cannot read the decimals of the token %s: %s\n", erc20Address, Objects.toString(e.getCause(), e.getMessage()));
+        }
+        return true;
+    }
 
-        final BulkSenderConnector.EthereumConnection ethereumConnection = new BulkSenderConnector.EthereumConnection(
-                BulkSenderConnector.EthereumConnection.Type.HTTP, rpcUrl);
-        final BulkSenderConnector utnpConnector = new BulkSenderConnector(
-                ethereumConnection,
-                bulkSenderAddress,
-                privateKey,
-                EthereumUtils.valueInWei(gasPrice),
-                BigInteger.valueOf(4500000));
+    /**
+     * The sending pass: stream the orders through the planner into the pipeline.
+     */
+    private void sendOrders(@NonNull final Path inputPath,
+                            long firstOrder,
+                            long count,
+                            @NonNull final BulkSenderConnector utnpConnector,
+                            @NonNull final String erc20Address,
+                            long maxGasPerBulk,
+                            int maxTransfersPerBulk,
+                            @NonNull final BulkTransferPipeline pipeline,
+                            @NonNull final PaymentRecorder recorder) throws IOException, InterruptedException {
+        final BulkTransferPlanner planner = new BulkTransferPlanner(
+                utnpConnector, erc20Address, BulkSenderConnector.UTNP_DECIMALS, maxGasPerBulk, maxTransfersPerBulk);
+        // The uuids of the orders offered to the planner but not planned yet; in the same order.
+        final ArrayDeque<String> pendingUuids = new ArrayDeque<>();
 
-        long left_in_bulk = BULK_SIZE;
-        final List<BulkSenderConnector.SingleTransfer> bulk = new LinkedList<>();
-        while (!requests.isEmpty()) {
-            final BulkSenderConnector.SingleTransfer request = requests.remove(0);
-            bulk.add(request);
+        try (final OrderReader reader = OrderReader.open(inputPath)) {
+            reader.skip(firstOrder);
 
-            left_in_bulk--;
+            long remaining = count;
+            while (remaining > 0) {
+                final Order order = reader.readNext();
+                if (order == null) {
+                    throw new IOException(String.format(
+                            "The orders in %s end at %s; the file has changed since the validation pass",
+                            inputPath, reader.getNextIndex()));
+                }
+                remaining--;
 
-            if (left_in_bulk == 0) {
-                left_in_bulk = BULK_SIZE;
-                System.out.printf("Remaining: %s\n", requests.size());
-                executeBulkSend(utnpConnector, erc20Address, bulk);
-                bulk.clear();
+                pendingUuids.addLast(order.uuid);
+                final PlannedBulk bulk = planner.offer(
+                        order.index,
+                        order.address, order.amount);
+                if (bulk != null) {
+                    System.out.printf("Remaining: %s, in flight: %s\n", remaining, pipeline.getInFlightCount());
+                    if (!executeBulkSend(pipeline, recorder, bulk, ShardedSender.takeUuids(pendingUuids, bulk))) {
+                        return;
+                    }
+                }
             }
+            PlannedBulk bulk;
+            while ((bulk = planner.flush()) != null) {
+                if (!executeBulkSend(pipeline, recorder, bulk, ShardedSender.takeUuids(pendingUuids, bulk))) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot plan the bulks: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Read the transfers of the journaled bulks back from the orders file, in a single pass.
+     *
+     * @return the transfers of every bulk, by its first order index.
+     * @throws IOException if the orders file cannot be read, or doesn't have the orders of the bulks anymore.
+     */
+    @NonNull
+    private static Map<Long, PackedTransfers> readTransfers(@NonNull final Path inputPath,
+                                                            @NonNull final List<Entry> entries) throws IOException {
+        final TreeMap<Long, BulkRange> ranges = new TreeMap<>();
+        for (final Entry entry : entries) {
+            ranges.put(entry.range.firstOrderIndex, entry.range);
         }
-        if (!bulk.isEmpty()) {
-//            System.out.printf("Sending leftovers\n");
-            executeBulkSend(utnpConnector, erc20Address, bulk);
+        final Map<Long, PackedTransfers> result = new HashMap<>();
+        if (ranges.isEmpty()) {
+            return result;
+        }
+        try (final OrderReader reader = OrderReader.open(inputPath)) {
+            for (final BulkRange range : ranges.values()) {
+                final long gap = range.firstOrderIndex - reader.getNextIndex();
+                if (gap < 0 || reader.skip(gap) < gap) {
+                    throw new IOException(String.format("the orders file has changed since %s was planned", range));
+                }
+                final PackedTransfers transfers = new PackedTransfers(
+                        BulkSenderConnector.UTNP_DECIMALS.intValue(), range.uuids.size());
+                for (final String uuid : range.uuids) {
+                    final Order order = reader.readNext();
+                    if (order == null || !order.uuid.equals(uuid)) {
+                        throw new IOException(String.format("the orders file has changed since %s was planned", range));
+                    }
+                    transfers.add(order.address, order.amount);
+                }
+                result.put(range.firstOrderIndex, transfers);
+            }
         }
-        System.out.println("Done!");
+        return result;
+    }
+
+    @NonNull
+    private static Path getShardJournalPath(@NonNull Path journalPath, int shardNumber) {
+        return Paths.get(journalPath.toString() + "." + shardNumber);
     }
 
     /**
-     * Process the CLI flags and options.
+     * Send the orders through several shards at once, with the {@link ShardedSender}; the orders are dealt
+     * to the shards by the chunks of {@link ShardedSender#DEFAULT_CHUNK_BULKS} full bulks.
+     * <p>
+     * Every shard writes its own journal; on relaunch, the orders planned in any of them are not planned again,
+     * so every order is sent exactly once.
      */
-    private void processCLIArguments(@NonNull String[] args) {
-        assert args != null;
-        System.setProperty("log4j2.debug", "1");
+    private void executeShardedSend(@NonNull final EthereumConnection ethereumConnection,
+                                    @NonNull final List<String> bulkSenderAddresses,
+                                    @NonNull final String erc20Address,
+                                    @NonNull final List<byte[]> privateKeys,
+                                    @NonNull final Path inputPath,
+                                    long skipOrders,
+                                    long numberOrders,
+                                    @Nullable final BigDecimal gasPriceGwei,
+                                    @NonNull final BigDecimal feeCapGwei,
+                                    long replaceDelaySeconds,
+                                    long maxGasPerBulk,
+                                    int maxTransfersPerBulk,
+                                    int maxInFlight,
+                                    @NonNull final Path journalPath,
+                                    @NonNull final Path paymentIndexPath) throws IOException, InterruptedException {
+        assert ethereumConnection != null;
+        assert bulkSenderAddresses != null;
+        assert privateKeys != null;
+        assert bulkSenderAddresses.size() == privateKeys.size() : bulkSenderAddresses.size();
+        assert erc20Address != null;
+        assert erc20Address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : erc20Address;
+        assert inputPath != null;
+        assert gasPriceGwei == null || gasPriceGwei.compareTo(BigDecimal.ZERO) > 0 : gasPriceGwei;
+        assert feeCapGwei != null;
+        assert feeCapGwei.compareTo(BigDecimal.ZERO) > 0 : feeCapGwei;
+        assert replaceDelaySeconds >= 0 : replaceDelaySeconds;
+        assert maxGasPerBulk > 0 : maxGasPerBulk;
+        assert maxTransfersPerBulk > 0 : maxTransfersPerBulk;
+        assert maxInFlight > 0 : maxInFlight;
+        assert journalPath != null;
+        assert paymentIndexPath != null;
 
-        final CommandLineParser parser = new DefaultParser();
+        final int shardCount = privateKeys.size();
+        final PaymentIndex paymentIndex;
         try {
-            final CommandLine line = parser.parse(options, args);
+            paymentIndex = new PaymentIndex(paymentIndexPath);
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot open the payment index: %s\n", e.getMessage());
+            return;
+        }
 
-            if (line.hasOption("help")) {
-                printHelp();
-            } else {
+        final BigDecimal gwei = new BigDecimal("0.000000001");
+        final List<Shard> shards = new ArrayList<>(shardCount);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                final String bulkSenderAddress = bulkSenderAddresses.get(i);
+                assert bulkSenderAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : bulkSenderAddress;
+                assert privateKeys.get(i).length == EthereumUtils.PRIVATE_KEY_SIZE : privateKeys.get(i).length;
 
-                final String
-                        argInputStr = line.getOptionValue("input"),
-                        argSkipStr = line.getOptionValue("skip"),
-                        argNumberStr = line.getOptionValue("number"),
-                        argRPCStr = line.getOptionValue("rpc"),
-                        argPrivateKeyStr = line.getOptionValue("privatekey"),
-                        argBulkSenderStr = line.getOptionValue("bulksender"),
-                        argErc20Str = line.getOptionValue("erc20"),
-                        argGasPriceStr = line.getOptionValue("gasprice");
+                final Path shardJournalPath = getShardJournalPath(journalPath, i + 1);
+                final String runDescription = String.format("bulksender=%s erc20=%s skip=%s number=%s shard=%s/%s",
+                        bulkSenderAddress.toLowerCase(), erc20Address.toLowerCase(), skipOrders,
+                        (numberOrders == Long.MAX_VALUE) ? "all" : numberOrders, i + 1, shardCount);
+                final SendJournal journal;
+                try {
+                    journal = new SendJournal(shardJournalPath, runDescription, skipOrders);
+                } catch (IOException e) {
+                    System.out.printf("ERROR: cannot open the journal of shard %s: %s\n", i + 1, e.getMessage());
+                    return;
+                }
+                final BulkSenderConnector connector = new BulkSenderConnector(
+                        ethereumConnection,
+                        bulkSenderAddress,
+                        privateKeys.get(i),
+                        (gasPriceGwei == null) ? null : EthereumUtils.valueInWei(gasPriceGwei.multiply(gwei)),
+                        EthereumUtils.valueInWei(feeCapGwei.multiply(gwei)),
+                        BigInteger.valueOf(maxGasPerBulk));
+                shards.add(new Shard(i + 1, bulkSenderAddress, connector,
+                        new BulkTransferPlanner(connector, erc20Address, BulkSenderConnector.UTNP_DECIMALS,
+                                maxGasPerBulk, maxTransfersPerBulk),
+                        journal, paymentIndex));
+            }
 
-                // Validate for errors
+            // The orders planned by any shard in the previous launches, whether mined or not
+            final NavigableMap<Long, Long> planned = new TreeMap<>();
+            long plannedCount = 0, unconfirmedCount = 0;
+            for (final Shard shard : shards) {
+                if (shard.journal.isResumed()) {
+                    for (final BulkRange range : SendJournal.readPlanned(getShardJournalPath(journalPath, shard.number)).values()) {
+                        if (planned.put(range.firstOrderIndex, range.lastOrderIndex) == null) {
+                            plannedCount += range.lastOrderIndex - range.firstOrderIndex + 1;
+                        }
+                    }
+                    unconfirmedCount += shard.journal.getUnconfirmed().size();
+                }
+            }
+            if (shards.stream().anyMatch(shard -> shard.journal.isResumed())) {
+                System.out.printf("Resuming from the journals %s.1-%s:\n" +
+                                "    %s order(s) planned already, %s bulk(s) to re-broadcast\n",
+                        journalPath, shardCount, plannedCount, unconfirmedCount);
+            }
 
-                if (argInputStr == null || argRPCStr == null || argPrivateKeyStr == null || argBulkSenderStr == null || argErc20Str == null) {
-                    System.err.printf("\"input\", \"rpc\", \"privatekey\", \"bulksender\" and \"erc20\" are the mandatory options!\n");
-                    return;
+            final OrdersSummary summary = validateOrders(inputPath, skipOrders, numberOrders, planned, paymentIndex);
+            if (summary == null) {
+                return;
+            }
+
+            System.out.printf("Orders to send: %s, starting from order %s, through %s shards\n",
+                    summary.count, skipOrders, shardCount);
+            System.out.printf("Total amount: %s\n", summary.total);
+            System.out.printf("Journals: %s.1-%s (relaunch with the same arguments to resume)\n", journalPath, shardCount);
+            System.out.printf("Payment index: %s (%s keys)\n", paymentIndexPath, paymentIndex.getKeyCount());
+
+            if (!checkShardBalances(shards, erc20Address, summary, maxGasPerBulk, maxTransfersPerBulk)) {
+                return;
+            }
+
+            final Map<Long, PackedTransfers> unconfirmedTransfers;
+            try {
+                final List<Entry> unconfirmed = new ArrayList<>();
+                for (final Shard shard : shards) {
+                    unconfirmed.addAll(shard.journal.getUnconfirmed());
+                }
+                unconfirmedTransfers = readTransfers(inputPath, unconfirmed);
+            } catch (IOException e) {
+                System.out.printf("ERROR: cannot read the orders of the bulks to re-broadcast: %s\n", e.getMessage());
+                return;
+            }
+
+            final long unsent;
+            try {
+                for (final Shard shard : shards) {
+                    try {
+                        shard.setPipeline(new BulkTransferPipeline(
+                                shard.connector, erc20Address, maxInFlight, shard.recorder, replaceDelaySeconds * 1000));
+                    } catch (IOException e) {
+                        System.out.printf("ERROR: cannot get the nonce or the fees from the node for shard %s: %s\n",
+                                shard.number, e.getMessage());
+                        return;
+                    }
                 }
 
-                final JSONArray ordersPayload;
-                try {
-                    final Path inputFilePath = Paths.get(argInputStr.replace("~", System.getProperty("user.home")));
-                    final String inputFileContents = Files.readAllLines(inputFilePath)
-                            .stream()
-                            .collect(Collectors.joining());
-                    final JSONObject jsonPayload = new JSONObject(inputFileContents);
-
-                    ordersPayload = jsonPayload.getJSONArray("orders");
-                } catch (Exception e) {
-                    System.err.printf("Cannot read JSON file %s!\n", argInputStr);
-                    return;
+                // The journaled transactions might have been sent or not; send them again, as is.
+                for (final Shard shard : shards) {
+                    assert shard.getPipeline() != null;
+                    try {
+                        for (final Entry entry : shard.journal.getUnconfirmed()) {
+                            System.out.printf(" >>> Re-broadcasting bulk (%s) of shard %s: %s\n",
+                                    entry.range, shard.number, entry.transaction.txhash);
+                            shard.recorder.expect(entry.range, unconfirmedTransfers.get(entry.range.firstOrderIndex));
+                            printResult(entry.range, shard.getPipeline().resubmit(entry.getVariants(), entry.range));
+                        }
+                    } catch (IllegalStateException e) {
+                        shard.stop("re-broadcasting failed: " + Objects.toString(e.getCause(), e.getMessage()));
+                    }
+                }
+
+                final ShardedSender sender = new ShardedSender(
+                        shards, maxTransfersPerBulk * ShardedSender.DEFAULT_CHUNK_BULKS, this::printResult);
+                try (final OrderReader reader = OrderReader.open(inputPath)) {
+                    reader.skip(skipOrders);
+                    unsent = sender.send(reader, summary.count, planned);
+                }
+
+                // Without the replacement, nothing can speed up the stuck ones; they are left to the relaunch
+                final int inFlight = shards.stream().mapToInt(shard -> shard.getPipeline().getInFlightCount()).sum();
+                if (replaceDelaySeconds > 0 && inFlight > 0) {
+                    System.out.printf("Waiting for %s bulk(s) in flight to be mined...\n", inFlight);
+                    for (final Shard shard : shards) {
+                        shard.getPipeline().awaitMined();
+                    }
+                }
+            } finally {
+                for (final Shard shard : shards) {
+                    if (shard.getPipeline() != null) {
+                        shard.getPipeline().close();
+                    }
                 }
-                final int howManyOrders = ordersPayload.length();
+                CompletableFuture.allOf(printedResults.toArray(new CompletableFuture[0])).join();
+            }
 
-                final byte[] privateKey;
+            Throwable failure = null;
+            for (final Shard shard : shards) {
+                assert shard.getPipeline() != null;
+                System.out.printf("Shard %s (operator %s, BulkSender %s): %s order(s) sent; mined so far: %s bulk(s), gas used: %s%s\n",
+                        shard.number, shard.connector.getOperatorAddress(), shard.bulkSenderAddress, shard.getOrdersSent(),
+                        shard.getPipeline().getMinedCount(), shard.getPipeline().getGasUsed(),
+                        (shard.getStopReason() == null) ? "" : "; stopped: " + shard.getStopReason());
+                if (failure == null || shard.getPipeline().getFailure() instanceof TransactionRevertedException) {
+                    failure = shard.getPipeline().getFailure();
+                }
+            }
+            final int notMined = shards.stream().mapToInt(shard -> shard.getPipeline().getInFlightCount()).sum();
+            if (notMined > 0) {
+                System.out.printf("%s bulk(s) are not mined yet, so their orders are not recorded to the payment index; "
+                        + "relaunch with the same arguments (and \"replacedelay\" above 0) to wait for them.\n", notMined);
+            }
+            if (failure instanceof TransactionRevertedException) {
+                System.out.printf("ERROR: %s\n", failure.getMessage());
+                System.out.printf("The reverted bulk is not retried on relaunch; check the BulkSender allowance and balance.\n");
+                System.out.printf("Its orders are not recorded to the payment index %s, so another run may send them.\n",
+                        paymentIndexPath);
+                return;
+            } else if (failure != null) {
+                System.out.printf("ERROR: not all the bulks have been sent: %s\n", failure.getMessage());
+                System.out.printf("Relaunch with the same arguments to retry.\n");
+                return;
+            } else if (unsent > 0) {
+                System.out.printf("ERROR: %s order(s) have not been sent, as the shards have stopped.\n", unsent);
+                System.out.printf("Relaunch with the same arguments to send them, once the shards are topped up.\n");
+                return;
+            }
+            System.out.println("Done!");
+        } finally {
+            for (final Shard shard : shards) {
+                shard.connector.close();
                 try {
-                    final Path privateKeyPath = Paths.get(argPrivateKeyStr.replace("~", System.getProperty("user.home")));
-                    final String privateKeyFileContents = Files.readAllLines(privateKeyPath)
-                            .stream()
-                            .collect(Collectors.joining()).trim();
-                    privateKey = Hex.decode(privateKeyFileContents);
-                } catch (Exception e) {
-                    System.err.printf("Failed to read the private key file at %s!\n", argPrivateKeyStr);
-                    return;
+                    shard.journal.close();
+                } catch (IOException e) {
+                    System.out.printf("ERROR: cannot close the journal of shard %s: %s\n", shard.number, e.getMessage());
                 }
+            }
+            paymentIndex.close();
+        }
+    }
+
+    /**
+     * Pre-flight check of the sharded run, before anything is sent: the BulkSender contracts must hold enough tokens
+     * for all the orders altogether, and so must the operators hold enough ether for the gas of all the bulks
+     * (as {@link #checkBalances}); the shards running out of either are stopped during the run.
+     * The balances are kept as the budgets of the shards.
+     *
+     * @return <code>false</code> if something is insufficient (the errors are already printed).
+     */
+    private static boolean checkShardBalances(@NonNull final List<Shard> shards,
+                                              @NonNull final String erc20Address,
+                                              @NonNull final OrdersSummary summary,
+                                              long maxGasPerBulk,
+                                              int maxTransfersPerBulk) {
+        final BigInteger decimals = BulkSenderConnector.UTNP_DECIMALS;
+        final BulkSenderConnector firstConnector = shards.get(0).connector;
+        // All the reads at once
+        final CompletableFuture<BigInteger> tokenDecimals = firstConnector.getTokenDecimalsAsync(erc20Address);
+        final List<CompletableFuture<BigInteger>> tokenBalances = new ArrayList<>(shards.size());
+        final List<CompletableFuture<BigInteger>> etherBalances = new ArrayList<>(shards.size());
+        for (final Shard shard : shards) {
+            tokenBalances.add(shard.connector.getTokenBalanceAsync(erc20Address, shard.bulkSenderAddress));
+            etherBalances.add(shard.connector.getEtherBalanceAsync(shard.connector.getOperatorAddress()));
+        }
+
+        if (!checkDecimals(tokenDecimals, erc20Address)) {
+            return false;
+        }
+
+        final long maxGas = BulkTransferPlanner.estimateMaxTotalGas(summary.count, maxGasPerBulk, maxTransfersPerBulk);
+        try {
+            final TransactionFees fees = firstConnector.getFeePolicy().getFees();
+            BigInteger availableTokens = BigInteger.ZERO, availableWei = BigInteger.ZERO;
+            for (int i = 0; i < shards.size(); i++) {
+                final Shard shard = shards.get(i);
+                final BigInteger tokens = tokenBalances.get(i).join(), wei = etherBalances.get(i).join();
+                shard.setBudget(tokens, wei);
+                availableTokens = availableTokens.add(tokens);
+                availableWei = availableWei.add(wei);
+                System.out.printf("Shard %s: BulkSender %s token balance: %s; operator %s ether balance: %s\n",
+                        shard.number, shard.bulkSenderAddress, EthereumUtils.valueWithDecimal(tokens, decimals),
+                        shard.connector.getOperatorAddress(), EthereumUtils.valueOfWei(wei));
+            }
+            final BigInteger requiredTokens = EthereumUtils.intFromDecimal(summary.total, decimals);
+            final BigInteger requiredWei = BigInteger.valueOf(maxGas).multiply(fees.maxFeePerGas);
+            System.out.printf("Altogether: %s tokens (needed: %s), %s ether (needed at most: %s for %s gas at %s)\n",
+                    EthereumUtils.valueWithDecimal(availableTokens, decimals), summary.total,
+                    EthereumUtils.valueOfWei(availableWei), EthereumUtils.valueOfWei(requiredWei), maxGas, fees);
+
+            boolean sufficient = true;
+            if (availableTokens.compareTo(requiredTokens) < 0) {
+                System.out.printf("ERROR: the BulkSender contracts hold %s tokens less than needed!\n",
+                        EthereumUtils.valueWithDecimal(requiredTokens.subtract(availableTokens), decimals));
+                sufficient = false;
+            }
+            if (availableWei.compareTo(requiredWei) < 0) {
+                System.out.printf("ERROR: the operators may run out of ether for the gas; %s ether more is needed!\n",
+                        EthereumUtils.valueOfWei(requiredWei.subtract(availableWei)));
+                sufficient = false;
+            }
+            if (!sufficient) {
+                System.out.printf("Nothing is sent.\n");
+            }
+            return sufficient;
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot get the fees from the node: %s\n", e.getMessage());
+            return false;
+        } catch (CompletionException e) {
+            System.out.printf("ERROR: cannot read the balances: %s\n", Objects.toString(e.getCause(), e.getMessage()));
+            return false;
+        }
+    }
 
-                final long argSkip;
-                if (argSkipStr == null) {
-                    argSkip = 0;
+    /**
+     * A bulk signed offline, along with its plan.
+     */
+    private static class SignedBulk {
+        @NonNull
+        final PlannedBulk bulk;
+        @NonNull
+        final Record record;
+
+        SignedBulk(@NonNull PlannedBulk bulk, @NonNull Record record) {
+            this.bulk = bulk;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Progress of the offline signing: all the orders before {@link #nextOrderIndex} are signed,
+     * with the nonces before {@link #nextNonce}, and written to the file.
+     */
+    private static class SigningProgress {
+        long nextOrderIndex;
+        @NonNull
+        BigInteger nextNonce;
+        long bulkCount = 0;
+        /**
+         * How many bulks are written but not forced to the disk yet.
+         */
+        int unsyncedCount = 0;
+
+        SigningProgress(long nextOrderIndex, @NonNull BigInteger nextNonce) {
+            this.nextOrderIndex = nextOrderIndex;
+            this.nextNonce = nextNonce;
+        }
+    }
+
+    private void executeSign(@Nullable final EthereumConnection ethereumConnection,
+                             @NonNull final String bulkSenderAddress,
+                             @NonNull final String erc20Address,
+                             @NonNull final byte[] privateKey,
+                             @NonNull final Path inputPath,
+                             long skipOrders,
+                             long numberOrders,
+                             @Nullable final BigDecimal gasPriceGwei,
+                             long maxGasPerBulk,
+                             int maxTransfersPerBulk,
+                             @Nullable final BigInteger firstNonce,
+                             @NonNull final Path signedPath,
+                             @NonNull final Path paymentIndexPath) throws IOException {
+        assert ethereumConnection != null || firstNonce != null;
+        assert bulkSenderAddress != null;
+        assert bulkSenderAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : bulkSenderAddress;
+        assert erc20Address != null;
+        assert erc20Address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : erc20Address;
+        assert privateKey != null;
+        assert privateKey.length == EthereumUtils.PRIVATE_KEY_SIZE : privateKey.length;
+        assert inputPath != null;
+        assert gasPriceGwei == null || gasPriceGwei.compareTo(BigDecimal.ZERO) > 0 : gasPriceGwei;
+        assert signedPath != null;
+        assert paymentIndexPath != null;
+
+        final PaymentIndex paymentIndex;
+        try {
+            paymentIndex = new PaymentIndex(paymentIndexPath);
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot open the payment index: %s\n", e.getMessage());
+            return;
+        }
+
+        try {
+            final OrdersSummary summary = validateOrders(inputPath, skipOrders, numberOrders, paymentIndex);
+            if (summary == null) {
+                return;
+            }
+
+            final BigInteger gasPrice = EthereumUtils.valueInWei(((gasPriceGwei == null) ? DEFAULT_GAS_PRICE_GWEI : gasPriceGwei)
+                    .multiply(new BigDecimal("0.000000001")));
+            final BulkTransferSigner signer = new BulkTransferSigner(privateKey, bulkSenderAddress, gasPrice);
+
+            // With the node available, the bulks are planned by the actual balances and gas estimations.
+            final BulkSenderConnector utnpConnector = (ethereumConnection == null)
+                    ? null
+                    : new BulkSenderConnector(ethereumConnection, bulkSenderAddress, privateKey,
+                    gasPrice, BigInteger.valueOf(maxGasPerBulk));
+            try {
+                // The transactions cannot be replaced once signed, so the fees are chosen once, for all of them
+                final TransactionFees fees;
+                if (gasPriceGwei != null || utnpConnector == null) {
+                    fees = TransactionFees.legacy(gasPrice);
                 } else {
                     try {
-                        argSkip = Long.parseUnsignedLong(argSkipStr);
-                    } catch (NumberFormatException ex) {
-                        System.err.printf("\"skip\" argument must contain a valid integer number!\n");
+                        fees = utnpConnector.createGasPriceOracle().suggest();
+                    } catch (IOException e) {
+                        System.out.printf("ERROR: cannot get the suggested fees from the node: %s\n", e.getMessage());
                         return;
                     }
                 }
 
-                final long argNumber;
-                if (argNumberStr == null) {
-                    argNumber = howManyOrders - argSkip;
+                final BigInteger nonce;
+                if (firstNonce != null) {
+                    nonce = firstNonce;
                 } else {
+                    assert utnpConnector != null;
                     try {
-                        argNumber = Long.parseUnsignedLong(argNumberStr);
-                    } catch (NumberFormatException ex) {
-                        System.err.printf("\"number\" argument must contain a valid integer number!\n");
+                        nonce = utnpConnector.createNonceAllocator().peek();
+                    } catch (IOException e) {
+                        System.out.printf("ERROR: cannot get the nonce from the node: %s\n", e.getMessage());
                         return;
                     }
                 }
-                if (argSkip + argNumber > howManyOrders) {
-                    System.err.printf("\"skip\"+\"number\" arguments must be not more than %s!\n", howManyOrders);
+
+                System.out.printf("Orders to sign: %s, starting from order %s\n", summary.count, skipOrders);
+                System.out.printf("Total amount: %s\n", summary.total);
+                System.out.printf("Sender: %s, first nonce: %s\n", signer.getSenderAddress(), nonce);
+                System.out.printf("Fees: %s\n", fees);
+                if (utnpConnector == null) {
+                    System.out.printf("Planning offline: every recipient is considered a new holder\n");
+                }
+                System.out.printf("Payment index: %s (%s keys)\n", paymentIndexPath, paymentIndex.getKeyCount());
+
+                final SigningProgress progress = new SigningProgress(skipOrders, nonce);
+                final long startedAt = System.nanoTime();
+                final boolean success;
+                try (final Writer writer = new Writer(
+                        signedPath, signer.getSenderAddress(), bulkSenderAddress, erc20Address, ChainId.MAINNET)) {
+                    success = signOrders(inputPath, summary.count, utnpConnector, signer, fees, erc20Address,
+                            maxGasPerBulk, maxTransfersPerBulk, writer, progress);
+                } catch (IOException e) {
+                    System.out.printf("ERROR: cannot write the signed transactions to %s: %s\n", signedPath, e.getMessage());
                     return;
                 }
 
-                final BigDecimal gasPrice;
-                if (argGasPriceStr == null) {
-                    gasPrice = DEFAULT_GAS_PRICE_GWEI;
-                } else {
-                    try {
-                        gasPrice = new BigDecimal(argGasPriceStr);
-                    } catch (Exception ex) {
-                        System.err.printf("\"gasprice\" argument must contain a valid gas price in Gwei!\n");
-                        return;
-                    }
+                System.out.printf("Signed: %s bulk(s) in %s ms, into %s\n",
+                        progress.bulkCount, (System.nanoTime() - startedAt) / 1000000, signedPath);
+                if (!success) {
+                    System.out.printf("ERROR: not all the orders have been signed; " +
+                                    "to sign the rest, relaunch with \"skip\" %s and \"nonce\" %s, into another file.\n",
+                            progress.nextOrderIndex, progress.nextNonce);
+                    return;
+                }
+                System.out.printf("Broadcast them with \"broadcast\" %s; their orders are recorded " +
+                        "in the payment index %s once mined.\n", signedPath, paymentIndexPath);
+                System.out.println("Done!");
+            } finally {
+                if (utnpConnector != null) {
+                    utnpConnector.close();
                 }
+            }
+        } finally {
+            paymentIndex.close();
+        }
+    }
 
-                // Ready
+    /**
+     * The signing pass: stream the orders through the planner, sign the bulks in parallel
+     * and write them to the file in the order of nonces.
+     *
+     * @return <code>false</code> if not all the orders have been signed.
+     */
+    private boolean signOrders(@NonNull final Path inputPath,
+                               long count,
+                               @Nullable final BulkSenderConnector utnpConnector,
+                               @NonNull final BulkTransferSigner signer,
+                               @NonNull final TransactionFees fees,
+                               @NonNull final String erc20Address,
+                               long maxGasPerBulk,
+                               int maxTransfersPerBulk,
+                               @NonNull final Writer writer,
+                               @NonNull final SigningProgress progress) throws IOException {
+        final BulkTransferPlanner planner = new BulkTransferPlanner(
+                utnpConnector, erc20Address, BulkSenderConnector.UTNP_DECIMALS, maxGasPerBulk, maxTransfersPerBulk);
+        // The uuids of the orders offered to the planner but not planned yet; in the same order.
+        final ArrayDeque<String> pendingUuids = new ArrayDeque<>();
 
-                executeTotalSend(
-                        argRPCStr, argBulkSenderStr,
-                        argErc20Str, privateKey, ordersPayload,
-                        argSkip, argNumber, gasPrice);
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        // Limit the read-ahead, so the memory usage doesn’t depend on the number of orders.
+        final int maxBulksInFlight = pool.getParallelism() * 4;
+        final ArrayDeque<ForkJoinTask<SignedBulk>> inFlight = new ArrayDeque<>();
+        BigInteger nonce = progress.nextNonce;
+
+        try (final OrderReader reader = OrderReader.open(inputPath)) {
+            reader.skip(progress.nextOrderIndex);
+
+            long remaining = count;
+            while (true) {
+                final PlannedBulk bulk;
+                if (remaining > 0) {
+                    final Order order = reader.readNext();
+                    if (order == null) {
+                        throw new IOException(String.format(
+                                "The orders in %s end at %s; the file has changed since the validation pass",
+                                inputPath, reader.getNextIndex()));
+                    }
+                    remaining--;
+
+                    pendingUuids.addLast(order.uuid);
+                    bulk = planner.offer(order.index, order.address, order.amount);
+                    if (bulk == null) {
+                        continue;
+                    }
+                } else if ((bulk = planner.flush()) == null) {
+                    break;
+                }
+
+                if (inFlight.size() >= maxBulksInFlight) {
+                    writeSigned(inFlight.removeFirst().join(), writer, progress);
+                }
+                final BulkRange range = new BulkRange(bulk.firstOrderIndex, bulk.getLastOrderIndex(), ShardedSender.takeUuids(pendingUuids, bulk));
+                final BigInteger bulkNonce = nonce;
+                inFlight.addLast(pool.submit(() -> new SignedBulk(bulk, new Record(range,
+                        signer.sign(erc20Address, bulk.transfers, bulkNonce, bulk.gasLimit, fees)))));
+                nonce = nonce.add(BigInteger.ONE);
             }
-        } catch (ParseException exp) {
-            System.err.printf("Parsing failed. Reason: %s\n", exp.getMessage());
-            printHelp();
+            return true;
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot plan the bulks: %s\n", e.getMessage());
+            return false;
+        } finally {
+            // Whatever is signed goes to the file, so it can be broadcast
+            while (!inFlight.isEmpty()) {
+                writeSigned(inFlight.removeFirst().join(), writer, progress);
+            }
+            syncSigned(writer, progress);
+        }
+    }
+
+    private void writeSigned(@NonNull SignedBulk signed,
+                             @NonNull Writer writer,
+                             @NonNull SigningProgress progress) throws IOException {
+        writer.write(signed.record);
+        System.out.printf(" >>> Signed bulk %s (%s, nonce %s): %s\n", signed.bulk.transfers.size(),
+                signed.record.range, signed.record.transaction.nonce, signed.record.transaction.txhash);
+        progress.unsyncedCount++;
+        progress.nextOrderIndex = signed.record.range.lastOrderIndex + 1;
+        progress.nextNonce = signed.record.transaction.nonce.add(BigInteger.ONE);
+        progress.bulkCount++;
+        if (progress.unsyncedCount >= SIGNED_SYNC_EVERY) {
+            syncSigned(writer, progress);
+        }
+    }
+
+    /**
+     * Force the signed transactions to the disk. Their orders are not recorded to the payment index
+     * until they are broadcast and mined.
+     */
+    private void syncSigned(@NonNull Writer writer, @NonNull SigningProgress progress) throws IOException {
+        writer.sync();
+        progress.unsyncedCount = 0;
+    }
+
+    private void executeBroadcast(@NonNull final EthereumConnection ethereumConnection,
+                                  @NonNull final Path signedPath,
+                                  double ratePerSecond,
+                                  int maxInFlight,
+                                  @NonNull final Path paymentIndexPath) throws InterruptedException {
+        assert ethereumConnection != null;
+        assert signedPath != null;
+        assert ratePerSecond >= 0 : ratePerSecond;
+        assert maxInFlight > 0 : maxInFlight;
+        assert paymentIndexPath != null;
+
+        final Reader reader;
+        try {
+            reader = new Reader(signedPath);
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot read the signed transactions: %s\n", e.getMessage());
+            return;
+        }
+        final PaymentIndex paymentIndex;
+        try {
+            paymentIndex = new PaymentIndex(paymentIndexPath);
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot open the payment index: %s\n", e.getMessage());
+            closeQuietly(reader);
+            return;
+        }
+
+        final RawTransactionConnector connector = new RawTransactionConnector(ethereumConnection);
+        try {
+            final TransactionBroadcaster broadcaster;
+            try {
+                broadcaster = new TransactionBroadcaster(
+                        connector, reader.getSenderAddress(), ratePerSecond, maxInFlight,
+                        (attachment, transaction, confirmation) -> recordPaid(paymentIndex, (Record) attachment, confirmation.success));
+            } catch (IOException e) {
+                System.out.printf("ERROR: cannot get the nonce from the node: %s\n", e.getMessage());
+                return;
+            }
+            System.out.printf("Broadcasting %s: sender %s, bulksender %s, erc20 %s\n", signedPath,
+                    reader.getSenderAddress(), reader.getHeaderField("bulksender"), reader.getHeaderField("erc20"));
+            System.out.printf("Transactions already mined from the sender: %s\n", broadcaster.getMinedCountAtStart());
+            System.out.printf("Payment index: %s (%s keys)\n", paymentIndexPath, paymentIndex.getKeyCount());
+
+            try {
+                Record record;
+                while ((record = reader.next()) != null) {
+                    System.out.printf(" >>> Broadcasting bulk (%s, nonce %s): %s\n",
+                            record.range, record.transaction.nonce, record.transaction.txhash);
+                    printResult(record.range, broadcaster.submit(record.transaction, record.range.uuids.size(), record));
+                }
+            } catch (IOException e) {
+                System.out.printf("ERROR: cannot read the signed transactions: %s\n", e.getMessage());
+            } catch (IllegalStateException e) {
+                System.out.printf("ERROR: broadcasting stopped: %s\n",
+                        Objects.toString(e.getCause(), e.getMessage()));
+            } finally {
+                broadcaster.close();
+                CompletableFuture.allOf(printedResults.toArray(new CompletableFuture[0])).join();
+            }
+
+            System.out.printf("Mined so far: %s bulk(s), gas used: %s\n", broadcaster.getMinedCount(), broadcaster.getGasUsed());
+            final Throwable failure = broadcaster.getFailure();
+            if (failure instanceof TransactionRevertedException) {
+                System.out.printf("ERROR: %s\n", failure.getMessage());
+                System.out.printf("The reverted bulk is not retried; check the BulkSender allowance and balance.\n");
+                return;
+            } else if (failure != null) {
+                System.out.printf("ERROR: not all the transactions have been broadcast: %s\n", failure.getMessage());
+                System.out.printf("Relaunch with the same arguments to retry; the transactions mined already are skipped.\n");
+                return;
+            }
+            System.out.println("Done!");
+        } finally {
+            // Closing the connector stops tracking, so no more orders are recorded
+            connector.close();
+            paymentIndex.close();
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Record the orders of the mined transaction to the payment index, if it has succeeded.
+     * Runs in the thread of the confirmation tracker.
+     */
+    private static void recordPaid(@NonNull PaymentIndex paymentIndex, @NonNull Record record, boolean success) {
+        if (!success) {
+            return;
+        }
+        try {
+            paymentIndex.record(record.range.uuids,
+                    BulkTransferEncoder.decode(record.transaction.getCallData(), BulkSenderConnector.UTNP_DECIMALS.intValue()));
+            paymentIndex.sync();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.printf("ERROR: cannot record the paid %s to the payment index: %s\n", record.range, e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(@NonNull Reader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // Read-only; nothing is lost
+        }
+    }
+
+    /**
+     * Process the CLI flags and options.
+     */
+    private void processCLIArguments(@NonNull String[] args) {
+        assert args != null;
+        System.setProperty("log4j2.debug", "1");
+
+        final CommandLineParser parser = new DefaultParser();
+        try {
+            final CommandLine line = parser.parse(options, args);
+
+            if (line.hasOption("help")) {
+                printHelp();
+            } else if (line.hasOption("broadcast")) {
+                processBroadcastArguments(line);
+            } else if (line.hasOption("balances")) {
+                processBalancesArguments(line);
+            } else if (line.hasOption("reconcile")) {
+                processReconcileArguments(line);
+            } else if (line.hasOption("index")) {
+                processIndexArguments(line);
+            } else if (line.hasOption("import")) {
+                processImportArguments(line);
+            } else {
+
+                final String
+                        argInputStr = line.getOptionValue("input"),
+                        argSkipStr = line.getOptionValue("skip"),
+                        argNumberStr = line.getOptionValue("number"),
+                        argRPCStr = line.getOptionValue("rpc"),
+                        argPrivateKeyStr = line.getOptionValue("privatekey"),
+                        argBulkSenderStr = line.getOptionValue("bulksender"),
+                        argErc20Str = line.getOptionValue("erc20"),
+                        argGasPriceStr = line.getOptionValue("gasprice"),
+                        argFeeCapStr = line.getOptionValue("feecap"),
+                        argReplaceDelayStr = line.getOptionValue("replacedelay"),
+                        argMaxGasStr = line.getOptionValue("maxgas"),
+                        argMaxBulkStr = line.getOptionValue("maxbulk"),
+                        argInFlightStr = line.getOptionValue("inflight"),
+                        argRPCBatchStr = line.getOptionValue("rpcbatch"),
+                        argJournalStr = line.getOptionValue("journal"),
+                        argPaymentIndexStr = line.getOptionValue("paymentindex", DEFAULT_PAYMENT_INDEX),
+                        argSignStr = line.getOptionValue("sign"),
+                        argNonceStr = line.getOptionValue("nonce");
+
+                // Validate for errors
+
+                if (argInputStr == null || argPrivateKeyStr == null || argBulkSenderStr == null || argErc20Str == null
+                        || (argRPCStr == null && (argSignStr == null || argNonceStr == null))) {
+                    System.err.printf("\"input\", \"rpc\", \"privatekey\", \"bulksender\" and \"erc20\" are the mandatory options " +
+                            "(\"rpc\" is not needed to \"sign\" with the explicit \"nonce\")!\n");
+                    return;
+                }
+
+                final Path inputPath = Paths.get(argInputStr.replace("~", System.getProperty("user.home")));
+                if (!Files.isReadable(inputPath)) {
+                    System.err.printf("Cannot read orders file %s!\n", argInputStr);
+                    return;
+                }
+
+                // Several shards, if several comma-separated (private key, BulkSender) pairs are given
+                final List<String> privateKeyPaths = Arrays.asList(argPrivateKeyStr.split(","));
+                final List<String> bulkSenderAddresses = Arrays.asList(argBulkSenderStr.split(","));
+                if (privateKeyPaths.size() != bulkSenderAddresses.size()) {
+                    System.err.printf("\"privatekey\" and \"bulksender\" arguments must list the same number of shards!\n");
+                    return;
+                }
+                if (bulkSenderAddresses.size() > 1) {
+                    if (!bulkSenderAddresses.stream().allMatch(EthereumUtils::isHexAddress)) {
+                        System.err.printf("\"bulksender\" argument must contain the valid addresses!\n");
+                        return;
+                    }
+                    if (new HashSet<>(bulkSenderAddresses.stream().map(String::toLowerCase).collect(Collectors.toList())).size()
+                            != bulkSenderAddresses.size()) {
+                        System.err.printf("\"bulksender\" argument must not repeat the addresses; every shard must have its own BulkSender!\n");
+                        return;
+                    }
+                    if (argSignStr != null) {
+                        System.err.printf("\"sign\" needs a single \"privatekey\" and \"bulksender\"!\n");
+                        return;
+                    }
+                }
+
+                final List<byte[]> privateKeys = new ArrayList<>(privateKeyPaths.size());
+                final Set<String> distinctKeys = new HashSet<>();
+                for (final String privateKeyPathStr : privateKeyPaths) {
+                    try {
+                        final Path privateKeyPath = Paths.get(privateKeyPathStr.replace("~", System.getProperty("user.home")));
+                        final String privateKeyFileContents = Files.readAllLines(privateKeyPath)
+                                .stream()
+                                .collect(Collectors.joining()).trim();
+                        privateKeys.add(Hex.decode(privateKeyFileContents));
+                        distinctKeys.add(privateKeyFileContents.toLowerCase());
+                    } catch (Exception e) {
+                        System.err.printf("Failed to read the private key file at %s!\n", privateKeyPathStr);
+                        return;
+                    }
+                }
+                if (distinctKeys.size() != privateKeys.size()) {
+                    System.err.printf("\"privatekey\" argument must not repeat the keys; every shard must have its own operator!\n");
+                    return;
+                }
+                final byte[] privateKey = privateKeys.get(0);
+
+                final Long argSkip = parseNonNegativeLong("skip", argSkipStr, 0);
+                final Long argNumber = parseNonNegativeLong("number", argNumberStr, Long.MAX_VALUE);
+                if (argSkip == null || argNumber == null) {
+                    return;
+                }
+                final BigDecimal gasPrice;
+                if (argGasPriceStr == null) {
+                    gasPrice = null;
+                } else {
+                    try {
+                        gasPrice = new BigDecimal(argGasPriceStr);
+                    } catch (Exception ex) {
+                        System.err.printf("\"gasprice\" argument must contain a valid gas price in Gwei!\n");
+                        return;
+                    }
+                    if (gasPrice.signum() <= 0) {
+                        System.err.printf("\"gasprice\" argument must be positive!\n");
+                        return;
+                    }
+                }
+
+                final BigDecimal feeCap;
+                if (argFeeCapStr == null) {
+                    feeCap = (gasPrice == null) ? DEFAULT_FEE_CAP_GWEI : DEFAULT_FEE_CAP_GWEI.max(gasPrice);
+                } else {
+                    try {
+                        feeCap = new BigDecimal(argFeeCapStr);
+                    } catch (Exception ex) {
+                        System.err.printf("\"feecap\" argument must contain a valid gas price in Gwei!\n");
+                        return;
+                    }
+                    if (feeCap.signum() <= 0 || (gasPrice != null && feeCap.compareTo(gasPrice) < 0)) {
+                        System.err.printf("\"feecap\" argument must be positive, and not below \"gasprice\"!\n");
+                        return;
+                    }
+                }
+
+                final Long argReplaceDelay = parseNonNegativeLong("replacedelay", argReplaceDelayStr,
+                        BulkTransferPipeline.DEFAULT_REPLACEMENT_DEADLINE_MS / 1000);
+                final Long argMaxGas = parseNonNegativeLong("maxgas", argMaxGasStr, BulkTransferPlanner.DEFAULT_MAX_GAS_PER_BULK);
+                if (argReplaceDelay == null || argMaxGas == null) {
+                    return;
+                }
+                if (argReplaceDelay > Long.MAX_VALUE / 1000) {
+                    System.err.printf("\"replacedelay\" argument is too large!\n");
+                    return;
+                }
+                if (argMaxGas < BulkTransferPlanner.MIN_MAX_GAS_PER_BULK) {
+                    System.err.printf("\"maxgas\" argument must be at least %s!\n", BulkTransferPlanner.MIN_MAX_GAS_PER_BULK);
+                    return;
+                }
+
+                final Integer argMaxBulk = parsePositiveInt("maxbulk", argMaxBulkStr, BulkTransferPlanner.DEFAULT_MAX_TRANSFERS_PER_BULK);
+                final Integer argInFlight = parsePositiveInt("inflight", argInFlightStr, BulkTransferPipeline.DEFAULT_MAX_IN_FLIGHT);
+                final Integer argRPCBatch = parsePositiveInt("rpcbatch", argRPCBatchStr, EthereumConnection.DEFAULT_MAX_BATCH_SIZE);
+                if (argMaxBulk == null || argInFlight == null || argRPCBatch == null) {
+                    return;
+                }
+
+                final BigInteger argNonce;
+                if (argNonceStr == null) {
+                    argNonce = null;
+                } else {
+                    try {
+                        argNonce = new BigInteger(argNonceStr);
+                    } catch (NumberFormatException ex) {
+                        System.err.printf("\"nonce\" argument must contain a valid integer number!\n");
+                        return;
+                    }
+                    if (argNonce.signum() < 0) {
+                        System.err.printf("\"nonce\" argument must not be negative!\n");
+                        return;
+                    }
+                }
+
+                final EthereumConnection ethereumConnection = (argRPCStr == null)
+                        ? null
+                        : new EthereumConnection(EthereumConnection.Type.forUrl(argRPCStr), argRPCStr,
+                        argRPCBatch, EthereumConnection.DEFAULT_BATCH_WINDOW_MS);
+
+                final Path journalPath = (argJournalStr == null)
+                        ? Paths.get(inputPath.toString() + ".journal")
+                        : Paths.get(argJournalStr.replace("~", System.getProperty("user.home")));
+                final Path paymentIndexPath = Paths.get(argPaymentIndexStr.replace("~", System.getProperty("user.home")));
+
+                final MetricsExporter metricsExporter = createMetricsExporter(line);
+                if (metricsExporter == null) {
+                    return;
+                }
+
+                // Ready
+
+                try {
+                    if (argSignStr != null) {
+                        executeSign(
+                                ethereumConnection, argBulkSenderStr,
+                                argErc20Str, privateKey, inputPath,
+                                argSkip, argNumber, gasPrice, argMaxGas, argMaxBulk, argNonce,
+                                Paths.get(argSignStr.replace("~", System.getProperty("user.home"))), paymentIndexPath);
+                    } else if (privateKeys.size() > 1) {
+                        assert ethereumConnection != null;
+                        executeShardedSend(
+                                ethereumConnection, bulkSenderAddresses,
+                                argErc20Str, privateKeys, inputPath,
+                                argSkip, argNumber, gasPrice, feeCap, argReplaceDelay,
+                                argMaxGas, argMaxBulk, argInFlight, journalPath, paymentIndexPath);
+                    } else {
+                        assert ethereumConnection != null;
+                        executeTotalSend(
+                                ethereumConnection, argBulkSenderStr,
+                                argErc20Str, privateKey, inputPath,
+                                argSkip, argNumber, gasPrice, feeCap, argReplaceDelay,
+                                argMaxGas, argMaxBulk, argInFlight, journalPath, paymentIndexPath);
+                    }
+                } catch (IOException e) {
+                    System.err.printf("Cannot read orders file %s: %s\n", argInputStr, e.getMessage());
+                } catch (InterruptedException e) {
+                    System.err.printf("Interrupted!\n");
+                } finally {
+                    metricsExporter.close();
+                }
+            }
+        } catch (ParseException exp) {
+            System.err.printf("Parsing failed. Reason: %s\n", exp.getMessage());
+            printHelp();
+        }
+    }
+
+    /**
+     * Process the options of the "broadcast" mode.
+     */
+    private void processBroadcastArguments(@NonNull CommandLine line) {
+        final String
+                argBroadcastStr = line.getOptionValue("broadcast"),
+                argRPCStr = line.getOptionValue("rpc"),
+                argRateStr = line.getOptionValue("rate"),
+                argInFlightStr = line.getOptionValue("inflight"),
+                argRPCBatchStr = line.getOptionValue("rpcbatch"),
+                argPaymentIndexStr = line.getOptionValue("paymentindex", DEFAULT_PAYMENT_INDEX);
+
+        if (argRPCStr == null) {
+            System.err.printf("\"rpc\" is the mandatory option to \"broadcast\"!\n");
+            return;
+        }
+
+        final Path signedPath = Paths.get(argBroadcastStr.replace("~", System.getProperty("user.home")));
+        if (!Files.isReadable(signedPath)) {
+            System.err.printf("Cannot read the signed transactions file %s!\n", argBroadcastStr);
+            return;
+        }
+
+        final double argRate;
+        if (argRateStr == null) {
+            argRate = 0;
+        } else {
+            try {
+                argRate = Double.parseDouble(argRateStr);
+            } catch (NumberFormatException ex) {
+                System.err.printf("\"rate\" argument must contain a valid number!\n");
+                return;
+            }
+            if (!(argRate > 0) || Double.isInfinite(argRate)) {
+                System.err.printf("\"rate\" argument must be positive!\n");
+                return;
+            }
+        }
+
+        final Integer argInFlight = parsePositiveInt("inflight", argInFlightStr, BulkTransferPipeline.DEFAULT_MAX_IN_FLIGHT);
+        final Integer argRPCBatch = parsePositiveInt("rpcbatch", argRPCBatchStr, EthereumConnection.DEFAULT_MAX_BATCH_SIZE);
+        if (argInFlight == null || argRPCBatch == null) {
+            return;
+        }
+
+        final MetricsExporter metricsExporter = createMetricsExporter(line);
+        if (metricsExporter == null) {
+            return;
+        }
+
+        try {
+            executeBroadcast(
+                    new EthereumConnection(EthereumConnection.Type.forUrl(argRPCStr), argRPCStr,
+                            argRPCBatch, EthereumConnection.DEFAULT_BATCH_WINDOW_MS),
+                    signedPath, argRate, argInFlight,
+                    Paths.get(argPaymentIndexStr.replace("~", System.getProperty("user.home"))));
+        } catch (InterruptedException e) {
+            System.err.printf("Interrupted!\n");
+        } finally {
+            metricsExporter.close();
+        }
+    }
+
+    /**
+     * Process the options of the "balances" mode.
+     */
+    private void processBalancesArguments(@NonNull CommandLine line) {
+        final String
+                argBalancesStr = line.getOptionValue("balances"),
+                argInputStr = line.getOptionValue("input"),
+                argRPCStr = line.getOptionValue("rpc"),
+                argErc20Str = line.getOptionValue("erc20"),
+                argBalanceReaderStr = line.getOptionValue("balancereader"),
+                argRPCBatchStr = line.getOptionValue("rpcbatch");
+
+        if (argInputStr == null || argRPCStr == null || argErc20Str == null) {
+            System.err.printf("\"input\", \"rpc\" and \"erc20\" are the mandatory options to read the \"balances\"!\n");
+            return;
+        }
+
+        final Path inputPath = Paths.get(argInputStr.replace("~", System.getProperty("user.home")));
+        if (!Files.isReadable(inputPath)) {
+            System.err.printf("Cannot read orders file %s!\n", argInputStr);
+            return;
+        }
+        if (!EthereumUtils.isHexAddress(argErc20Str)) {
+            System.err.printf("\"erc20\" argument must be a valid address!\n");
+            return;
+        }
+        if (argBalanceReaderStr != null && !EthereumUtils.isHexAddress(argBalanceReaderStr)) {
+            System.err.printf("\"balancereader\" argument must be a valid address!\n");
+            return;
+        }
+        final Integer argRPCBatch = parsePositiveInt("rpcbatch", argRPCBatchStr, EthereumConnection.DEFAULT_MAX_BATCH_SIZE);
+        if (argRPCBatch == null) {
+            return;
+        }
+
+        try {
+            executeReadBalances(
+                    new EthereumConnection(EthereumConnection.Type.forUrl(argRPCStr), argRPCStr,
+                            argRPCBatch, EthereumConnection.DEFAULT_BATCH_WINDOW_MS),
+                    inputPath, argErc20Str, argBalanceReaderStr,
+                    Paths.get(argBalancesStr.replace("~", System.getProperty("user.home"))));
+        } catch (InterruptedException e) {
+            System.err.printf("Interrupted!\n");
+        }
+    }
+
+    /**
+     * Read the token balances of all the (distinct) recipients of the orders, into the CSV file
+     * of <code>address,balance</code> lines, in the order of the first appearance of each address.
+     */
+    private void executeReadBalances(@NonNull final EthereumConnection ethereumConnection,
+                                     @NonNull final Path inputPath,
+                                     @NonNull final String erc20Address,
+                                     @Nullable final String balanceReaderAddress,
+                                     @NonNull final Path outputPath) throws InterruptedException {
+        assert ethereumConnection != null;
+        assert inputPath != null;
+        assert erc20Address != null;
+        assert outputPath != null;
+
+        final List<String> holders = new ArrayList<>();
+        long invalid = 0;
+        try (final OrderReader reader = OrderReader.open(inputPath)) {
+            final LongHashSet seen = new LongHashSet();
+            Order order;
+            while ((order = reader.readNext()) != null) {
+                if (!EthereumUtils.isHexAddress(order.address)) {
+                    invalid++;
+                } else if (seen.add(EthereumUtils.addressFingerprint(order.address))) {
+                    holders.add(order.address);
+                }
+            }
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot read the orders: %s\n", e.getMessage());
+            return;
+        }
+        if (invalid > 0) {
+            System.out.printf("WARNING: %s order(s) with invalid addresses are skipped\n", invalid);
+        }
+        System.out.printf("Reading the balances of %s address(es) of %s %s\n", holders.size(), erc20Address,
+                (balanceReaderAddress == null) ? "one by one" : "via BalanceReader " + balanceReaderAddress);
+
+        final long startedAt = System.nanoTime();
+        try (final RawTransactionConnector connector = new RawTransactionConnector(ethereumConnection);
+             final BufferedWriter writer = Files.newBufferedWriter(outputPath, StandardCharsets.UTF_8)) {
+            final BulkBalanceReader balanceReader = new BulkBalanceReader(connector, balanceReaderAddress, erc20Address,
+                    BulkBalanceReader.DEFAULT_HOLDERS_PER_CALL, BulkBalanceReader.DEFAULT_MAX_CONCURRENT_CALLS);
+            final long[] read = {0};
+            writer.write("address,balance\n");
+            balanceReader.readAll(holders.iterator(), (holder, balance) -> {
+                writer.write(holder);
+                writer.write(',');
+                writer.write(EthereumUtils.valueWithDecimal(balance, BulkSenderConnector.UTNP_DECIMALS).toPlainString());
+                writer.write('\n');
+                if (++read[0] % BALANCES_PROGRESS_EVERY == 0) {
+                    System.out.printf("Read %s of %s balances\n", read[0], holders.size());
+                }
+            });
+        } catch (IOException e) {
+            System.out.printf("ERROR: reading the balances failed: %s\n", e.getMessage());
+            return;
+        }
+        System.out.printf("Read %s balances into %s in %.1f s\n",
+                holders.size(), outputPath, (System.nanoTime() - startedAt) / 1e9);
+    }
+
+    /**
+     * Process the options of the "import" mode.
+     */
+    private void processImportArguments(@NonNull CommandLine line) {
+        final String
+                argImportStr = line.getOptionValue("import"),
+                argInputStr = line.getOptionValue("input");
+
+        if (argInputStr == null) {
+            System.err.printf("\"input\" is the mandatory option to \"import\"!\n");
+            return;
+        }
+
+        final Path inputPath = Paths.get(argInputStr.replace("~", System.getProperty("user.home")));
+        if (!Files.isReadable(inputPath)) {
+            System.err.printf("Cannot read orders file %s!\n", argInputStr);
+            return;
+        }
+        final Path outputPath = Paths.get(argImportStr.replace("~", System.getProperty("user.home")));
+        if (Files.exists(outputPath)) {
+            System.err.printf("\"import\" argument must be a new file; %s already exists!\n", argImportStr);
+            return;
+        }
+
+        executeImport(inputPath, outputPath);
+    }
+
+    /**
+     * Validate the orders and convert them into the binary orders file (see {@link BinaryOrderFile});
+     * nothing is written if any order is invalid.
+     */
+    private void executeImport(@NonNull final Path inputPath, @NonNull final Path outputPath) {
+        assert inputPath != null;
+        assert outputPath != null;
+
+        final long startedAt = System.nanoTime();
+        final int decimals = BulkSenderConnector.UTNP_DECIMALS.intValue();
+        final OrderValidator.Report report;
+        try (final OrderReader reader = OrderReader.open(inputPath)) {
+            report = new OrderValidator(decimals).validate(reader, Long.MAX_VALUE);
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot read the orders: %s\n", e.getMessage());
+            return;
+        }
+        for (final OrderValidator.Problem warning : report.warnings) {
+            System.out.printf("WARNING: suspicious %s\n", warning);
+        }
+        for (final OrderValidator.Problem error : report.errors) {
+            System.out.printf("ERROR: %s\n", error);
+        }
+        if (!report.isValid()) {
+            System.out.printf("\nERROR: %s invalid order(s) of %s; nothing is imported.\n", report.errors.size(), report.count);
+            return;
+        }
+        if (report.maxUuidLength > BinaryOrderFile.MAX_UUID_WIDTH) {
+            System.out.printf("ERROR: the uuids must not be longer than %s bytes; nothing is imported.\n",
+                    BinaryOrderFile.MAX_UUID_WIDTH);
+            return;
+        }
+
+        // Written aside and moved at once, so the incomplete file is never taken for the orders
+        final Path tempPath = outputPath.resolveSibling(outputPath.getFileName() + ".tmp");
+        try {
+            Files.deleteIfExists(tempPath);
+            try (final OrderReader reader = OrderReader.open(inputPath);
+                 final BinaryOrderFile.Writer writer =
+                         new BinaryOrderFile.Writer(tempPath, Math.max(1, report.maxUuidLength), decimals)) {
+                Order order;
+                while ((order = reader.readNext()) != null) {
+                    writer.write(order);
+                }
+            }
+            Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.printf("ERROR: import failed: %s\n", e.getMessage());
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException ex) {
+                // Nothing else to do
+            }
+            return;
+        }
+        System.out.printf("Imported %s orders into %s in %.1f s\n", report.count, outputPath, (System.nanoTime() - startedAt) / 1e9);
+        System.out.printf("Total amount: %s\n", report.total);
+    }
+
+    /**
+     * Process the options of the "reconcile" mode.
+     */
+    private void processReconcileArguments(@NonNull CommandLine line) {
+        final String
+                argReconcileStr = line.getOptionValue("reconcile"),
+                argInputStr = line.getOptionValue("input"),
+                argSkipStr = line.getOptionValue("skip"),
+                argNumberStr = line.getOptionValue("number"),
+                argJournalStr = line.getOptionValue("journal"),
+                argRPCStr = line.getOptionValue("rpc"),
+                argBulkSenderStr = line.getOptionValue("bulksender"),
+                argErc20Str = line.getOptionValue("erc20"),
+                argFromBlockStr = line.getOptionValue("fromblock"),
+                argToBlockStr = line.getOptionValue("toblock"),
+                argRPCBatchStr = line.getOptionValue("rpcbatch");
+
+        if (argInputStr == null || argRPCStr == null || argBulkSenderStr == null || argErc20Str == null
+                || argFromBlockStr == null) {
+            System.err.printf("\"input\", \"rpc\", \"bulksender\", \"erc20\" and \"fromblock\" are the mandatory options " +
+                    "to \"reconcile\"!\n");
+            return;
+        }
+
+        final Path inputPath = Paths.get(argInputStr.replace("~", System.getProperty("user.home")));
+        if (!Files.isReadable(inputPath)) {
+            System.err.printf("Cannot read orders file %s!\n", argInputStr);
+            return;
+        }
+        final List<String> bulkSenderAddresses = Arrays.asList(argBulkSenderStr.split(","));
+        if (!bulkSenderAddresses.stream().allMatch(EthereumUtils::isHexAddress) || !EthereumUtils.isHexAddress(argErc20Str)) {
+            System.err.printf("\"bulksender\" and \"erc20\" arguments must be valid addresses!\n");
+            return;
+        }
+        final Long argSkip = parseNonNegativeLong("skip", argSkipStr, 0);
+        final Long argNumber = parseNonNegativeLong("number", argNumberStr, Long.MAX_VALUE);
+        final Long argFromBlock = parseNonNegativeLong("fromblock", argFromBlockStr, 0);
+        final Long argToBlock = parseNonNegativeLong("toblock", argToBlockStr, -1);
+        final Integer argRPCBatch = parsePositiveInt("rpcbatch", argRPCBatchStr, EthereumConnection.DEFAULT_MAX_BATCH_SIZE);
+        if (argSkip == null || argNumber == null || argFromBlock == null || argToBlock == null || argRPCBatch == null) {
+            return;
+        }
+        final Path journalPath = (argJournalStr == null)
+                ? Paths.get(inputPath.toString() + ".journal")
+                : Paths.get(argJournalStr.replace("~", System.getProperty("user.home")));
+        // The journals of all the shards, if sent through several ones
+        final List<Path> journalPaths = new ArrayList<>();
+        if (bulkSenderAddresses.size() == 1) {
+            journalPaths.add(journalPath);
+        } else {
+            for (int i = 1; i <= bulkSenderAddresses.size(); i++) {
+                journalPaths.add(getShardJournalPath(journalPath, i));
+            }
+        }
+        journalPaths.removeIf(path -> !Files.exists(path));
+
+        try {
+            executeReconcile(
+                    new EthereumConnection(EthereumConnection.Type.forUrl(argRPCStr), argRPCStr,
+                            argRPCBatch, EthereumConnection.DEFAULT_BATCH_WINDOW_MS),
+                    bulkSenderAddresses, argErc20Str, inputPath, argSkip, argNumber,
+                    journalPaths, argFromBlock, argToBlock,
+                    Paths.get(argReconcileStr.replace("~", System.getProperty("user.home"))));
+        } catch (InterruptedException e) {
+            System.err.printf("Interrupted!\n");
+        }
+    }
+
+    /**
+     * Match the orders to the transfers from BulkSender found on the chain, and write the orders
+     * which are not paid exactly once into the CSV file of
+     * <code>status,index,uuid,address,amount,paid,txhashes,planned</code> lines
+     * (<code>planned</code> are the journaled transactions of the order), followed by the unexpected transfers.
+     *
+     * @param bulkSenderAddresses the BulkSender contracts the orders have been sent from (one per shard).
+     * @param journalPaths        the journals of the run (one per shard); empty if there are none.
+     * @param toBlock             the last block to scan; -1 for the latest one.
+     */
+    private void executeReconcile(@NonNull final EthereumConnection ethereumConnection,
+                                  @NonNull final List<String> bulkSenderAddresses,
+                                  @NonNull final String erc20Address,
+                                  @NonNull final Path inputPath,
+                                  long skipOrders,
+                                  long maxOrders,
+                                  @NonNull final List<Path> journalPaths,
+                                  long fromBlock,
+                                  long toBlock,
+                                  @NonNull final Path outputPath) throws InterruptedException {
+        assert ethereumConnection != null;
+        assert inputPath != null;
+        assert outputPath != null;
+
+        final int decimals = BulkSenderConnector.UTNP_DECIMALS.intValue();
+        final PaymentReconciler reconciler = new PaymentReconciler(decimals);
+        try {
+            if (!journalPaths.isEmpty()) {
+                final Map<String, BulkRange> planned = new LinkedHashMap<>();
+                for (final Path journalPath : journalPaths) {
+                    planned.putAll(SendJournal.readPlanned(journalPath));
+                    System.out.printf("Journal: %s\n", journalPath);
+                }
+                reconciler.setPlanned(planned);
+            }
+            try (final OrderReader reader = OrderReader.open(inputPath)) {
+                reader.skip(skipOrders);
+                Order order;
+                for (long i = 0; i < maxOrders && (order = reader.readNext()) != null; i++) {
+                    reconciler.addOrder(order);
+                }
+            }
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot read the orders: %s\n", e.getMessage());
+            return;
+        }
+
+        final long startedAt = System.nanoTime();
+        final PaymentReconciler.Report report;
+        try (final RawTransactionConnector connector = new RawTransactionConnector(ethereumConnection)) {
+            final long lastBlock;
+            if (toBlock >= 0) {
+                lastBlock = toBlock;
+            } else {
+                try {
+                    lastBlock = connector.getBlockNumber();
+                } catch (IOException e) {
+                    System.out.printf("ERROR: cannot get the latest block: %s\n", e.getMessage());
+                    return;
+                }
+            }
+            System.out.printf("Scanning the transfers of %s from %s in blocks %s-%s\n",
+                    erc20Address, String.join(", ", bulkSenderAddresses), fromBlock, lastBlock);
+            final TransferLogScanner scanner = new TransferLogScanner(connector, erc20Address, bulkSenderAddresses,
+                    TransferLogScanner.DEFAULT_BLOCKS_PER_QUERY, TransferLogScanner.DEFAULT_MAX_CONCURRENT_QUERIES);
+            try {
+                scanner.scan(fromBlock, lastBlock, reconciler::addTransfer);
+            } catch (IOException e) {
+                System.out.printf("ERROR: scanning the transfers failed: %s\n", e.getMessage());
+                return;
+            }
+            System.out.printf("Found %s transfers in %.1f s (%s queries, %s bisected)\n", reconciler.getTransferCount(),
+                    (System.nanoTime() - startedAt) / 1e9, scanner.getQueryCount(), scanner.getBisectionCount());
+            report = reconciler.reconcile();
+        }
+
+        final BigInteger decimalsBig = BigInteger.valueOf(decimals);
+        try (final BufferedWriter writer = Files.newBufferedWriter(outputPath, StandardCharsets.UTF_8)) {
+            writer.write("status,index,uuid,address,amount,paid,txhashes,planned\n");
+            for (final PaymentReconciler.Payment payment : report.problems) {
+                writer.write(String.format("%s,%s,%s,%s,%s,%s,%s,%s\n",
+                        payment.getStatus().title, payment.index, payment.uuid, payment.address,
+                        EthereumUtils.valueWithDecimal(payment.amount, decimalsBig).toPlainString(),
+                        EthereumUtils.valueWithDecimal(payment.getPaid(), decimalsBig).toPlainString(),
+                        payment.transfers.stream().map(transfer -> transfer.txhash).collect(Collectors.joining(" ")),
+                        String.join(" ", reconciler.getPlannedTxhashes(payment.index))));
+            }
+            for (final TransferLogScanner.Transfer transfer : report.unexpected) {
+                writer.write(String.format("unexpected,,,%s,,%s,%s,\n", transfer.to,
+                        EthereumUtils.valueWithDecimal(transfer.amount, decimalsBig).toPlainString(), transfer.txhash));
+            }
+        } catch (IOException e) {
+            System.out.printf("ERROR: cannot write the report: %s\n", e.getMessage());
+            return;
+        }
+
+        System.out.printf("Orders paid exactly once: %s; unpaid: %s; underpaid: %s; paid twice: %s; unexpected transfers: %s\n",
+                report.getCount(PaymentReconciler.Status.PAID), report.getCount(PaymentReconciler.Status.UNPAID),
+                report.getCount(PaymentReconciler.Status.UNDERPAID), report.getCount(PaymentReconciler.Status.PAID_TWICE),
+                report.unexpected.size());
+        if (!report.problems.isEmpty() || !report.unexpected.isEmpty()) {
+            System.out.printf("See %s for details.\n", outputPath);
+        }
+    }
+
+    /**
+     * Process the options of the "index" mode: either update the index, or query it.
+     */
+    private void processIndexArguments(@NonNull CommandLine line) {
+        final String
+                argIndexStr = line.getOptionValue("index"),
+                argRPCStr = line.getOptionValue("rpc"),
+                argErc20Str = line.getOptionValue("erc20"),
+                argFromBlockStr = line.getOptionValue("fromblock"),
+                argToBlockStr = line.getOptionValue("toblock"),
+                argGenesisHoldersStr = line.getOptionValue("genesisholders"),
+                argSnapshotIntervalStr = line.getOptionValue("snapshotinterval"),
+                argRPCBatchStr = line.getOptionValue("rpcbatch"),
+                argAtBlockStr = line.getOptionValue("atblock"),
+                argQueryBalanceStr = line.getOptionValue("querybalance"),
+                argQueryHoldersStr = line.getOptionValue("queryholders"),
+                argQueryHistoryStr = line.getOptionValue("queryhistory");
+        final boolean argQueryBurned = line.hasOption("queryburned");
+
+        final Path indexPath = Paths.get(argIndexStr.replace("~", System.getProperty("user.home")));
+
+        if (argQueryBalanceStr != null || argQueryHoldersStr != null || argQueryHistoryStr != null || argQueryBurned) {
+            if ((argQueryBalanceStr != null && !EthereumUtils.isHexAddress(argQueryBalanceStr))
+                    || (argQueryHistoryStr != null && !EthereumUtils.isHexAddress(argQueryHistoryStr))) {
+                System.err.printf("\"querybalance\" and \"queryhistory\" arguments must be valid addresses!\n");
+                return;
+            }
+            final Long argAtBlock = parseNonNegativeLong("atblock", argAtBlockStr, -1);
+            if (argAtBlock == null) {
+                return;
+            }
+            executeIndexQuery(indexPath, argAtBlock, argQueryBalanceStr,
+                    (argQueryHoldersStr == null) ? null : Paths.get(argQueryHoldersStr.replace("~", System.getProperty("user.home"))),
+                    argQueryHistoryStr, argQueryBurned);
+            return;
+        }
+
+        if (argRPCStr == null || argErc20Str == null) {
+            System.err.printf("\"rpc\" and \"erc20\" are the mandatory options to update the \"index\"!\n");
+            return;
+        }
+        if (!EthereumUtils.isHexAddress(argErc20Str)) {
+            System.err.printf("\"erc20\" argument must be a valid address!\n");
+            return;
+        }
+        final List<String> genesisHolders = (argGenesisHoldersStr == null)
+                ? new ArrayList<>()
+                : Arrays.asList(argGenesisHoldersStr.split(","));
+        for (final String holder : genesisHolders) {
+            if (!EthereumUtils.isHexAddress(holder)) {
+                System.err.printf("\"genesisholders\" argument must contain the valid addresses!\n");
+                return;
+            }
+        }
+        final Long argFromBlock = parseNonNegativeLong("fromblock", argFromBlockStr, -1);
+        final Long argToBlock = parseNonNegativeLong("toblock", argToBlockStr, -1);
+        final Integer argSnapshotInterval = parsePositiveInt("snapshotinterval", argSnapshotIntervalStr,
+                (int) EventStore.DEFAULT_SNAPSHOT_INTERVAL);
+        final Integer argRPCBatch = parsePositiveInt("rpcbatch", argRPCBatchStr, EthereumConnection.DEFAULT_MAX_BATCH_SIZE);
+        if (argFromBlock == null || argToBlock == null || argSnapshotInterval == null || argRPCBatch == null) {
+            return;
+        }
+        if (!genesisHolders.isEmpty() && argFromBlock == 0) {
+            System.err.printf("\"fromblock\" argument must be positive to have the \"genesisholders\"!\n");
+            return;
+        }
+
+        try {
+            executeIndexUpdate(
+                    new EthereumConnection(EthereumConnection.Type.forUrl(argRPCStr), argRPCStr,
+                            argRPCBatch, EthereumConnection.DEFAULT_BATCH_WINDOW_MS),
+                    indexPath, argErc20Str, argFromBlock, argToBlock, genesisHolders, argSnapshotInterval);
+        } catch (InterruptedException e) {
+            System.err.printf("Interrupted!\n");
+        }
+    }
+
+    /**
+     * Create the index of the token events (if needed), and catch it up with the chain.
+     *
+     * @param fromBlock the first block to index, to create the index; -1 if it must exist already.
+     * @param toBlock   the last block to index; -1 for the latest one.
+     */
+    private void executeIndexUpdate(@NonNull final EthereumConnection ethereumConnection,
+                                    @NonNull final Path indexPath,
+                                    @NonNull final String erc20Address,
+                                    long fromBlock,
+                                    long toBlock,
+                                    @NonNull final List<String> genesisHolders,
+                                    long snapshotInterval) throws InterruptedException {
+        assert ethereumConnection != null;
+        assert indexPath != null;
+        assert erc20Address != null;
+        assert genesisHolders != null;
+
+        final boolean exists = EventStore.exists(indexPath);
+        if (!exists && fromBlock < 0) {
+            System.err.printf("\"fromblock\" is the mandatory option to create the \"index\"!\n");
+            return;
+        }
+        final long startedAt = System.nanoTime();
+        try (final RawTransactionConnector connector = new RawTransactionConnector(ethereumConnection);
+             final EventStore store = exists
+                     ? EventStore.open(indexPath, true)
+                     : EventStore.create(indexPath, erc20Address, fromBlock, snapshotInterval)) {
+            if (!store.getContractAddress().equalsIgnoreCase(erc20Address)) {
+                System.out.printf("ERROR: the index %s is of the token %s, not %s\n", indexPath, store.getContractAddress(), erc20Address);
+                return;
+            }
+            final EventIndexer indexer = new EventIndexer(connector, store, EventIndexer.DEFAULT_BLOCKS_PER_COMMIT);
+            if (!exists) {
+                System.out.printf("Created the index %s of %s from block %s\n", indexPath, erc20Address, fromBlock);
+                if (!genesisHolders.isEmpty()) {
+                    indexer.addGenesisHolders(genesisHolders);
+                    System.out.printf("Genesis balances at block %s: %s holder(s)\n", fromBlock - 1, store.getEventCount());
+                }
+            } else if (fromBlock >= 0 || !genesisHolders.isEmpty()) {
+                System.out.printf("WARNING: the index %s exists already; \"fromblock\" and \"genesisholders\" are ignored\n", indexPath);
+            }
+            System.out.printf("Indexing the events of %s after block %s\n", erc20Address, store.getLastBlock());
+            final long indexed = indexer.update(toBlock, (lastBlock, targetBlock, eventCount) ->
+                    System.out.printf("Indexed up to block %s of %s: %s events\n", lastBlock, targetBlock, eventCount));
+            System.out.printf("Indexed %s new events in %.1f s (%s queries, %s bisected); up to block %s: " +
+                            "%s events, %s addresses, %s snapshots\n",
+                    indexed, (System.nanoTime() - startedAt) / 1e9,
+                    indexer.getScanner().getQueryCount(), indexer.getScanner().getBisectionCount(),
+                    store.getLastBlock(), store.getEventCount(), store.getAddressCount(), store.getSnapshotCount());
+        } catch (IOException e) {
+            System.out.printf("ERROR: updating the index failed: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Answer the queries from the index alone, without the node.
+     *
+     * @param atBlock the block to query at; -1 for the last indexed one.
+     */
+    private void executeIndexQuery(@NonNull final Path indexPath,
+                                   long atBlock,
+                                   @Nullable final String balanceAddress,
+                                   @Nullable final Path holdersPath,
+                                   @Nullable final String historyAddress,
+                                   boolean burned) {
+        assert indexPath != null;
+
+        final BigInteger decimals = BulkSenderConnector.UTNP_DECIMALS;
+        try (final EventStore store = EventStore.open(indexPath, false)) {
+            final long block = (atBlock < 0) ? store.getLastBlock() : atBlock;
+            if (block < store.getFirstBlock() - 1 || block > store.getLastBlock()) {
+                System.err.printf("\"atblock\" argument must be between %s and %s!\n", store.getFirstBlock() - 1, store.getLastBlock());
+                return;
+            }
+            System.out.printf("Index of %s: blocks %s-%s, %s events, %s addresses\n", store.getContractAddress(),
+                    store.getFirstBlock(), store.getLastBlock(), store.getEventCount(), store.getAddressCount());
+
+            if (balanceAddress != null) {
+                final long startedAt = System.nanoTime();
+                final BigInteger balance = store.getBalance(balanceAddress, block);
+                System.out.printf("Balance of %s at block %s: %s (%.1f ms)\n", balanceAddress.toLowerCase(), block,
+                        EthereumUtils.valueWithDecimal(balance, decimals).toPlainString(), (System.nanoTime() - startedAt) / 1e6);
+            }
+            if (historyAddress != null) {
+                for (final TokenEvent event : store.getHistory(historyAddress)) {
+                    System.out.printf("%s block %s %s: %s -> %s %s\n", event.kind, event.blockNumber, event.txhash,
+                            event.from, (event.to == null) ? "(burned)" : event.to,
+                            EthereumUtils.valueWithDecimal(event.amount, decimals).toPlainString());
+                }
+            }
+            if (burned) {
+                for (final Map.Entry<String, BigInteger> entry : store.getBurned(block).entrySet()) {
+                    System.out.printf("Burned by %s up to block %s: %s\n", entry.getKey(), block,
+                            EthereumUtils.valueWithDecimal(entry.getValue(), decimals).toPlainString());
+                }
+            }
+            if (holdersPath != null) {
+                final long startedAt = System.nanoTime();
+                final Map<String, BigInteger> balances = store.getBalances(block);
+                try (final BufferedWriter writer = Files.newBufferedWriter(holdersPath, StandardCharsets.UTF_8)) {
+                    writer.write("address,balance\n");
+                    for (final Map.Entry<String, BigInteger> entry : balances.entrySet()) {
+                        writer.write(entry.getKey());
+                        writer.write(',');
+                        writer.write(EthereumUtils.valueWithDecimal(entry.getValue(), decimals).toPlainString());
+                        writer.write('\n');
+                    }
+                }
+                System.out.printf("Written %s holders at block %s into %s in %.1f ms\n",
+                        balances.size(), block, holdersPath, (System.nanoTime() - startedAt) / 1e6);
+            }
+        } catch (IOException e) {
+            System.out.printf("ERROR: querying the index failed: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Start exporting the metrics, as requested by the "metricsport" and "metricsfile" options
+     * (the exporter does nothing if neither is given).
+     *
+     * @return <code>null</code> if the options are invalid or the port cannot be listened on
+     * (the error is already printed).
+     */
+    @Nullable
+    private static MetricsExporter createMetricsExporter(@NonNull CommandLine line) {
+        final String
+                argMetricsPortStr = line.getOptionValue("metricsport"),
+                argMetricsFileStr = line.getOptionValue("metricsfile");
+
+        final int port;
+        if (argMetricsPortStr == null) {
+            port = 0;
+        } else {
+            final Integer parsed = parsePositiveInt("metricsport", argMetricsPortStr, 0);
+            if (parsed == null) {
+                return null;
+            }
+            if (parsed > 65535) {
+                System.err.printf("\"metricsport\" argument must be a valid TCP port!\n");
+                return null;
+            }
+            port = parsed;
+        }
+        final Path dumpPath = (argMetricsFileStr == null)
+                ? null
+                : Paths.get(argMetricsFileStr.replace("~", System.getProperty("user.home")));
+
+        try {
+            return new MetricsExporter(MetricsRegistry.getDefault(), port, dumpPath, MetricsExporter.DEFAULT_DUMP_INTERVAL_MS);
+        } catch (IOException e) {
+            System.err.printf("Cannot serve the metrics on port %s: %s\n", port, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parse the positive integer argument.
+     *
+     * @return <code>null</code> if the argument is invalid (the error is already printed).
+     */
+    @Nullable
+    private static Integer parsePositiveInt(@NonNull String name, @Nullable String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        final int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            System.err.printf("\"%s\" argument must contain a valid integer number!\n", name);
+            return null;
+        }
+        if (result <= 0) {
+            System.err.printf("\"%s\" argument must be positive!\n", name);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Parse the non-negative long argument.
+     *
+     * @return <code>null</code> if the argument is invalid (the error is already printed).
+     */
+    @Nullable
+    private static Long parseNonNegativeLong(@NonNull String name, @Nullable String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        final long result;
+        try {
+            result = Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            System.err.printf("\"%s\" argument must contain a valid integer number!\n", name);
+            return null;
+        }
+        if (result < 0) {
+            System.err.printf("\"%s\" argument must not be negative!\n", name);
+            return null;
         }
+        return result;
     }
 
     public static void main(String[] args) {
@@ -1,49 +1,177 @@
 package com.icodici.universa.utnp.connectors;
 
+import com.icodici.universa.utnp.ethereum.CallCache;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
 import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.GasPriceOracle;
+import com.icodici.universa.utnp.ethereum.NonceAllocator;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.transport.BatchingHttpService;
+import com.icodici.universa.utnp.transport.InstrumentedWeb3jService;
+import com.icodici.universa.utnp.transport.PooledWeb3jService;
+import com.icodici.universa.utnp.transport.VirtualThreadWeb3jService;
+import com.icodici.universa.utnp.transport.WebSocketService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.FunctionReturnDecoder;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.abi.datatypes.generated.Uint8;
 import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.RemoteCall;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.protocol.core.methods.response.EthSendTransaction;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
 import org.web3j.protocol.http.HttpService;
 import org.web3j.protocol.ipc.UnixIpcService;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Any remote-control-class to some Ethereum smart contract.
+ * <p>
+ * The <code>…Async</code> methods never block the caller: the node is either requested asynchronously,
+ * or (where web3j can only block) on a virtual thread of {@link EthereumUtils#BLOCKING_IO_EXECUTOR}.
+ * Their futures are completed exceptionally with the typed cause of the failure:
+ * {@link TransactionRejectedException}, {@link TransactionRevertedException} or {@link IOException}.
  */
-public abstract class AbstractConnector {
+public abstract class AbstractConnector implements Closeable {
     public static final String UTNP_MAINNET_CONTRACT_ADDRESS = "0x9e3319636e2126e3c0bc9e3134AEC5e1508A46c7";
     public static final BigInteger UTNP_DECIMALS = BigInteger.valueOf(18);
 
+    private static final Logger logger = LogManager.getLogger(AbstractConnector.class);
+
+    /**
+     * The prefix of the message web3j throws with, if the node refuses the transaction sent by the contract wrapper.
+     */
+    private static final String WEB3J_REJECTION_PREFIX = "Error processing transaction request: ";
+
     protected final Web3j web3j;
+    /**
+     * The service behind {@link #web3j}, for the requests web3j doesn’t support.
+     */
+    protected final Web3jService service;
+    /**
+     * The connection receiving the notifications pushed by the node; <code>null</code> unless it is WebSocket.
+     */
+    @Nullable
+    private final WebSocketService pushService;
+    /**
+     * The reads of the contracts, cached within the block.
+     */
+    @NonNull
+    protected final CallCache callCache;
+
+    /**
+     * Shared by all the transactions sent via this connector; created on demand.
+     */
+    @Nullable
+    private ConfirmationTracker confirmationTracker = null;
 
     /**
      * Accessory class used to describe the connection to the Ethereum node (geth).
      */
     public static class EthereumConnection {
+        public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+        public static final long DEFAULT_BATCH_WINDOW_MS = 5;
+
         @NonNull
         public final Type type;
+        /**
+         * URL of geth node (<code>ws://</code> or <code>wss://</code> one for WS);
+         * for HTTP, may contain several comma-separated URLs, to use a pool of nodes.
+         */
         @NonNull
         public final String address;
+        /**
+         * The maximum number of the concurrent JSON-RPC requests combined into a single batch (HTTP only);
+         * 1 to disable batching.
+         */
+        public final int maxBatchSize;
+        /**
+         * How long the first request of a batch may wait for the others to join it, in milliseconds.
+         */
+        public final long batchWindowMs;
 
         /**
          * @param type    HTTP or IPC that is used to connect to geth node
-         * @param address URL of geth node
+         * @param address URL of geth node (or several comma-separated URLs, for HTTP)
          */
         public EthereumConnection(@NonNull Type type, @NonNull String address) {
+            this(type, address, DEFAULT_MAX_BATCH_SIZE, DEFAULT_BATCH_WINDOW_MS);
+        }
+
+        /**
+         * @param type          HTTP or IPC that is used to connect to geth node
+         * @param address       URL of geth node (or several comma-separated URLs, for HTTP)
+         * @param maxBatchSize  the maximum number of requests in a JSON-RPC batch; 1 to disable batching
+         * @param batchWindowMs how long the first request of a batch may wait for the others
+         */
+        public EthereumConnection(@NonNull Type type, @NonNull String address, int maxBatchSize, long batchWindowMs) {
             assert type != null;
             assert address != null;
+            assert maxBatchSize > 0 : maxBatchSize;
+            assert batchWindowMs >= 0 : batchWindowMs;
 
             this.type = type;
             this.address = address;
+            this.maxBatchSize = maxBatchSize;
+            this.batchWindowMs = batchWindowMs;
+        }
+
+        /**
+         * The URLs of all the nodes.
+         */
+        @NonNull
+        public List<String> getAddresses() {
+            final List<String> result = new ArrayList<>();
+            for (final String single : address.split(",")) {
+                if (!single.trim().isEmpty()) {
+                    result.add(single.trim());
+                }
+            }
+            return result;
         }
 
         public String toString() {
-            return String.format("EthereumConnection(%s, %s)", type, address);
+            return String.format("EthereumConnection(%s, %s, maxBatchSize=%s, batchWindowMs=%s)",
+                    type, address, maxBatchSize, batchWindowMs);
         }
 
-        public enum Type {HTTP, IPC}
+        public enum Type {
+            HTTP, IPC, WS;
+
+            /**
+             * The type of the connection to the URL: WS for <code>ws://</code> and <code>wss://</code>, HTTP otherwise.
+             */
+            @NonNull
+            public static Type forUrl(@NonNull String url) {
+                assert url != null;
+                final String lowercase = url.trim().toLowerCase();
+                return (lowercase.startsWith("ws://") || lowercase.startsWith("wss://")) ? WS : HTTP;
+            }
+        }
     }
 
     /**
@@ -78,18 +206,362 @@ public abstract class AbstractConnector {
      * Constructor.
      */
     protected AbstractConnector(@NonNull EthereumConnection connection) {
-        web3j = createWeb3j(connection);
+        final Web3jService transport = createService(connection);
+        pushService = (transport instanceof WebSocketService) ? (WebSocketService) transport : null;
+        // Every request is measured
+        service = new InstrumentedWeb3jService(transport);
+        web3j = Web3j.build(service);
+        callCache = new CallCache(web3j, CallCache.DEFAULT_BLOCK_CHECK_INTERVAL_MS);
     }
 
 
-    private static Web3j createWeb3j(@NonNull EthereumConnection connection) {
+    /**
+     * Read the balance of some ERC20 token (in the minimal units of the token) owned by some address,
+     * at the latest block (cached within the block).
+     */
+    @NonNull
+    public CompletableFuture<BigInteger> getTokenBalanceAsync(@NonNull String tokenAddress,
+                                                             @NonNull String holderAddress) {
+        assert holderAddress != null;
+        assert holderAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : holderAddress;
+
+        return callAsync(tokenAddress, new Function(
+                "balanceOf",
+                Collections.singletonList(new Address(holderAddress)),
+                Collections.singletonList(new TypeReference<Uint256>() {
+                })));
+    }
+
+    /**
+     * Read the number of decimals of some ERC20 token (cached within the block).
+     */
+    @NonNull
+    public CompletableFuture<BigInteger> getTokenDecimalsAsync(@NonNull String tokenAddress) {
+        return callAsync(tokenAddress, new Function(
+                "decimals",
+                Collections.emptyList(),
+                Collections.singletonList(new TypeReference<Uint8>() {
+                })));
+    }
+
+    /**
+     * Read the total supply of some ERC20 token, in the minimal units of the token (cached within the block).
+     */
+    @NonNull
+    public CompletableFuture<BigInteger> getTokenTotalSupplyAsync(@NonNull String tokenAddress) {
+        return callAsync(tokenAddress, new Function(
+                "totalSupply",
+                Collections.emptyList(),
+                Collections.singletonList(new TypeReference<Uint256>() {
+                })));
+    }
+
+    /**
+     * Read the ether balance of the address (to pay for the gas), in wei, at the latest block.
+     */
+    @NonNull
+    public CompletableFuture<BigInteger> getEtherBalanceAsync(@NonNull String address) {
+        assert address != null;
+        assert address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : address;
+
+        return web3j.ethGetBalance(address, DefaultBlockParameterName.LATEST).sendAsync().thenApply(response -> {
+            if (response.hasError()) {
+                throw new CompletionException(new IOException(
+                        "eth_getBalance failed: " + response.getError().getMessage()));
+            }
+            return response.getBalance();
+        });
+    }
+
+    /**
+     * Call the contract with the already encoded call data, at the latest block.
+     * Not cached: meant for the large one-off reads, which are not worth keeping in the {@link #callCache}.
+     *
+     * @param data the ABI-encoded call, in 0x-prefixed hex form.
+     * @return the {@link CompletableFuture} with the ABI-encoded result, in 0x-prefixed hex form;
+     * or completed exceptionally with {@link IOException} if the node cannot be reached or the call fails.
+     */
+    @NonNull
+    public CompletableFuture<String> callAsync(@NonNull String contractAddress, @NonNull String data) {
+        return callAsync(contractAddress, data, DefaultBlockParameterName.LATEST);
+    }
+
+    /**
+     * Call the contract with the already encoded call data, at the given block (not cached);
+     * the old blocks need the archive node.
+     *
+     * @see #callAsync(String, String)
+     */
+    @NonNull
+    public CompletableFuture<String> callAsync(@NonNull String contractAddress,
+                                               @NonNull String data,
+                                               @NonNull DefaultBlockParameter block) {
+        assert contractAddress != null;
+        assert contractAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : contractAddress;
+        assert data != null;
+        assert block != null;
+
+        return web3j.ethCall(Transaction.createEthCallTransaction(null, contractAddress, data),
+                block).sendAsync().thenApply(response -> {
+            if (response.hasError()) {
+                throw new CompletionException(new IOException(
+                        "eth_call to " + contractAddress + " failed: " + response.getError().getMessage()));
+            }
+            return response.getValue();
+        });
+    }
+
+    /**
+     * Call the read-only function of the contract, through the {@link #callCache}.
+     *
+     * @return the {@link CompletableFuture} with the (first) value returned by the function;
+     * or completed exceptionally with {@link IOException} if the node cannot be reached,
+     * or the call fails or returns nothing.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    protected <T> CompletableFuture<T> callAsync(@NonNull String contractAddress, @NonNull Function function) {
+        assert contractAddress != null;
+        assert contractAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : contractAddress;
+        assert function != null;
+
+        return callCache.call(contractAddress, FunctionEncoder.encode(function)).thenApply(value -> {
+            final List<Type> decoded = FunctionReturnDecoder.decode(value, function.getOutputParameters());
+            if (decoded.isEmpty()) {
+                throw new CompletionException(new IOException(String.format(
+                        "%s returned nothing; is %s the right contract?", function.getName(), contractAddress)));
+            }
+            return (T) decoded.get(0).getValue();
+        });
+    }
+
+    /**
+     * Broadcast the already signed transaction.
+     *
+     * @throws TransactionRejectedException if the node has refused to accept the transaction.
+     * @throws IOException                  if the node cannot be reached.
+     */
+    public void sendSignedTransaction(@NonNull SignedTransaction transaction)
+            throws IOException, TransactionRejectedException {
+        assert transaction != null;
+
+        final EthSendTransaction response = web3j.ethSendRawTransaction(transaction.hex).send();
+        if (response.hasError()) {
+            throw new TransactionRejectedException(response.getError().getMessage());
+        }
+        logger.debug("Sent transaction {} (nonce {})", transaction.txhash, transaction.nonce);
+    }
+
+    /**
+     * The number of the latest block.
+     */
+    public long getBlockNumber() throws IOException {
+        final EthBlockNumber response = web3j.ethBlockNumber().send();
+        if (response.hasError()) {
+            throw new IOException("eth_blockNumber failed: " + response.getError().getMessage());
+        }
+        return response.getBlockNumber().longValueExact();
+    }
+
+    /**
+     * The hash of the block.
+     *
+     * @return the {@link CompletableFuture} with the hash; or with <code>null</code> if the node has no such block yet;
+     * or completed exceptionally with {@link IOException} if the node cannot be reached.
+     */
+    @NonNull
+    public CompletableFuture<String> getBlockHashAsync(long blockNumber) {
+        assert blockNumber >= 0 : blockNumber;
+
+        return web3j.ethGetBlockByNumber(DefaultBlockParameter.valueOf(BigInteger.valueOf(blockNumber)), false)
+                .sendAsync().thenApply(response -> {
+                    if (response.hasError()) {
+                        throw new CompletionException(new IOException(
+                                "eth_getBlockByNumber failed: " + response.getError().getMessage()));
+                    }
+                    return (response.getBlock() == null) ? null : response.getBlock().getHash();
+                });
+    }
+
+    /**
+     * Whether the node knows the transaction (either pending or mined).
+     */
+    public boolean isTransactionKnown(@NonNull String txhash) throws IOException {
+        assert txhash != null;
+        return web3j.ethGetTransactionByHash(txhash).send().getTransaction().isPresent();
+    }
+
+    /**
+     * Broadcast the already signed transaction, asynchronously.
+     *
+     * @return the {@link CompletableFuture} completed when the node accepts the transaction;
+     * or completed exceptionally with {@link TransactionRejectedException} if the node has refused it,
+     * or with {@link IOException} if the node cannot be reached.
+     */
+    @NonNull
+    public CompletableFuture<Void> sendSignedTransactionAsync(@NonNull SignedTransaction transaction) {
+        assert transaction != null;
+
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        web3j.ethSendRawTransaction(transaction.hex).sendAsync().whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally((throwable instanceof CompletionException) ? throwable.getCause() : throwable);
+            } else if (response.hasError()) {
+                result.completeExceptionally(new TransactionRejectedException(response.getError().getMessage()));
+            } else {
+                logger.debug("Sent transaction {} (nonce {})", transaction.txhash, transaction.nonce);
+                result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Broadcast the already signed transaction and wait for it to be mined, asynchronously.
+     *
+     * @return the {@link CompletableFuture} completed when the transaction is mined successfully;
+     * or completed exceptionally with {@link TransactionRejectedException} if the node has refused it,
+     * with {@link TransactionRevertedException} if it has been reverted,
+     * or with {@link IOException} if the node cannot be reached.
+     */
+    @NonNull
+    public CompletableFuture<Confirmation> sendAndConfirmAsync(@NonNull SignedTransaction transaction) {
+        assert transaction != null;
+
+        return EthereumUtils.callBlocking(this::getConfirmationTracker).thenCompose(tracker -> {
+            // Tracked before sending, so it cannot be mined unnoticed
+            final CompletableFuture<Confirmation> mined = tracker.track(transaction.txhash, false);
+            return sendSignedTransactionAsync(transaction)
+                    .whenComplete((ignored, throwable) -> {
+                        if (throwable != null) {
+                            tracker.untrack(transaction.txhash);
+                        }
+                    })
+                    .thenCompose(ignored -> mined)
+                    .thenApply(AbstractConnector::requireSuccess);
+        });
+    }
+
+    /**
+     * Wait for the transaction (already sent, maybe long ago) to be mined, asynchronously.
+     *
+     * @return the {@link CompletableFuture} completed when the transaction is mined successfully;
+     * or completed exceptionally with {@link TransactionRevertedException} if it has been reverted,
+     * or with {@link IOException} if the blocks cannot be watched.
+     */
+    @NonNull
+    public CompletableFuture<Confirmation> confirmAsync(@NonNull String txhash) {
+        assert txhash != null;
+        assert txhash.length() == EthereumUtils.ETHEREUM_TR_TXHASH_LENGTH : txhash;
+
+        return EthereumUtils.callBlocking(this::getConfirmationTracker)
+                .thenCompose(tracker -> tracker.track(txhash, true))
+                .thenApply(AbstractConnector::requireSuccess);
+    }
+
+    /**
+     * Send the contract call prepared by the web3j contract wrapper, on a virtual thread.
+     * The wrapper must use the {@link org.web3j.tx.response.NoOpProcessor}, so it doesn’t wait for the receipt.
+     *
+     * @return the {@link CompletableFuture} with the txhash, completed as soon as the node accepts the transaction;
+     * or completed exceptionally with {@link TransactionRejectedException} if the node has refused it,
+     * or with {@link IOException} if the node cannot be reached.
+     */
+    @NonNull
+    protected static CompletableFuture<String> sendContractCallAsync(@NonNull RemoteCall<TransactionReceipt> call) {
+        assert call != null;
+
+        return EthereumUtils.callBlocking(() -> {
+            try {
+                return call.send().getTransactionHash();
+            } catch (RuntimeException e) {
+                final String message = e.getMessage();
+                if (message != null && message.startsWith(WEB3J_REJECTION_PREFIX)) {
+                    throw new TransactionRejectedException(message.substring(WEB3J_REJECTION_PREFIX.length()));
+                }
+                throw e;
+            }
+        });
+    }
+
+    @NonNull
+    private static Confirmation requireSuccess(@NonNull Confirmation confirmation) {
+        if (!confirmation.success) {
+            throw new CompletionException(new TransactionRevertedException(
+                    String.format("Transaction %s has been reverted in block %s", confirmation.txhash, confirmation.blockNumber)));
+        }
+        return confirmation;
+    }
+
+    /**
+     * Create the nonce allocator for the account.
+     *
+     * @throws IOException if the nonce cannot be received from the node.
+     */
+    @NonNull
+    public NonceAllocator createNonceAllocator(@NonNull String address) throws IOException {
+        return new NonceAllocator(web3j, address);
+    }
+
+    /**
+     * Create the oracle suggesting the fees of the transactions, by the recent blocks.
+     */
+    @NonNull
+    public GasPriceOracle createGasPriceOracle() {
+        return new GasPriceOracle(web3j, service, GasPriceOracle.DEFAULT_BLOCK_COUNT);
+    }
+
+    /**
+     * Get the tracker of the transactions being mined, shared by all the users of this connector.
+     *
+     * @throws IOException if the tracker cannot be started.
+     */
+    @NonNull
+    public synchronized ConfirmationTracker getConfirmationTracker() throws IOException {
+        if (confirmationTracker == null) {
+            confirmationTracker = new ConfirmationTracker(web3j, pushService, ConfirmationTracker.DEFAULT_POLL_INTERVAL_MS);
+        }
+        return confirmationTracker;
+    }
+
+    /**
+     * Stop tracking the transactions, and close the connection receiving the notifications (if any).
+     */
+    @Override
+    public synchronized void close() {
+        if (confirmationTracker != null) {
+            confirmationTracker.close();
+        }
+        if (pushService != null) {
+            pushService.close();
+        }
+    }
+
+    @NonNull
+    private static Web3jService createService(@NonNull EthereumConnection connection) {
         assert connection != null;
 
         switch (connection.type) {
             case HTTP:
-                return Web3j.build(new HttpService(connection.address));
+                final Map<String, Web3jService> services = new LinkedHashMap<>();
+                for (final String address : connection.getAddresses()) {
+                    services.put(address, (connection.maxBatchSize > 1)
+                            ? new BatchingHttpService(address, connection.maxBatchSize, connection.batchWindowMs)
+                            : new VirtualThreadWeb3jService(new HttpService(address)));
+                }
+                if (services.isEmpty()) {
+                    throw new RuntimeException("Cannot initialize Web3j with " + connection.toString());
+                }
+                return (services.size() == 1)
+                        ? services.values().iterator().next()
+                        : new PooledWeb3jService(services, PooledWeb3jService.DEFAULT_HEALTH_CHECK_INTERVAL_MS);
             case IPC:
-                return Web3j.build(new UnixIpcService(connection.address));
+                return new VirtualThreadWeb3jService(new UnixIpcService(connection.address));
+            case WS:
+                if (connection.getAddresses().size() != 1) {
+                    throw new RuntimeException("Only a single node is supported over WebSocket: " + connection.toString());
+                }
+                return new WebSocketService(connection.address.trim());
             default:
                 throw new RuntimeException("Cannot initialize Web3j with " + connection.toString());
         }
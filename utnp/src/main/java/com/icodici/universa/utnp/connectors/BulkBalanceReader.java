@@ -0,0 +1,277 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.crypto.Hash;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads the token balances of many holders, packing many <code>balanceOf</code> calls
+ * into a single <code>eth_call</code> of <code>balancesOf(address,address[])</code>
+ * of the BalanceReader helper contract (see <code>BalanceReader.sol</code>).
+ * <p>
+ * Several such calls are run concurrently; if an aggregated call fails (e.g. runs out of the gas cap of the node),
+ * its holders are split in halves and read again, down to the single holder.
+ * Without the helper contract, falls back to a <code>balanceOf</code> call per holder.
+ * Thread-safe.
+ */
+public class BulkBalanceReader {
+
+    private static final Logger logger = LogManager.getLogger(BulkBalanceReader.class);
+
+    /**
+     * Up to ~3 million gas per call for the typical token; well below the <code>eth_call</code> gas cap of geth.
+     */
+    public static final int DEFAULT_HOLDERS_PER_CALL = 1000;
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = 8;
+
+    static final String SIGNATURE = "balancesOf(address,address[])";
+
+    /**
+     * The first 4 bytes of the Keccak-256 hash of the function signature.
+     */
+    static final byte[] SELECTOR = Arrays.copyOf(Hash.sha3(SIGNATURE.getBytes(StandardCharsets.US_ASCII)), 4);
+
+    private static final int WORD_SIZE = 32;
+    private static final int ADDRESS_SIZE = 20;
+
+    /**
+     * Receives the balances read by {@link #readAll}, in the order of the holders.
+     */
+    public interface BalanceConsumer {
+        void accept(@NonNull String holder, @NonNull BigInteger balance) throws IOException;
+    }
+
+    /**
+     * The holders being read by a single (possibly split) call.
+     */
+    private static class Chunk {
+        @NonNull
+        final List<String> holders;
+        @NonNull
+        final CompletableFuture<List<BigInteger>> balances;
+
+        Chunk(@NonNull List<String> holders, @NonNull CompletableFuture<List<BigInteger>> balances) {
+            this.holders = holders;
+            this.balances = balances;
+        }
+    }
+
+    @NonNull
+    private final AbstractConnector connector;
+    @Nullable
+    private final String readerAddress;
+    @NonNull
+    private final String tokenAddress;
+    private final int holdersPerCall;
+    private final int maxConcurrentCalls;
+
+
+    /**
+     * Constructor.
+     *
+     * @param readerAddress      the address of the deployed BalanceReader contract;
+     *                           <code>null</code> to read the balances one by one.
+     * @param holdersPerCall     how many holders to read by a single call.
+     * @param maxConcurrentCalls how many calls may be running at once.
+     */
+    public BulkBalanceReader(@NonNull AbstractConnector connector,
+                             @Nullable String readerAddress,
+                             @NonNull String tokenAddress,
+                             int holdersPerCall,
+                             int maxConcurrentCalls) {
+        assert connector != null;
+        assert readerAddress == null || EthereumUtils.isHexAddress(readerAddress) : readerAddress;
+        assert tokenAddress != null;
+        assert EthereumUtils.isHexAddress(tokenAddress) : tokenAddress;
+        assert holdersPerCall > 0 : holdersPerCall;
+        assert maxConcurrentCalls > 0 : maxConcurrentCalls;
+
+        this.connector = connector;
+        this.readerAddress = readerAddress;
+        this.tokenAddress = tokenAddress;
+        // Each holder is a separate request anyway
+        this.holdersPerCall = (readerAddress == null) ? 1 : holdersPerCall;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    /**
+     * Read the balances of all the holders, streaming them to the consumer in the same order.
+     * At most <code>maxConcurrentCalls</code> calls are running at once; the consumer is called from the caller thread.
+     *
+     * @return how many balances have been read.
+     * @throws IOException if some balance cannot be read, or the consumer fails.
+     */
+    public long readAll(@NonNull Iterator<String> holders,
+                        @NonNull BalanceConsumer consumer) throws IOException, InterruptedException {
+        assert holders != null;
+        assert consumer != null;
+
+        final ArrayDeque<Chunk> running = new ArrayDeque<>();
+        long count = 0;
+        try {
+            while (holders.hasNext() || !running.isEmpty()) {
+                if (holders.hasNext() && running.size() < maxConcurrentCalls) {
+                    final List<String> chunk = new ArrayList<>(Math.min(holdersPerCall, 1024));
+                    while (chunk.size() < holdersPerCall && holders.hasNext()) {
+                        chunk.add(holders.next());
+                    }
+                    running.add(new Chunk(chunk, readAsync(chunk)));
+                    continue;
+                }
+                // Delivered in order; the later calls keep running meanwhile
+                final Chunk done = running.remove();
+                final List<BigInteger> balances;
+                try {
+                    balances = done.balances.get();
+                } catch (ExecutionException e) {
+                    throw (e.getCause() instanceof IOException)
+                            ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                }
+                for (int i = 0; i < balances.size(); i++) {
+                    consumer.accept(done.holders.get(i), balances.get(i));
+                }
+                count += balances.size();
+            }
+        } finally {
+            running.forEach(chunk -> chunk.balances.cancel(false));
+        }
+        return count;
+    }
+
+    /**
+     * Read the balances of the holders, by a single call if possible.
+     *
+     * @return the {@link CompletableFuture} with the balances, in the order of the holders;
+     * or completed exceptionally with {@link IOException} if some balance cannot be read.
+     */
+    @NonNull
+    public CompletableFuture<List<BigInteger>> readAsync(@NonNull List<String> holders) {
+        assert holders != null;
+
+        if (holders.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        if (readerAddress == null || holders.size() == 1) {
+            final List<CompletableFuture<BigInteger>> reads = new ArrayList<>(holders.size());
+            for (final String holder : holders) {
+                reads.add(connector.getTokenBalanceAsync(tokenAddress, holder));
+            }
+            return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+                final List<BigInteger> result = new ArrayList<>(reads.size());
+                reads.forEach(read -> result.add(read.join()));
+                return result;
+            });
+        }
+
+        final CompletableFuture<List<BigInteger>> result = new CompletableFuture<>();
+        connector.callAsync(readerAddress, encode(tokenAddress, holders))
+                .thenApply(value -> decode(value, holders.size()))
+                .whenComplete((balances, throwable) -> {
+                    if (throwable == null) {
+                        result.complete(balances);
+                        return;
+                    }
+                    final Throwable cause = (throwable instanceof CompletionException) ? throwable.getCause() : throwable;
+                    logger.debug("Reading {} balances by a single call failed, splitting: {}",
+                            holders.size(), cause.getMessage());
+                    final int middle = holders.size() / 2;
+                    final CompletableFuture<List<BigInteger>>
+                            first = readAsync(holders.subList(0, middle)),
+                            second = readAsync(holders.subList(middle, holders.size()));
+                    first.thenCombine(second, (a, b) -> {
+                        final List<BigInteger> combined = new ArrayList<>(a.size() + b.size());
+                        combined.addAll(a);
+                        combined.addAll(b);
+                        return combined;
+                    }).whenComplete((combined, failure) -> {
+                        if (failure == null) {
+                            result.complete(combined);
+                        } else {
+                            result.completeExceptionally(
+                                    (failure instanceof CompletionException) ? failure.getCause() : failure);
+                        }
+                    });
+                });
+        return result;
+    }
+
+    /**
+     * Encode the call of <code>balancesOf(token, holders)</code>.
+     */
+    @NonNull
+    static String encode(@NonNull String tokenAddress, @NonNull List<String> holders) {
+        // Selector, token, offset of the array, its length and the addresses
+        final byte[] data = new byte[SELECTOR.length + WORD_SIZE * (3 + holders.size())];
+        int pos = 0;
+        System.arraycopy(SELECTOR, 0, data, pos, SELECTOR.length);
+        pos += SELECTOR.length;
+        putAddress(tokenAddress, data, pos);
+        pos += WORD_SIZE;
+        putInt(WORD_SIZE * 2, data, pos);
+        pos += WORD_SIZE;
+        putInt(holders.size(), data, pos);
+        pos += WORD_SIZE;
+        for (final String holder : holders) {
+            assert EthereumUtils.isHexAddress(holder) : holder;
+            putAddress(holder, data, pos);
+            pos += WORD_SIZE;
+        }
+        return Numeric.toHexString(data);
+    }
+
+    /**
+     * Decode the <code>uint256[]</code> returned by <code>balancesOf</code>.
+     *
+     * @throws CompletionException with {@link IOException} if the result is not the array of the expected length.
+     */
+    @NonNull
+    static List<BigInteger> decode(@Nullable String value, int expectedCount) {
+        final byte[] data = (value == null) ? new byte[0] : Numeric.hexStringToByteArray(value);
+        if (data.length < WORD_SIZE * 2
+                || !getWord(data, 0).equals(BigInteger.valueOf(WORD_SIZE))
+                || !getWord(data, WORD_SIZE).equals(BigInteger.valueOf(expectedCount))
+                || data.length != WORD_SIZE * (2 + expectedCount)) {
+            throw new CompletionException(new IOException(String.format(
+                    "balancesOf returned %s bytes instead of %s balances", data.length, expectedCount)));
+        }
+        final List<BigInteger> result = new ArrayList<>(expectedCount);
+        for (int i = 0; i < expectedCount; i++) {
+            result.add(getWord(data, WORD_SIZE * (2 + i)));
+        }
+        return result;
+    }
+
+    private static void putAddress(@NonNull String address, @NonNull byte[] dest, int offset) {
+        final byte[] bytes = Numeric.hexStringToByteArray(address);
+        assert bytes.length == ADDRESS_SIZE : address;
+        System.arraycopy(bytes, 0, dest, offset + WORD_SIZE - ADDRESS_SIZE, ADDRESS_SIZE);
+    }
+
+    private static void putInt(int value, @NonNull byte[] dest, int offset) {
+        for (int i = 0; i < 4; i++) {
+            dest[offset + WORD_SIZE - 1 - i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    @NonNull
+    private static BigInteger getWord(@NonNull byte[] data, int offset) {
+        return new BigInteger(1, Arrays.copyOfRange(data, offset, offset + WORD_SIZE));
+    }
+}
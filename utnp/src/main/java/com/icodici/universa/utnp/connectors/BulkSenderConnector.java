@@ -1,6 +1,11 @@
 package com.icodici.universa.utnp.connectors;
 
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
 import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.FeePolicy;
+import com.icodici.universa.utnp.ethereum.NonceAllocator;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.ethereum.TransactionFees;
 import com.icodici.universa.utnp.ethereum.contracts.generated.BulkSender;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -8,14 +13,19 @@ import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.web3j.crypto.Credentials;
 import org.web3j.crypto.ECKeyPair;
-import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthEstimateGas;
 import org.web3j.tx.ChainId;
 import org.web3j.tx.RawTransactionManager;
 import org.web3j.tx.response.NoOpProcessor;
+import org.web3j.utils.Numeric;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 /**
@@ -30,12 +40,27 @@ public class BulkSenderConnector extends AbstractConnector {
 
     private static final Logger logger = LogManager.getLogger(BulkSenderConnector.class);
 
+    private final Credentials credentials;
+    @NonNull
+    private final BulkTransferSigner signer;
+    @NonNull
+    private final String contractAddress;
+    /**
+     * The fixed gas price; <code>null</code> if the fees are suggested by the node.
+     */
+    @Nullable
+    private final BigInteger gasPrice;
+    @NonNull
+    private final BigInteger gasLimit;
+    @NonNull
+    private final FeePolicy feePolicy;
+
     private final RawTransactionManager txManager;
     private final BulkSender contract;
 
 
     /**
-     * Constructor.
+     * Constructor; the transactions are sent at the fixed gas price, never raised.
      *
      * @param bulkSenderContractAddress the Ethereum address of the UTN-P BulkSender contract.
      * @param bulkSenderPrivateKey      the private key that has the permission to use BulkSender contract.
@@ -45,32 +70,87 @@ public class BulkSenderConnector extends AbstractConnector {
                                @NonNull byte[] bulkSenderPrivateKey,
                                @NonNull BigInteger gasPrice,
                                @NonNull BigInteger gasLimit) {
+        this(connection, bulkSenderContractAddress, bulkSenderPrivateKey, gasPrice, gasPrice, gasLimit);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bulkSenderContractAddress the Ethereum address of the UTN-P BulkSender contract.
+     * @param bulkSenderPrivateKey      the private key that has the permission to use BulkSender contract.
+     * @param gasPrice                  the gas price of the new transactions, in wei;
+     *                                  <code>null</code> to use the fees suggested by the node.
+     * @param maxFeePerGas              the fees of the transactions replacing the stuck ones
+     *                                  are never raised above this, in wei.
+     */
+    public BulkSenderConnector(@NonNull EthereumConnection connection,
+                               @NonNull String bulkSenderContractAddress,
+                               @NonNull byte[] bulkSenderPrivateKey,
+                               @Nullable BigInteger gasPrice,
+                               @NonNull BigInteger maxFeePerGas,
+                               @NonNull BigInteger gasLimit) {
         super(connection);
 
         assert connection != null;
         assert bulkSenderContractAddress != null;
         assert bulkSenderPrivateKey != null;
-        assert gasPrice != null;
+        assert maxFeePerGas != null;
         assert gasLimit != null;
 
         assert bulkSenderContractAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : bulkSenderContractAddress;
         assert bulkSenderPrivateKey.length == EthereumUtils.PRIVATE_KEY_SIZE : bulkSenderPrivateKey.length;
-        assert gasPrice.compareTo(BigInteger.ZERO) > 0 : gasPrice;
+        assert gasPrice == null || gasPrice.compareTo(BigInteger.ZERO) > 0 : gasPrice;
+        assert gasPrice == null || gasPrice.compareTo(maxFeePerGas) <= 0 : gasPrice;
         assert gasLimit.compareTo(BigInteger.ZERO) > 0 : gasLimit;
 
         final Credentials bulkSenderCredentials = Credentials.create(ECKeyPair.create(bulkSenderPrivateKey));
+        this.credentials = bulkSenderCredentials;
+        // The signer’s own gas price is used only if no fees are passed; the legacy wrapper below sends at the cap
+        final BigInteger legacyGasPrice = (gasPrice == null) ? maxFeePerGas : gasPrice;
+        this.signer = new BulkTransferSigner(bulkSenderPrivateKey, bulkSenderContractAddress, legacyGasPrice);
+        this.contractAddress = bulkSenderContractAddress;
+        this.gasPrice = gasPrice;
+        this.gasLimit = gasLimit;
+        this.feePolicy = (gasPrice == null)
+                ? new FeePolicy(createGasPriceOracle(), maxFeePerGas)
+                : new FeePolicy(TransactionFees.legacy(gasPrice), maxFeePerGas);
 
         final String operatorAddress = bulkSenderCredentials.getAddress();
         logger.debug("Operating from {}", operatorAddress);
         logger.debug("Bulk sender: {}", bulkSenderContractAddress);
 
         txManager = new RawTransactionManager(web3j, bulkSenderCredentials, ChainId.MAINNET, new NoOpProcessor(web3j));
-        contract = BulkSender.load(bulkSenderContractAddress, web3j, txManager, gasPrice, gasLimit);
+        contract = BulkSender.load(bulkSenderContractAddress, web3j, txManager, legacyGasPrice, gasLimit);
         assert contract != null;
     }
 
+    /**
+     * The address operating the BulkSender contract (paying for the gas).
+     */
+    @NonNull
+    public String getOperatorAddress() {
+        return credentials.getAddress();
+    }
+
+    /**
+     * The default gas limit for the transactions of this connector.
+     */
+    @NonNull
+    public BigInteger getGasLimit() {
+        return gasLimit;
+    }
+
+    /**
+     * The policy choosing the fees of the transactions of this connector.
+     */
+    @NonNull
+    public FeePolicy getFeePolicy() {
+        return feePolicy;
+    }
+
     /**
      * Send multiple transfers at once, using the BulkTransfer contract.
+     * Doesn’t wait for the transaction to be mined.
      *
      * @return <code>null</code> if failed, the transaction txid, if successfully executed.
      */
@@ -80,6 +160,31 @@ public class BulkSenderConnector extends AbstractConnector {
             @NonNull String contractAddressToTransfer,
             @NonNull BigInteger decimals,
             @NonNull Collection<SingleTransfer> transfers
+    ) {
+        try {
+            return bulkTransferAsync(contractAddressToTransfer, decimals, transfers).join();
+        } catch (CompletionException e) {
+            logger.error("Problem on bulkTransfer", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Send multiple transfers at once, using the BulkTransfer contract, asynchronously;
+     * compose with {@link #confirmAsync} to wait until it is mined.
+     * <p>
+     * The nonce is requested from the node for every transaction; to send many transactions in a row,
+     * use {@link BulkTransferPipeline}.
+     *
+     * @return the {@link CompletableFuture} with the txid, completed as soon as the node accepts the transaction;
+     * or completed exceptionally with {@link TransactionRejectedException} if the node has refused it,
+     * or with {@link IOException} if the node cannot be reached.
+     */
+    @NonNull
+    public CompletableFuture<String> bulkTransferAsync(
+            @NonNull String contractAddressToTransfer,
+            @NonNull BigInteger decimals,
+            @NonNull Collection<SingleTransfer> transfers
     ) {
         assert contractAddressToTransfer != null;
         assert contractAddressToTransfer.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : contractAddressToTransfer;
@@ -87,23 +192,115 @@ public class BulkSenderConnector extends AbstractConnector {
         assert decimals.compareTo(BigInteger.ZERO) > 0 : decimals;
         assert !transfers.isEmpty();
 
-        final List<String> addresses = transfers.stream()
-                .map(singleTransfer -> singleTransfer.toAddress)
-                .collect(Collectors.toList());
-
-        final List<BigInteger> amounts = transfers.stream()
-                .map(singleTransfer -> EthereumUtils.intFromDecimal(singleTransfer.amount, UTNP_DECIMALS))
-                .collect(Collectors.toList());
+        final List<String> addresses = toAddresses(transfers);
+        final List<BigInteger> amounts = toAmounts(transfers, decimals);
 
         assert addresses.size() == amounts.size() : String.format("%s vs %s", addresses.size(), amounts.size());
 
-        try {
-            return contract.bulkTransfer(contractAddressToTransfer, addresses, amounts).send().getTransactionHash();
-        } catch (Exception e) {
-            logger.error("Problem on bulkTransfer in noop send", e);
-            logger.error("Bulk transfer cannot get the receipt yet");
-            return null;
+        return sendContractCallAsync(contract.bulkTransfer(contractAddressToTransfer, addresses, amounts));
+    }
+
+    /**
+     * Send multiple transfers at once and wait until it is mined, asynchronously.
+     *
+     * @return the {@link CompletableFuture} completed when the transaction is mined successfully;
+     * or completed exceptionally as {@link #bulkTransferAsync} or {@link #confirmAsync} are.
+     */
+    @NonNull
+    public CompletableFuture<Confirmation> bulkTransferAndConfirmAsync(
+            @NonNull String contractAddressToTransfer,
+            @NonNull BigInteger decimals,
+            @NonNull Collection<SingleTransfer> transfers
+    ) {
+        return bulkTransferAsync(contractAddressToTransfer, decimals, transfers).thenCompose(this::confirmAsync);
+    }
+
+    /**
+     * Build and sign (but not send) the BulkTransfer contract call, with the explicitly given nonce.
+     * Nothing is requested from the node.
+     */
+    @NonNull
+    public SignedTransaction signBulkTransfer(
+            @NonNull String contractAddressToTransfer,
+            @NonNull PackedTransfers transfers,
+            @NonNull BigInteger nonce
+    ) {
+        return signBulkTransfer(contractAddressToTransfer, transfers, nonce, gasLimit);
+    }
+
+    /**
+     * Build and sign (but not send) the BulkTransfer contract call,
+     * with the explicitly given nonce and gas limit (rather than the default one of the connector),
+     * at the fixed gas price (or at the fee cap, if the fees are suggested by the node).
+     * Nothing is requested from the node.
+     */
+    @NonNull
+    public SignedTransaction signBulkTransfer(
+            @NonNull String contractAddressToTransfer,
+            @NonNull PackedTransfers transfers,
+            @NonNull BigInteger nonce,
+            @NonNull BigInteger transactionGasLimit
+    ) {
+        return signer.sign(contractAddressToTransfer, transfers, nonce, transactionGasLimit);
+    }
+
+    /**
+     * Build and sign (but not send) the BulkTransfer contract call,
+     * with the explicitly given nonce, gas limit and fees.
+     * Nothing is requested from the node.
+     */
+    @NonNull
+    public SignedTransaction signBulkTransfer(
+            @NonNull String contractAddressToTransfer,
+            @NonNull PackedTransfers transfers,
+            @NonNull BigInteger nonce,
+            @NonNull BigInteger transactionGasLimit,
+            @NonNull TransactionFees fees
+    ) {
+        return signer.sign(contractAddressToTransfer, transfers, nonce, transactionGasLimit, fees);
+    }
+
+    /**
+     * Ask the node how much gas the BulkTransfer contract call would take, if executed now.
+     *
+     * @throws IOException if the node cannot be reached, or if it thinks the call would fail.
+     */
+    @NonNull
+    public BigInteger estimateBulkTransferGas(
+            @NonNull String contractAddressToTransfer,
+            @NonNull PackedTransfers transfers
+    ) throws IOException {
+        final EthEstimateGas response = web3j.ethEstimateGas(Transaction.createFunctionCallTransaction(
+                credentials.getAddress(), null, gasPrice, null, contractAddress,
+                Numeric.toHexString(BulkTransferEncoder.encode(contractAddressToTransfer, transfers))))
+                .send();
+        if (response.hasError()) {
+            throw new IOException("eth_estimateGas failed: " + response.getError().getMessage());
         }
+        return response.getAmountUsed();
+    }
+
+    /**
+     * Create the nonce allocator for the account operating the BulkSender contract.
+     */
+    @NonNull
+    public NonceAllocator createNonceAllocator() throws IOException {
+        return createNonceAllocator(credentials.getAddress());
+    }
+
+    @NonNull
+    private static List<String> toAddresses(@NonNull Collection<SingleTransfer> transfers) {
+        return transfers.stream()
+                .map(singleTransfer -> singleTransfer.toAddress)
+                .collect(Collectors.toList());
+    }
+
+    @NonNull
+    private static List<BigInteger> toAmounts(@NonNull Collection<SingleTransfer> transfers,
+                                              @NonNull BigInteger decimals) {
+        return transfers.stream()
+                .map(singleTransfer -> EthereumUtils.intFromDecimal(singleTransfer.amount, decimals))
+                .collect(Collectors.toList());
     }
 
     @SuppressWarnings("unused")
@@ -0,0 +1,165 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.web3j.crypto.Hash;
+import org.web3j.utils.Numeric;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * ABI encoder of the <code>bulkTransfer(address,address[],uint256[])</code> call of the BulkSender contract.
+ * <p>
+ * Writes the call data straight from the {@link PackedTransfers} into the byte buffer;
+ * the output is identical to the one of {@link org.web3j.abi.FunctionEncoder} for the generated contract wrapper,
+ * but no per-transfer ABI objects and no hex strings are created.
+ */
+public class BulkTransferEncoder {
+
+    static final String SIGNATURE = "bulkTransfer(address,address[],uint256[])";
+
+    /**
+     * The first 4 bytes of the Keccak-256 hash of the function signature.
+     */
+    static final byte[] SELECTOR = Arrays.copyOf(Hash.sha3(SIGNATURE.getBytes(StandardCharsets.US_ASCII)), 4);
+
+    private static final int WORD_SIZE = 32;
+    /**
+     * The head of the arguments: the token address and the offsets of the two arrays.
+     */
+    private static final int HEAD_SIZE = WORD_SIZE * 3;
+
+    private BulkTransferEncoder() {
+    }
+
+    /**
+     * The size of the call data for so many transfers, in bytes.
+     */
+    public static int getCalldataLength(int transferCount) {
+        assert transferCount >= 0 : transferCount;
+        // Selector, head, and two arrays (each with the length word)
+        return SELECTOR.length + HEAD_SIZE + 2 * WORD_SIZE * (1 + transferCount);
+    }
+
+    /**
+     * Encode the call data into a new array.
+     */
+    @NonNull
+    public static byte[] encode(@NonNull String tokenAddress, @NonNull PackedTransfers transfers) {
+        final byte[] result = new byte[getCalldataLength(transfers.size())];
+        encode(tokenAddress, transfers, result, 0);
+        return result;
+    }
+
+    /**
+     * Encode the call data into the buffer, which must have at least {@link #getCalldataLength} bytes
+     * available from the offset.
+     *
+     * @return the position after the call data.
+     */
+    public static int encode(@NonNull String tokenAddress,
+                             @NonNull PackedTransfers transfers,
+                             @NonNull byte[] dest,
+                             int offset) {
+        assert tokenAddress != null;
+        assert EthereumUtils.isHexAddress(tokenAddress) : tokenAddress;
+        assert transfers != null;
+        assert dest != null;
+
+        final int count = transfers.size();
+        final int end = offset + getCalldataLength(count);
+        assert offset >= 0 && end <= dest.length : String.format("%s+%s of %s", offset, end - offset, dest.length);
+
+        // All the padding is zeros; so clear the whole area first (the buffer may be reused).
+        Arrays.fill(dest, offset, end, (byte) 0);
+        int pos = offset;
+        System.arraycopy(SELECTOR, 0, dest, pos, SELECTOR.length);
+        pos += SELECTOR.length;
+
+        // Head: token, offset of the addresses, offset of the amounts (relative to the arguments start)
+        final byte[] token = Numeric.hexStringToByteArray(tokenAddress);
+        System.arraycopy(token, 0, dest, pos + WORD_SIZE - token.length, token.length);
+        pos += WORD_SIZE;
+        pos = writeWord(dest, pos, HEAD_SIZE);
+        pos = writeWord(dest, pos, HEAD_SIZE + WORD_SIZE * (1 + count));
+
+        pos = writeWord(dest, pos, count);
+        for (int i = 0; i < count; i++) {
+            transfers.copyAddress(i, dest, pos + WORD_SIZE - PackedTransfers.ADDRESS_SIZE);
+            pos += WORD_SIZE;
+        }
+        pos = writeWord(dest, pos, count);
+        for (int i = 0; i < count; i++) {
+            transfers.copyAmount(i, dest, pos);
+            pos += WORD_SIZE;
+        }
+        assert pos == end : pos;
+        return pos;
+    }
+
+    /**
+     * Decode the transfers from the call data, e.g. of the transaction signed earlier.
+     *
+     * @param decimals the decimals of the token.
+     * @throws IllegalArgumentException if it is not the <code>bulkTransfer</code> call.
+     */
+    @NonNull
+    public static PackedTransfers decode(@NonNull byte[] calldata, int decimals) {
+        assert calldata != null;
+
+        if (calldata.length < getCalldataLength(0)
+                || !Arrays.equals(SELECTOR, Arrays.copyOf(calldata, SELECTOR.length))) {
+            throw new IllegalArgumentException("Not the " + SIGNATURE + " call");
+        }
+        final int args = SELECTOR.length;
+        final int addressesAt = args + readWord(calldata, args + WORD_SIZE);
+        final int amountsAt = args + readWord(calldata, args + WORD_SIZE * 2);
+        final int count = readWord(calldata, addressesAt);
+        if (count != readWord(calldata, amountsAt)
+                || (long) addressesAt + WORD_SIZE * (1L + count) > calldata.length
+                || (long) amountsAt + WORD_SIZE * (1L + count) > calldata.length) {
+            throw new IllegalArgumentException("Malformed " + SIGNATURE + " call");
+        }
+
+        final PackedTransfers result = new PackedTransfers(decimals, count);
+        for (int i = 0; i < count; i++) {
+            result.addEncoded(calldata,
+                    addressesAt + WORD_SIZE * (1 + i) + WORD_SIZE - PackedTransfers.ADDRESS_SIZE,
+                    amountsAt + WORD_SIZE * (1 + i));
+        }
+        return result;
+    }
+
+    /**
+     * Read the <code>uint256</code> word which must fit a non-negative <code>int</code>.
+     */
+    private static int readWord(@NonNull byte[] source, int pos) {
+        if (pos < 0 || pos + WORD_SIZE > source.length) {
+            throw new IllegalArgumentException("Malformed " + SIGNATURE + " call");
+        }
+        for (int i = 0; i < WORD_SIZE - 4; i++) {
+            if (source[pos + i] != 0) {
+                throw new IllegalArgumentException("Malformed " + SIGNATURE + " call");
+            }
+        }
+        final int value = ((source[pos + WORD_SIZE - 4] & 0xff) << 24) | ((source[pos + WORD_SIZE - 3] & 0xff) << 16)
+                | ((source[pos + WORD_SIZE - 2] & 0xff) << 8) | (source[pos + WORD_SIZE - 1] & 0xff);
+        if (value < 0) {
+            throw new IllegalArgumentException("Malformed " + SIGNATURE + " call");
+        }
+        return value;
+    }
+
+    /**
+     * Write the non-negative <code>int</code> as <code>uint256</code> word over the zeroed area.
+     */
+    private static int writeWord(@NonNull byte[] dest, int pos, int value) {
+        assert value >= 0 : value;
+        dest[pos + WORD_SIZE - 4] = (byte) (value >>> 24);
+        dest[pos + WORD_SIZE - 3] = (byte) (value >>> 16);
+        dest[pos + WORD_SIZE - 2] = (byte) (value >>> 8);
+        dest[pos + WORD_SIZE - 1] = (byte) value;
+        return pos + WORD_SIZE;
+    }
+}
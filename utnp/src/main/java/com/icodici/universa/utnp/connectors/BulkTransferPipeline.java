@@ -0,0 +1,819 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.FeePolicy;
+import com.icodici.universa.utnp.ethereum.NonceAllocator;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.ethereum.TransactionFees;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipelined sender of multiple BulkSender transactions.
+ * <p>
+ * The nonces are allocated locally (the node is asked for the nonce only once, on start),
+ * and up to <code>maxInFlight</code> transactions are kept sent but not mined yet.
+ * The mined transactions are detected by the {@link ConfirmationTracker} of the connector,
+ * which watches the new blocks once for all the transactions in flight; each mined transaction
+ * is checked to have succeeded, and its gas usage is accounted.
+ * <p>
+ * If the node rejects some transaction, it is resubmitted (with the same nonce, so no nonce gap appears);
+ * if the nonce turns out to be used by some other transaction, the transfer is re-signed with a fresh nonce.
+ * If the transaction still cannot be sent, or is reverted, the pipeline stops accepting new transfers.
+ * <p>
+ * The fees of the transactions are chosen by the {@link FeePolicy} of the connector.
+ * If the accepted transaction is not mined until the replacement deadline, the supervisor thread
+ * replaces it: re-signs the same transfers with the same nonce at the raised fees (up to the cap),
+ * and keeps all the variants tracked until one of them is mined. If the fees cannot be raised anymore
+ * (or the transaction cannot be re-signed, e.g. resubmitted), the transaction is re-broadcast as is,
+ * in case the node has dropped it from its pool.
+ * <p>
+ * The optional {@link Listener} is notified about every transaction going through the pipeline
+ * (e.g. to journal it before it is sent). The progress is also reflected in the {@link SendMetrics}.
+ */
+public class BulkTransferPipeline implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(BulkTransferPipeline.class);
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    /**
+     * How many times to try sending a transaction before giving up.
+     */
+    static final int MAX_SEND_ATTEMPTS = 5;
+    static final long RETRY_DELAY_MS = 1000;
+    /**
+     * How often the thread waiting for the permit checks if the pipeline has failed meanwhile.
+     */
+    static final long FAILURE_CHECK_INTERVAL_MS = 1000;
+    /**
+     * How long the accepted transaction may stay not mined before it is replaced (or re-broadcast).
+     */
+    public static final long DEFAULT_REPLACEMENT_DEADLINE_MS = 180000;
+    /**
+     * How often the supervisor looks for the transactions past the replacement deadline.
+     */
+    static final long SUPERVISION_INTERVAL_MS = 1000;
+
+    /**
+     * Receives the notifications about the transactions going through the pipeline.
+     * The <code>attachment</code> is the object passed by the caller on submitting the transaction.
+     */
+    public interface Listener {
+        /**
+         * The transaction has been signed; called in the order of signing, by the thread which has signed it.
+         * The transaction replacing the stuck one (with the same nonce) is signed for the same attachment.
+         *
+         * @throws IOException if the transaction should not be sent.
+         */
+        void onSigned(@Nullable Object attachment, @NonNull SignedTransaction transaction) throws IOException;
+
+        /**
+         * The transaction is about to be sent (for the first time); it won’t be sent until this method returns.
+         *
+         * @throws IOException if the transaction should not be sent.
+         */
+        void beforeSending(@Nullable Object attachment, @NonNull SignedTransaction transaction) throws IOException;
+
+        /**
+         * The transaction has been accepted by the node.
+         */
+        void onAccepted(@Nullable Object attachment, @NonNull SignedTransaction transaction);
+
+        /**
+         * The transaction has been mined (successfully or not).
+         */
+        void onMined(@Nullable Object attachment, @NonNull SignedTransaction transaction, @NonNull Confirmation confirmation);
+
+        /**
+         * The pipeline gave up sending the transaction.
+         */
+        void onFailed(@Nullable Object attachment, @NonNull Throwable cause);
+    }
+
+    /**
+     * The transaction in flight, along with the transactions replacing it (with the same nonce).
+     */
+    private static final class InFlight {
+        @NonNull
+        final BigInteger nonce;
+        /**
+         * The transfers to re-sign the transaction with; <code>null</code> if it must not be re-signed (resubmitted).
+         */
+        @Nullable
+        final PackedTransfers transfers;
+        /**
+         * The gas limit of the transaction; <code>null</code> if unknown (resubmitted).
+         */
+        @Nullable
+        final BigInteger gasLimit;
+        @Nullable
+        final Object attachment;
+        /**
+         * The variants replaced before the transaction has been resubmitted; any of them may have been mined.
+         */
+        @NonNull
+        final List<SignedTransaction> resubmittedVariants = new ArrayList<>();
+        /**
+         * When the transaction has been sent, by {@link System#nanoTime()}; 0 if unknown (resubmitted).
+         */
+        long sentAt = 0;
+
+        // The latest variant is changed by the supervisor, guarded by the entry itself
+
+        @NonNull
+        SignedTransaction transaction;
+        /**
+         * The fees of the latest variant; <code>null</code> if unknown (resubmitted).
+         */
+        @Nullable
+        TransactionFees fees;
+        /**
+         * All the variants sent.
+         */
+        @NonNull
+        final List<String> txhashes = new ArrayList<>();
+        /**
+         * When to speed the transaction up, by {@link System#nanoTime()}; 0 until it is accepted by the node.
+         */
+        long deadline = 0;
+        /**
+         * Whether some variant has been mined.
+         */
+        boolean done = false;
+
+        InFlight(@NonNull SignedTransaction transaction,
+                 @Nullable PackedTransfers transfers,
+                 @Nullable BigInteger gasLimit,
+                 @Nullable Object attachment,
+                 @Nullable TransactionFees fees) {
+            this.nonce = transaction.nonce;
+            this.transfers = transfers;
+            this.gasLimit = gasLimit;
+            this.attachment = attachment;
+            this.transaction = transaction;
+            this.fees = fees;
+            txhashes.add(transaction.txhash);
+        }
+    }
+
+    @NonNull
+    private final BulkSenderConnector connector;
+    @NonNull
+    private final String erc20Address;
+    @NonNull
+    private final NonceAllocator nonceAllocator;
+    @NonNull
+    private final ConfirmationTracker confirmationTracker;
+    @Nullable
+    private final Listener listener;
+    @NonNull
+    private final FeePolicy feePolicy;
+    /**
+     * 0 if the stuck transactions are never replaced.
+     */
+    private final long replacementDeadlineNanos;
+
+    /**
+     * Permits for the transactions in flight (sent but not mined yet).
+     */
+    @NonNull
+    private final Semaphore inFlightPermits;
+    /**
+     * The transactions which are in flight, by their nonces; each of them holds a permit.
+     */
+    @NonNull
+    private final ConcurrentSkipListMap<BigInteger, InFlight> inFlight = new ConcurrentSkipListMap<>();
+
+    @NonNull
+    private final ExecutorService sendExecutor;
+    @Nullable
+    private final ScheduledExecutorService supervisor;
+
+    @NonNull
+    private final LongAdder minedCount = new LongAdder();
+    @NonNull
+    private final LongAdder gasUsed = new LongAdder();
+
+    @NonNull
+    private final List<CompletableFuture<String>> submitted = new ArrayList<>();
+
+    @Nullable
+    private volatile Throwable failure = null;
+    /**
+     * After closing, the listener is not notified anymore (the transactions may still be mined meanwhile).
+     */
+    private volatile boolean closed = false;
+
+
+    /**
+     * Constructor.
+     *
+     * @param maxInFlight how many transactions may be sent but not mined yet, at any moment.
+     * @throws IOException if the initial nonce or block cannot be received from the node.
+     */
+    public BulkTransferPipeline(@NonNull BulkSenderConnector connector,
+                                @NonNull String erc20Address,
+                                int maxInFlight) throws IOException {
+        this(connector, erc20Address, maxInFlight, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxInFlight how many transactions may be sent but not mined yet, at any moment.
+     * @param listener    (optional) the listener to notify about the transactions.
+     * @throws IOException if the initial nonce or block cannot be received from the node.
+     */
+    public BulkTransferPipeline(@NonNull BulkSenderConnector connector,
+                                @NonNull String erc20Address,
+                                int maxInFlight,
+                                @Nullable Listener listener) throws IOException {
+        this(connector, erc20Address, maxInFlight, listener, DEFAULT_REPLACEMENT_DEADLINE_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxInFlight           how many transactions may be sent but not mined yet, at any moment.
+     * @param listener              (optional) the listener to notify about the transactions.
+     * @param replacementDeadlineMs how long the accepted transaction may stay not mined before it is replaced
+     *                              at the higher fees; 0 to never replace the transactions.
+     * @throws IOException if the initial nonce, block or fees cannot be received from the node.
+     */
+    public BulkTransferPipeline(@NonNull BulkSenderConnector connector,
+                                @NonNull String erc20Address,
+                                int maxInFlight,
+                                @Nullable Listener listener,
+                                long replacementDeadlineMs) throws IOException {
+        assert connector != null;
+        assert erc20Address != null;
+        assert erc20Address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : erc20Address;
+        assert maxInFlight > 0 : maxInFlight;
+        assert replacementDeadlineMs >= 0 : replacementDeadlineMs;
+
+        this.connector = connector;
+        this.erc20Address = erc20Address;
+        this.nonceAllocator = connector.createNonceAllocator();
+        this.confirmationTracker = connector.getConfirmationTracker();
+        this.listener = listener;
+        this.feePolicy = connector.getFeePolicy();
+        // Fails early if the fees cannot be suggested at all; later, the latest suggestion is reused if needed
+        logger.info("Sending at {} (up to {} wei per gas)", feePolicy.getFees(), feePolicy.getMaxFeePerGas());
+        this.replacementDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(replacementDeadlineMs);
+        this.inFlightPermits = new Semaphore(maxInFlight);
+        // The sending mostly waits for the node; the in-flight permits bound the number of the threads
+        this.sendExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("bulk-send-", 0).factory());
+        if (replacementDeadlineMs > 0) {
+            supervisor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "replacement-supervisor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            supervisor.scheduleWithFixedDelay(this::superviseStuck,
+                    SUPERVISION_INTERVAL_MS, SUPERVISION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } else {
+            supervisor = null;
+        }
+    }
+
+    /**
+     * Sign the bulk transfer (with the default gas limit of the connector) and schedule it for sending.
+     * Blocks while there are already <code>maxInFlight</code> transactions in flight.
+     *
+     * @return the {@link CompletableFuture} with the txhash, completed as soon as the node accepts the transaction.
+     * @throws IllegalStateException if the pipeline has already failed.
+     */
+    @NonNull
+    public CompletableFuture<String> submit(@NonNull PackedTransfers transfers)
+            throws InterruptedException {
+        return submit(transfers, connector.getGasLimit(), null);
+    }
+
+    /**
+     * Sign the bulk transfer with the specific gas limit and schedule it for sending.
+     * Blocks while there are already <code>maxInFlight</code> transactions in flight.
+     * The transfers must not be modified afterwards (they may be needed to re-sign the transaction).
+     *
+     * @param attachment (optional) any object to pass to the {@link Listener} along with this transaction.
+     * @return the {@link CompletableFuture} with the txhash, completed as soon as the node accepts the transaction.
+     * @throws IllegalStateException if the pipeline has already failed.
+     */
+    @NonNull
+    public CompletableFuture<String> submit(@NonNull PackedTransfers transfers,
+                                            @NonNull BigInteger gasLimit,
+                                            @Nullable Object attachment)
+            throws InterruptedException {
+        assert transfers != null;
+        assert !transfers.isEmpty();
+        assert gasLimit != null;
+
+        acquirePermit();
+
+        final InFlight entry;
+        try {
+            entry = sign(transfers, gasLimit, attachment);
+        } catch (IOException e) {
+            inFlightPermits.release();
+            failure = e;
+            throw new IllegalStateException("The pipeline has failed", e);
+        }
+        SendMetrics.bulksSubmitted.inc();
+        if (listener != null) {
+            boolean journaled = false;
+            try {
+                listener.onSigned(attachment, entry.transaction);
+                journaled = true;
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                throw new IllegalStateException("The pipeline has failed", e);
+            } finally {
+                if (!journaled) {
+                    // Never sent, so it must hold neither the place in flight nor the permit
+                    forget(entry);
+                }
+            }
+        }
+
+        return schedule(() -> send(entry, true), attachment);
+    }
+
+    /**
+     * Schedule the transaction, which has been already signed (and maybe sent) earlier, for sending again;
+     * e.g. when resuming the interrupted run.
+     * Blocks while there are already <code>maxInFlight</code> transactions in flight.
+     * <p>
+     * The {@link Listener#onSigned} and {@link Listener#beforeSending} are not called for it;
+     * and if its nonce turns out to be used
+     * by some other transaction, it is not re-signed but fails.
+     *
+     * @param attachment (optional) any object to pass to the {@link Listener} along with this transaction.
+     * @return the {@link CompletableFuture} with the txhash, completed as soon as the node accepts the transaction.
+     * @throws IllegalStateException if the pipeline has already failed.
+     */
+    @NonNull
+    public CompletableFuture<String> resubmit(@NonNull SignedTransaction transaction,
+                                              @Nullable Object attachment)
+            throws InterruptedException {
+        return resubmit(Collections.singletonList(transaction), attachment);
+    }
+
+    /**
+     * Schedule the transaction, which has been already signed (and maybe sent, and maybe replaced) earlier,
+     * for sending again; as {@link #resubmit(SignedTransaction, Object)}, but any of its variants
+     * (with the same nonce) may turn out to be mined.
+     *
+     * @param variants all the variants of the transaction; the latest one, sent again, is the last.
+     */
+    @NonNull
+    public CompletableFuture<String> resubmit(@NonNull List<SignedTransaction> variants,
+                                              @Nullable Object attachment)
+            throws InterruptedException {
+        assert variants != null;
+        assert !variants.isEmpty();
+
+        final SignedTransaction transaction = variants.get(variants.size() - 1);
+        acquirePermit();
+        final InFlight entry = new InFlight(transaction, null, null, attachment, null);
+        for (final SignedTransaction variant : variants.subList(0, variants.size() - 1)) {
+            assert variant.nonce.equals(transaction.nonce) : variant.nonce;
+            entry.resubmittedVariants.add(variant);
+            entry.txhashes.add(variant.txhash);
+        }
+        add(entry);
+        SendMetrics.bulksSubmitted.inc();
+        nonceAllocator.advanceTo(transaction.nonce.add(BigInteger.ONE));
+
+        return schedule(() -> send(entry, false), attachment);
+    }
+
+    private void acquirePermit() throws InterruptedException {
+        while (!inFlightPermits.tryAcquire(FAILURE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            checkNotFailed();
+        }
+        checkNotFailed();
+    }
+
+    @NonNull
+    private CompletableFuture<String> schedule(@NonNull Callable<String> sending, @Nullable Object attachment) {
+        final CompletableFuture<String> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return sending.call();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                if (listener != null) {
+                    listener.onFailed(attachment, e);
+                }
+                throw new CompletionException(e);
+            }
+        }, sendExecutor);
+        synchronized (submitted) {
+            submitted.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * How many transactions are sent but not known to be mined yet.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * How many more transactions may be put in flight right now.
+     */
+    int getAvailablePermits() {
+        return inFlightPermits.availablePermits();
+    }
+
+    /**
+     * How many of the transactions sent through the pipeline are already mined.
+     */
+    public long getMinedCount() {
+        return minedCount.sum();
+    }
+
+    /**
+     * The total gas used by the mined transactions sent through the pipeline.
+     */
+    public long getGasUsed() {
+        return gasUsed.sum();
+    }
+
+    /**
+     * The first failure happened in the pipeline; <code>null</code> if everything is fine.
+     */
+    @Nullable
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Wait until all the transactions sent through the pipeline are mined (while the stuck ones are replaced),
+     * or the pipeline fails.
+     *
+     * @return <code>false</code> if the pipeline has failed.
+     */
+    public boolean awaitMined() throws InterruptedException {
+        while (!inFlight.isEmpty() && failure == null) {
+            Thread.sleep(FAILURE_CHECK_INTERVAL_MS);
+        }
+        return failure == null;
+    }
+
+    /**
+     * Wait until all the submitted transactions are accepted by the node (or failed to be sent),
+     * and stop the pipeline; the listener won’t be notified about the transactions mined afterwards,
+     * and the stuck transactions won’t be replaced anymore.
+     */
+    @Override
+    public void close() {
+        final List<CompletableFuture<String>> toWait;
+        synchronized (submitted) {
+            toWait = new ArrayList<>(submitted);
+        }
+        try {
+            CompletableFuture.allOf(toWait.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            // Already stored in `failure` and reported to the caller via the futures
+        } finally {
+            closed = true;
+            sendExecutor.shutdown();
+            if (supervisor != null) {
+                supervisor.shutdownNow();
+            }
+        }
+    }
+
+    private void checkNotFailed() {
+        final Throwable currentFailure = failure;
+        if (currentFailure != null) {
+            throw new IllegalStateException("The pipeline has failed", currentFailure);
+        }
+    }
+
+
+    /**
+     * Allocate the nonce and sign the bulk transfer at the current fees.
+     *
+     * @throws IOException if the fees cannot be suggested by the node.
+     */
+    @NonNull
+    private InFlight sign(@NonNull PackedTransfers transfers,
+                          @NonNull BigInteger gasLimit,
+                          @Nullable Object attachment) throws IOException {
+        final TransactionFees fees = feePolicy.getFees();
+        final BigInteger nonce = nonceAllocator.allocate();
+        final InFlight entry = new InFlight(
+                connector.signBulkTransfer(erc20Address, transfers, nonce, gasLimit, fees),
+                transfers, gasLimit, attachment, fees);
+        add(entry);
+        return entry;
+    }
+
+    /**
+     * Send the transaction, retrying it if needed.
+     * Runs in the {@link #sendExecutor}.
+     *
+     * @param notifySending whether the {@link Listener} should be notified before sending the transaction.
+     * @return the txhash of the transaction which has been accepted
+     * (may differ from the original transaction, if it had to be re-signed with another nonce).
+     */
+    @NonNull
+    private String send(@NonNull InFlight initial, boolean notifySending) throws Exception {
+        InFlight entry = initial;
+        SignedTransaction current = entry.transaction;
+        if (notifySending) {
+            entry.sentAt = System.nanoTime();
+            if (listener != null) {
+                listener.beforeSending(entry.attachment, current);
+            }
+        }
+        // Tracked before sending, so it cannot be mined unnoticed.
+        // The resubmitted transaction (or its earlier variant) may have been mined long ago though.
+        watchMined(entry, current, !notifySending);
+        for (final SignedTransaction variant : entry.resubmittedVariants) {
+            watchMined(entry, variant, true);
+        }
+
+        Exception lastProblem = null;
+        for (int attempt = 1; attempt <= MAX_SEND_ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                SendMetrics.sendRetries.inc();
+            }
+            try {
+                connector.sendSignedTransaction(current);
+                return accepted(entry, current);
+            } catch (TransactionRejectedException e) {
+                if (e.isAlreadyKnown()) {
+                    return accepted(entry, current);
+                } else if (e.isNonceTooLow() || e.isReplacementUnderpriced()) {
+                    // Maybe one of our previous attempts has actually reached the node?
+                    if (connector.isTransactionKnown(current.txhash)) {
+                        // It may be even mined already.
+                        watchMined(entry, current, true);
+                        return accepted(entry, current);
+                    }
+                    // Or the variant it has replaced before the relaunch (already watched)
+                    for (final SignedTransaction variant : entry.resubmittedVariants) {
+                        if (connector.isTransactionKnown(variant.txhash)) {
+                            return accepted(entry, variant);
+                        }
+                    }
+                    // No; the nonce has been taken by some other transaction from the same account.
+                    if (entry.transfers == null || entry.gasLimit == null) {
+                        throw new TransactionRejectedException(String.format(
+                                "Nonce %s of %s is used by some other transaction", current.nonce, current.txhash));
+                    }
+                    logger.warn("Nonce {} is already used by some other transaction, re-signing", current.nonce);
+                    nonceAllocator.resync();
+                    confirmationTracker.untrack(current.txhash);
+                    // The permit passes over to the re-signed entry
+                    remove(entry);
+                    try {
+                        entry = sign(entry.transfers, entry.gasLimit, entry.attachment);
+                    } catch (IOException signingFailure) {
+                        inFlightPermits.release();
+                        throw signingFailure;
+                    }
+                    current = entry.transaction;
+                    SendMetrics.resigned.inc();
+                    entry.sentAt = System.nanoTime();
+                    if (listener != null) {
+                        listener.onSigned(entry.attachment, current);
+                        listener.beforeSending(entry.attachment, current);
+                    }
+                    watchMined(entry, current, false);
+                } else {
+                    logger.warn("Transaction {} rejected (attempt {}): {}", current, attempt, e.getMessage());
+                }
+                lastProblem = e;
+            } catch (IOException e) {
+                logger.warn("Transaction {} not sent (attempt {}): {}", current, attempt, e.getMessage());
+                lastProblem = e;
+            }
+            Thread.sleep(RETRY_DELAY_MS * attempt);
+        }
+        logger.error("Giving up on {}; the later nonces won’t be mined until nonce {} is used",
+                current, current.nonce);
+        SendMetrics.sendFailures.inc();
+        assert lastProblem != null;
+        throw lastProblem;
+    }
+
+    @NonNull
+    private String accepted(@NonNull InFlight entry, @NonNull SignedTransaction transaction) {
+        SendMetrics.bulksAccepted.inc();
+        if (entry.transfers != null) {
+            SendMetrics.transfersAccepted.add(entry.transfers.size());
+        }
+        if (replacementDeadlineNanos > 0) {
+            synchronized (entry) {
+                entry.deadline = System.nanoTime() + replacementDeadlineNanos;
+            }
+        }
+        if (listener != null) {
+            listener.onAccepted(entry.attachment, transaction);
+        }
+        return transaction.txhash;
+    }
+
+    /**
+     * @param transaction the transaction of the entry, or one of its replacements.
+     */
+    private void watchMined(@NonNull InFlight entry,
+                            @NonNull SignedTransaction transaction,
+                            boolean mayBeMinedAlready) {
+        confirmationTracker.track(transaction.txhash, mayBeMinedAlready)
+                .thenAccept(confirmation -> mined(entry, transaction, confirmation));
+    }
+
+    /**
+     * Release the permit of the mined transaction, and make sure it has succeeded.
+     * Runs in the thread of the {@link ConfirmationTracker}.
+     *
+     * @param transaction the variant of the entry which has been mined.
+     */
+    private void mined(@NonNull InFlight entry,
+                       @NonNull SignedTransaction transaction,
+                       @NonNull Confirmation confirmation) {
+        final List<String> variants;
+        synchronized (entry) {
+            if (entry.done) {
+                // Already handled
+                return;
+            }
+            entry.done = true;
+            variants = new ArrayList<>(entry.txhashes);
+        }
+        if (!forget(entry)) {
+            return;
+        }
+        // The other variants with the same nonce can never be mined now
+        for (final String txhash : variants) {
+            if (!txhash.equals(transaction.txhash)) {
+                confirmationTracker.untrack(txhash);
+            }
+        }
+        minedCount.increment();
+        gasUsed.add(confirmation.gasUsed.longValue());
+        // The time to confirmation is meaningless for the transaction which may have been sent long ago.
+        SendMetrics.recordMined(confirmation, entry.gasLimit, entry.sentAt);
+        if (listener != null && !closed) {
+            listener.onMined(entry.attachment, transaction, confirmation);
+        }
+
+        if (!confirmation.success) {
+            final TransactionRevertedException e = new TransactionRevertedException(String.format(
+                    "Transaction %s (nonce %s) has been reverted in block %s",
+                    transaction.txhash, transaction.nonce, confirmation.blockNumber));
+            logger.error(e.getMessage());
+            SendMetrics.reverted.inc();
+            if (failure == null) {
+                failure = e;
+            }
+            if (listener != null && !closed) {
+                listener.onFailed(entry.attachment, e);
+            }
+        }
+    }
+
+    /**
+     * Speed up every accepted transaction which is past its replacement deadline.
+     * Runs in the {@link #supervisor}.
+     */
+    private void superviseStuck() {
+        final long now = System.nanoTime();
+        for (final InFlight entry : inFlight.values()) {
+            if (closed) {
+                return;
+            }
+            final boolean due;
+            synchronized (entry) {
+                due = !entry.done && entry.deadline != 0 && now - entry.deadline >= 0;
+            }
+            if (due) {
+                try {
+                    speedUp(entry);
+                } catch (Exception e) {
+                    logger.error("Cannot replace the stuck transaction with nonce {}: {}", entry.nonce, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the stuck transaction with the one paying the higher fees (with the same nonce);
+     * or, if the fees cannot be raised, broadcast it again.
+     */
+    private void speedUp(@NonNull InFlight entry) throws IOException {
+        final TransactionFees previousFees;
+        synchronized (entry) {
+            previousFees = entry.fees;
+            entry.deadline = System.nanoTime() + replacementDeadlineNanos;
+        }
+        final TransactionFees fees = (previousFees == null || entry.transfers == null || entry.gasLimit == null)
+                ? null
+                : feePolicy.getReplacementFees(previousFees);
+
+        final SignedTransaction transaction;
+        synchronized (entry) {
+            if (entry.done) {
+                return;
+            }
+            if (fees == null) {
+                transaction = entry.transaction;
+            } else {
+                transaction = connector.signBulkTransfer(erc20Address, entry.transfers, entry.nonce, entry.gasLimit, fees);
+                // Journaled while the entry is surely not mined, so the journal cannot resurrect it
+                if (listener != null) {
+                    listener.onSigned(entry.attachment, transaction);
+                }
+                entry.transaction = transaction;
+                entry.fees = fees;
+                entry.txhashes.add(transaction.txhash);
+            }
+        }
+
+        if (fees == null) {
+            logger.info("Transaction {} is not mined yet, re-broadcasting it (the fees cannot be raised)", transaction.txhash);
+        } else {
+            logger.info("Transaction with nonce {} is not mined yet, replacing it with {} at {} (was {})",
+                    entry.nonce, transaction.txhash, fees, previousFees);
+            if (listener != null) {
+                listener.beforeSending(entry.attachment, transaction);
+            }
+            // The previous variants stay tracked, as any of them may still be mined
+            watchMined(entry, transaction, false);
+        }
+        try {
+            connector.sendSignedTransaction(transaction);
+            if (fees == null) {
+                SendMetrics.rebroadcast.inc();
+            } else {
+                SendMetrics.replaced.inc();
+                if (listener != null && !closed) {
+                    listener.onAccepted(entry.attachment, transaction);
+                }
+            }
+        } catch (TransactionRejectedException e) {
+            if (e.isNonceTooLow()) {
+                // Some variant has been mined; the tracker will find it in a moment
+                logger.debug("Nonce {} is already used: {}", entry.nonce, e.getMessage());
+            } else if (!e.isAlreadyKnown()) {
+                // E.g. underpriced, if raised only up to the cap; will be raised further from these fees next time
+                logger.warn("Transaction {} rejected: {}", transaction, e.getMessage());
+            }
+        } catch (IOException e) {
+            logger.warn("Transaction {} not sent: {}", transaction, e.getMessage());
+        }
+    }
+
+    private void add(@NonNull InFlight entry) {
+        if (inFlight.put(entry.nonce, entry) == null) {
+            SendMetrics.inFlight.inc();
+        }
+    }
+
+    /**
+     * Remove the entry from the flight and release its permit.
+     *
+     * @return <code>false</code> if the entry is not in flight (already forgotten).
+     */
+    private boolean forget(@NonNull InFlight entry) {
+        if (remove(entry)) {
+            inFlightPermits.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove the entry from the flight, keeping its permit (for the entry taking its place).
+     *
+     * @return <code>false</code> if the entry is not in flight (already forgotten).
+     */
+    private boolean remove(@NonNull InFlight entry) {
+        if (inFlight.remove(entry.nonce, entry)) {
+            SendMetrics.inFlight.dec();
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,314 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.orders.LongHashSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Gas-aware planner splitting the stream of transfers into the BulkSender transactions.
+ * <p>
+ * Instead of the fixed number of transfers per bulk, it packs as many transfers as fit into the gas budget:
+ * the transfer to a new holder (with zero balance) costs much more than to an existing one,
+ * as the first write to an empty storage slot is expensive.
+ * The current balances of the recipients are looked up in advance (concurrently), the bulk is packed
+ * using the gas model, and then verified with <code>eth_estimateGas</code>, which also defines the gas limit
+ * of the transaction. The model is continuously corrected by the actual estimations.
+ * <p>
+ * Without the connection to the node, the planner works offline: every recipient is considered a new holder
+ * (unless it receives something in the earlier bulks), and the gas limit is set by the model alone.
+ */
+public class BulkTransferPlanner {
+
+    private static final Logger logger = LogManager.getLogger(BulkTransferPlanner.class);
+
+    public static final long DEFAULT_MAX_GAS_PER_BULK = 4500000;
+    /**
+     * The gas budget should fit at least a single transfer to a new holder.
+     */
+    public static final long MIN_MAX_GAS_PER_BULK = 100000;
+    /**
+     * The hard limit of transfers in a bulk; keeps the transaction below the 32 KiB size accepted by geth.
+     */
+    public static final int DEFAULT_MAX_TRANSFERS_PER_BULK = 400;
+
+    /**
+     * Gas model: the fixed cost of a BulkSender transaction (the intrinsic cost, the call and the checks).
+     */
+    static final long BULK_BASE_GAS = 50000;
+    /**
+     * Gas model: the cost of a single transfer (storage writes, <code>Transfer</code> event, call data)
+     * to the address with the zero balance.
+     */
+    static final long NEW_HOLDER_TRANSFER_GAS = 32000;
+    /**
+     * Gas model: the cost of a single transfer to the address with the non-zero balance.
+     */
+    static final long EXISTING_HOLDER_TRANSFER_GAS = 17000;
+    /**
+     * The gas limit of the transaction is set to the estimated gas multiplied by this value.
+     */
+    static final double GAS_LIMIT_MARGIN = 1.1;
+    /**
+     * How fast the model correction follows the actual estimations.
+     */
+    static final double CORRECTION_SMOOTHING = 0.3;
+
+    private static final CompletableFuture<BigInteger> UNKNOWN_BALANCE = CompletableFuture.completedFuture(BigInteger.ZERO);
+
+    /**
+     * A bulk of transfers, ready to be sent as a single transaction.
+     */
+    public static class PlannedBulk {
+        /**
+         * Index of the order of the first transfer; the transfers of the bulk correspond to consecutive orders.
+         */
+        public final long firstOrderIndex;
+        @NonNull
+        public final PackedTransfers transfers;
+        @NonNull
+        public final BigInteger estimatedGas;
+        @NonNull
+        public final BigInteger gasLimit;
+
+        PlannedBulk(long firstOrderIndex,
+                    @NonNull PackedTransfers transfers,
+                    @NonNull BigInteger estimatedGas,
+                    @NonNull BigInteger gasLimit) {
+            this.firstOrderIndex = firstOrderIndex;
+            this.transfers = transfers;
+            this.estimatedGas = estimatedGas;
+            this.gasLimit = gasLimit;
+        }
+
+        public long getLastOrderIndex() {
+            return firstOrderIndex + transfers.size() - 1;
+        }
+
+        public String toString() {
+            return String.format("PlannedBulk(orders %s-%s, estimatedGas=%s, gasLimit=%s)",
+                    firstOrderIndex, getLastOrderIndex(), estimatedGas, gasLimit);
+        }
+    }
+
+    /**
+     * <code>null</code> when planning offline.
+     */
+    @Nullable
+    private final BulkSenderConnector connector;
+    @NonNull
+    private final String erc20Address;
+    private final long maxGasPerBulk;
+    private final int maxTransfersPerBulk;
+
+    /**
+     * The transfers offered but not planned yet.
+     */
+    @NonNull
+    private final PackedTransfers pending;
+    /**
+     * The balances of the recipients of the {@link #pending} transfers (in the same order), being looked up.
+     */
+    @NonNull
+    private final ArrayDeque<CompletableFuture<BigInteger>> pendingBalances = new ArrayDeque<>();
+    /**
+     * The order index of the first {@link #pending} transfer.
+     */
+    private long firstPendingOrderIndex = -1;
+    /**
+     * Fingerprints of the addresses which already receive something in the planned bulks
+     * (so they won’t be new holders anymore).
+     */
+    @NonNull
+    private final LongHashSet creditedAddresses = new LongHashSet();
+
+    /**
+     * Ratio of the actually estimated gas to the gas predicted by the model.
+     */
+    private double modelCorrection = 1.0;
+
+
+    /**
+     * Constructor.
+     *
+     * @param connector           the connector to look up the balances and estimate the gas;
+     *                            <code>null</code> to plan offline.
+     * @param maxGasPerBulk       the gas budget of a single bulk transaction (including the safety margin).
+     * @param maxTransfersPerBulk the hard limit of transfers in a single bulk.
+     */
+    public BulkTransferPlanner(@Nullable BulkSenderConnector connector,
+                               @NonNull String erc20Address,
+                               @NonNull BigInteger decimals,
+                               long maxGasPerBulk,
+                               int maxTransfersPerBulk) {
+        assert erc20Address != null;
+        assert erc20Address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : erc20Address;
+        assert decimals != null;
+        assert maxGasPerBulk >= MIN_MAX_GAS_PER_BULK : maxGasPerBulk;
+        assert maxTransfersPerBulk > 0 : maxTransfersPerBulk;
+
+        this.connector = connector;
+        this.erc20Address = erc20Address;
+        this.pending = new PackedTransfers(decimals.intValue(), maxTransfersPerBulk);
+        this.maxGasPerBulk = maxGasPerBulk;
+        this.maxTransfersPerBulk = maxTransfersPerBulk;
+    }
+
+    /**
+     * Add the next transfer.
+     *
+     * @param orderIndex the index of the order; must be the next one after the previously offered.
+     * @param address    the recipient address (validated).
+     * @param amount     the amount, in tokens (validated).
+     * @return the bulk which is ready to be sent, if it is already planned; <code>null</code> otherwise.
+     * @throws IOException if the node cannot help to plan the bulk.
+     */
+    @Nullable
+    public PlannedBulk offer(long orderIndex, @NonNull String address, @NonNull BigDecimal amount) throws IOException {
+        assert address != null;
+        assert amount != null;
+        assert pending.isEmpty() || firstPendingOrderIndex + pending.size() == orderIndex : orderIndex;
+
+        if (pending.isEmpty()) {
+            firstPendingOrderIndex = orderIndex;
+        }
+        pending.add(address, amount);
+        pendingBalances.addLast((connector == null)
+                ? UNKNOWN_BALANCE
+                : connector.getTokenBalanceAsync(erc20Address, address.toLowerCase()));
+
+        return (pending.size() >= maxTransfersPerBulk) ? plan() : null;
+    }
+
+    /**
+     * Plan the bulk from the transfers remaining after all the transfers have been offered.
+     * Should be called repeatedly, until it returns <code>null</code>.
+     *
+     * @return <code>null</code> if there are no more transfers.
+     */
+    @Nullable
+    public PlannedBulk flush() throws IOException {
+        return pending.isEmpty() ? null : plan();
+    }
+
+    /**
+     * Plan the next bulk from the head of {@link #pending}.
+     */
+    @NonNull
+    private PlannedBulk plan() throws IOException {
+        assert !pending.isEmpty();
+
+        // Pack by the model
+        final LongHashSet creditedInCandidate = new LongHashSet();
+        long modelledTransfersGas = 0;
+        int packedSize = 0;
+        final Iterator<CompletableFuture<BigInteger>> balances = pendingBalances.iterator();
+        while (packedSize < pending.size() && packedSize < maxTransfersPerBulk) {
+            final long fingerprint = pending.getAddressFingerprint(packedSize);
+            final boolean isNewHolder = getBalance(balances.next(), packedSize).signum() == 0
+                    && !creditedAddresses.contains(fingerprint)
+                    && !creditedInCandidate.contains(fingerprint);
+            final long transferGas = isNewHolder ? NEW_HOLDER_TRANSFER_GAS : EXISTING_HOLDER_TRANSFER_GAS;
+
+            if (packedSize > 0 && predictGasLimit(modelledTransfersGas + transferGas) > maxGasPerBulk) {
+                break;
+            }
+            creditedInCandidate.add(fingerprint);
+            modelledTransfersGas += transferGas;
+            packedSize++;
+        }
+
+        // Verify by the node; shrink if needed
+        PackedTransfers candidate = pending.copyOfRange(0, packedSize);
+        BigInteger estimatedGas = (connector == null)
+                ? BigInteger.valueOf(BULK_BASE_GAS + modelledTransfersGas)
+                : null;
+        while (estimatedGas == null) {
+            try {
+                final BigInteger estimation = connector.estimateBulkTransferGas(erc20Address, candidate);
+                if (estimation.doubleValue() * GAS_LIMIT_MARGIN <= maxGasPerBulk) {
+                    estimatedGas = estimation;
+                } else if (candidate.size() == 1) {
+                    throw new IOException(String.format(
+                            "Single transfer needs %s gas, over the budget of %s", estimation, maxGasPerBulk));
+                } else {
+                    final int fittingSize = (int) (candidate.size() * maxGasPerBulk / (estimation.doubleValue() * GAS_LIMIT_MARGIN));
+                    logger.debug("Bulk of {} needs {} gas, shrinking to {}", candidate.size(), estimation, fittingSize);
+                    // At least a single transfer, as it may fit even if the bulk is far over the budget
+                    candidate = shrink(candidate, Math.max(1, Math.min(fittingSize, candidate.size() - 1)));
+                }
+            } catch (IOException e) {
+                if (candidate.size() == 1) {
+                    throw e;
+                }
+                logger.debug("Cannot estimate the bulk of {} ({}), shrinking", candidate.size(), e.getMessage());
+                candidate = shrink(candidate, candidate.size() / 2);
+            }
+        }
+
+        // Correct the model; only by the bulks which haven’t been shrunk (so the modelled gas is for the same bulk)
+        if (connector != null && candidate.size() == packedSize) {
+            final double actualRatio = (estimatedGas.doubleValue() - BULK_BASE_GAS) / modelledTransfersGas;
+            modelCorrection += (actualRatio - modelCorrection) * CORRECTION_SMOOTHING;
+        }
+
+        // Take the transfers off the pending queue
+        final long firstOrderIndex = firstPendingOrderIndex;
+        for (int i = 0; i < candidate.size(); i++) {
+            creditedAddresses.add(pending.getAddressFingerprint(i));
+            pendingBalances.removeFirst();
+        }
+        pending.removeFirst(candidate.size());
+        firstPendingOrderIndex += candidate.size();
+
+        final BigInteger gasLimit = BigInteger.valueOf(
+                Math.min(maxGasPerBulk, (long) Math.ceil(estimatedGas.doubleValue() * GAS_LIMIT_MARGIN)));
+        final PlannedBulk result = new PlannedBulk(firstOrderIndex, candidate, estimatedGas, gasLimit);
+        logger.debug("Planned {}, model correction {}", result, modelCorrection);
+        return result;
+    }
+
+    /**
+     * The upper bound of the gas all the bulks of the transfers may use (by the gas model,
+     * as if every recipient were a new holder); e.g. to check there is enough ether to pay for it.
+     */
+    public static long estimateMaxTotalGas(long transferCount, long maxGasPerBulk, int maxTransfersPerBulk) {
+        assert transferCount >= 0 : transferCount;
+        assert maxGasPerBulk >= MIN_MAX_GAS_PER_BULK : maxGasPerBulk;
+        assert maxTransfersPerBulk > 0 : maxTransfersPerBulk;
+
+        final long transfersPerBulk = Math.max(1, Math.min(maxTransfersPerBulk,
+                (long) (maxGasPerBulk / GAS_LIMIT_MARGIN - BULK_BASE_GAS) / NEW_HOLDER_TRANSFER_GAS));
+        final long bulkCount = (transferCount + transfersPerBulk - 1) / transfersPerBulk;
+        return bulkCount * BULK_BASE_GAS + transferCount * NEW_HOLDER_TRANSFER_GAS;
+    }
+
+    private long predictGasLimit(long modelledTransfersGas) {
+        return (long) ((BULK_BASE_GAS + modelledTransfersGas * modelCorrection) * GAS_LIMIT_MARGIN);
+    }
+
+    @NonNull
+    private static PackedTransfers shrink(@NonNull PackedTransfers candidate, int newSize) {
+        assert newSize > 0 && newSize < candidate.size() : newSize;
+        return candidate.copyOfRange(0, newSize);
+    }
+
+    @NonNull
+    private BigInteger getBalance(@NonNull CompletableFuture<BigInteger> balance, int pendingIndex) throws IOException {
+        try {
+            return balance.join();
+        } catch (CompletionException e) {
+            throw new IOException("Cannot read the balance of " + pending.getAddress(pendingIndex), e.getCause());
+        }
+    }
+}
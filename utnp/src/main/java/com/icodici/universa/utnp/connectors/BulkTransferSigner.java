@@ -0,0 +1,100 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.ethereum.TransactionFees;
+import com.icodici.universa.utnp.ethereum.TransactionSigner;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.Keys;
+import org.web3j.tx.ChainId;
+
+import java.math.BigInteger;
+
+/**
+ * Signer of the BulkSender <code>bulkTransfer</code> calls.
+ * <p>
+ * Needs no connection to the node, so it can be used on an offline machine.
+ * Thread-safe; the transactions may be signed in parallel.
+ */
+public class BulkTransferSigner {
+
+    @NonNull
+    private final TransactionSigner signer;
+    @NonNull
+    private final String senderAddress;
+    @NonNull
+    private final String bulkSenderAddress;
+    @NonNull
+    private final TransactionFees fees;
+
+
+    /**
+     * Constructor.
+     *
+     * @param privateKey        the private key that has the permission to use BulkSender contract.
+     * @param bulkSenderAddress the Ethereum address of the BulkSender contract.
+     * @param gasPrice          the gas price of the transactions, in wei
+     *                          (unless other fees are passed to {@link #sign(String, PackedTransfers, BigInteger, BigInteger, TransactionFees)}).
+     */
+    public BulkTransferSigner(@NonNull byte[] privateKey,
+                              @NonNull String bulkSenderAddress,
+                              @NonNull BigInteger gasPrice) {
+        assert privateKey != null;
+        assert privateKey.length == EthereumUtils.PRIVATE_KEY_SIZE : privateKey.length;
+        assert bulkSenderAddress != null;
+        assert bulkSenderAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : bulkSenderAddress;
+        assert gasPrice != null;
+        assert gasPrice.signum() > 0 : gasPrice;
+
+        final ECKeyPair keyPair = ECKeyPair.create(privateKey);
+        this.signer = new TransactionSigner(keyPair, ChainId.MAINNET);
+        this.senderAddress = "0x" + Keys.getAddress(keyPair);
+        this.bulkSenderAddress = bulkSenderAddress;
+        this.fees = TransactionFees.legacy(gasPrice);
+    }
+
+    /**
+     * The address of the account sending the transactions, in DB format (lowercase, with <code>0x</code> prefix).
+     */
+    @NonNull
+    public String getSenderAddress() {
+        return senderAddress;
+    }
+
+    /**
+     * Build and sign the BulkTransfer contract call, at the gas price passed to the constructor.
+     */
+    @NonNull
+    public SignedTransaction sign(@NonNull String erc20Address,
+                                  @NonNull PackedTransfers transfers,
+                                  @NonNull BigInteger nonce,
+                                  @NonNull BigInteger gasLimit) {
+        return sign(erc20Address, transfers, nonce, gasLimit, fees);
+    }
+
+    /**
+     * Build and sign the BulkTransfer contract call, paying the specified fees
+     * (as a legacy or an EIP-1559 transaction, by the kind of the fees).
+     */
+    @NonNull
+    public SignedTransaction sign(@NonNull String erc20Address,
+                                  @NonNull PackedTransfers transfers,
+                                  @NonNull BigInteger nonce,
+                                  @NonNull BigInteger gasLimit,
+                                  @NonNull TransactionFees fees) {
+        assert erc20Address != null;
+        assert erc20Address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : erc20Address;
+        assert transfers != null;
+        assert !transfers.isEmpty();
+        assert nonce != null;
+        assert nonce.signum() >= 0 : nonce;
+        assert gasLimit != null;
+        assert gasLimit.signum() > 0 : gasLimit;
+        assert fees != null;
+
+        return signer.sign(nonce, fees, gasLimit, bulkSenderAddress, BigInteger.ZERO,
+                BulkTransferEncoder.getCalldataLength(transfers.size()),
+                (dest, offset) -> BulkTransferEncoder.encode(erc20Address, transfers, dest, offset));
+    }
+}
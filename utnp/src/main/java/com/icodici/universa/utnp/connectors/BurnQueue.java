@@ -0,0 +1,607 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.FeePolicy;
+import com.icodici.universa.utnp.ethereum.NonceAllocator;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.ethereum.TransactionFees;
+import com.icodici.universa.utnp.journal.BurnJournal;
+import com.icodici.universa.utnp.journal.BurnJournal.Batch;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The queue in front of {@link UTNPConnector}, coalescing the burn requests into the fewer <code>burn(total)</code>
+ * transactions: the pending requests are burned together once there are <code>maxRequestsPerBurn</code> of them,
+ * or once the oldest one has waited for <code>windowMs</code>.
+ * <p>
+ * The requests are accepted without blocking; each one is resolved with the txhash of the burn which has included it,
+ * once that is mined. The state is kept in {@link BurnJournal}: after a crash, the queue reopened with the same journal
+ * re-broadcasts the burns that might have been sent (as the very same transactions) and burns the pending requests;
+ * the requests submitted again with the same ids are resolved as the original ones.
+ * <p>
+ * A single burn is in flight at a time (the next requests are coalesced meanwhile); the burns are sent
+ * from the own thread of the queue. The burn not mined for <code>replacementDeadlineMs</code> (stuck,
+ * or dropped from the mempool) is replaced with the one paying the higher fees, or broadcast again
+ * if the fees cannot be raised. Thread-safe.
+ */
+public class BurnQueue implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(BurnQueue.class);
+
+    public static final int DEFAULT_MAX_REQUESTS_PER_BURN = 1000;
+    public static final long DEFAULT_WINDOW_MS = 60000;
+    public static final long DEFAULT_REPLACEMENT_DEADLINE_MS = BulkTransferPipeline.DEFAULT_REPLACEMENT_DEADLINE_MS;
+    /**
+     * How long to wait before retrying the burn, if the node cannot be reached.
+     */
+    static final long RETRY_DELAY_MS = 5000;
+
+    @NonNull
+    private final UTNPConnector connector;
+    @NonNull
+    private final BurnJournal journal;
+    @NonNull
+    private final NonceAllocator nonceAllocator;
+    private final int maxRequestsPerBurn;
+    private final long windowMs;
+    /**
+     * 0 if the stuck burns are never replaced.
+     */
+    private final long replacementDeadlineMs;
+    @NonNull
+    private final FeePolicy feePolicy;
+    @NonNull
+    private final Thread thread;
+    /**
+     * Completed on {@link #close()}, to stop waiting for anything.
+     */
+    @NonNull
+    private final CompletableFuture<Void> closing = new CompletableFuture<>();
+
+    /**
+     * The results of the requests not burned yet, by their ids.
+     */
+    @NonNull
+    private final Map<String, CompletableFuture<String>> results = new HashMap<>();
+    /**
+     * When the oldest pending request has arrived (by {@link System#currentTimeMillis()}); -1 if none is pending.
+     */
+    private long firstPendingAt = -1;
+    /**
+     * Burn the pending requests now, without waiting for the window to end.
+     */
+    private boolean flushRequested = false;
+    private boolean closed = false;
+    @Nullable
+    private Throwable failure = null;
+    private long burnCount = 0;
+
+
+    /**
+     * Constructor; starts the queue (first of all, resuming the burns left in the journal).
+     * The stuck burns are broadcast again after {@link #DEFAULT_REPLACEMENT_DEADLINE_MS}, never raising their fees.
+     *
+     * @param journal            the journal of the queue; must be used by no other queue, and must be closed
+     *                           by the caller after the queue.
+     * @param maxRequestsPerBurn burn the pending requests once there are so many of them.
+     * @param windowMs           burn the pending requests once the oldest of them has waited so long.
+     * @throws IOException if the nonce cannot be read from the node.
+     */
+    public BurnQueue(@NonNull UTNPConnector connector,
+                     @NonNull BurnJournal journal,
+                     int maxRequestsPerBurn,
+                     long windowMs) throws IOException {
+        this(connector, journal, maxRequestsPerBurn, windowMs, DEFAULT_REPLACEMENT_DEADLINE_MS, connector.getGasPrice());
+    }
+
+    /**
+     * Constructor; starts the queue (first of all, resuming the burns left in the journal).
+     *
+     * @param journal               the journal of the queue; must be used by no other queue, and must be closed
+     *                              by the caller after the queue.
+     * @param maxRequestsPerBurn    burn the pending requests once there are so many of them.
+     * @param windowMs              burn the pending requests once the oldest of them has waited so long.
+     * @param replacementDeadlineMs how long the burn may stay not mined before it is replaced (or broadcast again);
+     *                              0 to never replace the burns.
+     * @param maxGasPrice           the replacements never pay more per gas than this, in wei; if it is not above
+     *                              the gas price of the connector, the stuck burns are only broadcast again.
+     * @throws IOException if the nonce cannot be read from the node.
+     */
+    public BurnQueue(@NonNull UTNPConnector connector,
+                     @NonNull BurnJournal journal,
+                     int maxRequestsPerBurn,
+                     long windowMs,
+                     long replacementDeadlineMs,
+                     @NonNull BigInteger maxGasPrice) throws IOException {
+        assert connector != null;
+        assert journal != null;
+        assert maxRequestsPerBurn > 0 : maxRequestsPerBurn;
+        assert windowMs >= 0 : windowMs;
+        assert replacementDeadlineMs >= 0 : replacementDeadlineMs;
+        assert maxGasPrice != null;
+        assert maxGasPrice.compareTo(connector.getGasPrice()) >= 0 : maxGasPrice;
+
+        this.connector = connector;
+        this.journal = journal;
+        this.maxRequestsPerBurn = maxRequestsPerBurn;
+        this.windowMs = windowMs;
+        this.replacementDeadlineMs = replacementDeadlineMs;
+        this.feePolicy = new FeePolicy(TransactionFees.legacy(connector.getGasPrice()), maxGasPrice);
+        this.nonceAllocator = connector.createNonceAllocator();
+
+        // The requests left from the previous run may be submitted again, and get the same results
+        for (final String requestId : journal.getPending(Integer.MAX_VALUE)) {
+            results.put(requestId, new CompletableFuture<>());
+        }
+        for (final Batch batch : journal.getUnconfirmed()) {
+            batch.requestIds.forEach(requestId -> results.put(requestId, new CompletableFuture<>()));
+        }
+        if (journal.getPendingCount() > 0) {
+            firstPendingAt = System.currentTimeMillis();
+        }
+
+        thread = new Thread(this::run, "burn-queue");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Request to burn the tokens, without blocking: the request is journaled (written through to the operating system),
+     * and burned along with the others later.
+     *
+     * @param requestId    the unique id of the request; if a request with the same id has been submitted already
+     *                     (maybe before a crash) and not dropped, its result is returned, and nothing is burned again.
+     * @param amountToBurn how many (in UTN-P contracts; a number with decimal point maybe) to burn.
+     * @return the {@link CompletableFuture} with the txhash of the burn which has included the request,
+     * completed when it is mined; or completed exceptionally with {@link TransactionRevertedException}
+     * if that burn has been reverted, with {@link TransactionRejectedException} if the node has refused it,
+     * or with {@link IllegalStateException} if the queue is closed or has failed before.
+     * @throws IOException           if the request cannot be journaled.
+     * @throws IllegalStateException if the queue is closed or has failed.
+     */
+    @NonNull
+    public CompletableFuture<String> submit(@NonNull String requestId, @NonNull BigDecimal amountToBurn) throws IOException {
+        assert requestId != null;
+        assert !requestId.isEmpty();
+        assert amountToBurn != null;
+        assert amountToBurn.signum() > 0 : amountToBurn;
+
+        final BigInteger amount = EthereumUtils.intFromDecimal(amountToBurn, AbstractConnector.UTNP_DECIMALS);
+        synchronized (this) {
+            if (failure != null) {
+                throw new IllegalStateException("The burn queue has failed", failure);
+            } else if (closed) {
+                throw new IllegalStateException("The burn queue is closed");
+            }
+
+            final CompletableFuture<String> existing = results.get(requestId);
+            if (existing != null) {
+                return existing;
+            }
+            final String txhash = journal.getBurnTxhash(requestId);
+            if (txhash != null) {
+                return CompletableFuture.completedFuture(txhash);
+            }
+
+            journal.request(requestId, amount);
+            final CompletableFuture<String> result = new CompletableFuture<>();
+            results.put(requestId, result);
+            if (firstPendingAt < 0) {
+                firstPendingAt = System.currentTimeMillis();
+            }
+            notifyAll();
+            return result;
+        }
+    }
+
+    /**
+     * Burn all the requests pending now, without waiting for the window to end.
+     */
+    public synchronized void flush() {
+        flushRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * How many requests are waiting to be included into a burn.
+     */
+    public int getPendingCount() {
+        return journal.getPendingCount();
+    }
+
+    /**
+     * How many burns have been mined successfully since the queue has been started.
+     */
+    public synchronized long getBurnCount() {
+        return burnCount;
+    }
+
+    /**
+     * The reason of the queue failure (such as the journal cannot be written); <code>null</code> if it works.
+     */
+    @Nullable
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stop the queue, not waiting for the burn in flight to be mined. The requests not burned yet stay in the journal
+     * (for the queue reopened with it); their results are completed exceptionally with {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        // Not interrupting the thread: that would close the channel of the journal
+        closing.complete(null);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failAll(new IllegalStateException("The burn queue is closed; the request stays in the journal"));
+    }
+
+    private void run() {
+        try {
+            // The burns that might have been sent before are resumed first, so the new ones don’t take their nonces
+            final List<Batch> unconfirmed = journal.getUnconfirmed();
+            if (!unconfirmed.isEmpty()) {
+                logger.info("Resuming {} burn(s) from the journal", unconfirmed.size());
+                for (final Batch batch : unconfirmed) {
+                    if (!confirm(batch) || !resyncNonce()) {
+                        return;
+                    }
+                }
+            }
+
+            List<String> requestIds;
+            while ((requestIds = awaitRequests()) != null) {
+                BigInteger amount = BigInteger.ZERO;
+                for (final String requestId : requestIds) {
+                    amount = amount.add(journal.getAmount(requestId));
+                }
+                final SignedTransaction transaction = connector.signBurn(nonceAllocator.allocate(), amount);
+                final Batch batch = journal.signed(transaction, requestIds);
+                logger.debug("Burning {} in {}", amount, batch);
+                if (!confirm(batch)) {
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("The burn queue has failed", e);
+            synchronized (this) {
+                failure = e;
+            }
+            failAll(new IllegalStateException("The burn queue has failed", e));
+        }
+    }
+
+    /**
+     * Wait until the pending requests are to be burned.
+     *
+     * @return the requests to burn; <code>null</code> if the queue is closed.
+     */
+    @Nullable
+    private synchronized List<String> awaitRequests() {
+        while (!closed) {
+            final int pendingCount = journal.getPendingCount();
+            if (pendingCount == 0) {
+                flushRequested = false;
+                firstPendingAt = -1;
+                waitQuietly(0);
+                continue;
+            }
+            final long waitMs = firstPendingAt + windowMs - System.currentTimeMillis();
+            if (pendingCount >= maxRequestsPerBurn || flushRequested || waitMs <= 0) {
+                final List<String> requestIds = journal.getPending(maxRequestsPerBurn);
+                if (pendingCount == requestIds.size()) {
+                    // The rest (if any) has waited already, so it is burned right after these
+                    flushRequested = false;
+                    firstPendingAt = -1;
+                }
+                return requestIds;
+            }
+            waitQuietly(waitMs);
+        }
+        return null;
+    }
+
+    /**
+     * Send the burn (or re-broadcast it) and wait until any of its variants is mined; resolve its requests accordingly.
+     *
+     * @return <code>false</code> if the queue is closed meanwhile.
+     * @throws IOException if the journal cannot be written.
+     */
+    private boolean confirm(@NonNull Batch batch) throws IOException {
+        // Every variant is tracked, as any of them may be mined
+        final Map<String, CompletableFuture<Confirmation>> tracked = new HashMap<>();
+        try {
+            boolean sent = false;
+            long deadline = 0;
+            while (true) {
+                for (final SignedTransaction variant : batch.getVariants()) {
+                    tracked.computeIfAbsent(variant.txhash, connector::confirmAsync);
+                }
+                if (!sent) {
+                    final Boolean accepted = send(batch);
+                    if (accepted == null) {
+                        if (!sleep(RETRY_DELAY_MS)) {
+                            return false;
+                        }
+                        continue;
+                    } else if (!accepted) {
+                        return resyncNonce();
+                    }
+                    sent = true;
+                    deadline = System.currentTimeMillis() + replacementDeadlineMs;
+                }
+
+                final CompletableFuture<?> mined = CompletableFuture.anyOf(tracked.values().toArray(new CompletableFuture[0]));
+                if (replacementDeadlineMs == 0) {
+                    if (!awaitDone(mined)) {
+                        return false;
+                    }
+                } else if (!awaitDone(mined, deadline - System.currentTimeMillis())) {
+                    if (closing.isDone()) {
+                        return false;
+                    }
+                    // Stuck, or dropped from the mempool
+                    replace(batch);
+                    sent = false;
+                    continue;
+                }
+
+                final Throwable cause = getFailure(mined);
+                if (cause == null) {
+                    final Confirmation confirmation = (Confirmation) mined.join();
+                    final SignedTransaction transaction = batch.getVariants().stream()
+                            .filter(variant -> variant.txhash.equals(confirmation.txhash))
+                            .findFirst().orElseThrow(IllegalStateException::new);
+                    journal.mined(batch, transaction);
+                    synchronized (this) {
+                        burnCount++;
+                    }
+                    complete(batch, transaction.txhash, null);
+                    return true;
+                } else if (cause instanceof TransactionRevertedException) {
+                    logger.error("The {} has been reverted", batch);
+                    journal.failed(batch, cause.getMessage());
+                    complete(batch, null, cause);
+                    return resyncNonce();
+                }
+                logger.warn("Cannot watch the {} ({}), retrying in {} ms", batch, cause.getMessage(), RETRY_DELAY_MS);
+                // Tracked again next time
+                tracked.values().removeIf(CompletableFuture::isCompletedExceptionally);
+                if (!sleep(RETRY_DELAY_MS)) {
+                    return false;
+                }
+            }
+        } finally {
+            // The other variants with the same nonce can never be mined now (or are still watched on the next start)
+            final ConfirmationTracker tracker = connector.getConfirmationTracker();
+            tracked.forEach((txhash, mined) -> {
+                if (!mined.isDone()) {
+                    tracker.untrack(txhash);
+                }
+            });
+        }
+    }
+
+    /**
+     * Broadcast the latest variant of the burn; if the node refuses it, resolve its requests accordingly.
+     *
+     * @return <code>true</code> if the node has the burn (whether just accepted or known before);
+     * <code>false</code> if the burn is refused (so its requests are resolved, or pending again);
+     * <code>null</code> if it is to be retried.
+     * @throws IOException if the journal cannot be written.
+     */
+    @Nullable
+    private Boolean send(@NonNull Batch batch) throws IOException {
+        final SignedTransaction transaction = batch.getLatest();
+        final CompletableFuture<Void> sending = connector.sendSignedTransactionAsync(transaction);
+        if (!awaitDone(sending)) {
+            return null;
+        }
+        final Throwable cause = getFailure(sending);
+        if (cause == null) {
+            return true;
+        } else if (!(cause instanceof TransactionRejectedException)) {
+            logger.warn("Cannot send the {} ({}), retrying in {} ms", batch, cause.getMessage(), RETRY_DELAY_MS);
+            return null;
+        }
+
+        final List<SignedTransaction> variants = batch.getVariants();
+        boolean known = false;
+        final boolean superseded;
+        try {
+            for (final SignedTransaction variant : variants) {
+                known = known || connector.isTransactionKnown(variant.txhash);
+            }
+            superseded = !known && transaction.nonce.compareTo(nonceAllocator.fetchMinedCount()) < 0;
+        } catch (IOException e) {
+            logger.warn("Cannot check the {} ({}), retrying in {} ms", batch, e.getMessage(), RETRY_DELAY_MS);
+            return null;
+        }
+        if (known) {
+            // Sent before (e.g. before the crash, or before the replacement); just wait for it
+            return true;
+        } else if (superseded) {
+            // Its nonce is taken by another transaction, so it can never be mined
+            logger.warn("The {} is superseded by another transaction of the burner; burning its requests again", batch);
+            journal.requeued(batch);
+            flush();
+            return false;
+        } else if (variants.size() > 1) {
+            // The previous variant may still be mined; the replacement is retried at the next deadline
+            logger.warn("The replacement {} of the {} is refused by the node: {}",
+                    transaction.txhash, batch, cause.getMessage());
+            return true;
+        } else {
+            logger.error("The {} is refused by the node: {}", batch, cause.getMessage());
+            journal.failed(batch, cause.getMessage());
+            complete(batch, null, cause);
+            return false;
+        }
+    }
+
+    /**
+     * Sign the replacement of the stuck burn, paying the higher fees; the caller broadcasts it (or,
+     * if the fees cannot be raised, broadcasts the latest variant again).
+     *
+     * @throws IOException if the journal cannot be written.
+     */
+    private void replace(@NonNull Batch batch) throws IOException {
+        final SignedTransaction latest = batch.getLatest();
+        TransactionFees fees;
+        try {
+            fees = feePolicy.getReplacementFees(latest.getFees());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Cannot raise the fees of the {}: {}", batch, e.getMessage());
+            fees = null;
+        }
+        if (fees == null) {
+            logger.info("The {} is not mined yet, re-broadcasting it (the fees cannot be raised)", batch);
+            return;
+        }
+        final SignedTransaction transaction = connector.signBurn(latest.nonce, batch.amount, fees);
+        // Journaled before it is sent, so it is watched after a crash too
+        journal.replaced(batch, transaction);
+        logger.info("The {} is not mined yet, replacing it with {} at {}", batch, transaction.txhash, fees);
+    }
+
+    /**
+     * Ask the node for the next nonce (once a burn has used it, or has not); as a single burn is in flight at a time,
+     * the nonce of the refused one is taken again, leaving no gap.
+     *
+     * @return <code>false</code> if the queue is closed meanwhile.
+     */
+    private boolean resyncNonce() {
+        while (true) {
+            try {
+                nonceAllocator.reset();
+                return true;
+            } catch (IOException e) {
+                logger.warn("Cannot get the nonce ({}), retrying in {} ms", e.getMessage(), RETRY_DELAY_MS);
+            }
+            if (!sleep(RETRY_DELAY_MS)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Resolve the requests of the burn: with the txhash, or exceptionally.
+     */
+    private void complete(@NonNull Batch batch, @Nullable String txhash, @Nullable Throwable cause) {
+        final List<CompletableFuture<String>> completed = new ArrayList<>(batch.requestIds.size());
+        synchronized (this) {
+            for (final String requestId : batch.requestIds) {
+                final CompletableFuture<String> result = results.remove(requestId);
+                if (result != null) {
+                    completed.add(result);
+                }
+            }
+        }
+        // Outside the lock, as the callbacks may submit more
+        for (final CompletableFuture<String> result : completed) {
+            if (cause == null) {
+                result.complete(txhash);
+            } else {
+                result.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private void failAll(@NonNull Throwable cause) {
+        final List<CompletableFuture<String>> failed;
+        synchronized (this) {
+            failed = new ArrayList<>(results.values());
+            results.clear();
+        }
+        failed.forEach(result -> result.completeExceptionally(cause));
+    }
+
+    /**
+     * @return <code>false</code> if the queue is closed before the future is done.
+     */
+    private boolean awaitDone(@NonNull CompletableFuture<?> future) {
+        try {
+            CompletableFuture.anyOf(future, closing).join();
+        } catch (CompletionException | CancellationException ignored) {
+            // Checked by the caller
+        }
+        return future.isDone();
+    }
+
+    /**
+     * @return <code>false</code> if the queue is closed, or the timeout passes, before the future is done.
+     */
+    private boolean awaitDone(@NonNull CompletableFuture<?> future, long timeoutMs) {
+        try {
+            CompletableFuture.anyOf(future, closing).get(Math.max(timeoutMs, 0), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | CancellationException | TimeoutException ignored) {
+            // Checked by the caller
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return future.isDone();
+    }
+
+    /**
+     * @return <code>false</code> if the queue is closed meanwhile.
+     */
+    private boolean sleep(long delayMs) {
+        return awaitDone(CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS)));
+    }
+
+    private void waitQuietly(long timeoutMs) {
+        try {
+            wait(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    /**
+     * The reason the (completed) future has failed; <code>null</code> if it has succeeded.
+     */
+    @Nullable
+    private static Throwable getFailure(@NonNull CompletableFuture<?> future) {
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException | CancellationException e) {
+            return e;
+        }
+    }
+}
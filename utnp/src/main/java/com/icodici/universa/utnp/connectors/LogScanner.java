@@ -0,0 +1,374 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthLog;
+import org.web3j.protocol.core.methods.response.Log;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Scans the logs emitted by a contract over a range of blocks, with <code>eth_getLogs</code>.
+ * <p>
+ * The range is split into the queries of up to <code>blocksPerQuery</code> blocks, up to
+ * <code>maxConcurrentQueries</code> of them running at once (the bisected halves included).
+ * If the node refuses a query (typically, as it matches too many logs), or the query times out, or its response
+ * is too large for the transport, the query is bisected and both halves are requested again, down to
+ * a single block; the later queries are made smaller too (and grow back while they succeed).
+ * Thread-safe.
+ *
+ * @param <T> the decoded log.
+ */
+public class LogScanner<T> {
+
+    private static final Logger logger = LogManager.getLogger(LogScanner.class);
+
+    public static final int DEFAULT_BLOCKS_PER_QUERY = 2000;
+    public static final int DEFAULT_MAX_CONCURRENT_QUERIES = 8;
+
+    /**
+     * The transport failures the smaller query may avoid: the timeouts, and the responses too large
+     * (HTTP 413, or the WebSocket message too big).
+     */
+    private static final Pattern HEAVY_QUERY_FAILURE = Pattern.compile("(?i)timeout|timed out|too large|too big|HTTP 413");
+
+    /**
+     * Decodes the log.
+     */
+    public interface Decoder<T> {
+        /**
+         * @return <code>null</code> to skip the log.
+         * @throws IOException if the log is malformed.
+         */
+        @Nullable
+        T decode(@NonNull Log log) throws IOException;
+    }
+
+    /**
+     * Receives the decoded logs found by {@link #scan}, in the order of the blocks.
+     */
+    public interface Consumer<T> {
+        void accept(@NonNull T item) throws IOException;
+    }
+
+    /**
+     * The blocks being scanned by a single (possibly bisected) query.
+     */
+    private static class Range<T> {
+        @NonNull
+        final CompletableFuture<List<T>> items;
+
+        Range(@NonNull CompletableFuture<List<T>> items) {
+            this.items = items;
+        }
+    }
+
+    @NonNull
+    private final Web3j web3j;
+    @NonNull
+    private final String contractAddress;
+    @NonNull
+    private final List<List<String>> topics;
+    @NonNull
+    private final Decoder<T> decoder;
+    private final int maxBlocksPerQuery;
+    private final int maxConcurrentQueries;
+
+    /**
+     * The size of the next query, adapted to the refusals; guarded by <code>this</code>.
+     */
+    private long blocksPerQuery;
+    private long queryCount = 0;
+    private long bisectionCount = 0;
+    /**
+     * The queries sent and not answered yet; guarded by <code>this</code>.
+     */
+    private int runningQueries = 0;
+    /**
+     * The queries waiting for the running ones to finish; guarded by <code>this</code>.
+     */
+    @NonNull
+    private final ArrayDeque<Runnable> waitingQueries = new ArrayDeque<>();
+
+
+    /**
+     * Constructor.
+     *
+     * @param topics               the topics filter: for every position, the alternative topics
+     *                             (an empty list matches any topic).
+     * @param blocksPerQuery       the maximum number of blocks to ask by a single query.
+     * @param maxConcurrentQueries how many queries may be running at once.
+     */
+    public LogScanner(@NonNull AbstractConnector connector,
+                      @NonNull String contractAddress,
+                      @NonNull List<List<String>> topics,
+                      @NonNull Decoder<T> decoder,
+                      int blocksPerQuery,
+                      int maxConcurrentQueries) {
+        this(connector.web3j, contractAddress, topics, decoder, blocksPerQuery, maxConcurrentQueries);
+    }
+
+    LogScanner(@NonNull Web3j web3j,
+               @NonNull String contractAddress,
+               @NonNull List<List<String>> topics,
+               @NonNull Decoder<T> decoder,
+               int blocksPerQuery,
+               int maxConcurrentQueries) {
+        assert web3j != null;
+        assert contractAddress != null;
+        assert EthereumUtils.isHexAddress(contractAddress) : contractAddress;
+        assert topics != null;
+        assert decoder != null;
+        assert blocksPerQuery > 0 : blocksPerQuery;
+        assert maxConcurrentQueries > 0 : maxConcurrentQueries;
+
+        this.web3j = web3j;
+        this.contractAddress = contractAddress;
+        this.topics = topics;
+        this.decoder = decoder;
+        this.maxBlocksPerQuery = blocksPerQuery;
+        this.blocksPerQuery = blocksPerQuery;
+        this.maxConcurrentQueries = maxConcurrentQueries;
+    }
+
+    /**
+     * Scan the blocks from <code>fromBlock</code> to <code>toBlock</code> (inclusive), streaming the decoded logs
+     * to the consumer in the order of the blocks (and of the logs within the block).
+     * The consumer is called from the caller thread.
+     *
+     * @return how many logs have been found (and not skipped by the decoder).
+     * @throws IOException if some query fails even for a single block, or the log is malformed,
+     *                     or the consumer fails.
+     */
+    public long scan(long fromBlock, long toBlock, @NonNull Consumer<T> consumer) throws IOException, InterruptedException {
+        assert fromBlock >= 0 : fromBlock;
+        assert consumer != null;
+
+        final ArrayDeque<Range<T>> running = new ArrayDeque<>();
+        long nextBlock = fromBlock, count = 0;
+        try {
+            while (nextBlock <= toBlock || !running.isEmpty()) {
+                // Only the queries admitted by the limiter are sent; this bounds the ranges buffered ahead
+                if (nextBlock <= toBlock && running.size() < maxConcurrentQueries) {
+                    final long last = Math.min(toBlock, nextBlock + getBlocksPerQuery() - 1);
+                    running.add(new Range<>(queryAsync(nextBlock, last)));
+                    nextBlock = last + 1;
+                    continue;
+                }
+                // Delivered in order; the later queries keep running meanwhile
+                final Range<T> done = running.remove();
+                final List<T> items;
+                try {
+                    items = done.items.get();
+                } catch (ExecutionException e) {
+                    throw (e.getCause() instanceof IOException)
+                            ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                }
+                for (final T item : items) {
+                    consumer.accept(item);
+                }
+                count += items.size();
+            }
+        } finally {
+            running.forEach(range -> range.items.cancel(false));
+        }
+        return count;
+    }
+
+    /**
+     * How many <code>eth_getLogs</code> queries have been made.
+     */
+    public synchronized long getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * How many queries have been refused by the node (or failed as too heavy), and bisected.
+     */
+    public synchronized long getBisectionCount() {
+        return bisectionCount;
+    }
+
+    private synchronized long getBlocksPerQuery() {
+        return blocksPerQuery;
+    }
+
+    /**
+     * Query the logs of the blocks once the limiter admits it; bisect the range if the node refuses it.
+     *
+     * @return the {@link CompletableFuture} with the decoded logs, in order; or completed exceptionally
+     * with {@link IOException} if the node cannot be reached, or refuses even a single block.
+     */
+    @NonNull
+    private CompletableFuture<List<T>> queryAsync(long fromBlock, long toBlock) {
+        final CompletableFuture<List<T>> result = new CompletableFuture<>();
+        final Runnable query = () -> query(fromBlock, toBlock, result);
+        synchronized (this) {
+            if (runningQueries >= maxConcurrentQueries) {
+                waitingQueries.add(query);
+                return result;
+            }
+            runningQueries++;
+        }
+        query.run();
+        return result;
+    }
+
+    /**
+     * Send the query admitted by the limiter; on the response, pass its place to the next waiting query
+     * (or, if bisected, to the first half).
+     */
+    private void query(long fromBlock, long toBlock, @NonNull CompletableFuture<List<T>> result) {
+        if (result.isDone()) {
+            // Cancelled while waiting
+            queryDone();
+            return;
+        }
+        final EthFilter filter = new EthFilter(
+                DefaultBlockParameter.valueOf(BigInteger.valueOf(fromBlock)),
+                DefaultBlockParameter.valueOf(BigInteger.valueOf(toBlock)),
+                contractAddress);
+        for (final List<String> alternatives : topics) {
+            if (alternatives.isEmpty()) {
+                filter.addNullTopic();
+            } else if (alternatives.size() == 1) {
+                filter.addSingleTopic(alternatives.get(0));
+            } else {
+                filter.addOptionalTopics(alternatives.toArray(new String[0]));
+            }
+        }
+        synchronized (this) {
+            queryCount++;
+        }
+
+        web3j.ethGetLogs(filter).sendAsync().whenComplete((response, throwable) -> {
+            final Throwable failure = (throwable instanceof CompletionException) ? throwable.getCause() : throwable;
+            if (failure == null && !response.hasError()) {
+                queryDone();
+                synchronized (this) {
+                    blocksPerQuery = Math.min(maxBlocksPerQuery, blocksPerQuery + Math.max(1, blocksPerQuery / 4));
+                }
+                try {
+                    result.complete(decode(response));
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                }
+            } else if (failure != null && (fromBlock == toBlock || !isHeavyQueryFailure(failure))) {
+                // The node cannot be reached (or fails even a single block); the smaller query wouldn’t help
+                queryDone();
+                result.completeExceptionally(failure);
+            } else if (fromBlock == toBlock) {
+                queryDone();
+                result.completeExceptionally(new IOException(String.format(
+                        "eth_getLogs failed for block %s: %s", fromBlock, response.getError().getMessage())));
+            } else {
+                bisect(fromBlock, toBlock,
+                        (failure == null) ? response.getError().getMessage() : String.valueOf(failure), result);
+            }
+        });
+    }
+
+    /**
+     * Query both halves of the range that has failed, and combine them into the result.
+     * The first half takes over the place of the failed query in the limiter.
+     */
+    private void bisect(long fromBlock, long toBlock, @NonNull String reason, @NonNull CompletableFuture<List<T>> result) {
+        final long middle = fromBlock + (toBlock - fromBlock) / 2;
+        synchronized (this) {
+            bisectionCount++;
+            blocksPerQuery = Math.max(1, Math.min(blocksPerQuery, middle - fromBlock + 1));
+        }
+        logger.debug("eth_getLogs failed for blocks {}-{} ({}), bisecting", fromBlock, toBlock, reason);
+        final CompletableFuture<List<T>> first = new CompletableFuture<>();
+        query(fromBlock, middle, first);
+        final CompletableFuture<List<T>> second = queryAsync(middle + 1, toBlock);
+        result.whenComplete((items, failure) -> {
+            if (result.isCancelled()) {
+                first.cancel(false);
+                second.cancel(false);
+            }
+        });
+        first.thenCombine(second, (firstItems, secondItems) -> {
+            final List<T> combined = new ArrayList<>(firstItems.size() + secondItems.size());
+            combined.addAll(firstItems);
+            combined.addAll(secondItems);
+            return combined;
+        }).whenComplete((combined, failure) -> {
+            if (failure == null) {
+                result.complete(combined);
+            } else {
+                result.completeExceptionally((failure instanceof CompletionException) ? failure.getCause() : failure);
+            }
+        });
+    }
+
+    /**
+     * The running query is answered: start the next waiting one in its place.
+     */
+    private void queryDone() {
+        final Runnable next;
+        synchronized (this) {
+            next = waitingQueries.poll();
+            if (next == null) {
+                runningQueries--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * Whether the transport failure may be avoided by the smaller query: it has timed out,
+     * or its response has been too large.
+     */
+    static boolean isHeavyQueryFailure(@NonNull Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (cause.getMessage() != null && HEAVY_QUERY_FAILURE.matcher(cause.getMessage()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    private List<T> decode(@NonNull EthLog response) throws IOException {
+        final List<EthLog.LogResult> logs = response.getLogs();
+        final List<T> result = new ArrayList<>((logs == null) ? 0 : logs.size());
+        if (logs == null) {
+            return result;
+        }
+        for (final EthLog.LogResult logResult : logs) {
+            if (!(logResult instanceof EthLog.LogObject)) {
+                throw new IOException("eth_getLogs returned the hashes instead of the logs");
+            }
+            final Log log = ((EthLog.LogObject) logResult).get();
+            if (!log.isRemoved()) {
+                final T item = decoder.decode(log);
+                if (item != null) {
+                    result.add(item);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,297 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.connectors.AbstractConnector.SingleTransfer;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compact store of ERC20 transfers, in the form ready for the ABI encoding:
+ * the 20-byte addresses and the 32-byte big-endian <code>uint256</code> amounts (in the minimal token units)
+ * are kept in two flat byte arrays, so a transfer takes 52 bytes and no objects of its own.
+ * <p>
+ * The amounts are converted to the minimal units once, on adding the transfer.
+ * The store is append-only (besides {@link #removeFirst}); it is not thread-safe, but once filled,
+ * it can be read from multiple threads.
+ */
+public class PackedTransfers {
+
+    public static final int ADDRESS_SIZE = 20;
+    public static final int AMOUNT_SIZE = 32;
+
+    /**
+     * Powers of ten which fit <code>long</code>.
+     */
+    private static final long[] LONG_TEN_POWERS = new long[19];
+
+    static {
+        LONG_TEN_POWERS[0] = 1;
+        for (int i = 1; i < LONG_TEN_POWERS.length; i++) {
+            LONG_TEN_POWERS[i] = LONG_TEN_POWERS[i - 1] * 10;
+        }
+    }
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final int decimals;
+
+    @NonNull
+    private byte[] addresses;
+    @NonNull
+    private byte[] amounts;
+    private int size = 0;
+
+
+    /**
+     * Constructor.
+     *
+     * @param decimals the decimals of the token; the amounts added are converted to the minimal units accordingly.
+     */
+    public PackedTransfers(int decimals) {
+        this(decimals, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param decimals        the decimals of the token; the amounts added are converted to the minimal units accordingly.
+     * @param initialCapacity how many transfers to allocate the space for.
+     */
+    public PackedTransfers(int decimals, int initialCapacity) {
+        assert decimals >= 0 : decimals;
+        assert initialCapacity >= 0 : initialCapacity;
+
+        this.decimals = decimals;
+        this.addresses = new byte[initialCapacity * ADDRESS_SIZE];
+        this.amounts = new byte[initialCapacity * AMOUNT_SIZE];
+    }
+
+    /**
+     * Pack the transfers.
+     */
+    @NonNull
+    public static PackedTransfers of(@NonNull Collection<SingleTransfer> transfers, int decimals) {
+        assert transfers != null;
+
+        final PackedTransfers result = new PackedTransfers(decimals, transfers.size());
+        for (final SingleTransfer transfer : transfers) {
+            result.add(transfer.toAddress, transfer.amount);
+        }
+        return result;
+    }
+
+    /**
+     * The decimals of the token.
+     */
+    public int getDecimals() {
+        return decimals;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Add the transfer.
+     *
+     * @param address the address (<code>0x</code> and 40 hex digits, in any case).
+     * @param amount  the amount in tokens (not the minimal units); must be positive,
+     *                have not more digits after the decimal point than the token decimals, and fit <code>uint256</code>.
+     * @throws IllegalArgumentException if the amount cannot be represented in the minimal units as <code>uint256</code>.
+     */
+    public void add(@NonNull CharSequence address, @NonNull BigDecimal amount) {
+        assert address != null;
+        assert EthereumUtils.isHexAddress(address) : address;
+        assert amount != null;
+        assert amount.signum() > 0 : amount;
+
+        ensureCapacity(size + 1);
+        final int addressOffset = size * ADDRESS_SIZE;
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            addresses[addressOffset + i] = (byte) ((Character.digit(address.charAt(2 + i * 2), 16) << 4)
+                    | Character.digit(address.charAt(3 + i * 2), 16));
+        }
+        writeMinimalUnits(amount, decimals, amounts, size * AMOUNT_SIZE);
+        size++;
+    }
+
+    /**
+     * Add the transfer from another store (with the same decimals).
+     */
+    public void add(@NonNull PackedTransfers other, int index) {
+        assert other != null;
+        assert other.decimals == decimals : other.decimals;
+        assert index >= 0 && index < other.size : index;
+
+        ensureCapacity(size + 1);
+        System.arraycopy(other.addresses, index * ADDRESS_SIZE, addresses, size * ADDRESS_SIZE, ADDRESS_SIZE);
+        System.arraycopy(other.amounts, index * AMOUNT_SIZE, amounts, size * AMOUNT_SIZE, AMOUNT_SIZE);
+        size++;
+    }
+
+    /**
+     * Add the transfer as it is encoded: the 20 bytes of the address and the 32 bytes of the amount
+     * (in the minimal units), from the buffer.
+     */
+    void addEncoded(@NonNull byte[] source, int addressOffset, int amountOffset) {
+        assert source != null;
+
+        ensureCapacity(size + 1);
+        System.arraycopy(source, addressOffset, addresses, size * ADDRESS_SIZE, ADDRESS_SIZE);
+        System.arraycopy(source, amountOffset, amounts, size * AMOUNT_SIZE, AMOUNT_SIZE);
+        size++;
+    }
+
+    /**
+     * The copy of the transfers from <code>from</code> (inclusive) to <code>to</code> (exclusive).
+     */
+    @NonNull
+    public PackedTransfers copyOfRange(int from, int to) {
+        assert 0 <= from && from <= to && to <= size : String.format("%s-%s of %s", from, to, size);
+
+        final PackedTransfers result = new PackedTransfers(decimals, 0);
+        result.addresses = Arrays.copyOfRange(addresses, from * ADDRESS_SIZE, to * ADDRESS_SIZE);
+        result.amounts = Arrays.copyOfRange(amounts, from * AMOUNT_SIZE, to * AMOUNT_SIZE);
+        result.size = to - from;
+        return result;
+    }
+
+    /**
+     * Remove the first <code>count</code> transfers.
+     */
+    public void removeFirst(int count) {
+        assert count >= 0 && count <= size : count;
+
+        final int remaining = size - count;
+        System.arraycopy(addresses, count * ADDRESS_SIZE, addresses, 0, remaining * ADDRESS_SIZE);
+        System.arraycopy(amounts, count * AMOUNT_SIZE, amounts, 0, remaining * AMOUNT_SIZE);
+        Arrays.fill(addresses, remaining * ADDRESS_SIZE, size * ADDRESS_SIZE, (byte) 0);
+        Arrays.fill(amounts, remaining * AMOUNT_SIZE, size * AMOUNT_SIZE, (byte) 0);
+        size = remaining;
+    }
+
+    /**
+     * The address of the transfer, in DB format (lowercase, with <code>0x</code> prefix).
+     */
+    @NonNull
+    public String getAddress(int index) {
+        assert index >= 0 && index < size : index;
+
+        final char[] result = new char[EthereumUtils.ETHEREUM_ADDRESS_LENGTH];
+        result[0] = '0';
+        result[1] = 'x';
+        final int offset = index * ADDRESS_SIZE;
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            final int b = addresses[offset + i] & 0xFF;
+            result[2 + i * 2] = Character.forDigit(b >> 4, 16);
+            result[3 + i * 2] = Character.forDigit(b & 0xF, 16);
+        }
+        return new String(result);
+    }
+
+    /**
+     * The amount of the transfer, in the minimal units of the token.
+     */
+    @NonNull
+    public BigInteger getAmount(int index) {
+        assert index >= 0 && index < size : index;
+
+        return new BigInteger(1, Arrays.copyOfRange(amounts, index * AMOUNT_SIZE, (index + 1) * AMOUNT_SIZE));
+    }
+
+    /**
+     * The same fingerprint as {@link EthereumUtils#addressFingerprint} of the address, without decoding it.
+     */
+    public long getAddressFingerprint(int index) {
+        assert index >= 0 && index < size : index;
+
+        final int offset = index * ADDRESS_SIZE;
+        final long
+                high = readLong(addresses, offset, 8),
+                middle = readLong(addresses, offset + 8, 8),
+                low = readLong(addresses, offset + 16, 4);
+        return high ^ Long.rotateLeft(middle, 21) ^ Long.rotateLeft(low, 42);
+    }
+
+    /**
+     * Copy the 20 bytes of the address to the buffer.
+     */
+    public void copyAddress(int index, @NonNull byte[] dest, int destOffset) {
+        assert index >= 0 && index < size : index;
+        System.arraycopy(addresses, index * ADDRESS_SIZE, dest, destOffset, ADDRESS_SIZE);
+    }
+
+    /**
+     * Copy the 32 bytes of the amount (<code>uint256</code>, big-endian) to the buffer.
+     */
+    public void copyAmount(int index, @NonNull byte[] dest, int destOffset) {
+        assert index >= 0 && index < size : index;
+        System.arraycopy(amounts, index * AMOUNT_SIZE, dest, destOffset, AMOUNT_SIZE);
+    }
+
+    public String toString() {
+        return String.format("PackedTransfers(%s transfers, decimals=%s)", size, decimals);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity * ADDRESS_SIZE > addresses.length) {
+            final int newCapacity = Math.max(capacity, Math.max(DEFAULT_CAPACITY, size * 2));
+            addresses = Arrays.copyOf(addresses, newCapacity * ADDRESS_SIZE);
+            amounts = Arrays.copyOf(amounts, newCapacity * AMOUNT_SIZE);
+        }
+    }
+
+    /**
+     * Write the amount converted to the minimal units, as 32-byte big-endian <code>uint256</code>;
+     * the destination is expected to be zeroed.
+     * Most of the amounts fit <code>long</code>, so they are converted without any {@link BigInteger} arithmetic.
+     */
+    static void writeMinimalUnits(@NonNull BigDecimal amount, int decimals, @NonNull byte[] dest, int destOffset) {
+        final int shift = decimals - amount.scale();
+        if (shift >= 0 && shift < LONG_TEN_POWERS.length && amount.precision() < LONG_TEN_POWERS.length) {
+            // The unscaled value fits long; move the decimal point to get it without a BigInteger.
+            final long unscaled = amount.scaleByPowerOfTen(amount.scale()).longValueExact();
+            final long multiplier = LONG_TEN_POWERS[shift];
+            if (unscaled <= Long.MAX_VALUE / multiplier) {
+                long value = unscaled * multiplier;
+                for (int i = AMOUNT_SIZE - 1; i >= AMOUNT_SIZE - 8; i--) {
+                    dest[destOffset + i] = (byte) value;
+                    value >>>= 8;
+                }
+                return;
+            }
+        }
+
+        final BigInteger minimalUnits;
+        try {
+            minimalUnits = amount.setScale(decimals, RoundingMode.UNNECESSARY).unscaledValue();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(String.format(
+                    "Amount %s has more than %s decimal digits", amount.toPlainString(), decimals));
+        }
+        if (minimalUnits.bitLength() > AMOUNT_SIZE * 8) {
+            throw new IllegalArgumentException(String.format("Amount %s doesn’t fit uint256", amount.toPlainString()));
+        }
+        final byte[] bytes = minimalUnits.toByteArray();
+        // toByteArray() may have the extra leading zero byte for the sign
+        final int length = Math.min(bytes.length, AMOUNT_SIZE);
+        System.arraycopy(bytes, bytes.length - length, dest, destOffset + AMOUNT_SIZE - length, length);
+    }
+
+    private static long readLong(@NonNull byte[] bytes, int offset, int length) {
+        long result = 0;
+        for (int i = 0; i < length; i++) {
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,15 @@
+package com.icodici.universa.utnp.connectors;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * The connector without any private key: it can only broadcast the transactions signed elsewhere
+ * and watch them being mined.
+ */
+public class RawTransactionConnector extends AbstractConnector {
+
+    public RawTransactionConnector(@NonNull EthereumConnection connection) {
+        super(connection);
+        assert connection != null;
+    }
+}
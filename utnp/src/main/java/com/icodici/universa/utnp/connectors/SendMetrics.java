@@ -0,0 +1,71 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.metrics.Counter;
+import com.icodici.universa.utnp.metrics.Gauge;
+import com.icodici.universa.utnp.metrics.Histogram;
+import com.icodici.universa.utnp.metrics.MetricsRegistry;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigInteger;
+
+/**
+ * The metrics of the bulk transactions being sent; shared by {@link BulkTransferPipeline}
+ * and {@link TransactionBroadcaster}.
+ */
+final class SendMetrics {
+
+    private static final MetricsRegistry registry = MetricsRegistry.getDefault();
+
+    static final Counter bulksSubmitted = registry.counter(
+            "utnp_bulks_submitted_total", "Bulk transactions submitted for sending");
+    static final Counter bulksAccepted = registry.counter(
+            "utnp_bulks_accepted_total", "Bulk transactions accepted by the node");
+    static final Counter transfersAccepted = registry.counter(
+            "utnp_transfers_accepted_total", "Transfers in the bulk transactions accepted by the node");
+    static final Counter bulksMined = registry.counter(
+            "utnp_bulks_mined_total", "Bulk transactions mined (successfully or not)");
+    static final Gauge inFlight = registry.gauge(
+            "utnp_transactions_in_flight", "Transactions sent but not mined yet");
+    static final Histogram confirmationTime = registry.histogram(
+            "utnp_transaction_confirmation_seconds", "Time from sending the transaction until it is found mined",
+            Histogram.CONFIRMATION_BUCKETS);
+    static final Counter gasUsed = registry.counter(
+            "utnp_gas_used_total", "Gas used by the mined transactions");
+    static final Histogram gasUsedRatio = registry.histogram(
+            "utnp_bulk_gas_used_ratio", "Gas used by the mined bulk transaction, relative to its gas limit",
+            Histogram.RATIO_BUCKETS);
+    static final Counter sendRetries = registry.counter(
+            "utnp_send_retries_total", "Repeated attempts to send a transaction");
+    static final Counter sendFailures = registry.counter(
+            "utnp_send_failures_total", "Transactions which couldn’t be sent at all");
+    static final Counter resigned = registry.counter(
+            "utnp_transactions_resigned_total", "Transactions re-signed with another nonce, as their nonce was taken");
+    static final Counter replaced = registry.counter(
+            "utnp_transactions_replaced_total", "Stuck transactions replaced with the same nonce at the higher fees");
+    static final Counter rebroadcast = registry.counter(
+            "utnp_transactions_rebroadcast_total", "Stuck transactions broadcast again, as their fees couldn’t be raised");
+    static final Counter reverted = registry.counter(
+            "utnp_transactions_reverted_total", "Transactions mined but reverted");
+
+    private SendMetrics() {
+    }
+
+    /**
+     * Account the mined transaction.
+     *
+     * @param gasLimit  the gas limit of the transaction; <code>null</code> if unknown.
+     * @param watchedAt when the transaction has been sent, by {@link System#nanoTime()}; 0 if unknown.
+     */
+    static void recordMined(@NonNull Confirmation confirmation, @Nullable BigInteger gasLimit, long watchedAt) {
+        bulksMined.inc();
+        gasUsed.add(confirmation.gasUsed.longValue());
+        if (gasLimit != null) {
+            gasUsedRatio.observe(confirmation.gasUsed.doubleValue() / gasLimit.doubleValue());
+        }
+        if (watchedAt != 0) {
+            confirmationTime.observeSince(watchedAt);
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.connectors.BulkTransferPlanner.PlannedBulk;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.journal.PaymentIndex;
+import com.icodici.universa.utnp.journal.PaymentRecorder;
+import com.icodici.universa.utnp.journal.SendJournal;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import com.icodici.universa.utnp.orders.Order;
+import com.icodici.universa.utnp.orders.OrderReader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Sender of the orders through several shards at once (see {@link Shard}), as the transactions of a single
+ * operator account are mined only in the order of its nonces.
+ * <p>
+ * The orders are split into the chunks of consecutive orders, dealt to the shards in turn
+ * (the chunk <i>n</i> goes to the shard <i>n</i> mod <i>shards</i>). Before submitting every bulk, its shard reserves
+ * the tokens of its BulkSender and the ether of its operator for it; once the shard cannot afford the bulk
+ * (or its pipeline fails, or anything else goes wrong), it stops, and its orders not submitted yet are dealt
+ * to the other shards. So every order is submitted by a single shard at most.
+ */
+public class ShardedSender {
+
+    private static final Logger logger = LogManager.getLogger(ShardedSender.class);
+
+    /**
+     * The orders are dealt to the shards by the chunks of so many full bulks.
+     */
+    public static final int DEFAULT_CHUNK_BULKS = 4;
+    /**
+     * How many chunks may be waiting for the shard to take them.
+     */
+    static final int QUEUE_CHUNKS = 2;
+    /**
+     * How often the dealer checks if the shards have given back anything, once all the orders are dealt;
+     * and if the shard it waits for has stopped meanwhile.
+     */
+    static final long POLL_INTERVAL_MS = 100;
+
+    /**
+     * A shard of the sharded sending: an operator account with its own BulkSender contract, and so with its own
+     * nonce stream, pipeline and journal. Sends the chunks of orders dealt to it, from its own thread.
+     */
+    public static class Shard {
+        /**
+         * 1-based.
+         */
+        public final int number;
+        @NonNull
+        public final String bulkSenderAddress;
+        @NonNull
+        public final BulkSenderConnector connector;
+        @NonNull
+        final BulkTransferPlanner planner;
+        @NonNull
+        public final SendJournal journal;
+        /**
+         * Records the orders of the mined bulks to the payment index; the listener of the pipeline.
+         */
+        @NonNull
+        public final PaymentRecorder recorder;
+        /**
+         * The chunks of consecutive orders to send; the empty chunk marks the end.
+         */
+        @NonNull
+        final BlockingQueue<List<Order>> chunks = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        @Nullable
+        private BulkTransferPipeline pipeline = null;
+        /**
+         * The tokens of BulkSender (in the minimal units) not reserved by the bulks submitted so far.
+         */
+        @NonNull
+        private BigInteger tokensLeft = BigInteger.ZERO;
+        /**
+         * The ether of the operator (in wei) not reserved by the bulks submitted so far, at their maximum fees.
+         */
+        @NonNull
+        private BigInteger weiLeft = BigInteger.ZERO;
+        private long ordersSent = 0;
+        /**
+         * The first order of the current chunk not submitted yet.
+         */
+        long nextUnsent = 0;
+        /**
+         * The end (exclusive) of the bulk being submitted; if the submission fails unexpectedly,
+         * the orders before it might have been sent.
+         */
+        long submittingUntil = 0;
+        /**
+         * Why the shard has stopped taking the orders; <code>null</code> while it takes them.
+         */
+        @Nullable
+        private volatile String stopReason = null;
+
+        public Shard(int number,
+                     @NonNull String bulkSenderAddress,
+                     @NonNull BulkSenderConnector connector,
+                     @NonNull BulkTransferPlanner planner,
+                     @NonNull SendJournal journal,
+                     @NonNull PaymentIndex paymentIndex) {
+            assert number > 0 : number;
+            assert bulkSenderAddress != null;
+            assert connector != null;
+            assert planner != null;
+            assert journal != null;
+            assert paymentIndex != null;
+
+            this.number = number;
+            this.bulkSenderAddress = bulkSenderAddress;
+            this.connector = connector;
+            this.planner = planner;
+            this.journal = journal;
+            this.recorder = new PaymentRecorder(journal, paymentIndex);
+        }
+
+        /**
+         * The pipeline to submit the bulks to; its listener should be the {@link #recorder}.
+         */
+        public void setPipeline(@NonNull BulkTransferPipeline pipeline) {
+            assert pipeline != null;
+            this.pipeline = pipeline;
+        }
+
+        @Nullable
+        public BulkTransferPipeline getPipeline() {
+            return pipeline;
+        }
+
+        /**
+         * Set what the shard may spend: the tokens of its BulkSender and the ether of its operator.
+         */
+        public void setBudget(@NonNull BigInteger tokens, @NonNull BigInteger wei) {
+            assert tokens != null;
+            assert wei != null;
+
+            this.tokensLeft = tokens;
+            this.weiLeft = wei;
+        }
+
+        /**
+         * How many orders the shard has submitted; to be read once the sending is over.
+         */
+        public long getOrdersSent() {
+            return ordersSent;
+        }
+
+        @Nullable
+        public String getStopReason() {
+            return stopReason;
+        }
+
+        /**
+         * Stop taking the orders; the orders dealt to the shard but not submitted go to the other shards.
+         */
+        public void stop(@NonNull String reason) {
+            if (stopReason == null) {
+                stopReason = reason;
+                logger.warn("Shard {} has stopped: {}; its orders go to the other shards", number, reason);
+            }
+        }
+    }
+
+    @NonNull
+    private final List<Shard> shards;
+    private final int chunkSize;
+    @Nullable
+    private final BiConsumer<BulkRange, CompletableFuture<String>> onSubmitted;
+    /**
+     * The orders neither sent for sure nor given back, as their shard has failed while submitting them.
+     */
+    @NonNull
+    private final AtomicLong abandoned = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     *
+     * @param shards      the shards, with their pipelines and budgets set.
+     * @param chunkSize   how many consecutive orders are dealt at once.
+     * @param onSubmitted called (from the thread of the shard) with every bulk submitted,
+     *                    and the future of its txhash as returned by {@link BulkTransferPipeline#submit}.
+     */
+    public ShardedSender(@NonNull List<Shard> shards,
+                         int chunkSize,
+                         @Nullable BiConsumer<BulkRange, CompletableFuture<String>> onSubmitted) {
+        assert shards != null;
+        assert !shards.isEmpty();
+        assert chunkSize > 0 : chunkSize;
+
+        this.shards = shards;
+        this.chunkSize = chunkSize;
+        this.onSubmitted = onSubmitted;
+    }
+
+    /**
+     * The end (exclusive) of the planned range the order belongs to; the order itself if it is not planned.
+     *
+     * @param planned the last order index of every planned range, by its first order index.
+     */
+    public static long getPlannedUntil(@NonNull NavigableMap<Long, Long> planned, long orderIndex) {
+        final Map.Entry<Long, Long> range = planned.floorEntry(orderIndex);
+        return (range == null || range.getValue() < orderIndex) ? orderIndex : range.getValue() + 1;
+    }
+
+    /**
+     * The uuids of the orders of the bulk, taken from the head of the uuids of the orders offered to the planner.
+     */
+    @NonNull
+    public static List<String> takeUuids(@NonNull ArrayDeque<String> pendingUuids, @NonNull PlannedBulk bulk) {
+        final List<String> result = new ArrayList<>(bulk.transfers.size());
+        for (int i = 0; i < bulk.transfers.size(); i++) {
+            result.add(pendingUuids.removeFirst());
+        }
+        return result;
+    }
+
+    /**
+     * Deal the chunks of the orders not planned yet to the shards, and the chunks given back by the stopped shards
+     * to the other ones; return once every shard is done with everything dealt to it. Should be called once.
+     *
+     * @param reader  the orders, positioned at the first order to send.
+     * @param count   how many orders to send (the planned ones are not counted).
+     * @param planned the last order index of every range planned already, by its first order index.
+     * @return how many orders have not been sent, as all the shards have stopped
+     * (or might have not been sent, as their shard has failed).
+     */
+    public long send(@NonNull OrderReader reader,
+                     long count,
+                     @NonNull NavigableMap<Long, Long> planned) throws IOException, InterruptedException {
+        assert reader != null;
+        assert count >= 0 : count;
+        assert planned != null;
+
+        // The rest of the chunks given back by the stopped shards
+        final BlockingQueue<List<Order>> returned = new LinkedBlockingQueue<>();
+        // The chunks dealt but not done with yet; the shard gives the rest of the chunk back before it is done with it
+        final AtomicInteger outstanding = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<>(shards.size());
+        for (final Shard shard : shards) {
+            assert shard.pipeline != null;
+            final Thread thread = new Thread(() -> runShard(shard, returned, outstanding),
+                    "bulk-send-shard-" + shard.number);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long chunkNumber = 0, unsent = 0;
+        try {
+            List<Order> chunk = new ArrayList<>(chunkSize);
+            long remaining = count;
+            while (remaining > 0) {
+                final long index = reader.getNextIndex();
+                final long plannedUntil = getPlannedUntil(planned, index);
+                if (plannedUntil > index) {
+                    // The chunk is made of the consecutive orders only
+                    if (!chunk.isEmpty()) {
+                        unsent += deal(chunkNumber++, chunk, outstanding);
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                    reader.skip(plannedUntil - index);
+                    continue;
+                }
+
+                final Order order = reader.readNext();
+                if (order == null) {
+                    throw new IOException(String.format(
+                            "The orders end at %s; the file has changed since the validation pass", index));
+                }
+                remaining--;
+                chunk.add(order);
+                if (chunk.size() == chunkSize) {
+                    unsent += deal(chunkNumber++, chunk, outstanding);
+                    chunk = new ArrayList<>(chunkSize);
+                    List<Order> back;
+                    while ((back = returned.poll()) != null) {
+                        unsent += deal(chunkNumber++, back, outstanding);
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                unsent += deal(chunkNumber++, chunk, outstanding);
+            }
+
+            // Until no shard may stop and give anything back anymore
+            while (true) {
+                final List<Order> back = returned.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (back != null) {
+                    unsent += deal(chunkNumber++, back, outstanding);
+                } else if (outstanding.get() == 0 && returned.isEmpty()) {
+                    break;
+                }
+            }
+        } finally {
+            // The shard still takes the chunks until it sees the end; a dead one doesn't need it
+            for (int i = 0; i < shards.size(); i++) {
+                final Thread thread = threads.get(i);
+                while (thread.isAlive()
+                        && !shards.get(i).chunks.offer(Collections.emptyList(), POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    // waiting for the room in the queue
+                }
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+        }
+        return unsent + abandoned.get();
+    }
+
+    /**
+     * Give the chunk to the shard whose turn it is; or, if that one has stopped, to the next one still running.
+     *
+     * @return how many orders have not been dealt (all of them, if every shard has stopped).
+     */
+    private long deal(long chunkNumber,
+                      @NonNull List<Order> chunk,
+                      @NonNull AtomicInteger outstanding) throws InterruptedException {
+        for (int i = 0; i < shards.size(); i++) {
+            final Shard shard = shards.get((int) ((chunkNumber + i) % shards.size()));
+            // If it stops once the chunk is taken, it gives the chunk back
+            outstanding.incrementAndGet();
+            while (shard.stopReason == null) {
+                if (shard.chunks.offer(chunk, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    return 0;
+                }
+            }
+            outstanding.decrementAndGet();
+        }
+        return chunk.size();
+    }
+
+    /**
+     * The thread of the shard: send the chunks dealt to it until the end is dealt;
+     * once the shard has stopped, give back all the orders it has not sent.
+     */
+    private void runShard(@NonNull Shard shard,
+                          @NonNull BlockingQueue<List<Order>> returned,
+                          @NonNull AtomicInteger outstanding) {
+        try {
+            List<Order> chunk;
+            while (!(chunk = shard.chunks.take()).isEmpty()) {
+                try {
+                    final List<Order> rest = (shard.stopReason == null) ? sendChunk(shard, chunk) : chunk;
+                    if (!rest.isEmpty()) {
+                        returned.add(rest);
+                    }
+                } catch (Throwable e) {
+                    logger.error("Shard {} has failed", shard.number, e);
+                    shard.stop("failed: " + e);
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    // The bulk being submitted might have been sent already; it is left to the relaunch,
+                    // which finds it in the journal if so.
+                    final List<Order> rest = new ArrayList<>();
+                    for (final Order order : chunk) {
+                        if (order.index >= shard.submittingUntil) {
+                            rest.add(order);
+                        } else if (order.index >= shard.nextUnsent) {
+                            abandoned.incrementAndGet();
+                        }
+                    }
+                    if (!rest.isEmpty()) {
+                        returned.add(rest);
+                    }
+                } finally {
+                    outstanding.decrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            shard.stop("interrupted");
+            // Give back everything dealt to it meanwhile
+            List<Order> chunk;
+            while ((chunk = shard.chunks.poll()) != null) {
+                if (!chunk.isEmpty()) {
+                    returned.add(chunk);
+                    outstanding.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Plan the chunk of consecutive orders into the bulks, and send them through the shard.
+     *
+     * @return the orders which have not been sent, as the shard has stopped; empty if all have been.
+     */
+    @NonNull
+    private List<Order> sendChunk(@NonNull Shard shard,
+                                  @NonNull List<Order> chunk) throws InterruptedException {
+        final long firstOrder = chunk.get(0).index;
+        // The uuids of the orders offered to the planner but not planned yet; in the same order.
+        final ArrayDeque<String> pendingUuids = new ArrayDeque<>();
+        shard.nextUnsent = shard.submittingUntil = firstOrder;
+        try {
+            for (final Order order : chunk) {
+                pendingUuids.addLast(order.uuid);
+                final PlannedBulk bulk = shard.planner.offer(order.index, order.address, order.amount);
+                if (bulk != null) {
+                    if (sendBulk(shard, bulk, takeUuids(pendingUuids, bulk))) {
+                        shard.nextUnsent = bulk.getLastOrderIndex() + 1;
+                    }
+                    if (shard.stopReason != null) {
+                        break;
+                    }
+                }
+            }
+            PlannedBulk bulk;
+            while (shard.stopReason == null && (bulk = shard.planner.flush()) != null) {
+                if (sendBulk(shard, bulk, takeUuids(pendingUuids, bulk))) {
+                    shard.nextUnsent = bulk.getLastOrderIndex() + 1;
+                }
+            }
+        } catch (IOException e) {
+            shard.stop("cannot plan the bulks: " + e.getMessage());
+        }
+        return new ArrayList<>(chunk.subList((int) (shard.nextUnsent - firstOrder), chunk.size()));
+    }
+
+    /**
+     * Reserve the tokens and the ether for the bulk, and submit it to the pipeline of the shard;
+     * if the shard cannot afford it, or has failed, stop the shard.
+     *
+     * @return whether the bulk has been submitted.
+     */
+    private boolean sendBulk(@NonNull Shard shard,
+                             @NonNull PlannedBulk bulk,
+                             @NonNull List<String> uuids) throws InterruptedException {
+        final BulkTransferPipeline pipeline = shard.pipeline;
+        assert pipeline != null;
+
+        BigInteger tokens = BigInteger.ZERO;
+        for (int i = 0; i < bulk.transfers.size(); i++) {
+            tokens = tokens.add(bulk.transfers.getAmount(i));
+        }
+        final BigInteger wei;
+        try {
+            wei = bulk.gasLimit.multiply(shard.connector.getFeePolicy().getFees().maxFeePerGas);
+        } catch (IOException e) {
+            shard.stop("cannot get the fees from the node: " + e.getMessage());
+            return false;
+        }
+        if (tokens.compareTo(shard.tokensLeft) > 0) {
+            shard.stop(String.format("BulkSender %s has only %s tokens left", shard.bulkSenderAddress,
+                    EthereumUtils.valueWithDecimal(shard.tokensLeft, BulkSenderConnector.UTNP_DECIMALS)));
+            return false;
+        }
+        if (wei.compareTo(shard.weiLeft) > 0) {
+            shard.stop(String.format("the operator %s has only %s ether left for the gas",
+                    shard.connector.getOperatorAddress(), EthereumUtils.valueOfWei(shard.weiLeft)));
+            return false;
+        }
+
+        final BulkRange range = new BulkRange(bulk.firstOrderIndex, bulk.getLastOrderIndex(), uuids);
+        logger.info("Shard {}: sending bulk {} ({}, estimated gas {})",
+                shard.number, bulk.transfers.size(), range, bulk.estimatedGas);
+        shard.submittingUntil = bulk.getLastOrderIndex() + 1;
+        shard.recorder.expect(range, bulk.transfers);
+        final CompletableFuture<String> txidFuture;
+        try {
+            txidFuture = pipeline.submit(bulk.transfers, bulk.gasLimit, range);
+        } catch (IllegalStateException e) {
+            shard.submittingUntil = shard.nextUnsent;
+            shard.stop("the pipeline has failed: " + Objects.toString(e.getCause(), e.getMessage()));
+            return false;
+        }
+        shard.tokensLeft = shard.tokensLeft.subtract(tokens);
+        shard.weiLeft = shard.weiLeft.subtract(wei);
+        shard.ordersSent += bulk.transfers.size();
+        if (onSubmitted != null) {
+            onSubmitted.accept(range, txidFuture);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,385 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broadcaster of the transactions signed in advance (e.g. offline), in the order of their nonces.
+ * <p>
+ * No signing and no nonce management here: the transactions are sent asynchronously, at the limited rate,
+ * and up to <code>maxInFlight</code> of them are kept sent but not mined yet.
+ * The transactions with the nonces which are already used by the account (when the broadcasting starts)
+ * are not sent again, but just checked to be known to the node; so the interrupted broadcasting can be
+ * relaunched from the very beginning, and it quickly skips the transactions mined before.
+ * <p>
+ * If some transaction cannot be sent, or is reverted, the broadcaster stops accepting new ones.
+ * The progress is reflected in the {@link SendMetrics}.
+ */
+public class TransactionBroadcaster implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(TransactionBroadcaster.class);
+
+    /**
+     * How many times to try sending a transaction before giving up.
+     */
+    static final int MAX_SEND_ATTEMPTS = 5;
+    static final long RETRY_DELAY_MS = 1000;
+    /**
+     * How often the thread waiting for the permit checks if the broadcasting has failed meanwhile.
+     */
+    static final long FAILURE_CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * Listener of the broadcast transactions being mined.
+     */
+    public interface Listener {
+        /**
+         * The transaction has been mined (successfully or not); called once per transaction,
+         * in the thread of the {@link ConfirmationTracker}.
+         */
+        void onMined(@Nullable Object attachment, @NonNull SignedTransaction transaction, @NonNull Confirmation confirmation);
+    }
+
+    @NonNull
+    private final AbstractConnector connector;
+    @NonNull
+    private final ConfirmationTracker confirmationTracker;
+    @Nullable
+    private final Listener listener;
+
+    /**
+     * Every transaction with the nonce below this one has been mined before the broadcasting started.
+     */
+    @NonNull
+    private final BigInteger minedCountAtStart;
+    /**
+     * The minimum interval between the sent transactions; 0 if unlimited.
+     */
+    private final long sendIntervalNanos;
+    /**
+     * When the next transaction may be sent, by {@link System#nanoTime()}.
+     */
+    private long nextSendAt = System.nanoTime();
+
+    /**
+     * Permits for the transactions in flight (sent but not mined yet).
+     */
+    @NonNull
+    private final Semaphore inFlightPermits;
+    /**
+     * Nonces of the transactions which are in flight; each of them holds a permit.
+     */
+    @NonNull
+    private final ConcurrentSkipListSet<BigInteger> inFlightNonces = new ConcurrentSkipListSet<>();
+
+    /**
+     * Runs the retries and the blocking checks; the sending itself is asynchronous.
+     */
+    @NonNull
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "broadcaster-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @NonNull
+    private final LongAdder minedCount = new LongAdder();
+    @NonNull
+    private final LongAdder gasUsed = new LongAdder();
+
+    @NonNull
+    private final List<CompletableFuture<String>> submitted = new ArrayList<>();
+
+    @Nullable
+    private volatile Throwable failure = null;
+
+
+    /**
+     * Constructor.
+     *
+     * @param senderAddress the address of the account which has signed the transactions.
+     * @param ratePerSecond how many transactions may be sent per second; 0 for unlimited.
+     * @param maxInFlight   how many transactions may be sent but not mined yet, at any moment.
+     * @throws IOException if the initial nonce or block cannot be received from the node.
+     */
+    public TransactionBroadcaster(@NonNull AbstractConnector connector,
+                                  @NonNull String senderAddress,
+                                  double ratePerSecond,
+                                  int maxInFlight) throws IOException {
+        this(connector, senderAddress, ratePerSecond, maxInFlight, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param senderAddress the address of the account which has signed the transactions.
+     * @param ratePerSecond how many transactions may be sent per second; 0 for unlimited.
+     * @param maxInFlight   how many transactions may be sent but not mined yet, at any moment.
+     * @param listener      to be notified of the transactions mined; <code>null</code> if not needed.
+     * @throws IOException if the initial nonce or block cannot be received from the node.
+     */
+    public TransactionBroadcaster(@NonNull AbstractConnector connector,
+                                  @NonNull String senderAddress,
+                                  double ratePerSecond,
+                                  int maxInFlight,
+                                  @Nullable Listener listener) throws IOException {
+        assert connector != null;
+        assert senderAddress != null;
+        assert senderAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : senderAddress;
+        assert ratePerSecond >= 0 : ratePerSecond;
+        assert maxInFlight > 0 : maxInFlight;
+
+        this.connector = connector;
+        this.listener = listener;
+        this.confirmationTracker = connector.getConfirmationTracker();
+        this.minedCountAtStart = connector.createNonceAllocator(senderAddress).fetchMinedCount();
+        this.sendIntervalNanos = (ratePerSecond == 0) ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        this.inFlightPermits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * How many transactions from the account had been mined before the broadcasting started.
+     */
+    @NonNull
+    public BigInteger getMinedCountAtStart() {
+        return minedCountAtStart;
+    }
+
+    /**
+     * Schedule the transaction for sending; the transactions should be submitted in the order of their nonces.
+     * Blocks while there are already <code>maxInFlight</code> transactions in flight, or the rate limit is reached.
+     *
+     * @param transferCount how many transfers the transaction contains (for the metrics).
+     * @return the {@link CompletableFuture} with the txhash, completed as soon as the node knows the transaction.
+     * @throws IllegalStateException if the broadcasting has already failed.
+     */
+    @NonNull
+    public CompletableFuture<String> submit(@NonNull SignedTransaction transaction,
+                                            int transferCount) throws InterruptedException {
+        return submit(transaction, transferCount, null);
+    }
+
+    /**
+     * Schedule the transaction for sending; as {@link #submit(SignedTransaction, int)},
+     * with the attachment passed to the {@link Listener} once the transaction is mined.
+     */
+    @NonNull
+    public CompletableFuture<String> submit(@NonNull SignedTransaction transaction,
+                                            int transferCount,
+                                            @Nullable Object attachment) throws InterruptedException {
+        assert transaction != null;
+        assert transferCount >= 0 : transferCount;
+
+        while (!inFlightPermits.tryAcquire(FAILURE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            checkNotFailed();
+        }
+        checkNotFailed();
+        if (inFlightNonces.add(transaction.nonce)) {
+            SendMetrics.inFlight.inc();
+        }
+        SendMetrics.bulksSubmitted.inc();
+
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        synchronized (submitted) {
+            submitted.add(result);
+        }
+        result.thenRun(() -> {
+            SendMetrics.bulksAccepted.inc();
+            SendMetrics.transfersAccepted.add(transferCount);
+        });
+        if (transaction.nonce.compareTo(minedCountAtStart) < 0) {
+            // Its nonce is used already; most likely, by this very transaction, broadcast before.
+            retryExecutor.execute(() -> confirmKnown(transaction, attachment, result));
+        } else {
+            pace();
+            watchMined(transaction, attachment, false);
+            send(transaction, attachment, 1, result);
+        }
+        return result;
+    }
+
+    /**
+     * How many transactions are sent but not known to be mined yet.
+     */
+    public int getInFlightCount() {
+        return inFlightNonces.size();
+    }
+
+    /**
+     * How many of the submitted transactions are already mined.
+     */
+    public long getMinedCount() {
+        return minedCount.sum();
+    }
+
+    /**
+     * The total gas used by the mined transactions.
+     */
+    public long getGasUsed() {
+        return gasUsed.sum();
+    }
+
+    /**
+     * The first failure happened during broadcasting; <code>null</code> if everything is fine.
+     */
+    @Nullable
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Wait until all the submitted transactions are accepted by the node (or failed to be sent).
+     */
+    @Override
+    public void close() {
+        final List<CompletableFuture<String>> toWait;
+        synchronized (submitted) {
+            toWait = new ArrayList<>(submitted);
+        }
+        try {
+            CompletableFuture.allOf(toWait.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            // Already stored in `failure` and reported to the caller via the futures
+        } finally {
+            retryExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Wait until the next transaction may be sent, according to the rate limit.
+     */
+    private void pace() throws InterruptedException {
+        if (sendIntervalNanos == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long sendAt = Math.max(now, nextSendAt);
+        nextSendAt = sendAt + sendIntervalNanos;
+        if (sendAt > now) {
+            TimeUnit.NANOSECONDS.sleep(sendAt - now);
+        }
+    }
+
+    private void checkNotFailed() {
+        final Throwable currentFailure = failure;
+        if (currentFailure != null) {
+            throw new IllegalStateException("The broadcasting has failed", currentFailure);
+        }
+    }
+
+    private void send(@NonNull SignedTransaction transaction,
+                      @Nullable Object attachment,
+                      int attempt,
+                      @NonNull CompletableFuture<String> result) {
+        connector.sendSignedTransactionAsync(transaction).whenComplete((ignored, throwable) -> {
+            if (throwable == null) {
+                result.complete(transaction.txhash);
+            } else if (throwable instanceof TransactionRejectedException
+                    && ((TransactionRejectedException) throwable).isAlreadyKnown()) {
+                result.complete(transaction.txhash);
+            } else if (throwable instanceof TransactionRejectedException
+                    && (((TransactionRejectedException) throwable).isNonceTooLow()
+                    || ((TransactionRejectedException) throwable).isReplacementUnderpriced())) {
+                // Maybe one of our previous attempts has actually reached the node?
+                retryExecutor.execute(() -> confirmKnown(transaction, attachment, result));
+            } else if (attempt < MAX_SEND_ATTEMPTS) {
+                logger.warn("Transaction {} not sent (attempt {}): {}", transaction, attempt, throwable.getMessage());
+                SendMetrics.sendRetries.inc();
+                retryExecutor.schedule(() -> send(transaction, attachment, attempt + 1, result),
+                        RETRY_DELAY_MS * attempt, TimeUnit.MILLISECONDS);
+            } else {
+                logger.error("Giving up on {}; the later nonces won’t be mined until nonce {} is used",
+                        transaction, transaction.nonce);
+                SendMetrics.sendFailures.inc();
+                fail(result, throwable);
+            }
+        });
+    }
+
+    /**
+     * Make sure the transaction, whose nonce is already used, is known to the node; and watch it being mined.
+     * Runs in the {@link #retryExecutor}.
+     */
+    private void confirmKnown(@NonNull SignedTransaction transaction,
+                              @Nullable Object attachment,
+                              @NonNull CompletableFuture<String> result) {
+        try {
+            if (connector.isTransactionKnown(transaction.txhash)) {
+                watchMined(transaction, attachment, true);
+                result.complete(transaction.txhash);
+            } else {
+                confirmationTracker.untrack(transaction.txhash);
+                fail(result, new TransactionRejectedException(String.format(
+                        "Nonce %s of %s is used by some other transaction", transaction.nonce, transaction.txhash)));
+            }
+        } catch (IOException e) {
+            fail(result, e);
+        }
+    }
+
+    private void fail(@NonNull CompletableFuture<String> result, @NonNull Throwable cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        result.completeExceptionally(cause);
+    }
+
+    private void watchMined(@NonNull SignedTransaction transaction,
+                            @Nullable Object attachment,
+                            boolean mayBeMinedAlready) {
+        // The time to confirmation is meaningless for the transaction which may have been sent long ago.
+        final long watchedAt = mayBeMinedAlready ? 0 : System.nanoTime();
+        confirmationTracker.track(transaction.txhash, mayBeMinedAlready)
+                .thenAccept(confirmation -> mined(transaction, attachment, watchedAt, confirmation));
+    }
+
+    /**
+     * Release the permit of the mined transaction, make sure it has succeeded, and notify the listener.
+     * Runs in the thread of the {@link ConfirmationTracker}.
+     *
+     * @param watchedAt when the transaction has been sent, by {@link System#nanoTime()}; 0 if unknown.
+     */
+    private void mined(@NonNull SignedTransaction transaction,
+                       @Nullable Object attachment,
+                       long watchedAt,
+                       @NonNull Confirmation confirmation) {
+        if (!inFlightNonces.remove(transaction.nonce)) {
+            // Already handled
+            return;
+        }
+        SendMetrics.inFlight.dec();
+        inFlightPermits.release();
+        minedCount.increment();
+        gasUsed.add(confirmation.gasUsed.longValue());
+        // The gas limit is inside the raw transaction only
+        SendMetrics.recordMined(confirmation, null, watchedAt);
+
+        if (!confirmation.success) {
+            final TransactionRevertedException e = new TransactionRevertedException(String.format(
+                    "Transaction %s (nonce %s) has been reverted in block %s",
+                    transaction.txhash, transaction.nonce, confirmation.blockNumber));
+            logger.error(e.getMessage());
+            SendMetrics.reverted.inc();
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (listener != null) {
+            listener.onMined(attachment, transaction, confirmation);
+        }
+    }
+}
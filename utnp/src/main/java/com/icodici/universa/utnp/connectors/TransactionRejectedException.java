@@ -0,0 +1,35 @@
+package com.icodici.universa.utnp.connectors;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * The Ethereum node has refused to accept the transaction (e.g. “nonce too low”, “insufficient funds”).
+ */
+public class TransactionRejectedException extends Exception {
+
+    public TransactionRejectedException(@NonNull String message) {
+        super(message);
+    }
+
+    /**
+     * Whether the node says the nonce of the transaction has already been used.
+     */
+    public boolean isNonceTooLow() {
+        return getMessage().contains("nonce too low");
+    }
+
+    /**
+     * Whether the node already has exactly this transaction (so it is not an actual failure).
+     */
+    public boolean isAlreadyKnown() {
+        final String message = getMessage();
+        return message.contains("known transaction") || message.contains("already known");
+    }
+
+    /**
+     * Whether the node has some other transaction with the same nonce in its pool.
+     */
+    public boolean isReplacementUnderpriced() {
+        return getMessage().contains("replacement transaction underpriced");
+    }
+}
@@ -0,0 +1,13 @@
+package com.icodici.universa.utnp.connectors;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * The transaction has been mined, but reverted (e.g. the BulkSender has not enough tokens allowed to spend).
+ */
+public class TransactionRevertedException extends Exception {
+
+    public TransactionRevertedException(@NonNull String message) {
+        super(message);
+    }
+}
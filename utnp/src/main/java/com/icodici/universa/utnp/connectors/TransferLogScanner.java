@@ -0,0 +1,122 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.crypto.Hash;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Scans the ERC20 <code>Transfer</code> logs emitted by the token for the transfers from the given addresses
+ * (such as the BulkSender contracts) over a range of blocks.
+ * Thread-safe.
+ */
+public class TransferLogScanner extends LogScanner<TransferLogScanner.Transfer> {
+
+    /**
+     * The topic of <code>Transfer(address,address,uint256)</code>.
+     */
+    public static final String TRANSFER_TOPIC = Numeric.toHexString(
+            Hash.sha3("Transfer(address,address,uint256)".getBytes(StandardCharsets.US_ASCII)));
+
+    /**
+     * A single token transfer, as logged.
+     */
+    public static class Transfer {
+        public final long blockNumber;
+        @NonNull
+        public final String txhash;
+        /**
+         * The recipient, in lowercase.
+         */
+        @NonNull
+        public final String to;
+        /**
+         * The amount, in the minimal units of the token.
+         */
+        @NonNull
+        public final BigInteger amount;
+
+        public Transfer(long blockNumber, @NonNull String txhash, @NonNull String to, @NonNull BigInteger amount) {
+            assert blockNumber >= 0 : blockNumber;
+            assert txhash != null;
+            assert to != null;
+            assert amount != null;
+
+            this.blockNumber = blockNumber;
+            this.txhash = txhash;
+            this.to = to;
+            this.amount = amount;
+        }
+
+        public String toString() {
+            return String.format("Transfer(block=%s, txhash=%s, to=%s, amount=%s)", blockNumber, txhash, to, amount);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fromAddress          the sender of the transfers to look for.
+     * @param blocksPerQuery       the maximum number of blocks to ask by a single query.
+     * @param maxConcurrentQueries how many queries may be running at once.
+     */
+    public TransferLogScanner(@NonNull AbstractConnector connector,
+                              @NonNull String tokenAddress,
+                              @NonNull String fromAddress,
+                              int blocksPerQuery,
+                              int maxConcurrentQueries) {
+        this(connector, tokenAddress, Collections.singletonList(fromAddress), blocksPerQuery, maxConcurrentQueries);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fromAddresses        the senders of the transfers to look for (any of them).
+     * @param blocksPerQuery       the maximum number of blocks to ask by a single query.
+     * @param maxConcurrentQueries how many queries may be running at once.
+     */
+    public TransferLogScanner(@NonNull AbstractConnector connector,
+                              @NonNull String tokenAddress,
+                              @NonNull List<String> fromAddresses,
+                              int blocksPerQuery,
+                              int maxConcurrentQueries) {
+        super(connector, tokenAddress,
+                Arrays.asList(Collections.singletonList(TRANSFER_TOPIC),
+                        fromAddresses.stream().map(TransferLogScanner::addressTopic).collect(Collectors.toList())),
+                TransferLogScanner::decode,
+                blocksPerQuery, maxConcurrentQueries);
+    }
+
+    @Nullable
+    private static Transfer decode(@NonNull Log log) {
+        final List<String> topics = log.getTopics();
+        if (topics == null || topics.size() != 3 || !TRANSFER_TOPIC.equalsIgnoreCase(topics.get(0))) {
+            return null;
+        }
+        return new Transfer(
+                log.getBlockNumber().longValueExact(),
+                log.getTransactionHash(),
+                "0x" + Numeric.cleanHexPrefix(topics.get(2)).substring(24).toLowerCase(),
+                Numeric.toBigInt(log.getData()));
+    }
+
+    /**
+     * The 32-byte topic matching the address.
+     */
+    @NonNull
+    public static String addressTopic(@NonNull String address) {
+        assert address != null;
+        assert EthereumUtils.isHexAddress(address) : address;
+
+        return "0x000000000000000000000000" + Numeric.cleanHexPrefix(address).toLowerCase();
+    }
+}
@@ -1,18 +1,35 @@
 package com.icodici.universa.utnp.connectors;
 
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
 import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.NonceAllocator;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.ethereum.TransactionFees;
+import com.icodici.universa.utnp.ethereum.TransactionSigner;
 import com.icodici.universa.utnp.ethereum.contracts.generated.UTNP;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.Bool;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.generated.Uint256;
 import org.web3j.crypto.Credentials;
 import org.web3j.crypto.ECKeyPair;
-import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.tx.ChainId;
+import org.web3j.tx.RawTransactionManager;
+import org.web3j.tx.response.NoOpProcessor;
+import org.web3j.utils.Numeric;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.concurrent.ExecutionException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * The class acting as a remote control to UTNP Ethereum smart contract.
@@ -27,6 +44,16 @@ public class UTNPConnector extends AbstractConnector {
     private static final Logger logger = LogManager.getLogger(UTNPConnector.class);
 
     private final UTNP contract;
+    @NonNull
+    private final String contractAddress;
+    @NonNull
+    private final String operatorAddress;
+    @NonNull
+    private final TransactionSigner signer;
+    @NonNull
+    private final BigInteger gasPrice;
+    @NonNull
+    private final BigInteger gasLimit;
 
 
     /**
@@ -55,15 +82,46 @@ public class UTNPConnector extends AbstractConnector {
 
         final Credentials burnerCredentials = Credentials.create(ECKeyPair.create(burnerPrivateKey));
 
-        final String operatorAddress = burnerCredentials.getAddress();
+        this.contractAddress = utnpContractAddress;
+        this.operatorAddress = burnerCredentials.getAddress();
+        this.signer = new TransactionSigner(burnerCredentials.getEcKeyPair(), ChainId.MAINNET);
+        this.gasPrice = gasPrice;
+        this.gasLimit = gasLimit;
         logger.debug("Operating from {}", operatorAddress);
 
-        contract = UTNP.load(utnpContractAddress, web3j, burnerCredentials, gasPrice, gasLimit);
+        // Doesn’t wait for the receipt: the transactions are watched by the confirmation tracker
+        final RawTransactionManager txManager =
+                new RawTransactionManager(web3j, burnerCredentials, ChainId.NONE, new NoOpProcessor(web3j));
+        contract = UTNP.load(utnpContractAddress, web3j, txManager, gasPrice, gasLimit);
         assert contract != null;
     }
 
     /**
-     * Call the `burn` method of UTN-P ERC20 contract.
+     * Whether the address has the permission to burn UTN-P tokens (cached within the block).
+     */
+    @NonNull
+    public CompletableFuture<Boolean> isBurnerAsync(@NonNull String address) {
+        assert address != null;
+        assert address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : address;
+
+        return callAsync(contractAddress, new Function(
+                "isBurner",
+                Collections.singletonList(new Address(address)),
+                Collections.singletonList(new TypeReference<Bool>() {
+                })));
+    }
+
+    /**
+     * How many UTN-P tokens (in the minimal units) the burner holds, i.e. may burn (cached within the block).
+     */
+    @NonNull
+    public CompletableFuture<BigInteger> getBurnableBalanceAsync() {
+        return getTokenBalanceAsync(contractAddress, operatorAddress);
+    }
+
+    /**
+     * Call the `burn` method of UTN-P ERC20 contract, and wait until it is mined.
+     * To burn many small amounts, coalesce them with {@link BurnQueue} instead.
      *
      * @param amountToBurn how many (in UTN-P contracts; a number with decimal point maybe) to burn.
      * @return <code>null</code> if failed, the transaction txid, if successfully executed.
@@ -74,19 +132,98 @@ public class UTNPConnector extends AbstractConnector {
         if ((amountToBurn == null) || (amountToBurn.compareTo(BigDecimal.ZERO) < 0)) {
             return null;
         } else {
-            final TransactionReceipt transactionReceipt;
             try {
-                transactionReceipt = contract.burn(EthereumUtils.intFromDecimal(amountToBurn, UTNP_DECIMALS)).sendAsync().get();
-            } catch (InterruptedException | ExecutionException e) {
-                logger.error("Problem on burn", e);
+                return burnAndConfirmAsync(amountToBurn).join().txhash;
+            } catch (CompletionException e) {
+                logger.error("Problem on burn", e.getCause());
                 return null;
             }
-            if (transactionReceipt == null) {
-                return null;
-            } else {
-                logger.error("Problem on burn/getTransactionHash");
-                return transactionReceipt.getTransactionHash();
-            }
         }
     }
+
+    /**
+     * Call the `burn` method of UTN-P ERC20 contract, asynchronously;
+     * compose with {@link #confirmAsync} to wait until it is mined.
+     *
+     * @param amountToBurn how many (in UTN-P contracts; a number with decimal point maybe) to burn.
+     * @return the {@link CompletableFuture} with the txid, completed as soon as the node accepts the transaction;
+     * or completed exceptionally with {@link TransactionRejectedException} if the node has refused it,
+     * or with {@link java.io.IOException} if the node cannot be reached.
+     */
+    @NonNull
+    public CompletableFuture<String> burnAsync(@NonNull BigDecimal amountToBurn) {
+        assert amountToBurn != null;
+        assert amountToBurn.compareTo(BigDecimal.ZERO) >= 0 : amountToBurn;
+
+        return sendContractCallAsync(contract.burn(EthereumUtils.intFromDecimal(amountToBurn, UTNP_DECIMALS)));
+    }
+
+    /**
+     * Burn and wait until it is mined, asynchronously.
+     *
+     * @return the {@link CompletableFuture} completed when the transaction is mined successfully;
+     * or completed exceptionally as {@link #burnAsync} or {@link #confirmAsync} are.
+     */
+    @NonNull
+    public CompletableFuture<Confirmation> burnAndConfirmAsync(@NonNull BigDecimal amountToBurn) {
+        return burnAsync(amountToBurn).thenCompose(this::confirmAsync);
+    }
+
+    /**
+     * Build and sign the `burn` call of UTN-P ERC20 contract, at the gas price and limit passed to the constructor;
+     * without sending it (so it may be journaled first, and re-broadcast as is).
+     *
+     * @param amountToBurn how many to burn, in the minimal units.
+     */
+    @NonNull
+    public SignedTransaction signBurn(@NonNull BigInteger nonce, @NonNull BigInteger amountToBurn) {
+        return signBurn(nonce, amountToBurn, TransactionFees.legacy(gasPrice));
+    }
+
+    /**
+     * Build and sign the `burn` call of UTN-P ERC20 contract, at the given fees (e.g. to replace the stuck burn)
+     * and the gas limit passed to the constructor; without sending it.
+     *
+     * @param amountToBurn how many to burn, in the minimal units.
+     */
+    @NonNull
+    public SignedTransaction signBurn(@NonNull BigInteger nonce,
+                                      @NonNull BigInteger amountToBurn,
+                                      @NonNull TransactionFees fees) {
+        assert nonce != null;
+        assert amountToBurn != null;
+        assert amountToBurn.signum() > 0 : amountToBurn;
+        assert fees != null;
+
+        final byte[] data = Numeric.hexStringToByteArray(FunctionEncoder.encode(new Function(
+                "burn",
+                Collections.singletonList(new Uint256(amountToBurn)),
+                Collections.emptyList())));
+        return signer.sign(nonce, fees, gasLimit, contractAddress, BigInteger.ZERO, data.length,
+                (dest, offset) -> System.arraycopy(data, 0, dest, offset, data.length));
+    }
+
+    /**
+     * The gas price of the burns, in wei.
+     */
+    @NonNull
+    public BigInteger getGasPrice() {
+        return gasPrice;
+    }
+
+    /**
+     * Create the nonce allocator for the burner account.
+     */
+    @NonNull
+    public NonceAllocator createNonceAllocator() throws IOException {
+        return createNonceAllocator(operatorAddress);
+    }
+
+    /**
+     * The address of the burner account.
+     */
+    @NonNull
+    public String getOperatorAddress() {
+        return operatorAddress;
+    }
 }
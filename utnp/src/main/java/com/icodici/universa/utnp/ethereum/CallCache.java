@@ -0,0 +1,158 @@
+package com.icodici.universa.utnp.ethereum;
+
+import com.icodici.universa.utnp.metrics.Counter;
+import com.icodici.universa.utnp.metrics.MetricsRegistry;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.methods.request.Transaction;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Block-scoped cache of the read-only contract calls (<code>eth_call</code>).
+ * <p>
+ * The results are keyed by the contract, the call data and the block number; each call is made
+ * at the explicit block number (rather than at <code>latest</code>), so the cached result is exactly
+ * the state of that block (over the pool of nodes, it goes to a node which has that block, see
+ * {@link com.icodici.universa.utnp.transport.PooledWeb3jService}). As soon as a new block is seen,
+ * all the results are dropped.
+ * The latest block number is re-checked at most once per <code>blockCheckIntervalMs</code>;
+ * so the repeated reads in a tight loop, as well as the concurrent identical reads,
+ * cost a single round trip per block.
+ * Thread-safe.
+ */
+public class CallCache {
+
+    public static final long DEFAULT_BLOCK_CHECK_INTERVAL_MS = 1000;
+
+    private static final Counter hits = MetricsRegistry.getDefault().counter(
+            "utnp_call_cache_hits_total", "Contract reads answered from the block-scoped cache");
+    private static final Counter misses = MetricsRegistry.getDefault().counter(
+            "utnp_call_cache_misses_total", "Contract reads sent to the node");
+
+    /**
+     * The results of the calls at a single block, by the contract and call data.
+     */
+    private static class Block {
+        @NonNull
+        final BigInteger number;
+        @NonNull
+        final Map<String, CompletableFuture<String>> results = new ConcurrentHashMap<>();
+
+        Block(@NonNull BigInteger number) {
+            this.number = number;
+        }
+    }
+
+    @NonNull
+    private final Web3j web3j;
+    private final long blockCheckIntervalNanos;
+
+    /**
+     * The latest block known (or being requested); guarded by <code>this</code>.
+     */
+    @Nullable
+    private CompletableFuture<Block> latest = null;
+    /**
+     * When the {@link #latest} has been requested, by {@link System#nanoTime()}; guarded by <code>this</code>.
+     */
+    private long latestCheckedAt = 0;
+
+
+    /**
+     * Constructor.
+     *
+     * @param blockCheckIntervalMs how long the latest block number is trusted before it is requested again.
+     */
+    public CallCache(@NonNull Web3j web3j, long blockCheckIntervalMs) {
+        assert web3j != null;
+        assert blockCheckIntervalMs >= 0 : blockCheckIntervalMs;
+
+        this.web3j = web3j;
+        this.blockCheckIntervalNanos = blockCheckIntervalMs * 1000000;
+    }
+
+    /**
+     * Call the contract at the latest block, or take the result of the same call at that block.
+     *
+     * @param data the ABI-encoded call, in 0x-prefixed hex form.
+     * @return the {@link CompletableFuture} with the ABI-encoded result, in 0x-prefixed hex form;
+     * or completed exceptionally with {@link IOException} if the node cannot be reached or the call fails.
+     */
+    @NonNull
+    public CompletableFuture<String> call(@NonNull String contractAddress, @NonNull String data) {
+        assert contractAddress != null;
+        assert contractAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : contractAddress;
+        assert data != null;
+
+        final String key = contractAddress.toLowerCase() + ':' + data.toLowerCase();
+        return getLatestBlock().thenCompose(block -> {
+            // The failed calls are not cached
+            final CompletableFuture<String> fresh = new CompletableFuture<>();
+            final CompletableFuture<String> result = block.results.compute(key, (ignored, previous) ->
+                    (previous == null || previous.isCompletedExceptionally()) ? fresh : previous);
+            if (result == fresh) {
+                misses.inc();
+                send(block.number, contractAddress, data, fresh);
+            } else {
+                hits.inc();
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Forget everything, e.g. after the state has been changed by a transaction known to be mined.
+     */
+    public synchronized void invalidate() {
+        latest = null;
+    }
+
+    @NonNull
+    private synchronized CompletableFuture<Block> getLatestBlock() {
+        final long now = System.nanoTime();
+        if (latest != null && !latest.isCompletedExceptionally()
+                && (!latest.isDone() || now - latestCheckedAt < blockCheckIntervalNanos)) {
+            return latest;
+        }
+        final Block previous = (latest != null && latest.isDone() && !latest.isCompletedExceptionally())
+                ? latest.join()
+                : null;
+        latest = web3j.ethBlockNumber().sendAsync().thenApply(response -> {
+            if (response.hasError()) {
+                throw new CompletionException(new IOException(
+                        "eth_blockNumber failed: " + response.getError().getMessage()));
+            }
+            final BigInteger number = response.getBlockNumber();
+            return (previous != null && previous.number.equals(number)) ? previous : new Block(number);
+        });
+        latestCheckedAt = now;
+        return latest;
+    }
+
+    private void send(@NonNull BigInteger blockNumber,
+                      @NonNull String contractAddress,
+                      @NonNull String data,
+                      @NonNull CompletableFuture<String> result) {
+        web3j.ethCall(Transaction.createEthCallTransaction(null, contractAddress, data),
+                DefaultBlockParameter.valueOf(blockNumber))
+                .sendAsync()
+                .whenComplete((response, throwable) -> {
+                    if (throwable != null) {
+                        result.completeExceptionally((throwable instanceof CompletionException) ? throwable.getCause() : throwable);
+                    } else if (response.hasError()) {
+                        result.completeExceptionally(new IOException(
+                                "eth_call to " + contractAddress + " failed: " + response.getError().getMessage()));
+                    } else {
+                        result.complete(response.getValue());
+                    }
+                });
+    }
+}
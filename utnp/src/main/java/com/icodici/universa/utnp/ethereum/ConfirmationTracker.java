@@ -0,0 +1,356 @@
+package com.icodici.universa.utnp.ethereum;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.icodici.universa.utnp.transport.WebSocketService;
+import com.icodici.universa.utnp.transport.WebSocketService.Subscription;
+import com.icodici.universa.utnp.transport.WebSocketService.SubscriptionListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.utils.Numeric;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Tracker of the transactions being mined, shared by all the transactions sent through the same node.
+ * <p>
+ * It watches the new blocks (a single <code>eth_blockNumber</code> request per poll and a single
+ * <code>eth_getBlockByNumber</code> request, without the transaction bodies, per new block),
+ * matches the transaction hashes of each block against all the tracked transactions,
+ * and fetches the receipts only for the matching ones.
+ * So the load on the node doesn’t depend on how many transactions are tracked.
+ * <p>
+ * With the {@link WebSocketService}, the new blocks are pushed by the node (<code>newHeads</code> subscription)
+ * and scanned as soon as they appear; the polling is then only the rare fallback.
+ */
+public class ConfirmationTracker implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(ConfirmationTracker.class);
+
+    public static final long DEFAULT_POLL_INTERVAL_MS = 1000;
+    /**
+     * When the new blocks are pushed, the node is polled just in case some notification is lost.
+     */
+    static final long PUSHED_POLL_INTERVAL_MS = 30000;
+
+    /**
+     * The result of the mined transaction.
+     */
+    public static class Confirmation {
+        @NonNull
+        public final String txhash;
+        @NonNull
+        public final BigInteger blockNumber;
+        /**
+         * Whether the transaction has succeeded; <code>false</code> if it has been reverted.
+         */
+        public final boolean success;
+        @NonNull
+        public final BigInteger gasUsed;
+
+        public Confirmation(@NonNull String txhash, @NonNull BigInteger blockNumber, boolean success, @NonNull BigInteger gasUsed) {
+            assert txhash != null;
+            assert blockNumber != null;
+            assert gasUsed != null;
+
+            this.txhash = txhash;
+            this.blockNumber = blockNumber;
+            this.success = success;
+            this.gasUsed = gasUsed;
+        }
+
+        public String toString() {
+            return String.format("Confirmation(%s, block %s, %s, gasUsed=%s)",
+                    txhash, blockNumber, success ? "success" : "REVERTED", gasUsed);
+        }
+    }
+
+    @NonNull
+    private final Web3j web3j;
+
+    /**
+     * The tracked transactions, by the txhash (in lowercase).
+     */
+    @NonNull
+    private final Map<String, CompletableFuture<Confirmation>> tracked = new ConcurrentHashMap<>();
+
+    @NonNull
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "confirmation-tracker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The latest block which has been checked for the tracked transactions.
+     * Accessed only from the {@link #poller} (after the constructor).
+     */
+    @NonNull
+    private BigInteger lastScannedBlock;
+    /**
+     * The tracked transactions which may have been mined before the {@link #lastScannedBlock},
+     * but whose receipts couldn’t be requested yet; they are requested again on every scan.
+     * Accessed only from the {@link #poller}.
+     */
+    @NonNull
+    private final Set<String> receiptsToRecheck = new LinkedHashSet<>();
+
+    /**
+     * The <code>newHeads</code> subscription; <code>null</code> if the blocks are polled only.
+     */
+    @Nullable
+    private final Subscription newHeads;
+
+
+    /**
+     * Constructor; starts watching the blocks after the current latest one.
+     *
+     * @throws IOException if the latest block number cannot be received from the node.
+     */
+    public ConfirmationTracker(@NonNull Web3j web3j, long pollIntervalMs) throws IOException {
+        this(web3j, null, pollIntervalMs);
+    }
+
+    /**
+     * Constructor; starts watching the blocks after the current latest one.
+     *
+     * @param pushService    the connection to receive the new blocks from; <code>null</code> to poll them.
+     * @param pollIntervalMs how often to poll the new blocks (if they are not pushed).
+     * @throws IOException if the latest block number cannot be received from the node, or it cannot be subscribed.
+     */
+    public ConfirmationTracker(@NonNull Web3j web3j,
+                               @Nullable WebSocketService pushService,
+                               long pollIntervalMs) throws IOException {
+        assert web3j != null;
+        assert pollIntervalMs > 0 : pollIntervalMs;
+
+        this.web3j = web3j;
+        this.lastScannedBlock = fetchLatestBlockNumber();
+        if (pushService == null) {
+            newHeads = null;
+        } else {
+            try {
+                newHeads = pushService.subscribeNewHeads(new SubscriptionListener() {
+                    @Override
+                    public void onNotification(@NonNull JsonNode head) {
+                        final BigInteger blockNumber = Numeric.decodeQuantity(head.path("number").asText());
+                        poller.execute(() -> scanUpTo(blockNumber));
+                    }
+
+                    @Override
+                    public void onResubscribed() {
+                        // The blocks appeared while disconnected
+                        poller.execute(ConfirmationTracker.this::poll);
+                    }
+                }).join();
+            } catch (CompletionException e) {
+                throw new IOException("Cannot subscribe to the new blocks", e.getCause());
+            }
+        }
+        final long actualPollIntervalMs = (newHeads == null) ? pollIntervalMs : Math.max(pollIntervalMs, PUSHED_POLL_INTERVAL_MS);
+        poller.scheduleWithFixedDelay(this::poll, actualPollIntervalMs, actualPollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start tracking the transaction.
+     * To be sure it is not missed, the transaction should be tracked <em>before</em> it is sent;
+     * otherwise, it should be tracked with <code>mayBeMinedAlready</code>.
+     *
+     * @param mayBeMinedAlready if the transaction might have been mined already (e.g. sent long ago);
+     *                          in this case its receipt is requested at once (and again on every scan,
+     *                          until the node returns it).
+     * @return the {@link CompletableFuture} completed when the transaction is mined.
+     * If the same transaction is already tracked, the same future is returned.
+     */
+    @NonNull
+    public CompletableFuture<Confirmation> track(@NonNull String txhash, boolean mayBeMinedAlready) {
+        assert txhash != null;
+        assert txhash.length() == EthereumUtils.ETHEREUM_TR_TXHASH_LENGTH : txhash;
+
+        final CompletableFuture<Confirmation> result =
+                tracked.computeIfAbsent(txhash.toLowerCase(), key -> new CompletableFuture<>());
+        if (mayBeMinedAlready) {
+            poller.execute(() -> {
+                try {
+                    checkReceipt(txhash.toLowerCase());
+                } catch (IOException e) {
+                    // Its block may be scanned already, so it won’t be seen there
+                    logger.warn("Cannot get the receipt of {}, retrying on the next scan: {}", txhash, e.getMessage());
+                    receiptsToRecheck.add(txhash.toLowerCase());
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Stop tracking the transaction (e.g. if it has been replaced by another one);
+     * its {@link CompletableFuture} is cancelled.
+     */
+    public void untrack(@NonNull String txhash) {
+        assert txhash != null;
+
+        final CompletableFuture<Confirmation> future = tracked.remove(txhash.toLowerCase());
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * How many transactions are being tracked.
+     */
+    public int getTrackedCount() {
+        return tracked.size();
+    }
+
+    /**
+     * Stop watching the blocks; the transactions still tracked won’t be ever completed.
+     */
+    @Override
+    public void close() {
+        if (newHeads != null) {
+            newHeads.close();
+        }
+        poller.shutdownNow();
+    }
+
+    /**
+     * Scan all the blocks appeared since the previous poll.
+     * Runs periodically in the {@link #poller}.
+     */
+    private void poll() {
+        try {
+            scanUpTo(fetchLatestBlockNumber());
+        } catch (IOException e) {
+            logger.warn("Cannot check the new blocks: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Scan all the blocks after the last scanned one, up to the given one.
+     * Runs in the {@link #poller}.
+     */
+    private void scanUpTo(@NonNull BigInteger latest) {
+        recheckReceipts();
+        try {
+            while (lastScannedBlock.compareTo(latest) < 0) {
+                final BigInteger blockNumber = lastScannedBlock.add(BigInteger.ONE);
+                if (!tracked.isEmpty() && !scanBlock(blockNumber)) {
+                    // The node doesn’t have it yet; retry on the next poll
+                    break;
+                }
+                lastScannedBlock = blockNumber;
+            }
+        } catch (Exception e) {
+            logger.warn("Cannot check the new blocks: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Request the receipts of the {@link #receiptsToRecheck} again; forget the ones received
+     * (mined or not: if not, they will be seen in the blocks not scanned yet) or not tracked anymore.
+     * Runs in the {@link #poller}.
+     */
+    private void recheckReceipts() {
+        for (final Iterator<String> iterator = receiptsToRecheck.iterator(); iterator.hasNext(); ) {
+            final String txhash = iterator.next();
+            if (tracked.containsKey(txhash)) {
+                try {
+                    checkReceipt(txhash);
+                } catch (IOException e) {
+                    logger.warn("Cannot get the receipt of {} again: {}", txhash, e.getMessage());
+                    continue;
+                }
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the node cannot return the block.
+     */
+    private boolean scanBlock(@NonNull BigInteger blockNumber) throws IOException {
+        final EthBlock response = web3j.ethGetBlockByNumber(DefaultBlockParameter.valueOf(blockNumber), false).send();
+        if (response.hasError()) {
+            throw new IOException(response.getError().getMessage());
+        }
+        final EthBlock.Block block = response.getBlock();
+        if (block == null) {
+            return false;
+        }
+        // Request all the receipts at once, so the transport can batch them.
+        final Map<String, CompletableFuture<EthGetTransactionReceipt>> receipts = new LinkedHashMap<>();
+        for (final EthBlock.TransactionResult transaction : block.getTransactions()) {
+            final String txhash = ((String) transaction.get()).toLowerCase();
+            if (tracked.containsKey(txhash)) {
+                receipts.put(txhash, web3j.ethGetTransactionReceipt(txhash).sendAsync());
+            }
+        }
+        for (final Map.Entry<String, CompletableFuture<EthGetTransactionReceipt>> entry : receipts.entrySet()) {
+            try {
+                handleReceipt(entry.getKey(), entry.getValue().join());
+            } catch (CompletionException e) {
+                throw new IOException("Cannot get the receipt of " + entry.getKey(), e.getCause());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Request the receipt of the tracked transaction; if it is mined, complete its future.
+     */
+    private void checkReceipt(@NonNull String txhash) throws IOException {
+        handleReceipt(txhash, web3j.ethGetTransactionReceipt(txhash).send());
+    }
+
+    private void handleReceipt(@NonNull String txhash, @NonNull EthGetTransactionReceipt response) throws IOException {
+        if (response.hasError()) {
+            throw new IOException(response.getError().getMessage());
+        }
+        final Optional<TransactionReceipt> receipt = response.getTransactionReceipt();
+        if (!receipt.isPresent() || receipt.get().getBlockNumberRaw() == null) {
+            return;
+        }
+
+        final CompletableFuture<Confirmation> future = tracked.remove(txhash);
+        if (future != null) {
+            final Confirmation confirmation = new Confirmation(
+                    txhash, receipt.get().getBlockNumber(), isSuccessful(receipt.get()), receipt.get().getGasUsed());
+            logger.debug("Mined: {}", confirmation);
+            future.complete(confirmation);
+        }
+    }
+
+    /**
+     * The receipts before Byzantium have no status; such transactions are considered successful.
+     */
+    private static boolean isSuccessful(@NonNull TransactionReceipt receipt) {
+        final String status = receipt.getStatus();
+        return status == null || Numeric.decodeQuantity(status).signum() != 0;
+    }
+
+    @NonNull
+    private BigInteger fetchLatestBlockNumber() throws IOException {
+        final EthBlockNumber response = web3j.ethBlockNumber().send();
+        if (response.hasError()) {
+            throw new IOException(response.getError().getMessage());
+        }
+        return response.getBlockNumber();
+    }
+}
@@ -1,19 +1,12 @@
 package com.icodici.universa.utnp.ethereum;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
-import org.web3j.protocol.Web3j;
-import org.web3j.protocol.core.DefaultBlockParameter;
-import org.web3j.protocol.core.DefaultBlockParameterName;
-import org.web3j.protocol.core.methods.response.Transaction;
-import rx.Subscription;
-import rx.internal.schedulers.ExecutorScheduler;
-
-import java.io.IOException;
+import org.web3j.crypto.Hash;
+
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -41,8 +34,33 @@ public class EthereumUtils {
      */
     public static final int PUBLIC_KEY_SIZE = 64;
 
+    /**
+     * Runs the blocking calls to the node (and to web3j), each on its own virtual thread;
+     * so any number of them may wait for the node concurrently, without a platform thread for each one.
+     */
+    public static final ExecutorService BLOCKING_IO_EXECUTOR =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("web3j-io-", 0).factory());
+
+    /**
+     * Run the blocking call on a virtual thread of {@link #BLOCKING_IO_EXECUTOR}.
+     *
+     * @return the {@link CompletableFuture} completed with the result of the call,
+     * or exceptionally with the very exception it has thrown.
+     */
     @NonNull
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    public static <T> CompletableFuture<T> callBlocking(@NonNull Callable<T> call) {
+        assert call != null;
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        BLOCKING_IO_EXECUTOR.execute(() -> {
+            try {
+                result.complete(call.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
 
     /**
      * Convert the web3j-typical address
@@ -93,6 +111,95 @@ public class EthereumUtils {
         return dbTrHash.toLowerCase();
     }
 
+    /**
+     * Whether the string is a syntactically valid address: <code>0x</code> and 40 hex digits, in any case.
+     * Doesn’t allocate anything.
+     */
+    public static final boolean isHexAddress(@NonNull CharSequence address) {
+        assert address != null;
+
+        if (address.length() != ETHEREUM_ADDRESS_LENGTH || address.charAt(0) != '0' || address.charAt(1) != 'x') {
+            return false;
+        }
+        for (int i = 2; i < ETHEREUM_ADDRESS_LENGTH; i++) {
+            final char c = address.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check the EIP-55 checksum of the address (which should be already {@link #isHexAddress valid}).
+     * The addresses in a single case (all lowercase or all uppercase) carry no checksum, so they pass.
+     */
+    public static final boolean hasValidChecksum(@NonNull String address) {
+        assert address != null;
+        assert isHexAddress(address) : address;
+
+        boolean hasLower = false, hasUpper = false;
+        for (int i = 2; i < ETHEREUM_ADDRESS_LENGTH; i++) {
+            final char c = address.charAt(i);
+            hasLower |= (c >= 'a' && c <= 'f');
+            hasUpper |= (c >= 'A' && c <= 'F');
+        }
+        if (!(hasLower && hasUpper)) {
+            return true;
+        }
+
+        // The checksum is the Keccak-256 of the lowercase hex digits (as ASCII);
+        // a letter must be uppercase if the corresponding nibble of the hash is 8 or more.
+        final byte[] lowercaseHex = new byte[ETHEREUM_ADDRESS_LENGTH - 2];
+        for (int i = 0; i < lowercaseHex.length; i++) {
+            lowercaseHex[i] = (byte) Character.toLowerCase(address.charAt(i + 2));
+        }
+        final byte[] hash = Hash.sha3(lowercaseHex);
+        for (int i = 0; i < lowercaseHex.length; i++) {
+            final char c = address.charAt(i + 2);
+            if (c >= '0' && c <= '9') {
+                continue;
+            }
+            final int nibble = ((i & 1) == 0) ? (hash[i >> 1] >> 4) & 0xF : hash[i >> 1] & 0xF;
+            if ((nibble >= 8) != (c >= 'A' && c <= 'F')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit fingerprint of the address (in DB format), folding all its 160 bits.
+     * Suitable for the compact “have we seen this address” checks over large sets of addresses.
+     */
+    public static final long addressFingerprint(@NonNull String dbAddress) {
+        assert dbAddress != null;
+        assert dbAddress.length() == ADDRESS_DB_LENGTH : dbAddress;
+
+        final long
+                high = parseHexLong(dbAddress, 2, 18),
+                middle = parseHexLong(dbAddress, 18, 34),
+                low = parseHexLong(dbAddress, 34, 42);
+        return high ^ Long.rotateLeft(middle, 21) ^ Long.rotateLeft(low, 42);
+    }
+
+    /**
+     * Parse (up to 16) hex digits of the string, in any case, without allocating the substring.
+     */
+    private static long parseHexLong(@NonNull CharSequence hex, int from, int to) {
+        assert to - from <= 16 : to - from;
+
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            final int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new NumberFormatException("Not a hex digit in " + hex);
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
     /**
      * Convert the amount in WEI to regular {@link BigDecimal} value of Ethers.
      */
@@ -124,55 +231,4 @@ public class EthereumUtils {
     public static final BigInteger intFromDecimal(@NonNull BigDecimal bd, @NonNull BigInteger decimals) {
         return bd.multiply((BigDecimal.TEN.pow(decimals.intValue()))).toBigInteger();
     }
-
-    /**
-     * Wait until a transaction is fully mined.
-     *
-     * @return the {@link CompletableFuture} with the transaction txhash.
-     */
-    @SuppressWarnings("unused")
-    @NonNull
-    protected static CompletableFuture<String> waitForTransactionMined(
-            @NonNull Web3j web3, @NonNull String txhash
-    ) throws IOException, ExecutionException, InterruptedException {
-        // TODO: the implementation can be more reactive
-        // (though this is not very important, the first call should release the thread rather fast).
-
-        final BigInteger latestBlockNumber = web3.ethGetBlockByNumber(DefaultBlockParameterName.LATEST, false)
-                .sendAsync()
-                .thenApply(latestBlock -> latestBlock.getBlock().getNumber())
-                .get();
-        final DefaultBlockParameter
-                latestBlockParam = DefaultBlockParameter.valueOf(latestBlockNumber),
-                penultimateBlockParam = DefaultBlockParameter.valueOf(latestBlockNumber.subtract(BigInteger.ONE));
-
-        // Actually we could have found the transaction status at penultimateBlockParam;
-        // but it is not that important for race conditions, cause we can complete the CompletableFuture as soon
-        // as the transaction is found mined *at any moment*.
-
-        final Optional<Transaction> optTransaction = web3.ethGetTransactionByHash(txhash).send().getTransaction();
-        if (optTransaction.isPresent()) {
-            final String blockNumberRaw = optTransaction.get().getBlockNumberRaw();
-            if (blockNumberRaw != null) {
-                // Bail out! we are done
-                final CompletableFuture<String> result = new CompletableFuture<>();
-                result.complete(txhash);
-                return result;
-            }
-        }
-
-        final CompletableFuture<String> result = new CompletableFuture<>();
-
-        // Subscription[1] is a workaround to deal with "effectively final" requirement of lambda-functions.
-        final Subscription[] subscriptionContainer = new Subscription[1];
-        subscriptionContainer[0] = web3.catchUpToLatestAndSubscribeToNewTransactionsObservable(latestBlockParam)
-                .observeOn(new ExecutorScheduler(executor))
-                .subscribe(transaction -> {
-                    if (transaction.getHash().equals(txhash)) {
-                        subscriptionContainer[0].unsubscribe();
-                        result.complete(txhash);
-                    }
-                });
-        return result;
-    }
 }
@@ -0,0 +1,105 @@
+package com.icodici.universa.utnp.ethereum;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Chooses the fees of the transactions: for the new ones (fixed, or suggested by {@link GasPriceOracle}),
+ * and for the replacements of the stuck ones (raised, but never above the operator-set cap).
+ * Thread-safe.
+ */
+public class FeePolicy {
+
+    private static final Logger logger = LogManager.getLogger(FeePolicy.class);
+
+    /**
+     * The replacement raises the fees by so many percent at least.
+     */
+    public static final int BUMP_PERCENT = 25;
+
+    /**
+     * The fees of the new transactions; <code>null</code> if suggested by the {@link #oracle}.
+     */
+    @Nullable
+    private final TransactionFees fixedFees;
+    @Nullable
+    private final GasPriceOracle oracle;
+    @NonNull
+    private final BigInteger maxFeePerGas;
+
+
+    /**
+     * The policy with the fixed fees of the new transactions.
+     *
+     * @param maxFeePerGas the fees are never raised above this, in wei.
+     */
+    public FeePolicy(@NonNull TransactionFees fixedFees, @NonNull BigInteger maxFeePerGas) {
+        this(fixedFees, null, maxFeePerGas);
+    }
+
+    /**
+     * The policy with the fees of the new transactions suggested by the oracle.
+     *
+     * @param maxFeePerGas the fees are never raised above this, in wei.
+     */
+    public FeePolicy(@NonNull GasPriceOracle oracle, @NonNull BigInteger maxFeePerGas) {
+        this(null, oracle, maxFeePerGas);
+    }
+
+    private FeePolicy(@Nullable TransactionFees fixedFees,
+                      @Nullable GasPriceOracle oracle,
+                      @NonNull BigInteger maxFeePerGas) {
+        assert (fixedFees == null) != (oracle == null);
+        assert maxFeePerGas != null;
+        assert maxFeePerGas.signum() > 0 : maxFeePerGas;
+
+        this.fixedFees = fixedFees;
+        this.oracle = oracle;
+        this.maxFeePerGas = maxFeePerGas;
+    }
+
+    /**
+     * The cap of the fee per gas, in wei.
+     */
+    @NonNull
+    public BigInteger getMaxFeePerGas() {
+        return maxFeePerGas;
+    }
+
+    /**
+     * The fees for the new transaction.
+     *
+     * @throws IOException if the fees cannot be suggested by the node.
+     */
+    @NonNull
+    public TransactionFees getFees() throws IOException {
+        return ((oracle == null) ? fixedFees : oracle.suggest()).cappedAt(maxFeePerGas);
+    }
+
+    /**
+     * The fees for the transaction replacing the stuck one: raised by the bump percentage,
+     * or up to the current suggestion if it is higher; but not above the cap.
+     *
+     * @return <code>null</code> if the fees cannot be raised enough for the node to accept the replacement.
+     */
+    @Nullable
+    public TransactionFees getReplacementFees(@NonNull TransactionFees previous) {
+        assert previous != null;
+
+        TransactionFees raised = previous.raisedBy(BUMP_PERCENT);
+        if (oracle != null) {
+            try {
+                raised = raised.raisedTo(oracle.suggest());
+            } catch (IOException e) {
+                logger.warn("Cannot get the suggested fees, raising by {}% only: {}", BUMP_PERCENT, e.getMessage());
+            }
+        }
+        final TransactionFees capped = raised.cappedAt(maxFeePerGas);
+        return capped.canReplace(previous) ? capped : null;
+    }
+}
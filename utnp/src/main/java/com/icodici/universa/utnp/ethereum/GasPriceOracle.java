@@ -0,0 +1,226 @@
+package com.icodici.universa.utnp.ethereum;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthGasPrice;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suggests the fees for the new transactions by the recent blocks (<code>eth_feeHistory</code>):
+ * the priority fee is the median of the typical (by {@link #REWARD_PERCENTILE}) priority fees
+ * paid in the recent blocks, and the fee cap leaves the room for the base fee to double
+ * (i.e. to rise for several full blocks in a row) before the transaction becomes unminable.
+ * <p>
+ * If the node doesn’t support EIP-1559 (or fails <code>eth_feeHistory</code>), suggests the legacy gas price
+ * (<code>eth_gasPrice</code>) for a while, and then tries <code>eth_feeHistory</code> again.
+ * The suggestion is cached for a while, as it doesn’t change faster than the blocks;
+ * if the node cannot be reached, the latest suggestion is used.
+ * Thread-safe.
+ */
+public class GasPriceOracle {
+
+    private static final Logger logger = LogManager.getLogger(GasPriceOracle.class);
+
+    /**
+     * How many recent blocks to look at.
+     */
+    public static final int DEFAULT_BLOCK_COUNT = 20;
+    /**
+     * The percentile of the priority fees paid in each block, by gas used.
+     */
+    static final double REWARD_PERCENTILE = 50;
+    /**
+     * The priority fee suggested if the recent blocks are empty.
+     */
+    static final BigInteger MIN_PRIORITY_FEE = BigInteger.valueOf(1000000000);
+    /**
+     * The fee cap is the next base fee multiplied by this, plus the priority fee.
+     */
+    static final int BASE_FEE_HEADROOM = 2;
+    static final long CACHE_MS = 5000;
+    /**
+     * How long to suggest the legacy gas price before trying <code>eth_feeHistory</code> again.
+     */
+    static final long LEGACY_RECHECK_MS = 600000;
+
+    /**
+     * The response of <code>eth_feeHistory</code> (not supported by web3j yet).
+     */
+    public static class EthFeeHistory extends Response<FeeHistory> {
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class FeeHistory {
+        public String oldestBlock;
+        /**
+         * The base fees of the blocks, and of the next block after them.
+         */
+        public List<String> baseFeePerGas;
+        public List<Double> gasUsedRatio;
+        /**
+         * The priority fees of the blocks, by the requested percentiles; absent if no percentiles are requested.
+         */
+        public List<List<String>> reward;
+    }
+
+    @NonNull
+    private final Web3j web3j;
+    @NonNull
+    private final Web3jService service;
+    private final int blockCount;
+    private final long cacheNanos;
+    private final long legacyRecheckNanos;
+
+    @Nullable
+    private TransactionFees cached = null;
+    private long cachedAt = 0;
+    /**
+     * Whether the node has failed <code>eth_feeHistory</code> lately.
+     */
+    private boolean legacyOnly = false;
+    /**
+     * When <code>eth_feeHistory</code> has failed (by {@link System#nanoTime()}).
+     */
+    private long legacySince = 0;
+
+
+    /**
+     * Constructor.
+     *
+     * @param service    the service behind the web3j, to send the requests web3j doesn’t support.
+     * @param blockCount how many recent blocks to look at.
+     */
+    public GasPriceOracle(@NonNull Web3j web3j, @NonNull Web3jService service, int blockCount) {
+        this(web3j, service, blockCount, CACHE_MS, LEGACY_RECHECK_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cacheMs         how long the suggestion is reused.
+     * @param legacyRecheckMs how long to suggest the legacy gas price after <code>eth_feeHistory</code> fails.
+     */
+    GasPriceOracle(@NonNull Web3j web3j,
+                   @NonNull Web3jService service,
+                   int blockCount,
+                   long cacheMs,
+                   long legacyRecheckMs) {
+        assert web3j != null;
+        assert service != null;
+        assert blockCount > 0 : blockCount;
+        assert cacheMs >= 0 : cacheMs;
+        assert legacyRecheckMs >= 0 : legacyRecheckMs;
+
+        this.web3j = web3j;
+        this.service = service;
+        this.blockCount = blockCount;
+        this.cacheNanos = TimeUnit.MILLISECONDS.toNanos(cacheMs);
+        this.legacyRecheckNanos = TimeUnit.MILLISECONDS.toNanos(legacyRecheckMs);
+    }
+
+    /**
+     * The fees for the transaction to be mined soon.
+     *
+     * @throws IOException if the fees cannot be received from the node, and nothing has been suggested before.
+     */
+    @NonNull
+    public synchronized TransactionFees suggest() throws IOException {
+        final long now = System.nanoTime();
+        if (cached != null && now - cachedAt < cacheNanos) {
+            return cached;
+        }
+        if (legacyOnly && now - legacySince >= legacyRecheckNanos) {
+            // Maybe the failure was temporary, or the node has been upgraded
+            legacyOnly = false;
+        }
+        TransactionFees suggestion;
+        try {
+            suggestion = legacyOnly ? null : suggestEip1559();
+            if (suggestion == null) {
+                if (!legacyOnly) {
+                    legacyOnly = true;
+                    legacySince = now;
+                }
+                final EthGasPrice response = web3j.ethGasPrice().send();
+                if (response.hasError()) {
+                    throw new IOException("eth_gasPrice failed: " + response.getError().getMessage());
+                }
+                suggestion = TransactionFees.legacy(response.getGasPrice());
+            }
+        } catch (IOException e) {
+            if (cached == null) {
+                throw e;
+            }
+            // Better the stale suggestion than none; asked again on the next call
+            logger.warn("Cannot update the suggested fees, using the previous ones: {}", e.getMessage());
+            return cached;
+        }
+        if (!suggestion.equals(cached)) {
+            logger.debug("Suggested {}", suggestion);
+        }
+        cached = suggestion;
+        cachedAt = System.nanoTime();
+        return suggestion;
+    }
+
+    /**
+     * @return <code>null</code> if the node doesn’t support EIP-1559.
+     */
+    @Nullable
+    private TransactionFees suggestEip1559() throws IOException {
+        final EthFeeHistory response = new Request<>(
+                "eth_feeHistory",
+                Arrays.asList(Numeric.encodeQuantity(BigInteger.valueOf(blockCount)), "latest",
+                        Collections.singletonList(REWARD_PERCENTILE)),
+                service,
+                EthFeeHistory.class).send();
+        if (response.hasError()) {
+            logger.info("eth_feeHistory has failed ({}); using the legacy gas price for {} s",
+                    response.getError().getMessage(), TimeUnit.NANOSECONDS.toSeconds(legacyRecheckNanos));
+            return null;
+        }
+        final FeeHistory history = response.getResult();
+        if (history == null || history.baseFeePerGas == null || history.baseFeePerGas.isEmpty()) {
+            logger.info("The node reports no base fee; using the legacy gas price for {} s",
+                    TimeUnit.NANOSECONDS.toSeconds(legacyRecheckNanos));
+            return null;
+        }
+
+        final BigInteger nextBaseFee = Numeric.decodeQuantity(history.baseFeePerGas.get(history.baseFeePerGas.size() - 1));
+        final List<BigInteger> rewards = new ArrayList<>();
+        if (history.reward != null) {
+            for (int i = 0; i < history.reward.size(); i++) {
+                // The empty blocks tell nothing about the priority fees
+                final boolean empty = history.gasUsedRatio != null && i < history.gasUsedRatio.size()
+                        && history.gasUsedRatio.get(i) == 0;
+                if (!empty && !history.reward.get(i).isEmpty()) {
+                    rewards.add(Numeric.decodeQuantity(history.reward.get(i).get(0)));
+                }
+            }
+        }
+        final BigInteger priorityFee;
+        if (rewards.isEmpty()) {
+            priorityFee = MIN_PRIORITY_FEE;
+        } else {
+            Collections.sort(rewards);
+            priorityFee = rewards.get(rewards.size() / 2).max(BigInteger.ONE);
+        }
+        return TransactionFees.eip1559(
+                nextBaseFee.multiply(BigInteger.valueOf(BASE_FEE_HEADROOM)).add(priorityFee), priorityFee);
+    }
+}
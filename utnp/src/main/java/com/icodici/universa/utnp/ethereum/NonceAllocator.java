@@ -0,0 +1,106 @@
+package com.icodici.universa.utnp.ethereum;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Local allocator of the transaction nonces for a single sending account.
+ * <p>
+ * The node is asked for the nonce only once (and on explicit {@link #resync()} or {@link #reset()});
+ * afterwards, the consecutive nonces are allocated locally, without a network round trip.
+ * Assumes nobody else sends the transactions from the same account meanwhile.
+ */
+public class NonceAllocator {
+
+    @NonNull
+    private final Web3j web3j;
+    @NonNull
+    private final String address;
+
+    @NonNull
+    private BigInteger next;
+
+
+    public NonceAllocator(@NonNull Web3j web3j, @NonNull String address) throws IOException {
+        assert web3j != null;
+        assert address != null;
+        assert address.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : address;
+
+        this.web3j = web3j;
+        this.address = address;
+        this.next = fetchTransactionCount(DefaultBlockParameterName.PENDING);
+    }
+
+    /**
+     * Take the next nonce.
+     */
+    @NonNull
+    public synchronized BigInteger allocate() {
+        final BigInteger result = next;
+        next = next.add(BigInteger.ONE);
+        return result;
+    }
+
+    /**
+     * Nonce to be returned by the next {@link #allocate()} call.
+     */
+    @NonNull
+    public synchronized BigInteger peek() {
+        return next;
+    }
+
+    /**
+     * Make sure the nonces below <code>nonce</code> are never allocated
+     * (e.g. they are used by the transactions signed earlier, but maybe not sent yet).
+     */
+    public synchronized void advanceTo(@NonNull BigInteger nonce) {
+        assert nonce != null;
+        next = next.max(nonce);
+    }
+
+    /**
+     * Re-read the nonce from the node (counting the pending transactions too),
+     * if the node knows about more transactions than we have allocated locally.
+     */
+    public void resync() throws IOException {
+        final BigInteger pendingCount = fetchTransactionCount(DefaultBlockParameterName.PENDING);
+        synchronized (this) {
+            next = next.max(pendingCount);
+        }
+    }
+
+    /**
+     * Re-read the nonce from the node (counting the pending transactions too), even if it is below the nonces
+     * allocated locally: the nonces of the transactions the node has refused are allocated again.
+     * Only for the senders having no transactions signed but not sent yet.
+     */
+    public void reset() throws IOException {
+        final BigInteger pendingCount = fetchTransactionCount(DefaultBlockParameterName.PENDING);
+        synchronized (this) {
+            next = pendingCount;
+        }
+    }
+
+    /**
+     * How many transactions from the account are already mined;
+     * i.e. every transaction with the nonce below this number is already in the blockchain.
+     */
+    @NonNull
+    public BigInteger fetchMinedCount() throws IOException {
+        return fetchTransactionCount(DefaultBlockParameterName.LATEST);
+    }
+
+    @NonNull
+    private BigInteger fetchTransactionCount(@NonNull DefaultBlockParameterName block) throws IOException {
+        final EthGetTransactionCount response = web3j.ethGetTransactionCount(address, block).send();
+        if (response.hasError()) {
+            throw new IOException("eth_getTransactionCount failed: " + response.getError().getMessage());
+        }
+        return response.getTransactionCount();
+    }
+}
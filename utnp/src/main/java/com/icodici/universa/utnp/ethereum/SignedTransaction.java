@@ -0,0 +1,96 @@
+package com.icodici.universa.utnp.ethereum;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.web3j.crypto.Hash;
+import org.web3j.rlp.RlpDecoder;
+import org.web3j.rlp.RlpList;
+import org.web3j.rlp.RlpString;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * A raw Ethereum transaction, already signed and ready to be broadcast.
+ * <p>
+ * The txhash is calculated locally, so it is known even before the transaction is sent.
+ */
+public class SignedTransaction {
+
+    @NonNull
+    public final BigInteger nonce;
+
+    /**
+     * The signed RLP-encoded transaction, in 0x-prefixed hex form (as used by <code>eth_sendRawTransaction</code>).
+     */
+    @NonNull
+    public final String hex;
+
+    /**
+     * The transaction hash, in DB format (lowercase, 0x-prefixed).
+     */
+    @NonNull
+    public final String txhash;
+
+
+    public SignedTransaction(@NonNull BigInteger nonce, @NonNull byte[] signedMessage) {
+        assert nonce != null;
+        assert signedMessage != null;
+
+        this.nonce = nonce;
+        this.hex = Numeric.toHexString(signedMessage);
+        this.txhash = Numeric.toHexString(Hash.sha3(signedMessage));
+    }
+
+    /**
+     * The call data of the transaction (legacy or EIP-1559), decoded from its raw form.
+     *
+     * @throws IllegalArgumentException if the raw transaction is malformed.
+     */
+    @NonNull
+    public byte[] getCallData() {
+        final byte[] raw = Numeric.hexStringToByteArray(hex);
+        final boolean typed = isTyped(raw);
+        return getField(raw, typed ? 7 : 5).getBytes();
+    }
+
+    /**
+     * The fees the transaction (legacy or EIP-1559) pays, decoded from its raw form.
+     *
+     * @throws IllegalArgumentException if the raw transaction is malformed, or is of another type.
+     */
+    @NonNull
+    public TransactionFees getFees() {
+        final byte[] raw = Numeric.hexStringToByteArray(hex);
+        if (!isTyped(raw)) {
+            return TransactionFees.legacy(new BigInteger(1, getField(raw, 1).getBytes()));
+        } else if (raw[0] == 2) {
+            return TransactionFees.eip1559(new BigInteger(1, getField(raw, 3).getBytes()),
+                    new BigInteger(1, getField(raw, 2).getBytes()));
+        } else {
+            throw new IllegalArgumentException("Unsupported type " + raw[0] + " of transaction " + txhash);
+        }
+    }
+
+    /**
+     * Whether the raw transaction is a typed one: it starts with its type, the legacy one with the RLP list header.
+     */
+    private static boolean isTyped(@NonNull byte[] raw) {
+        return raw.length > 0 && (raw[0] & 0xff) < 0x7f;
+    }
+
+    @NonNull
+    private RlpString getField(@NonNull byte[] raw, int index) {
+        try {
+            final RlpList fields = (RlpList) RlpDecoder.decode(isTyped(raw) ? Arrays.copyOfRange(raw, 1, raw.length) : raw)
+                    .getValues().get(0);
+            return (RlpString) fields.getValues().get(index);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed transaction " + txhash, e);
+        }
+    }
+
+    public String toString() {
+        return String.format("SignedTransaction(nonce=%s, txhash=%s)", nonce, txhash);
+    }
+}
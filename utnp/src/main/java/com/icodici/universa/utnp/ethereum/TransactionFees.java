@@ -0,0 +1,154 @@
+package com.icodici.universa.utnp.ethereum;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * The fees the transaction pays per gas: either the legacy gas price, or the EIP-1559 fee cap and priority fee.
+ * <p>
+ * The legacy gas price is treated as both the fee cap and the priority fee (as the nodes do since EIP-1559),
+ * so the fees of any kind can be compared and raised the same way.
+ */
+public class TransactionFees {
+
+    /**
+     * The node replaces the pending transaction only if both fees of the new one are higher by so many percent.
+     */
+    public static final int MIN_REPLACEMENT_BUMP_PERCENT = 10;
+
+    private static final BigInteger HUNDRED = BigInteger.valueOf(100);
+
+    /**
+     * Whether the transaction is an EIP-1559 (type 2) one.
+     */
+    public final boolean eip1559;
+    /**
+     * The maximum total fee per gas (the gas price, for the legacy transaction), in wei.
+     */
+    @NonNull
+    public final BigInteger maxFeePerGas;
+    /**
+     * The maximum fee per gas paid to the miner above the base fee (the gas price, for the legacy transaction), in wei.
+     */
+    @NonNull
+    public final BigInteger maxPriorityFeePerGas;
+
+
+    private TransactionFees(boolean eip1559, @NonNull BigInteger maxFeePerGas, @NonNull BigInteger maxPriorityFeePerGas) {
+        assert maxFeePerGas != null;
+        assert maxFeePerGas.signum() > 0 : maxFeePerGas;
+        assert maxPriorityFeePerGas != null;
+        assert maxPriorityFeePerGas.signum() >= 0 : maxPriorityFeePerGas;
+        assert maxPriorityFeePerGas.compareTo(maxFeePerGas) <= 0 : maxPriorityFeePerGas;
+
+        this.eip1559 = eip1559;
+        this.maxFeePerGas = maxFeePerGas;
+        this.maxPriorityFeePerGas = maxPriorityFeePerGas;
+    }
+
+    /**
+     * The fees of the legacy transaction.
+     */
+    @NonNull
+    public static TransactionFees legacy(@NonNull BigInteger gasPrice) {
+        return new TransactionFees(false, gasPrice, gasPrice);
+    }
+
+    /**
+     * The fees of the EIP-1559 transaction.
+     */
+    @NonNull
+    public static TransactionFees eip1559(@NonNull BigInteger maxFeePerGas, @NonNull BigInteger maxPriorityFeePerGas) {
+        return new TransactionFees(true, maxFeePerGas, maxPriorityFeePerGas);
+    }
+
+    /**
+     * The gas price of the legacy transaction.
+     */
+    @NonNull
+    public BigInteger getGasPrice() {
+        assert !eip1559;
+        return maxFeePerGas;
+    }
+
+    /**
+     * The same kind of fees, both raised by the percentage (rounding up).
+     */
+    @NonNull
+    public TransactionFees raisedBy(int percent) {
+        assert percent >= 0 : percent;
+        return withFees(raise(maxFeePerGas, percent), raise(maxPriorityFeePerGas, percent));
+    }
+
+    /**
+     * The same kind of fees, each raised to the other ones if they are higher.
+     */
+    @NonNull
+    public TransactionFees raisedTo(@NonNull TransactionFees other) {
+        assert other != null;
+        return withFees(maxFeePerGas.max(other.maxFeePerGas), maxPriorityFeePerGas.max(other.maxPriorityFeePerGas));
+    }
+
+    /**
+     * The same kind of fees, with the maximum fee per gas not above the cap.
+     */
+    @NonNull
+    public TransactionFees cappedAt(@NonNull BigInteger cap) {
+        assert cap != null;
+        assert cap.signum() > 0 : cap;
+        final BigInteger maxFee = maxFeePerGas.min(cap);
+        return withFees(maxFee, maxPriorityFeePerGas.min(maxFee));
+    }
+
+    /**
+     * Whether the transaction with these fees may replace the pending one with the other fees (and the same nonce).
+     */
+    public boolean canReplace(@NonNull TransactionFees other) {
+        assert other != null;
+        return maxFeePerGas.compareTo(raise(other.maxFeePerGas, MIN_REPLACEMENT_BUMP_PERCENT)) >= 0
+                && maxPriorityFeePerGas.compareTo(raise(other.maxPriorityFeePerGas, MIN_REPLACEMENT_BUMP_PERCENT)) >= 0;
+    }
+
+    @NonNull
+    private TransactionFees withFees(@NonNull BigInteger maxFee, @NonNull BigInteger priorityFee) {
+        return eip1559 ? eip1559(maxFee, priorityFee) : legacy(maxFee);
+    }
+
+    @NonNull
+    private static BigInteger raise(@NonNull BigInteger value, int percent) {
+        final BigInteger[] divided = value.multiply(BigInteger.valueOf(100 + percent)).divideAndRemainder(HUNDRED);
+        return (divided[1].signum() == 0) ? divided[0] : divided[0].add(BigInteger.ONE);
+    }
+
+    @NonNull
+    private static String gwei(@NonNull BigInteger wei) {
+        return new BigDecimal(wei, 9).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TransactionFees)) {
+            return false;
+        }
+        final TransactionFees other = (TransactionFees) o;
+        return eip1559 == other.eip1559
+                && maxFeePerGas.equals(other.maxFeePerGas)
+                && maxPriorityFeePerGas.equals(other.maxPriorityFeePerGas);
+    }
+
+    @Override
+    public int hashCode() {
+        return maxFeePerGas.hashCode() * 31 + maxPriorityFeePerGas.hashCode();
+    }
+
+    public String toString() {
+        return eip1559
+                ? String.format("TransactionFees(maxFee=%s Gwei, priorityFee=%s Gwei)", gwei(maxFeePerGas), gwei(maxPriorityFeePerGas))
+                : String.format("TransactionFees(gasPrice=%s Gwei)", gwei(maxFeePerGas));
+    }
+}
@@ -0,0 +1,286 @@
+package com.icodici.universa.utnp.ethereum;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.Hash;
+import org.web3j.crypto.Sign;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Signer of the Ethereum transactions: the legacy ones, with the EIP-155 replay protection,
+ * and the EIP-1559 (type 2) ones.
+ * <p>
+ * For the legacy transactions, produces exactly the same bytes as {@link org.web3j.crypto.TransactionEncoder#signMessage}.
+ * RLP-encodes the transaction directly into a reusable (per-thread) buffer, with the call data written in place;
+ * so a large call data is copied only once, into the resulting signed transaction.
+ * Thread-safe.
+ */
+public class TransactionSigner {
+
+    /**
+     * Writer of the call data into the buffer.
+     */
+    public interface DataWriter {
+        /**
+         * Write exactly the declared number of bytes, starting from the offset.
+         */
+        void write(@NonNull byte[] dest, int offset);
+    }
+
+    /**
+     * The type byte of the EIP-1559 transaction envelope (EIP-2718).
+     */
+    private static final byte EIP1559_TRANSACTION_TYPE = 0x02;
+    /**
+     * The longest RLP header: the prefix byte and 8 bytes of length.
+     */
+    private static final int MAX_HEADER_SIZE = 9;
+    /**
+     * The longest RLP-encoded 256-bit integer.
+     */
+    private static final int MAX_INTEGER_SIZE = 33;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    @NonNull
+    private final ECKeyPair keyPair;
+    private final long chainId;
+
+    @NonNull
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+
+    public TransactionSigner(@NonNull ECKeyPair keyPair, long chainId) {
+        assert keyPair != null;
+        assert chainId > 0 : chainId;
+
+        this.keyPair = keyPair;
+        this.chainId = chainId;
+    }
+
+    /**
+     * Build and sign the transaction.
+     *
+     * @param to         the recipient (e.g. the contract called).
+     * @param dataLength the size of the call data, in bytes.
+     * @param data       the writer of the call data.
+     */
+    @NonNull
+    public SignedTransaction sign(@NonNull BigInteger nonce,
+                                  @NonNull BigInteger gasPrice,
+                                  @NonNull BigInteger gasLimit,
+                                  @NonNull String to,
+                                  @NonNull BigInteger value,
+                                  int dataLength,
+                                  @NonNull DataWriter data) {
+        assert nonce != null;
+        assert gasPrice != null;
+        assert gasLimit != null;
+        assert to != null;
+        assert to.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : to;
+        assert value != null;
+        assert dataLength >= 0 : dataLength;
+        assert data != null;
+
+        // The list header is written right before the fields, when the length is known; so leave the room for it.
+        final int bodyStart = MAX_HEADER_SIZE;
+        final int maxSize = bodyStart + MAX_INTEGER_SIZE * 4 + 21 + MAX_HEADER_SIZE + dataLength + MAX_INTEGER_SIZE * 3;
+        final byte[] buffer = getBuffer(maxSize);
+
+        // The fields common to the signed and the signing payload
+        int pos = bodyStart;
+        pos = writeInteger(buffer, pos, nonce);
+        pos = writeInteger(buffer, pos, gasPrice);
+        pos = writeInteger(buffer, pos, gasLimit);
+        pos = writeString(buffer, pos, Numeric.hexStringToByteArray(to));
+        pos = writeInteger(buffer, pos, value);
+        pos = writeLength(buffer, pos, dataLength, 0x80);
+        // A single byte below 0x80 would be encoded without the header; the call data is never so short.
+        assert dataLength != 1;
+        data.write(buffer, pos);
+        pos += dataLength;
+        final int bodyEnd = pos;
+
+        // EIP-155 signing payload: (fields..., chainId, 0, 0)
+        pos = writeInteger(buffer, pos, BigInteger.valueOf(chainId));
+        buffer[pos++] = (byte) 0x80;
+        buffer[pos++] = (byte) 0x80;
+        final int signingStart = writeListHeader(buffer, bodyStart, pos - bodyStart);
+        final Sign.SignatureData signature = Sign.signMessage(
+                Hash.sha3(buffer, signingStart, pos - signingStart), keyPair, false);
+
+        // The signed transaction: (fields..., v, r, s)
+        pos = bodyEnd;
+        pos = writeInteger(buffer, pos, BigInteger.valueOf(signature.getV() + chainId * 2 + 8));
+        pos = writeString(buffer, pos, trimLeadingZeros(signature.getR()));
+        pos = writeString(buffer, pos, trimLeadingZeros(signature.getS()));
+        final int signedStart = writeListHeader(buffer, bodyStart, pos - bodyStart);
+
+        return new SignedTransaction(nonce, Arrays.copyOfRange(buffer, signedStart, pos));
+    }
+
+    /**
+     * Build and sign the transaction with the fees of any kind: legacy or EIP-1559 one.
+     *
+     * @param to         the recipient (e.g. the contract called).
+     * @param dataLength the size of the call data, in bytes.
+     * @param data       the writer of the call data.
+     */
+    @NonNull
+    public SignedTransaction sign(@NonNull BigInteger nonce,
+                                  @NonNull TransactionFees fees,
+                                  @NonNull BigInteger gasLimit,
+                                  @NonNull String to,
+                                  @NonNull BigInteger value,
+                                  int dataLength,
+                                  @NonNull DataWriter data) {
+        assert fees != null;
+        return fees.eip1559
+                ? signEip1559(nonce, fees.maxPriorityFeePerGas, fees.maxFeePerGas, gasLimit, to, value, dataLength, data)
+                : sign(nonce, fees.getGasPrice(), gasLimit, to, value, dataLength, data);
+    }
+
+    /**
+     * Build and sign the EIP-1559 transaction (with the empty access list).
+     *
+     * @param to         the recipient (e.g. the contract called).
+     * @param dataLength the size of the call data, in bytes.
+     * @param data       the writer of the call data.
+     */
+    @NonNull
+    public SignedTransaction signEip1559(@NonNull BigInteger nonce,
+                                         @NonNull BigInteger maxPriorityFeePerGas,
+                                         @NonNull BigInteger maxFeePerGas,
+                                         @NonNull BigInteger gasLimit,
+                                         @NonNull String to,
+                                         @NonNull BigInteger value,
+                                         int dataLength,
+                                         @NonNull DataWriter data) {
+        assert nonce != null;
+        assert maxPriorityFeePerGas != null;
+        assert maxFeePerGas != null;
+        assert maxPriorityFeePerGas.compareTo(maxFeePerGas) <= 0 : maxPriorityFeePerGas;
+        assert gasLimit != null;
+        assert to != null;
+        assert to.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : to;
+        assert value != null;
+        assert dataLength >= 0 : dataLength;
+        assert data != null;
+
+        // The type byte and the list header are written right before the fields; so leave the room for them.
+        final int bodyStart = 1 + MAX_HEADER_SIZE;
+        final int maxSize = bodyStart + MAX_INTEGER_SIZE * 6 + 21 + MAX_HEADER_SIZE + dataLength + 1 + MAX_INTEGER_SIZE * 3;
+        final byte[] buffer = getBuffer(maxSize);
+
+        // The fields common to the signed and the signing payload
+        int pos = bodyStart;
+        pos = writeInteger(buffer, pos, BigInteger.valueOf(chainId));
+        pos = writeInteger(buffer, pos, nonce);
+        pos = writeInteger(buffer, pos, maxPriorityFeePerGas);
+        pos = writeInteger(buffer, pos, maxFeePerGas);
+        pos = writeInteger(buffer, pos, gasLimit);
+        pos = writeString(buffer, pos, Numeric.hexStringToByteArray(to));
+        pos = writeInteger(buffer, pos, value);
+        pos = writeLength(buffer, pos, dataLength, 0x80);
+        assert dataLength != 1;
+        data.write(buffer, pos);
+        pos += dataLength;
+        // The empty access list
+        buffer[pos++] = (byte) 0xC0;
+        final int bodyEnd = pos;
+
+        // Signing payload: type || rlp(fields...)
+        int signingStart = writeListHeader(buffer, bodyStart, pos - bodyStart);
+        buffer[--signingStart] = EIP1559_TRANSACTION_TYPE;
+        final Sign.SignatureData signature = Sign.signMessage(
+                Hash.sha3(buffer, signingStart, pos - signingStart), keyPair, false);
+
+        // The signed transaction: type || rlp(fields..., y parity, r, s)
+        pos = bodyEnd;
+        pos = writeInteger(buffer, pos, BigInteger.valueOf(signature.getV() - 27));
+        pos = writeString(buffer, pos, trimLeadingZeros(signature.getR()));
+        pos = writeString(buffer, pos, trimLeadingZeros(signature.getS()));
+        int signedStart = writeListHeader(buffer, bodyStart, pos - bodyStart);
+        buffer[--signedStart] = EIP1559_TRANSACTION_TYPE;
+
+        return new SignedTransaction(nonce, Arrays.copyOfRange(buffer, signedStart, pos));
+    }
+
+    @NonNull
+    private byte[] getBuffer(int size) {
+        byte[] buffer = buffers.get();
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length * 2)];
+            buffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Write the list header right before the payload.
+     *
+     * @return the position of the header.
+     */
+    private static int writeListHeader(@NonNull byte[] buffer, int payloadStart, int payloadLength) {
+        final int start = payloadStart - getHeaderSize(payloadLength);
+        writeLength(buffer, start, payloadLength, 0xC0);
+        return start;
+    }
+
+    /**
+     * Write the RLP string/list header for the payload length.
+     *
+     * @param shortPrefix 0x80 for the strings, 0xC0 for the lists.
+     * @return the position after the header.
+     */
+    private static int writeLength(@NonNull byte[] buffer, int pos, int length, int shortPrefix) {
+        if (length <= 55) {
+            buffer[pos++] = (byte) (shortPrefix + length);
+        } else {
+            final int lengthSize = getHeaderSize(length) - 1;
+            buffer[pos++] = (byte) (shortPrefix + 55 + lengthSize);
+            for (int i = lengthSize - 1; i >= 0; i--) {
+                buffer[pos++] = (byte) (length >>> (i * 8));
+            }
+        }
+        return pos;
+    }
+
+    private static int getHeaderSize(int length) {
+        return (length <= 55) ? 1 : 1 + (4 - Integer.numberOfLeadingZeros(length) / 8);
+    }
+
+    /**
+     * Write the byte string; a single byte below 0x80 is written as is.
+     *
+     * @return the position after the string.
+     */
+    private static int writeString(@NonNull byte[] buffer, int pos, @NonNull byte[] bytes) {
+        if (bytes.length == 1 && (bytes[0] & 0xFF) < 0x80) {
+            buffer[pos++] = bytes[0];
+            return pos;
+        }
+        pos = writeLength(buffer, pos, bytes.length, 0x80);
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    /**
+     * Write the non-negative integer as the big-endian byte string without the leading zeros (0 is the empty string).
+     */
+    private static int writeInteger(@NonNull byte[] buffer, int pos, @NonNull BigInteger value) {
+        assert value.signum() >= 0 : value;
+        return writeString(buffer, pos, (value.signum() == 0) ? new byte[0] : trimLeadingZeros(value.toByteArray()));
+    }
+
+    @NonNull
+    private static byte[] trimLeadingZeros(@NonNull byte[] bytes) {
+        int first = 0;
+        while (first < bytes.length - 1 && bytes[first] == 0) {
+            first++;
+        }
+        return (first == 0) ? bytes : Arrays.copyOfRange(bytes, first, bytes.length);
+    }
+}
@@ -0,0 +1,294 @@
+package com.icodici.universa.utnp.index;
+
+import com.icodici.universa.utnp.connectors.AbstractConnector;
+import com.icodici.universa.utnp.connectors.LogScanner;
+import com.icodici.universa.utnp.connectors.TransferLogScanner;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.index.TokenEvent.Kind;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.crypto.Hash;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Keeps the {@link EventStore} up to date with the chain: scans the <code>Transfer</code> and <code>Burn</code> logs
+ * of the token since the last indexed block (see {@link LogScanner}), committing the store every
+ * <code>blocksPerCommit</code> blocks.
+ * <p>
+ * The reorganizations are detected by the hashes of the last {@link EventStore#MAX_REORG_DEPTH} indexed blocks:
+ * before catching up, the index is rewound to the latest block the node still has the same hash for;
+ * while scanning, the logs of the last blocks must carry the same block hashes as read just before.
+ * Not thread-safe.
+ */
+public class EventIndexer {
+
+    private static final Logger logger = LogManager.getLogger(EventIndexer.class);
+
+    public static final long DEFAULT_BLOCKS_PER_COMMIT = 100000;
+
+    /**
+     * The topic of <code>Burn(address,uint256)</code> (of <code>BurnableToken</code>).
+     */
+    public static final String BURN_TOPIC = Numeric.toHexString(
+            Hash.sha3("Burn(address,uint256)".getBytes(StandardCharsets.US_ASCII)));
+
+    /**
+     * How many times the scan is restarted if the chain is reorganized during it.
+     */
+    static final int MAX_SCAN_ATTEMPTS = 3;
+
+    /**
+     * Notified after every commit.
+     */
+    public interface Progress {
+        void committed(long lastBlock, long targetBlock, long eventCount);
+    }
+
+    /**
+     * The chain has been reorganized in the middle of the scan.
+     */
+    private static class ReorganizedException extends IOException {
+        ReorganizedException(long blockNumber) {
+            super("block " + blockNumber + " has been replaced during the scan");
+        }
+    }
+
+    @NonNull
+    private final AbstractConnector connector;
+    @NonNull
+    private final EventStore store;
+    @NonNull
+    private final LogScanner<Log> scanner;
+    private final long blocksPerCommit;
+
+
+    /**
+     * Constructor.
+     *
+     * @param store           the index of the token; must be open as writable.
+     * @param blocksPerCommit commit the store after so many blocks are scanned.
+     */
+    public EventIndexer(@NonNull AbstractConnector connector,
+                        @NonNull EventStore store,
+                        long blocksPerCommit) {
+        assert connector != null;
+        assert store != null;
+        assert blocksPerCommit > 0 : blocksPerCommit;
+
+        this.connector = connector;
+        this.store = store;
+        this.blocksPerCommit = blocksPerCommit;
+        this.scanner = new LogScanner<>(connector, store.getContractAddress(),
+                Collections.singletonList(Arrays.asList(TransferLogScanner.TRANSFER_TOPIC, BURN_TOPIC)),
+                log -> log,
+                LogScanner.DEFAULT_BLOCKS_PER_QUERY, LogScanner.DEFAULT_MAX_CONCURRENT_QUERIES);
+    }
+
+    @NonNull
+    public LogScanner<Log> getScanner() {
+        return scanner;
+    }
+
+    /**
+     * Seed the new (empty) index with the balances the holders have before the first indexed block,
+     * read from the node at the previous block; and commit it.
+     */
+    public void addGenesisHolders(@NonNull List<String> holders) throws IOException {
+        assert holders != null;
+        assert store.getEventCount() == 0 && store.getLastBlock() == store.getFirstBlock() - 1;
+        assert store.getFirstBlock() > 0;
+
+        final long block = store.getFirstBlock() - 1;
+        final List<CompletableFuture<String>> reads = new ArrayList<>(holders.size());
+        for (final String holder : holders) {
+            assert EthereumUtils.isHexAddress(holder) : holder;
+            reads.add(connector.callAsync(store.getContractAddress(),
+                    FunctionEncoder.encode(new Function("balanceOf",
+                            Collections.singletonList(new Address(holder)), Collections.emptyList())),
+                    DefaultBlockParameter.valueOf(BigInteger.valueOf(block))));
+        }
+        final CompletableFuture<String> hash = connector.getBlockHashAsync(block);
+        try {
+            for (int i = 0; i < holders.size(); i++) {
+                final String value = reads.get(i).join();
+                if (value == null || Numeric.cleanHexPrefix(value).isEmpty()) {
+                    throw new IOException("balanceOf returned nothing; is " + store.getContractAddress() + " the right contract?");
+                }
+                final BigInteger balance = Numeric.toBigInt(value);
+                if (balance.signum() > 0) {
+                    store.append(new TokenEvent(block, -1, Kind.GENESIS, TokenEvent.ZERO_ADDRESS, holders.get(i),
+                            balance, TokenEvent.ZERO_TXHASH));
+                }
+            }
+            store.commit(block, (hash.join() == null) ? Collections.emptyMap() : Collections.singletonMap(block, hash.join()));
+        } catch (CompletionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Catch up with the chain, handling the reorganizations of the last indexed blocks.
+     *
+     * @param toBlock  the block to index up to; -1 for the latest one.
+     * @param progress notified after every commit, if not <code>null</code>.
+     * @return how many events have been indexed (after the rewind, if any).
+     * @throws IOException if the node cannot be reached, or is behind the index,
+     *                     or the chain is reorganized deeper than {@link EventStore#MAX_REORG_DEPTH} blocks.
+     */
+    public long update(long toBlock, @Nullable Progress progress) throws IOException, InterruptedException {
+        final long[] indexed = {0};
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final long head = connector.getBlockNumber();
+                if (head < store.getLastBlock()) {
+                    throw new IOException(String.format("the node is at block %s, behind the index at block %s",
+                            head, store.getLastBlock()));
+                }
+                rewindReorganized();
+                scan((toBlock < 0) ? head : Math.min(toBlock, head), indexed, progress);
+                return indexed[0];
+            } catch (ReorganizedException e) {
+                store.rollback();
+                if (attempt >= MAX_SCAN_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn("Chain reorganized during the scan ({}), rescanning from block {}",
+                        e.getMessage(), store.getLastBlock() + 1);
+            }
+        }
+    }
+
+    /**
+     * Rewind the index to the latest block whose hash is still the same on the node.
+     */
+    private void rewindReorganized() throws IOException {
+        final long lastBlock = store.getLastBlock();
+        long block = lastBlock;
+        String storedHash = store.getBlockHash(block);
+        while (storedHash != null && !storedHash.equalsIgnoreCase(getBlockHash(block))) {
+            block--;
+            storedHash = store.getBlockHash(block);
+        }
+        if (block == lastBlock) {
+            return;
+        }
+        if (storedHash == null) {
+            throw new IOException(String.format("the chain is reorganized deeper than the last %s indexed blocks; " +
+                    "rebuild the index", lastBlock - block));
+        }
+        logger.warn("Chain reorganized: blocks {}-{} replaced", block + 1, lastBlock);
+        store.rewind(block);
+    }
+
+    /**
+     * @param indexed incremented by the number of the events committed.
+     */
+    private void scan(long targetBlock, @NonNull long[] indexed, @Nullable Progress progress)
+            throws IOException, InterruptedException {
+        for (long from = store.getLastBlock() + 1; from <= targetBlock; ) {
+            final long eventCountBefore = store.getEventCount();
+            final long to = Math.min(targetBlock, from + blocksPerCommit - 1);
+            final Map<Long, String> hashes = getBlockHashes(
+                    Math.max(from, targetBlock - EventStore.MAX_REORG_DEPTH + 1), to);
+            scanner.scan(from, to, log -> {
+                final long blockNumber = log.getBlockNumber().longValueExact();
+                final String expectedHash = hashes.get(blockNumber);
+                if (expectedHash != null && !expectedHash.equalsIgnoreCase(log.getBlockHash())) {
+                    throw new ReorganizedException(blockNumber);
+                }
+                final TokenEvent event = decode(log);
+                if (event != null) {
+                    store.append(event);
+                }
+            });
+            store.commit(to, hashes);
+            indexed[0] += store.getEventCount() - eventCountBefore;
+            if (progress != null) {
+                progress.committed(to, targetBlock, store.getEventCount());
+            }
+            from = to + 1;
+        }
+    }
+
+    /**
+     * The hashes of the blocks, read all at once.
+     *
+     * @throws IOException if some block is missing (i.e. the chain is reorganized to a shorter one).
+     */
+    @NonNull
+    private Map<Long, String> getBlockHashes(long from, long to) throws IOException {
+        final Map<Long, CompletableFuture<String>> reads = new HashMap<>();
+        for (long block = from; block <= to; block++) {
+            reads.put(block, connector.getBlockHashAsync(block));
+        }
+        final Map<Long, String> result = new HashMap<>();
+        try {
+            for (final Map.Entry<Long, CompletableFuture<String>> entry : reads.entrySet()) {
+                final String hash = entry.getValue().join();
+                if (hash == null) {
+                    throw new ReorganizedException(entry.getKey());
+                }
+                result.put(entry.getKey(), hash);
+            }
+        } catch (CompletionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        return result;
+    }
+
+    @Nullable
+    private String getBlockHash(long blockNumber) throws IOException {
+        try {
+            return connector.getBlockHashAsync(blockNumber).join();
+        } catch (CompletionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Decode the <code>Transfer</code> or <code>Burn</code> log.
+     *
+     * @return <code>null</code> if it is neither.
+     */
+    @Nullable
+    static TokenEvent decode(@NonNull Log log) {
+        final List<String> topics = log.getTopics();
+        if (topics == null || topics.isEmpty()) {
+            return null;
+        }
+        final long blockNumber = log.getBlockNumber().longValueExact();
+        final int logIndex = log.getLogIndex().intValueExact();
+        if (topics.size() == 3 && TransferLogScanner.TRANSFER_TOPIC.equalsIgnoreCase(topics.get(0))) {
+            return new TokenEvent(blockNumber, logIndex, Kind.TRANSFER, topicAddress(topics.get(1)), topicAddress(topics.get(2)),
+                    Numeric.toBigInt(log.getData()), log.getTransactionHash());
+        } else if (topics.size() == 2 && BURN_TOPIC.equalsIgnoreCase(topics.get(0))) {
+            return new TokenEvent(blockNumber, logIndex, Kind.BURN, topicAddress(topics.get(1)), null,
+                    Numeric.toBigInt(log.getData()), log.getTransactionHash());
+        }
+        return null;
+    }
+
+    @NonNull
+    private static String topicAddress(@NonNull String topic) {
+        return "0x" + Numeric.cleanHexPrefix(topic).substring(24).toLowerCase();
+    }
+}
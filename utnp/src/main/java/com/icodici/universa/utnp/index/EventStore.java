@@ -0,0 +1,924 @@
+package com.icodici.universa.utnp.index;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.index.TokenEvent.Kind;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.utils.Numeric;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Local append-only index of the UTNP token events (see {@link TokenEvent}), to answer the balance queries
+ * without asking the node.
+ * <p>
+ * The events are stored column by column, in the segments of {@link #SEGMENT_EVENTS} events: a file per column
+ * (<code>segment-NNNNNN.block</code>, <code>.log</code>, <code>.kind</code>, <code>.from</code>, <code>.to</code>,
+ * <code>.amount</code>, <code>.txhash</code>), memory-mapped in full. The addresses are stored as 4-byte ids
+ * into the dictionary file <code>addresses</code> (20 bytes per address, in the order of the first appearance).
+ * So a query reads only the columns it needs: e.g. the balance of an address scans just the id columns
+ * of the events since the latest snapshot.
+ * <p>
+ * Every <code>snapshotInterval</code> blocks (if anything has happened since the previous one), the balances
+ * of all the holders and the totals burned by all the burners are written to the snapshot file
+ * <code>snapshot-&lt;block&gt;</code>, sorted by the address id. A balance at any block is then the one
+ * from the latest snapshot not after it, plus the events since.
+ * <p>
+ * The <code>meta</code> file (replaced atomically by {@link #commit}) is the commit point: it holds the last indexed
+ * block, the numbers of the events and the addresses (anything appended after them is ignored on open),
+ * and the hashes of the last {@link #MAX_REORG_DEPTH} indexed blocks, to detect the reorganizations.
+ * <p>
+ * All the files are big-endian. Not thread-safe.
+ */
+public class EventStore implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(EventStore.class);
+
+    private static final long MAGIC = 0x55544E5045565331L; // "UTNPEVS1"
+    private static final long SNAPSHOT_MAGIC = 0x55544E50534E5031L; // "UTNPSNP1"
+    static final int VERSION = 1;
+
+    static final int SEGMENT_SHIFT = 18;
+    /**
+     * 256K events per segment; ~21 MB of the (sparse) column files.
+     */
+    public static final int SEGMENT_EVENTS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_EVENTS - 1;
+
+    /**
+     * How many last indexed blocks keep their hashes; the deeper reorganizations need the index to be rebuilt.
+     */
+    public static final int MAX_REORG_DEPTH = 64;
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 100000;
+
+    private static final String META = "meta";
+    private static final String ADDRESSES = "addresses";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final int ADDRESS_SIZE = 20;
+    private static final int WORD_SIZE = 32;
+    private static final int SNAPSHOT_HEADER_SIZE = 40;
+    private static final int HOLDER_COUNT_OFFSET = 28;
+    private static final int BURNER_COUNT_OFFSET = 32;
+    private static final int SNAPSHOT_ENTRY_SIZE = 4 + WORD_SIZE;
+
+    private static final int BLOCK = 0, LOG = 1, KIND = 2, FROM = 3, TO = 4, AMOUNT = 5, TXHASH = 6;
+    private static final String[] COLUMN_NAMES = {"block", "log", "kind", "from", "to", "amount", "txhash"};
+    private static final int[] COLUMN_WIDTHS = {8, 4, 1, 4, 4, WORD_SIZE, WORD_SIZE};
+
+    private static final Kind[] KINDS = Kind.values();
+
+    /**
+     * The columns of a single segment.
+     */
+    private static class Segment {
+        @NonNull
+        final MappedByteBuffer[] columns = new MappedByteBuffer[COLUMN_NAMES.length];
+    }
+
+    /**
+     * The balances of all the holders at some block, written every <code>snapshotInterval</code> blocks.
+     */
+    private static class Snapshot {
+        final long blockNumber;
+        /**
+         * How many events are included (i.e. the number of the first event after the snapshot).
+         */
+        final long eventCount;
+        @NonNull
+        final Path path;
+        /**
+         * Mapped on the first use.
+         */
+        @Nullable
+        MappedByteBuffer buffer;
+
+        Snapshot(long blockNumber, long eventCount, @NonNull Path path) {
+            this.blockNumber = blockNumber;
+            this.eventCount = eventCount;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The balances of all the holders (by the address id) and the totals burned by all the burners.
+     */
+    private static class Balances {
+        @NonNull
+        BigInteger[] balances;
+        @NonNull
+        final TreeMap<Integer, BigInteger> burned = new TreeMap<>();
+
+        Balances(int addressCount) {
+            balances = new BigInteger[Math.max(16, addressCount)];
+        }
+
+        void apply(@NonNull Kind kind, int fromId, int toId, @NonNull BigInteger amount) {
+            switch (kind) {
+                case TRANSFER:
+                    add(fromId, amount.negate());
+                    add(toId, amount);
+                    break;
+                case BURN:
+                    add(fromId, amount.negate());
+                    burned.merge(fromId, amount, BigInteger::add);
+                    break;
+                case GENESIS:
+                    add(toId, amount);
+                    break;
+            }
+        }
+
+        void add(int id, @NonNull BigInteger amount) {
+            if (id >= balances.length) {
+                balances = Arrays.copyOf(balances, Math.max(id + 1, balances.length * 2));
+            }
+            balances[id] = (balances[id] == null) ? amount : balances[id].add(amount);
+        }
+    }
+
+    @NonNull
+    private final Path dir;
+    private final boolean writable;
+    @NonNull
+    private final String contractAddress;
+    private final long firstBlock;
+    private final long snapshotInterval;
+
+    private long lastBlock;
+    private long eventCount;
+    private long committedEventCount;
+    /**
+     * The hashes of the last indexed blocks, without gaps, up to {@link #lastBlock}.
+     */
+    @NonNull
+    private final TreeMap<Long, String> recentHashes = new TreeMap<>();
+
+    @NonNull
+    private final List<String> addresses = new ArrayList<>();
+    @NonNull
+    private final Map<String, Integer> addressIds = new HashMap<>();
+    /**
+     * How many addresses are written to the dictionary file.
+     */
+    private int writtenAddressCount;
+
+    @NonNull
+    private final List<Segment> segments = new ArrayList<>();
+    /**
+     * The first segment changed since the last commit.
+     */
+    private int firstDirtySegment = Integer.MAX_VALUE;
+
+    @NonNull
+    private final TreeMap<Long, Snapshot> snapshots = new TreeMap<>();
+
+    /**
+     * The balances after all the appended events; loaded only to append.
+     */
+    @Nullable
+    private Balances state;
+
+
+    private EventStore(@NonNull Path dir, boolean writable, @NonNull String contractAddress,
+                       long firstBlock, long snapshotInterval) {
+        this.dir = dir;
+        this.writable = writable;
+        this.contractAddress = contractAddress;
+        this.firstBlock = firstBlock;
+        this.snapshotInterval = snapshotInterval;
+        this.lastBlock = firstBlock - 1;
+    }
+
+    /**
+     * Create the empty index in the directory (creating the directory too, if needed).
+     *
+     * @param firstBlock       the first block to index the events from.
+     * @param snapshotInterval write the snapshot of the balances every so many blocks.
+     * @throws IOException if the directory already contains an index, or cannot be written.
+     */
+    @NonNull
+    public static EventStore create(@NonNull Path dir,
+                                    @NonNull String contractAddress,
+                                    long firstBlock,
+                                    long snapshotInterval) throws IOException {
+        assert dir != null;
+        assert contractAddress != null;
+        assert EthereumUtils.isHexAddress(contractAddress) : contractAddress;
+        assert firstBlock >= 0 : firstBlock;
+        assert snapshotInterval > 0 : snapshotInterval;
+
+        Files.createDirectories(dir);
+        if (Files.exists(dir.resolve(META))) {
+            throw new IOException("The index already exists in " + dir);
+        }
+        final EventStore store = new EventStore(dir, true, contractAddress.toLowerCase(), firstBlock, snapshotInterval);
+        Files.write(dir.resolve(ADDRESSES), new byte[0]);
+        store.state = new Balances(0);
+        store.writeMeta();
+        return store;
+    }
+
+    /**
+     * Whether the directory contains an index.
+     */
+    public static boolean exists(@NonNull Path dir) {
+        assert dir != null;
+        return Files.exists(dir.resolve(META));
+    }
+
+    /**
+     * Open the existing index.
+     *
+     * @param writable whether the events will be appended (or rewound); otherwise, only the queries are allowed.
+     * @throws IOException if the directory contains no index, or it is corrupted.
+     */
+    @NonNull
+    public static EventStore open(@NonNull Path dir, boolean writable) throws IOException {
+        assert dir != null;
+
+        final ByteBuffer meta;
+        try {
+            meta = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(META)));
+        } catch (NoSuchFileException e) {
+            throw new IOException("No index in " + dir);
+        }
+        if (meta.remaining() < 8 || meta.getLong() != MAGIC) {
+            throw new IOException("Not an event index: " + dir);
+        }
+        if (meta.getInt() != VERSION) {
+            throw new IOException("Unsupported event index version in " + dir);
+        }
+        final byte[] contract = new byte[ADDRESS_SIZE];
+        meta.get(contract);
+        final long firstBlock = meta.getLong();
+        final long lastBlock = meta.getLong();
+        final long eventCount = meta.getLong();
+        final int addressCount = meta.getInt();
+        final long snapshotInterval = meta.getLong();
+        final int hashCount = meta.getInt();
+        if (firstBlock < 0 || lastBlock < firstBlock - 1 || eventCount < 0 || addressCount < 0 || snapshotInterval <= 0
+                || hashCount < 0 || meta.remaining() != hashCount * WORD_SIZE) {
+            throw new IOException("Corrupted event index: " + dir);
+        }
+
+        final EventStore store = new EventStore(dir, writable, Numeric.toHexString(contract), firstBlock, snapshotInterval);
+        store.lastBlock = lastBlock;
+        store.eventCount = eventCount;
+        store.committedEventCount = eventCount;
+        for (int i = 0; i < hashCount; i++) {
+            final byte[] hash = new byte[WORD_SIZE];
+            meta.get(hash);
+            store.recentHashes.put(lastBlock - hashCount + 1 + i, Numeric.toHexString(hash));
+        }
+        store.load(addressCount);
+        return store;
+    }
+
+    /**
+     * Read the address dictionary, map the segments, and drop the uncommitted snapshots.
+     */
+    private void load(int addressCount) throws IOException {
+        final byte[] dictionary = Files.readAllBytes(dir.resolve(ADDRESSES));
+        if (dictionary.length < (long) addressCount * ADDRESS_SIZE) {
+            throw new IOException("Corrupted address dictionary in " + dir);
+        }
+        for (int id = 0; id < addressCount; id++) {
+            addAddress(Numeric.toHexString(dictionary, id * ADDRESS_SIZE, ADDRESS_SIZE, true));
+        }
+        writtenAddressCount = addressCount;
+        if (writable && dictionary.length > addressCount * ADDRESS_SIZE) {
+            try (final FileChannel channel = FileChannel.open(dir.resolve(ADDRESSES), StandardOpenOption.WRITE)) {
+                channel.truncate((long) addressCount * ADDRESS_SIZE);
+            }
+        }
+
+        final long segmentCount = (eventCount + SEGMENT_EVENTS - 1) >> SEGMENT_SHIFT;
+        for (int i = 0; i < segmentCount; i++) {
+            segments.add(mapSegment(i));
+        }
+
+        try (final Stream<Path> files = Files.list(dir)) {
+            for (final Path path : (Iterable<Path>) files::iterator) {
+                final String name = path.getFileName().toString();
+                if (!name.startsWith(SNAPSHOT_PREFIX) || name.endsWith(".tmp")) {
+                    continue;
+                }
+                final Snapshot snapshot = readSnapshotHeader(path);
+                if (snapshot.blockNumber <= lastBlock && snapshot.eventCount <= eventCount) {
+                    snapshots.put(snapshot.blockNumber, snapshot);
+                } else if (writable) {
+                    // Written after the last commit
+                    Files.delete(path);
+                }
+            }
+        }
+        if (writable) {
+            loadState();
+        }
+    }
+
+    /**
+     * The indexed contract, in lowercase.
+     */
+    @NonNull
+    public String getContractAddress() {
+        return contractAddress;
+    }
+
+    /**
+     * The first indexed block.
+     */
+    public long getFirstBlock() {
+        return firstBlock;
+    }
+
+    /**
+     * The last indexed block (committed or not); <code>firstBlock - 1</code> if nothing is indexed yet.
+     */
+    public long getLastBlock() {
+        return lastBlock;
+    }
+
+    /**
+     * How many events are indexed.
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * How many distinct addresses have ever appeared in the events.
+     */
+    public int getAddressCount() {
+        return addresses.size();
+    }
+
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public int getSnapshotCount() {
+        return snapshots.size();
+    }
+
+    /**
+     * The hash of the indexed block, if it is one of the last {@link #MAX_REORG_DEPTH} blocks
+     * (and the indexer has provided it).
+     */
+    @Nullable
+    public String getBlockHash(long blockNumber) {
+        return recentHashes.get(blockNumber);
+    }
+
+    /**
+     * Append the event; it is stored durably only on the next {@link #commit}.
+     * The events must be appended in the order of the chain, and only for the blocks not indexed yet
+     * (or, for {@link Kind#GENESIS}, to the block before the first indexed one, before any other events).
+     */
+    public void append(@NonNull TokenEvent event) throws IOException {
+        assert event != null;
+        assert writable;
+        assert event.blockNumber > lastBlock
+                || (event.kind == Kind.GENESIS && event.blockNumber == firstBlock - 1 && lastBlock == firstBlock - 1)
+                : event;
+        assert eventCount == 0 || event.blockNumber >= blockAt(eventCount - 1) : event;
+        assert event.amount.bitLength() <= 256 : event.amount;
+
+        // The events of the blocks up to the boundary are all appended by now
+        maybeSnapshot(event.blockNumber - 1);
+
+        final int segmentIndex = (int) (eventCount >> SEGMENT_SHIFT);
+        if (segmentIndex == segments.size()) {
+            segments.add(mapSegment(segmentIndex));
+        }
+        final Segment segment = segments.get(segmentIndex);
+        firstDirtySegment = Math.min(firstDirtySegment, segmentIndex);
+        final int offset = (int) (eventCount & SEGMENT_MASK);
+        final int fromId = addressId(event.from);
+        final int toId = (event.to == null) ? -1 : addressId(event.to);
+
+        segment.columns[BLOCK].putLong(offset * 8, event.blockNumber);
+        segment.columns[LOG].putInt(offset * 4, event.logIndex);
+        segment.columns[KIND].put(offset, (byte) event.kind.ordinal());
+        segment.columns[FROM].putInt(offset * 4, fromId);
+        segment.columns[TO].putInt(offset * 4, toId);
+        putWord(segment.columns[AMOUNT], offset * WORD_SIZE, event.amount);
+        final byte[] txhash = Numeric.hexStringToByteArray(event.txhash);
+        assert txhash.length == WORD_SIZE : event.txhash;
+        segment.columns[TXHASH].put(offset * WORD_SIZE, txhash);
+        eventCount++;
+
+        state().apply(event.kind, fromId, toId, event.amount);
+    }
+
+    /**
+     * Mark all the blocks up to <code>lastBlock</code> as indexed (with all their events appended),
+     * and force everything appended to the disk.
+     *
+     * @param blockHashes the hashes of the newly indexed blocks (at least of the last {@link #MAX_REORG_DEPTH} ones).
+     */
+    public void commit(long lastBlock, @NonNull Map<Long, String> blockHashes) throws IOException {
+        assert writable;
+        assert lastBlock >= this.lastBlock : lastBlock;
+        assert eventCount == 0 || blockAt(eventCount - 1) <= lastBlock : lastBlock;
+        assert blockHashes != null;
+
+        maybeSnapshot(lastBlock);
+        this.lastBlock = lastBlock;
+        recentHashes.putAll(blockHashes);
+        trimRecentHashes();
+
+        for (int i = firstDirtySegment; i < segments.size(); i++) {
+            for (final MappedByteBuffer column : segments.get(i).columns) {
+                column.force();
+            }
+        }
+        firstDirtySegment = Integer.MAX_VALUE;
+        if (writtenAddressCount < addresses.size()) {
+            try (final FileChannel channel = FileChannel.open(dir.resolve(ADDRESSES), StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.allocate((addresses.size() - writtenAddressCount) * ADDRESS_SIZE);
+                for (int id = writtenAddressCount; id < addresses.size(); id++) {
+                    buffer.put(Numeric.hexStringToByteArray(addresses.get(id)));
+                }
+                buffer.flip();
+                long position = (long) writtenAddressCount * ADDRESS_SIZE;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(true);
+            }
+            writtenAddressCount = addresses.size();
+        }
+        writeMeta();
+        committedEventCount = eventCount;
+    }
+
+    /**
+     * Forget everything appended since the last {@link #commit}.
+     */
+    public void rollback() throws IOException {
+        assert writable;
+
+        eventCount = committedEventCount;
+        while (addresses.size() > writtenAddressCount) {
+            addressIds.remove(addresses.remove(addresses.size() - 1));
+        }
+        dropSnapshotsAfter(lastBlock, eventCount);
+        loadState();
+    }
+
+    /**
+     * Forget (and commit at once) everything indexed after the block; e.g. the blocks replaced by the reorganization.
+     * The addresses seen only in the forgotten events stay in the dictionary.
+     */
+    public void rewind(long blockNumber) throws IOException {
+        assert writable;
+        assert blockNumber >= firstBlock - 1 && blockNumber <= lastBlock : blockNumber;
+
+        final long newEventCount = firstEventAfter(blockNumber);
+        logger.info("Rewinding the index to block {}: {} events dropped", blockNumber, eventCount - newEventCount);
+        eventCount = newEventCount;
+        lastBlock = blockNumber;
+        recentHashes.tailMap(blockNumber, false).clear();
+        dropSnapshotsAfter(blockNumber, eventCount);
+        loadState();
+        writeMeta();
+        committedEventCount = eventCount;
+    }
+
+    /**
+     * The balance of the address at the end of the block (the negative one means that the balance
+     * before the first indexed block is missing).
+     */
+    @NonNull
+    public BigInteger getBalance(@NonNull String address, long blockNumber) {
+        assert address != null;
+        assert blockNumber >= firstBlock - 1 && blockNumber <= lastBlock : blockNumber;
+
+        final Integer id = addressIds.get(address.toLowerCase());
+        if (id == null) {
+            return BigInteger.ZERO;
+        }
+        final Map.Entry<Long, Snapshot> entry = snapshots.floorEntry(blockNumber);
+        BigInteger balance = BigInteger.ZERO;
+        long first = 0;
+        if (entry != null) {
+            final MappedByteBuffer buffer = map(entry.getValue());
+            final int holderCount = buffer.getInt(HOLDER_COUNT_OFFSET);
+            int low = 0, high = holderCount - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int middleId = buffer.getInt(SNAPSHOT_HEADER_SIZE + middle * SNAPSHOT_ENTRY_SIZE);
+                if (middleId < id) {
+                    low = middle + 1;
+                } else if (middleId > id) {
+                    high = middle - 1;
+                } else {
+                    balance = getSignedWord(buffer, SNAPSHOT_HEADER_SIZE + middle * SNAPSHOT_ENTRY_SIZE + 4);
+                    break;
+                }
+            }
+            first = entry.getValue().eventCount;
+        }
+        final long end = firstEventAfter(blockNumber);
+        for (long i = first; i < end; i++) {
+            final Segment segment = segments.get((int) (i >> SEGMENT_SHIFT));
+            final int offset = (int) (i & SEGMENT_MASK);
+            final boolean isFrom = segment.columns[FROM].getInt(offset * 4) == id;
+            final boolean isTo = segment.columns[TO].getInt(offset * 4) == id;
+            if (isFrom || isTo) {
+                final Kind kind = KINDS[segment.columns[KIND].get(offset)];
+                final BigInteger amount = getWord(segment.columns[AMOUNT], offset * WORD_SIZE);
+                if (isFrom && kind != Kind.GENESIS) {
+                    balance = balance.subtract(amount);
+                }
+                if (isTo) {
+                    balance = balance.add(amount);
+                }
+            }
+        }
+        return balance;
+    }
+
+    /**
+     * The non-zero balances of all the holders at the end of the block,
+     * in the order of the first appearance of the holders.
+     */
+    @NonNull
+    public Map<String, BigInteger> getBalances(long blockNumber) {
+        final Balances balances = balancesAt(blockNumber);
+        final Map<String, BigInteger> result = new LinkedHashMap<>();
+        for (int id = 0; id < Math.min(balances.balances.length, addresses.size()); id++) {
+            final BigInteger balance = balances.balances[id];
+            if (balance != null && balance.signum() != 0) {
+                result.put(addresses.get(id), balance);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The totals burned by all the burners up to the end of the block,
+     * in the order of the first appearance of the burners.
+     */
+    @NonNull
+    public Map<String, BigInteger> getBurned(long blockNumber) {
+        final Balances balances = balancesAt(blockNumber);
+        final Map<String, BigInteger> result = new LinkedHashMap<>();
+        balances.burned.forEach((id, burned) -> result.put(addresses.get(id), burned));
+        return result;
+    }
+
+    /**
+     * All the events sending to or from the address, in the order of the chain.
+     */
+    @NonNull
+    public List<TokenEvent> getHistory(@NonNull String address) {
+        assert address != null;
+
+        final List<TokenEvent> result = new ArrayList<>();
+        final Integer id = addressIds.get(address.toLowerCase());
+        if (id == null) {
+            return result;
+        }
+        for (long i = 0; i < eventCount; i++) {
+            final Segment segment = segments.get((int) (i >> SEGMENT_SHIFT));
+            final int offset = (int) (i & SEGMENT_MASK);
+            if (segment.columns[FROM].getInt(offset * 4) == id || segment.columns[TO].getInt(offset * 4) == id) {
+                result.add(getEvent(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The event by its number (in the order of the chain).
+     */
+    @NonNull
+    public TokenEvent getEvent(long index) {
+        assert index >= 0 && index < eventCount : index;
+
+        final Segment segment = segments.get((int) (index >> SEGMENT_SHIFT));
+        final int offset = (int) (index & SEGMENT_MASK);
+        final int toId = segment.columns[TO].getInt(offset * 4);
+        final byte[] txhash = new byte[WORD_SIZE];
+        segment.columns[TXHASH].get(offset * WORD_SIZE, txhash);
+        return new TokenEvent(
+                segment.columns[BLOCK].getLong(offset * 8),
+                segment.columns[LOG].getInt(offset * 4),
+                KINDS[segment.columns[KIND].get(offset)],
+                addresses.get(segment.columns[FROM].getInt(offset * 4)),
+                (toId < 0) ? null : addresses.get(toId),
+                getWord(segment.columns[AMOUNT], offset * WORD_SIZE),
+                Numeric.toHexString(txhash));
+    }
+
+    /**
+     * Close the index; anything appended after the last {@link #commit} is lost.
+     */
+    @Override
+    public void close() {
+        segments.clear();
+        snapshots.clear();
+        state = null;
+    }
+
+    /**
+     * Delete the snapshots taken after the block, or including more events.
+     */
+    private void dropSnapshotsAfter(long blockNumber, long eventCount) throws IOException {
+        final Iterator<Snapshot> iterator = snapshots.values().iterator();
+        while (iterator.hasNext()) {
+            final Snapshot snapshot = iterator.next();
+            if (snapshot.blockNumber > blockNumber || snapshot.eventCount > eventCount) {
+                Files.deleteIfExists(snapshot.path);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Write the snapshot for the latest boundary not after the block, unless it is written already
+     * or nothing has happened since the previous snapshot.
+     */
+    private void maybeSnapshot(long blockNumber) throws IOException {
+        if (blockNumber < 0) {
+            return;
+        }
+        final long boundary = blockNumber - blockNumber % snapshotInterval;
+        final long previousEventCount = snapshots.isEmpty() ? 0 : snapshots.lastEntry().getValue().eventCount;
+        if ((snapshots.isEmpty() || boundary > snapshots.lastKey()) && eventCount > previousEventCount) {
+            writeSnapshot(boundary);
+        }
+    }
+
+    private void writeSnapshot(long blockNumber) throws IOException {
+        final long startedAt = System.nanoTime();
+        final Balances balances = state();
+        int holderCount = 0;
+        for (final BigInteger balance : balances.balances) {
+            if (balance != null && balance.signum() != 0) {
+                holderCount++;
+            }
+        }
+        final Path path = dir.resolve(String.format("%s%012d", SNAPSHOT_PREFIX, blockNumber));
+        final Path tempPath = dir.resolve(path.getFileName() + ".tmp");
+        try (final FileChannel channel = FileChannel.open(tempPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Channels.newOutputStream(channel), 1 << 16))) {
+            out.writeLong(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(blockNumber);
+            out.writeLong(eventCount);
+            out.writeInt(holderCount);
+            out.writeInt(balances.burned.size());
+            out.write(new byte[SNAPSHOT_HEADER_SIZE - out.size()]);
+            for (int id = 0; id < balances.balances.length; id++) {
+                final BigInteger balance = balances.balances[id];
+                if (balance != null && balance.signum() != 0) {
+                    out.writeInt(id);
+                    writeSignedWord(out, balance);
+                }
+            }
+            for (final Map.Entry<Integer, BigInteger> entry : balances.burned.entrySet()) {
+                out.writeInt(entry.getKey());
+                writeSignedWord(out, entry.getValue());
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshots.put(blockNumber, new Snapshot(blockNumber, eventCount, path));
+        logger.debug("Written the snapshot at block {} ({} holders) in {} ms",
+                blockNumber, holderCount, (System.nanoTime() - startedAt) / 1000000);
+    }
+
+    @NonNull
+    private Snapshot readSnapshotHeader(@NonNull Path path) throws IOException {
+        try (final DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readLong() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Corrupted snapshot: " + path);
+            }
+            final Snapshot snapshot = new Snapshot(in.readLong(), in.readLong(), path);
+            final long entryCount = (long) in.readInt() + in.readInt();
+            if (Files.size(path) != SNAPSHOT_HEADER_SIZE + SNAPSHOT_ENTRY_SIZE * entryCount) {
+                throw new IOException("Corrupted snapshot: " + path);
+            }
+            return snapshot;
+        } catch (EOFException e) {
+            throw new IOException("Corrupted snapshot: " + path);
+        }
+    }
+
+    @NonNull
+    private MappedByteBuffer map(@NonNull Snapshot snapshot) {
+        if (snapshot.buffer == null) {
+            try (final FileChannel channel = FileChannel.open(snapshot.path, StandardOpenOption.READ)) {
+                snapshot.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read the snapshot " + snapshot.path, e);
+            }
+        }
+        return snapshot.buffer;
+    }
+
+    /**
+     * The balances at the end of the block: from the latest snapshot not after it, plus the events since.
+     */
+    @NonNull
+    private Balances balancesAt(long blockNumber) {
+        assert blockNumber >= firstBlock - 1 && blockNumber <= lastBlock : blockNumber;
+
+        final Map.Entry<Long, Snapshot> entry = snapshots.floorEntry(blockNumber);
+        final Balances balances = new Balances(addresses.size());
+        long first = 0;
+        if (entry != null) {
+            final MappedByteBuffer buffer = map(entry.getValue());
+            final int holderCount = buffer.getInt(HOLDER_COUNT_OFFSET), burnerCount = buffer.getInt(BURNER_COUNT_OFFSET);
+            for (int i = 0; i < holderCount + burnerCount; i++) {
+                final int offset = SNAPSHOT_HEADER_SIZE + i * SNAPSHOT_ENTRY_SIZE;
+                final int id = buffer.getInt(offset);
+                final BigInteger value = getSignedWord(buffer, offset + 4);
+                if (i < holderCount) {
+                    balances.add(id, value);
+                } else {
+                    balances.burned.put(id, value);
+                }
+            }
+            first = entry.getValue().eventCount;
+        }
+        replay(balances, first, firstEventAfter(blockNumber));
+        return balances;
+    }
+
+    private void replay(@NonNull Balances balances, long first, long end) {
+        for (long i = first; i < end; i++) {
+            final Segment segment = segments.get((int) (i >> SEGMENT_SHIFT));
+            final int offset = (int) (i & SEGMENT_MASK);
+            balances.apply(KINDS[segment.columns[KIND].get(offset)],
+                    segment.columns[FROM].getInt(offset * 4),
+                    segment.columns[TO].getInt(offset * 4),
+                    getWord(segment.columns[AMOUNT], offset * WORD_SIZE));
+        }
+    }
+
+    @NonNull
+    private Balances state() {
+        assert state != null;
+        return state;
+    }
+
+    /**
+     * Load the balances after all the indexed events, to continue appending.
+     */
+    private void loadState() {
+        state = (eventCount == 0) ? new Balances(addresses.size()) : balancesAt(lastBlock);
+    }
+
+    /**
+     * The number of the first event after the block (i.e. how many events there are up to the end of the block).
+     */
+    private long firstEventAfter(long blockNumber) {
+        long low = 0, high = eventCount;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if (blockAt(middle) <= blockNumber) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long blockAt(long index) {
+        return segments.get((int) (index >> SEGMENT_SHIFT)).columns[BLOCK].getLong((int) (index & SEGMENT_MASK) * 8);
+    }
+
+    private int addressId(@NonNull String address) {
+        final Integer id = addressIds.get(address);
+        return (id != null) ? id : addAddress(address);
+    }
+
+    private int addAddress(@NonNull String address) {
+        final int id = addresses.size();
+        addresses.add(address);
+        addressIds.put(address, id);
+        return id;
+    }
+
+    @NonNull
+    private Segment mapSegment(int index) throws IOException {
+        final Segment segment = new Segment();
+        for (int c = 0; c < COLUMN_NAMES.length; c++) {
+            final Path path = dir.resolve(String.format("segment-%06d.%s", index, COLUMN_NAMES[c]));
+            final long size = (long) COLUMN_WIDTHS[c] * SEGMENT_EVENTS;
+            if (writable) {
+                try (final FileChannel channel = FileChannel.open(path,
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // Mapping extends the file (sparsely) to the full size
+                    segment.columns[c] = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                }
+            } else {
+                try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    if (channel.size() != size) {
+                        throw new IOException("Corrupted segment: " + path);
+                    }
+                    segment.columns[c] = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Keep only the hashes of the last {@link #MAX_REORG_DEPTH} blocks, without gaps.
+     */
+    private void trimRecentHashes() {
+        recentHashes.tailMap(lastBlock, false).clear();
+        recentHashes.headMap(lastBlock - MAX_REORG_DEPTH, true).clear();
+        long expected = lastBlock;
+        for (final Long blockNumber : recentHashes.descendingKeySet()) {
+            if (blockNumber != expected) {
+                recentHashes.headMap(blockNumber, true).clear();
+                break;
+            }
+            expected--;
+        }
+    }
+
+    private void writeMeta() throws IOException {
+        final ByteBuffer meta = ByteBuffer.allocate(96 + recentHashes.size() * WORD_SIZE);
+        meta.putLong(MAGIC);
+        meta.putInt(VERSION);
+        meta.put(Numeric.hexStringToByteArray(contractAddress));
+        meta.putLong(firstBlock);
+        meta.putLong(lastBlock);
+        meta.putLong(eventCount);
+        meta.putInt(writtenAddressCount);
+        meta.putLong(snapshotInterval);
+        meta.putInt(recentHashes.size());
+        for (final String hash : recentHashes.values()) {
+            meta.put(Numeric.toBytesPadded(Numeric.toBigInt(hash), WORD_SIZE));
+        }
+        final Path tempPath = dir.resolve(META + ".tmp");
+        try (final FileChannel channel = FileChannel.open(tempPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            meta.flip();
+            while (meta.hasRemaining()) {
+                channel.write(meta);
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, dir.resolve(META), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putWord(@NonNull ByteBuffer buffer, int offset, @NonNull BigInteger value) {
+        buffer.put(offset, Numeric.toBytesPadded(value, WORD_SIZE));
+    }
+
+    @NonNull
+    private static BigInteger getWord(@NonNull ByteBuffer buffer, int offset) {
+        final byte[] word = new byte[WORD_SIZE];
+        buffer.get(offset, word);
+        return new BigInteger(1, word);
+    }
+
+    /**
+     * Write the two’s complement 256-bit value (a balance may be negative if the index misses some genesis holder).
+     */
+    private static void writeSignedWord(@NonNull OutputStream out, @NonNull BigInteger value) throws IOException {
+        final byte[] bytes = value.toByteArray();
+        assert bytes.length <= WORD_SIZE : value;
+        final byte padding = (byte) ((value.signum() < 0) ? 0xFF : 0);
+        for (int i = bytes.length; i < WORD_SIZE; i++) {
+            out.write(padding);
+        }
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static BigInteger getSignedWord(@NonNull ByteBuffer buffer, int offset) {
+        final byte[] word = new byte[WORD_SIZE];
+        buffer.get(offset, word);
+        return new BigInteger(word);
+    }
+}
@@ -0,0 +1,86 @@
+package com.icodici.universa.utnp.index;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigInteger;
+
+/**
+ * A single balance change of the UTNP token, as indexed by {@link EventStore}.
+ */
+public class TokenEvent {
+
+    public enum Kind {
+        /**
+         * <code>Transfer(from, to, value)</code>.
+         */
+        TRANSFER,
+        /**
+         * <code>Burn(burner, value)</code>; <code>from</code> is the burner, there is no <code>to</code>.
+         */
+        BURN,
+        /**
+         * The balance of <code>to</code> before the first indexed block, as read from the node
+         * (the UTNP constructor gives the whole supply to the deployer without any event);
+         * <code>from</code> is the zero address.
+         */
+        GENESIS
+    }
+
+    public static final String ZERO_ADDRESS = "0x0000000000000000000000000000000000000000";
+    public static final String ZERO_TXHASH = "0x0000000000000000000000000000000000000000000000000000000000000000";
+
+    public final long blockNumber;
+    /**
+     * The index of the log in the block; -1 for {@link Kind#GENESIS}.
+     */
+    public final int logIndex;
+    @NonNull
+    public final Kind kind;
+    /**
+     * The sender (or the burner), in lowercase.
+     */
+    @NonNull
+    public final String from;
+    /**
+     * The recipient, in lowercase; <code>null</code> for {@link Kind#BURN}.
+     */
+    @Nullable
+    public final String to;
+    /**
+     * The amount, in the minimal units of the token.
+     */
+    @NonNull
+    public final BigInteger amount;
+    @NonNull
+    public final String txhash;
+
+    public TokenEvent(long blockNumber,
+                      int logIndex,
+                      @NonNull Kind kind,
+                      @NonNull String from,
+                      @Nullable String to,
+                      @NonNull BigInteger amount,
+                      @NonNull String txhash) {
+        assert blockNumber >= 0 : blockNumber;
+        assert kind != null;
+        assert from != null;
+        assert (to == null) == (kind == Kind.BURN) : kind;
+        assert amount != null;
+        assert amount.signum() >= 0 && amount.bitLength() <= 256 : amount;
+        assert txhash != null;
+
+        this.blockNumber = blockNumber;
+        this.logIndex = logIndex;
+        this.kind = kind;
+        this.from = from.toLowerCase();
+        this.to = (to == null) ? null : to.toLowerCase();
+        this.amount = amount;
+        this.txhash = txhash.toLowerCase();
+    }
+
+    public String toString() {
+        return String.format("%s(block=%s, log=%s, from=%s, to=%s, amount=%s, txhash=%s)",
+                kind, blockNumber, logIndex, from, to, amount, txhash);
+    }
+}
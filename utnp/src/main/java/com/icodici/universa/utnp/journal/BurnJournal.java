@@ -0,0 +1,538 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.utils.Numeric;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Append-only journal of the burn requests and of the <code>burn</code> transactions coalescing them
+ * (see {@link com.icodici.universa.utnp.connectors.BurnQueue}).
+ * <p>
+ * Every request is written through to the operating system as soon as it is accepted, so it survives
+ * a crash of the process; every burn transaction is forced to the disk <em>before</em> it is sent, so after a crash
+ * it is re-broadcast as the very same transaction (and its requests cannot be burned twice).
+ * <p>
+ * The journal is a text file, one record per line, the fields are tab-separated:
+ * <ul>
+ * <li><code>H version description</code> – the header;</li>
+ * <li><code>R request-id amount</code> – the request to burn the amount (in the minimal units) is accepted;</li>
+ * <li><code>B nonce txhash raw-transaction request-ids</code> – the burn of the requests is signed;</li>
+ * <li><code>V txhash variant-txhash raw-transaction</code> – the burn is signed again (with the same nonce and
+ * the higher fees) to replace the stuck one;</li>
+ * <li><code>M txhash [variant-txhash]</code> – the burn (or its replacement variant) is mined successfully;</li>
+ * <li><code>F txhash reason</code> – the burn has failed (reverted, or refused by the node), and its requests
+ * are dropped;</li>
+ * <li><code>Q txhash</code> – the burn can never be mined (its nonce is taken by another transaction),
+ * and its requests are pending again;</li>
+ * <li><code>D request-id txhash</code> – the request has been burned by the transaction (written by the compaction
+ * only).</li>
+ * </ul>
+ * The state is updated by the same records, whether written or replayed. Only the latest burned requests
+ * are remembered (to resolve them if submitted again); once most of the records are outdated, the journal
+ * is compacted: rewritten with the current state only, and replaced atomically. Thread-safe.
+ */
+public class BurnJournal implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(BurnJournal.class);
+
+    static final String VERSION = "1";
+    /**
+     * How many burned requests are remembered by default.
+     */
+    public static final int DEFAULT_MAX_BURNED_REMEMBERED = 100000;
+    /**
+     * The journal is compacted once it has so many outdated records.
+     */
+    static final int COMPACTION_THRESHOLD = 10000;
+
+    /**
+     * The burn transaction of several requests.
+     */
+    public static class Batch {
+        /**
+         * The transaction first signed for the burn; identifies it in the journal.
+         */
+        @NonNull
+        public final SignedTransaction transaction;
+        /**
+         * All the transactions signed for the burn (any of them may be mined): the first one,
+         * followed by the replacement variants.
+         */
+        @NonNull
+        private final List<SignedTransaction> variants = new ArrayList<>();
+        @NonNull
+        public final List<String> requestIds;
+        /**
+         * The total burned, in the minimal units.
+         */
+        @NonNull
+        public final BigInteger amount;
+
+        Batch(@NonNull SignedTransaction transaction, @NonNull List<String> requestIds, @NonNull BigInteger amount) {
+            this.transaction = transaction;
+            this.requestIds = requestIds;
+            this.amount = amount;
+            variants.add(transaction);
+        }
+
+        /**
+         * All the transactions signed for the burn: the first one, followed by the replacement variants.
+         */
+        @NonNull
+        public List<SignedTransaction> getVariants() {
+            synchronized (variants) {
+                return new ArrayList<>(variants);
+            }
+        }
+
+        /**
+         * The transaction signed for the burn most recently.
+         */
+        @NonNull
+        public SignedTransaction getLatest() {
+            synchronized (variants) {
+                return variants.get(variants.size() - 1);
+            }
+        }
+
+        public String toString() {
+            return String.format("burn of %s request(s) %s", requestIds.size(), transaction.txhash);
+        }
+    }
+
+    @NonNull
+    private final Path path;
+    private final int maxBurnedRemembered;
+    // Replaced on compaction
+    @NonNull
+    private FileOutputStream fileStream;
+    @NonNull
+    private FileChannel channel;
+    @NonNull
+    private Writer writer;
+    /**
+     * How many records the journal file has.
+     */
+    private long recordCount = 0;
+
+    /**
+     * The amounts of the requests not burned yet (pending or in the unconfirmed burns), by their ids.
+     */
+    @NonNull
+    private final Map<String, BigInteger> amounts = new HashMap<>();
+    /**
+     * The ids of the requests not in any burn yet, in the order of their arrival.
+     */
+    @NonNull
+    private LinkedHashSet<String> pending = new LinkedHashSet<>();
+    /**
+     * The burns signed but not known to be mined yet, by their txhashes.
+     */
+    @NonNull
+    private final Map<String, Batch> unconfirmed = new LinkedHashMap<>();
+    /**
+     * The txhashes of the burns mined (of the variants mined, actually), by the ids of the requests;
+     * only the latest ones, in the order of burning.
+     */
+    @NonNull
+    private final LinkedHashMap<String, String> burned = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > maxBurnedRemembered;
+        }
+    };
+    @NonNull
+    private final String description;
+    private final boolean resumed;
+
+
+    /**
+     * Open the journal, remembering {@link #DEFAULT_MAX_BURNED_REMEMBERED} burned requests; if it exists, replay it.
+     *
+     * @param description the description of the queue (the token, the burner, etc); the existing journal
+     *                    is accepted only if it has been created with the same description.
+     * @throws IOException if the journal cannot be read/written, or has been created for a different queue.
+     */
+    public BurnJournal(@NonNull Path path, @NonNull String description) throws IOException {
+        this(path, description, DEFAULT_MAX_BURNED_REMEMBERED);
+    }
+
+    /**
+     * Open the journal; if it exists, replay it.
+     *
+     * @param description         the description of the queue (the token, the burner, etc); the existing journal
+     *                            is accepted only if it has been created with the same description.
+     * @param maxBurnedRemembered how many of the latest burned requests to remember; the older ones,
+     *                            if submitted again, are burned again.
+     * @throws IOException if the journal cannot be read/written, or has been created for a different queue.
+     */
+    public BurnJournal(@NonNull Path path, @NonNull String description, int maxBurnedRemembered) throws IOException {
+        assert path != null;
+        assert description != null;
+        assert description.indexOf('\t') < 0 && description.indexOf('\n') < 0 : description;
+        assert maxBurnedRemembered > 0 : maxBurnedRemembered;
+
+        this.path = path;
+        this.description = description;
+        this.maxBurnedRemembered = maxBurnedRemembered;
+        this.resumed = Files.exists(path) && Files.size(path) > 0;
+        final long validLength = resumed ? replay(description) : 0;
+
+        fileStream = new FileOutputStream(path.toFile(), true);
+        channel = fileStream.getChannel();
+        // Cut off the torn last record, if any
+        channel.truncate(validLength);
+        writer = new BufferedWriter(new OutputStreamWriter(fileStream, StandardCharsets.UTF_8));
+
+        if (!resumed) {
+            write("H", VERSION, description);
+            channel.force(false);
+        } else {
+            compactIfOutdated();
+        }
+    }
+
+    /**
+     * Whether the journal existed before and has been replayed.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Whether the request is accepted and not dropped (whether burned already or not).
+     */
+    public synchronized boolean isKnown(@NonNull String requestId) {
+        return amounts.containsKey(requestId) || burned.containsKey(requestId);
+    }
+
+    /**
+     * The txhash of the burn mined for the request; <code>null</code> if it is not burned (yet).
+     */
+    @Nullable
+    public synchronized String getBurnTxhash(@NonNull String requestId) {
+        return burned.get(requestId);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * The first pending requests (not in any burn yet), in the order of their arrival.
+     */
+    @NonNull
+    public synchronized List<String> getPending(int maxCount) {
+        assert maxCount > 0 : maxCount;
+
+        final List<String> result = new ArrayList<>(Math.min(maxCount, pending.size()));
+        for (final String requestId : pending) {
+            if (result.size() == maxCount) {
+                break;
+            }
+            result.add(requestId);
+        }
+        return result;
+    }
+
+    /**
+     * The amount of the request not burned yet, in the minimal units.
+     */
+    @NonNull
+    public synchronized BigInteger getAmount(@NonNull String requestId) {
+        final BigInteger amount = amounts.get(requestId);
+        assert amount != null : requestId;
+        return amount;
+    }
+
+    /**
+     * The burns which are journaled but not known to be mined yet, ordered by nonce.
+     */
+    @NonNull
+    public synchronized List<Batch> getUnconfirmed() {
+        final List<Batch> result = new ArrayList<>(unconfirmed.values());
+        result.sort(Comparator.comparing(batch -> batch.transaction.nonce));
+        return result;
+    }
+
+    /**
+     * Accept the request, writing it through to the operating system (not forcing it to the disk).
+     */
+    public synchronized void request(@NonNull String requestId, @NonNull BigInteger amount) throws IOException {
+        assert requestId != null;
+        assert !isKnown(requestId) : requestId;
+        assert amount != null;
+        assert amount.signum() > 0 : amount;
+
+        record("R", SendJournal.escape(requestId), amount.toString());
+    }
+
+    /**
+     * Journal the burn of the pending requests, forcing it (and all the requests) to the disk.
+     */
+    @NonNull
+    public synchronized Batch signed(@NonNull SignedTransaction transaction,
+                                     @NonNull List<String> requestIds) throws IOException {
+        assert transaction != null;
+        assert requestIds != null;
+        assert !requestIds.isEmpty();
+        assert pending.containsAll(requestIds) : requestIds;
+
+        record("B", transaction.nonce.toString(), transaction.txhash, transaction.hex, SendJournal.joinUuids(requestIds));
+        // Within the lock, as the compaction replaces the channel
+        channel.force(false);
+        return unconfirmed.get(transaction.txhash);
+    }
+
+    /**
+     * Journal the replacement variant of the burn, forcing it to the disk (before it is sent).
+     */
+    public synchronized void replaced(@NonNull Batch batch, @NonNull SignedTransaction transaction) throws IOException {
+        assert batch != null;
+        assert transaction != null;
+        assert transaction.nonce.equals(batch.transaction.nonce) : transaction;
+        assert unconfirmed.get(batch.transaction.txhash) == batch : batch;
+
+        record("V", batch.transaction.txhash, transaction.txhash, transaction.hex);
+        channel.force(false);
+    }
+
+    /**
+     * @param transaction the variant of the burn which has been mined.
+     */
+    public synchronized void mined(@NonNull Batch batch, @NonNull SignedTransaction transaction) throws IOException {
+        if (transaction.txhash.equals(batch.transaction.txhash)) {
+            record("M", batch.transaction.txhash);
+        } else {
+            record("M", batch.transaction.txhash, transaction.txhash);
+        }
+        compactIfOutdated();
+    }
+
+    public synchronized void failed(@NonNull Batch batch, @NonNull String reason) throws IOException {
+        record("F", batch.transaction.txhash, reason.replace('\t', ' ').replace('\n', ' '));
+        compactIfOutdated();
+    }
+
+    public synchronized void requeued(@NonNull Batch batch) throws IOException {
+        record("Q", batch.transaction.txhash);
+    }
+
+    /**
+     * How many records the journal file has (including the header).
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Write the record through to the operating system, and apply it to the state.
+     */
+    private void record(@NonNull String... fields) throws IOException {
+        write(fields);
+        applyRecord(fields);
+    }
+
+    private void write(@NonNull String... fields) throws IOException {
+        writer.write(String.join("\t", fields) + "\n");
+        writer.flush();
+        recordCount++;
+    }
+
+    /**
+     * Compact the journal if it has too many outdated records.
+     */
+    private void compactIfOutdated() throws IOException {
+        long liveCount = 1 + amounts.size() + burned.size();
+        for (final Batch batch : unconfirmed.values()) {
+            liveCount += batch.getVariants().size();
+        }
+        if (recordCount - liveCount >= COMPACTION_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the journal with the current state only, into a new file forced to the disk,
+     * and replace the current file with it atomically.
+     */
+    private void compact() throws IOException {
+        final long startedAt = System.nanoTime();
+        final long previousCount = recordCount;
+        final Path tempPath = Paths.get(path.toString() + ".tmp");
+        final FileOutputStream newFileStream = new FileOutputStream(tempPath.toFile());
+        try {
+            final Writer newWriter = new BufferedWriter(new OutputStreamWriter(newFileStream, StandardCharsets.UTF_8));
+            final List<String[]> records = new ArrayList<>();
+            records.add(new String[]{"H", VERSION, description});
+            // The oldest burned ones first, so they are forgotten first
+            burned.forEach((requestId, txhash) -> records.add(new String[]{"D", SendJournal.escape(requestId), txhash}));
+            for (final Batch batch : unconfirmed.values()) {
+                for (final String requestId : batch.requestIds) {
+                    records.add(new String[]{"R", SendJournal.escape(requestId), amounts.get(requestId).toString()});
+                }
+                final SignedTransaction transaction = batch.transaction;
+                records.add(new String[]{"B", transaction.nonce.toString(), transaction.txhash, transaction.hex,
+                        SendJournal.joinUuids(batch.requestIds)});
+                for (final SignedTransaction variant : batch.getVariants()) {
+                    if (variant != transaction) {
+                        records.add(new String[]{"V", transaction.txhash, variant.txhash, variant.hex});
+                    }
+                }
+            }
+            for (final String requestId : pending) {
+                records.add(new String[]{"R", SendJournal.escape(requestId), amounts.get(requestId).toString()});
+            }
+            for (final String[] record : records) {
+                newWriter.write(String.join("\t", record) + "\n");
+            }
+            newWriter.flush();
+            newFileStream.getChannel().force(false);
+            recordCount = records.size();
+        } catch (IOException | RuntimeException e) {
+            newFileStream.close();
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        writer.close();
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Already positioned at the end
+        fileStream = newFileStream;
+        channel = newFileStream.getChannel();
+        writer = new BufferedWriter(new OutputStreamWriter(fileStream, StandardCharsets.UTF_8));
+        logger.debug("Compacted the burn journal from {} to {} records in {} ms", previousCount, recordCount,
+                (System.nanoTime() - startedAt) / 1000000);
+    }
+
+    /**
+     * Replay the existing journal.
+     *
+     * @return the length of the valid journal contents (excluding the torn last record, if any).
+     */
+    private long replay(@NonNull String description) throws IOException {
+        final long startedAt = System.nanoTime();
+        try (final FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final SendJournal.RecordReader reader = new SendJournal.RecordReader(readChannel, 0);
+            final String[] header = reader.next();
+            if (header == null || !header[0].equals("H") || header.length != 3) {
+                throw new IOException("Not a burn journal: " + path);
+            }
+            if (!header[1].equals(VERSION)) {
+                throw new IOException("Unsupported journal version " + header[1]);
+            }
+            if (!header[2].equals(description)) {
+                throw new IOException(String.format("The journal %s belongs to another queue (%s)", path, header[2]));
+            }
+
+            String[] record;
+            recordCount = 1;
+            while ((record = reader.next()) != null) {
+                applyRecord(record);
+                recordCount++;
+            }
+            logger.debug("Replayed {} burn journal records in {} ms: {} pending, {} unconfirmed", recordCount,
+                    (System.nanoTime() - startedAt) / 1000000, pending.size(), unconfirmed.size());
+            return reader.position;
+        }
+    }
+
+    private void applyRecord(@NonNull String[] record) throws IOException {
+        try {
+            switch (record[0]) {
+                case "R": {
+                    final String requestId = SendJournal.unescape(record[1]);
+                    amounts.put(requestId, new BigInteger(record[2]));
+                    pending.add(requestId);
+                    break;
+                }
+                case "B": {
+                    final SignedTransaction transaction =
+                            new SignedTransaction(new BigInteger(record[1]), Numeric.hexStringToByteArray(record[3]));
+                    if (!transaction.txhash.equals(record[2])) {
+                        throw new IOException("Corrupted burn transaction " + record[2]);
+                    }
+                    final List<String> requestIds = SendJournal.splitUuids(record[4]);
+                    BigInteger amount = BigInteger.ZERO;
+                    for (final String requestId : requestIds) {
+                        if (!pending.remove(requestId)) {
+                            throw new IOException("Burn " + transaction.txhash + " of the unknown request " + requestId);
+                        }
+                        amount = amount.add(amounts.get(requestId));
+                    }
+                    unconfirmed.put(transaction.txhash, new Batch(transaction, requestIds, amount));
+                    break;
+                }
+                case "V": {
+                    final Batch batch = unconfirmed.get(record[1]);
+                    if (batch == null) {
+                        throw new IOException("Replacement of the unknown burn " + record[1]);
+                    }
+                    final SignedTransaction transaction =
+                            new SignedTransaction(batch.transaction.nonce, Numeric.hexStringToByteArray(record[3]));
+                    if (!transaction.txhash.equals(record[2])) {
+                        throw new IOException("Corrupted burn transaction " + record[2]);
+                    }
+                    synchronized (batch.variants) {
+                        batch.variants.add(transaction);
+                    }
+                    break;
+                }
+                case "M": {
+                    final Batch batch = unconfirmed.remove(record[1]);
+                    if (batch != null) {
+                        final String txhash = (record.length > 2) ? record[2] : batch.transaction.txhash;
+                        for (final String requestId : batch.requestIds) {
+                            amounts.remove(requestId);
+                            burned.put(requestId, txhash);
+                        }
+                    }
+                    break;
+                }
+                case "D":
+                    burned.put(SendJournal.unescape(record[1]), record[2]);
+                    break;
+                case "F": {
+                    final Batch batch = unconfirmed.remove(record[1]);
+                    if (batch != null) {
+                        batch.requestIds.forEach(amounts::remove);
+                    }
+                    break;
+                }
+                case "Q": {
+                    final Batch batch = unconfirmed.remove(record[1]);
+                    if (batch != null) {
+                        // Ahead of the others, as they have waited the longest
+                        final LinkedHashSet<String> requeued = new LinkedHashSet<>(batch.requestIds);
+                        requeued.addAll(pending);
+                        pending = requeued;
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal record " + record[0]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed journal record " + record[0], e);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+
+/**
+ * Persistent index of the already paid orders, shared by all the runs (and all the input files).
+ * <p>
+ * Two keys are recorded for every paid order (once its bulk is mined): its uuid, and the (address, amount) pair
+ * of the payment.
+ * Each key is stored as a 64-bit hash in a memory-mapped open-addressing hash table,
+ * with a Bloom filter in front of it; so a lookup costs O(1) and usually touches a single page
+ * (the filter takes 1 byte per 8-byte slot of the table), and the payment history is never loaded to the heap.
+ * <p>
+ * The hash collisions can only cause the false “already paid” answers, never the missed ones.
+ * The table is grown (rebuilt into a new file twice as large) when it becomes half full.
+ * <p>
+ * File layout (big-endian): the header (magic, version, capacity, count), the Bloom filter bits,
+ * then the table of <code>capacity</code> 8-byte slots (0 marks an empty slot).
+ */
+public class PaymentIndex implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(PaymentIndex.class);
+
+    private static final long MAGIC = 0x55544E5049445831L; // "UTNPIDX1"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int COUNT_OFFSET = 20;
+
+    static final int DEFAULT_CAPACITY = 1 << 20;
+    /**
+     * The table may have up to 128M slots (~1.1 GB with the filter), so that it fits in a single mapped buffer.
+     */
+    static final int MAX_CAPACITY = 1 << 27;
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+
+    /**
+     * Bloom filter bits per table slot; i.e. at least 16 bits per key.
+     */
+    static final int BLOOM_BITS_PER_SLOT = 8;
+    static final int BLOOM_HASHES = 7;
+
+    private static final long UUID_SEED = 0x6a09e667f3bcc908L;
+    private static final long PAYMENT_SEED = 0xbb67ae8584caa73bL;
+
+    @NonNull
+    private final Path path;
+    @NonNull
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private long count;
+    private long bloomBits;
+
+
+    /**
+     * Open the index; create it if it doesn’t exist.
+     *
+     * @throws IOException if the file cannot be read/written or is not a payment index.
+     */
+    public PaymentIndex(@NonNull Path path) throws IOException {
+        this(path, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Open the index; create it with the given capacity if it doesn’t exist.
+     */
+    PaymentIndex(@NonNull Path path, int initialCapacity) throws IOException {
+        assert path != null;
+        assert initialCapacity > 0 && initialCapacity <= MAX_CAPACITY && Integer.bitCount(initialCapacity) == 1 : initialCapacity;
+
+        this.path = path;
+        if (Files.exists(path)) {
+            map(path);
+        } else {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            create(path, initialCapacity);
+            map(path);
+        }
+        // The remains of the interrupted growth, if any
+        Files.deleteIfExists(growthPath());
+    }
+
+    /**
+     * How many keys are recorded (two per order, unless some keys are shared with the other orders).
+     */
+    public synchronized long getKeyCount() {
+        return count;
+    }
+
+    /**
+     * How many keys the table may hold before it is grown twice.
+     */
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Whether the order with this uuid has been paid.
+     * Safe to call from multiple threads, as long as nothing is being recorded.
+     */
+    public boolean containsOrder(@NonNull String uuid) {
+        assert uuid != null;
+        return contains(uuidKey(uuid));
+    }
+
+    /**
+     * Whether the payment of this amount to this address has been made (by any order).
+     * Safe to call from multiple threads, as long as nothing is being recorded.
+     *
+     * @param address the address, in any case.
+     * @param amount  the amount in tokens (not the minimal units).
+     */
+    public boolean containsPayment(@NonNull CharSequence address, @NonNull BigDecimal amount) {
+        assert address != null;
+        assert amount != null;
+        return contains(paymentKey(address, amount));
+    }
+
+    /**
+     * Record the orders as paid; the changes are not forced to the disk (see {@link #sync}).
+     *
+     * @param uuids     the uuids of the orders.
+     * @param transfers the transfers of the same orders, in the same order.
+     */
+    public synchronized void record(@NonNull List<String> uuids, @NonNull PackedTransfers transfers) throws IOException {
+        assert uuids != null;
+        assert transfers != null;
+        assert uuids.size() == transfers.size() : uuids.size();
+
+        for (int i = 0; i < transfers.size(); i++) {
+            insert(uuidKey(uuids.get(i)));
+            insert(paymentKey(transfers.getAddress(i),
+                    new BigDecimal(transfers.getAmount(i), transfers.getDecimals())));
+        }
+    }
+
+    /**
+     * Force the recorded orders to the disk.
+     */
+    public synchronized void sync() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        sync();
+    }
+
+    private boolean contains(long key) {
+        final MappedByteBuffer buffer;
+        final int capacity;
+        final long bloomBits;
+        synchronized (this) {
+            buffer = this.buffer;
+            capacity = this.capacity;
+            bloomBits = this.bloomBits;
+        }
+        if (!bloomMayContain(buffer, bloomBits, key)) {
+            return false;
+        }
+        final int tableOffset = tableOffset(capacity);
+        final int mask = capacity - 1;
+        for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+            final long slot = buffer.getLong(tableOffset + i * 8);
+            if (slot == 0) {
+                return false;
+            } else if (slot == key) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Add the key (if not present yet); must be called under the lock.
+     */
+    private void insert(long key) throws IOException {
+        if (count + 1 > capacity * MAX_LOAD_FACTOR) {
+            grow();
+        }
+        if (insert(buffer, capacity, bloomBits, key)) {
+            count++;
+            buffer.putLong(COUNT_OFFSET, count);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the key is already present.
+     */
+    private static boolean insert(@NonNull MappedByteBuffer buffer, int capacity, long bloomBits, long key) {
+        final int tableOffset = tableOffset(capacity);
+        final int mask = capacity - 1;
+        for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+            final long slot = buffer.getLong(tableOffset + i * 8);
+            if (slot == 0) {
+                buffer.putLong(tableOffset + i * 8, key);
+                bloomAdd(buffer, bloomBits, key);
+                return true;
+            } else if (slot == key) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the index into a new file twice as large, and replace the current file with it atomically.
+     */
+    private void grow() throws IOException {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IOException(String.format("The payment index %s is full (%s keys)", path, count));
+        }
+        final long startedAt = System.nanoTime();
+        final int newCapacity = capacity * 2;
+        final Path tempPath = growthPath();
+        create(tempPath, newCapacity);
+
+        final MappedByteBuffer newBuffer;
+        try (final FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            newBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        final long newBloomBits = (long) newCapacity * BLOOM_BITS_PER_SLOT;
+        final int tableOffset = tableOffset(capacity);
+        for (int i = 0; i < capacity; i++) {
+            final long slot = buffer.getLong(tableOffset + i * 8);
+            if (slot != 0) {
+                insert(newBuffer, newCapacity, newBloomBits, slot);
+            }
+        }
+        newBuffer.putLong(COUNT_OFFSET, count);
+        newBuffer.force();
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        buffer = newBuffer;
+        capacity = newCapacity;
+        bloomBits = newBloomBits;
+        logger.debug("Grown the payment index to {} slots in {} ms", newCapacity, (System.nanoTime() - startedAt) / 1000000);
+    }
+
+    @NonNull
+    private Path growthPath() {
+        return Paths.get(path.toString() + ".grow");
+    }
+
+    /**
+     * Create the empty index file.
+     */
+    private static void create(@NonNull Path path, int capacity) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping extends the file (sparsely) to the full size
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+            mapped.putLong(0, MAGIC);
+            mapped.putInt(8, VERSION);
+            mapped.putLong(CAPACITY_OFFSET, capacity);
+            mapped.putLong(COUNT_OFFSET, 0);
+            mapped.force();
+        }
+    }
+
+    /**
+     * Map the existing index file.
+     */
+    private void map(@NonNull Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not a payment index: " + path);
+            }
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (mapped.getLong(0) != MAGIC) {
+                throw new IOException("Not a payment index: " + path);
+            }
+            if (mapped.getInt(8) != VERSION) {
+                throw new IOException("Unsupported payment index version " + mapped.getInt(8));
+            }
+            final long storedCapacity = mapped.getLong(CAPACITY_OFFSET);
+            if (storedCapacity <= 0 || storedCapacity > MAX_CAPACITY || Long.bitCount(storedCapacity) != 1
+                    || size != fileSize((int) storedCapacity)) {
+                throw new IOException("Corrupted payment index: " + path);
+            }
+            this.buffer = mapped;
+            this.capacity = (int) storedCapacity;
+            this.count = mapped.getLong(COUNT_OFFSET);
+            this.bloomBits = (long) capacity * BLOOM_BITS_PER_SLOT;
+        }
+    }
+
+    private static long fileSize(int capacity) {
+        return tableOffset(capacity) + (long) capacity * 8;
+    }
+
+    private static int tableOffset(int capacity) {
+        return HEADER_SIZE + capacity * BLOOM_BITS_PER_SLOT / 8;
+    }
+
+    private static boolean bloomMayContain(@NonNull MappedByteBuffer buffer, long bloomBits, long key) {
+        final int h1 = (int) key, h2 = (int) (key >>> 32) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % bloomBits;
+            if ((buffer.get(HEADER_SIZE + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void bloomAdd(@NonNull MappedByteBuffer buffer, long bloomBits, long key) {
+        final int h1 = (int) key, h2 = (int) (key >>> 32) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % bloomBits;
+            final int offset = HEADER_SIZE + (int) (bit >>> 3);
+            buffer.put(offset, (byte) (buffer.get(offset) | (1 << (bit & 7))));
+        }
+    }
+
+    /**
+     * The 64-bit hash of the order uuid (never 0); also used to find the repeated uuids in the orders file.
+     */
+    public static long uuidKey(@NonNull String uuid) {
+        return finish(hash(UUID_SEED, uuid));
+    }
+
+    /**
+     * The key of the payment; the address case and the trailing zeros of the amount don’t matter.
+     */
+    static long paymentKey(@NonNull CharSequence address, @NonNull BigDecimal amount) {
+        long h = PAYMENT_SEED;
+        for (int i = 0; i < address.length(); i++) {
+            h = (h ^ Character.toLowerCase(address.charAt(i))) * 0x100000001b3L;
+        }
+        h = hash(h, amount.signum() == 0 ? "0" : amount.stripTrailingZeros().toPlainString());
+        return finish(h);
+    }
+
+    /**
+     * FNV-1a over the chars.
+     */
+    private static long hash(long seed, @NonNull String value) {
+        long h = seed;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Spread the bits (the finalizer of MurmurHash3); 0 is reserved for the empty slots.
+     */
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h == 0) ? 1 : h;
+    }
+}
@@ -0,0 +1,98 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.connectors.BulkTransferPipeline;
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Listener of the sending pipeline which records the orders of every successfully mined bulk
+ * to the {@link PaymentIndex}, and passes all the notifications on to the {@link SendJournal} of the run.
+ * <p>
+ * The orders are recorded only once their bulk is mined and has not been reverted; while the bulk is in flight,
+ * the journal of the run keeps it from being sent twice. The orders are recorded (and forced to the disk)
+ * before the journal learns that the bulk is mined, so a crash in between can only make them recorded again.
+ */
+public class PaymentRecorder implements BulkTransferPipeline.Listener {
+
+    private static final Logger logger = LogManager.getLogger(PaymentRecorder.class);
+
+    @NonNull
+    private final SendJournal journal;
+    @NonNull
+    private final PaymentIndex paymentIndex;
+    /**
+     * The transfers of the bulks not mined yet, by their first order index.
+     */
+    @NonNull
+    private final Map<Long, PackedTransfers> expected = new ConcurrentHashMap<>();
+
+
+    public PaymentRecorder(@NonNull SendJournal journal, @NonNull PaymentIndex paymentIndex) {
+        assert journal != null;
+        assert paymentIndex != null;
+
+        this.journal = journal;
+        this.paymentIndex = paymentIndex;
+    }
+
+    /**
+     * Remember the transfers of the bulk, to record them once it is mined;
+     * must be called before the bulk is submitted to the pipeline.
+     *
+     * @param transfers the transfers of the orders of the range, in the same order.
+     */
+    public void expect(@NonNull BulkRange range, @NonNull PackedTransfers transfers) {
+        assert range != null;
+        assert transfers != null;
+        assert transfers.size() == range.uuids.size() : transfers.size();
+
+        expected.put(range.firstOrderIndex, transfers);
+    }
+
+    @Override
+    public void onSigned(@Nullable Object attachment, @NonNull SignedTransaction transaction) throws IOException {
+        journal.onSigned(attachment, transaction);
+    }
+
+    @Override
+    public void beforeSending(@Nullable Object attachment, @NonNull SignedTransaction transaction) throws IOException {
+        journal.beforeSending(attachment, transaction);
+    }
+
+    @Override
+    public void onAccepted(@Nullable Object attachment, @NonNull SignedTransaction transaction) {
+        journal.onAccepted(attachment, transaction);
+    }
+
+    @Override
+    public void onMined(@Nullable Object attachment,
+                        @NonNull SignedTransaction transaction,
+                        @NonNull Confirmation confirmation) {
+        final BulkRange range = (BulkRange) attachment;
+        final PackedTransfers transfers = (range == null) ? null : expected.remove(range.firstOrderIndex);
+        if (transfers != null && confirmation.success) {
+            try {
+                paymentIndex.record(range.uuids, transfers);
+                paymentIndex.sync();
+            } catch (IOException e) {
+                logger.error("Cannot record the paid {} to the payment index", range, e);
+            }
+        }
+        journal.onMined(attachment, transaction, confirmation);
+    }
+
+    @Override
+    public void onFailed(@Nullable Object attachment, @NonNull Throwable cause) {
+        journal.onFailed(attachment, cause);
+    }
+}
@@ -0,0 +1,640 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.connectors.BulkTransferPipeline;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.utils.Numeric;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Append-only write-ahead journal of the bulk sending run.
+ * <p>
+ * Every bulk transaction is journaled (with its order range, order uuids and the signed raw transaction)
+ * and forced to the disk <em>before</em> it is sent; so after a crash, the run can be resumed
+ * exactly where it stopped: the bulks that may have been sent are re-broadcast as the very same
+ * transactions (so they cannot be paid twice), and the planning continues from the first unplanned order.
+ * The fsyncs of concurrently sent transactions are grouped together.
+ * <p>
+ * The journal is a text file, one record per line, the fields are tab-separated:
+ * <ul>
+ * <li><code>H version run-description</code> – the header;</li>
+ * <li><code>P first-order last-order nonce txhash raw-transaction uuids</code> – the bulk is planned and signed
+ * (the later <code>P</code> record for the same first order supersedes the earlier one; if it has the same nonce,
+ * it is the replacement, and the earlier one is kept as its variant, as it may still be mined);</li>
+ * <li><code>S first-order txhash</code> – the bulk transaction is accepted by the node;</li>
+ * <li><code>M nonce txhash status gas-used</code> – the transaction with this nonce is mined
+ * (the status is <code>1</code> if it succeeded, <code>0</code> if reverted);</li>
+ * <li><code>F first-order reason</code> – the bulk transaction couldn’t be sent (the reason is escaped);</li>
+ * <li><code>K next-unconfirmed-order next-unplanned-order</code> – the checkpoint: all the orders before
+ * the first number are mined; it is followed by the copies of the <code>P</code>/<code>S</code> records
+ * still unconfirmed (with the <code>P</code> records of all their variants).</li>
+ * </ul>
+ * The byte offset of the latest checkpoint is stored in the side file (<code>*.checkpoint</code>),
+ * so that the replay reads only the journal tail after it.
+ */
+public class SendJournal implements Closeable, BulkTransferPipeline.Listener {
+
+    private static final Logger logger = LogManager.getLogger(SendJournal.class);
+
+    static final String VERSION = "1";
+    /**
+     * Write the checkpoint after so many bulks are mined.
+     */
+    static final int CHECKPOINT_EVERY_MINED = 256;
+
+    /**
+     * The range of orders sent in a single bulk transaction; used as the attachment for {@link BulkTransferPipeline}.
+     */
+    public static class BulkRange {
+        public final long firstOrderIndex;
+        public final long lastOrderIndex;
+        @NonNull
+        public final List<String> uuids;
+
+        public BulkRange(long firstOrderIndex, long lastOrderIndex, @NonNull List<String> uuids) {
+            assert firstOrderIndex >= 0 : firstOrderIndex;
+            assert lastOrderIndex >= firstOrderIndex : lastOrderIndex;
+            assert uuids != null;
+            assert uuids.size() == lastOrderIndex - firstOrderIndex + 1 : uuids.size();
+
+            this.firstOrderIndex = firstOrderIndex;
+            this.lastOrderIndex = lastOrderIndex;
+            this.uuids = uuids;
+        }
+
+        public String toString() {
+            return String.format("orders %s-%s", firstOrderIndex, lastOrderIndex);
+        }
+    }
+
+    /**
+     * A bulk transaction which is journaled but not known to be mined yet.
+     */
+    public static class Entry {
+        @NonNull
+        public final BulkRange range;
+        /**
+         * The latest variant of the transaction.
+         */
+        @NonNull
+        public final SignedTransaction transaction;
+        /**
+         * The earlier variants of the transaction (with the same nonce), replaced by it; any of them may be mined.
+         */
+        @NonNull
+        public final List<SignedTransaction> replaced = new ArrayList<>();
+        /**
+         * Whether the node has already accepted the transaction.
+         */
+        public boolean accepted = false;
+        /**
+         * The journal position after the (latest) record of this entry.
+         */
+        long journalPosition = 0;
+
+        Entry(@NonNull BulkRange range, @NonNull SignedTransaction transaction) {
+            this.range = range;
+            this.transaction = transaction;
+        }
+
+        /**
+         * All the variants of the transaction: the replaced ones, then the latest one.
+         */
+        @NonNull
+        public List<SignedTransaction> getVariants() {
+            final List<SignedTransaction> result = new ArrayList<>(replaced);
+            result.add(transaction);
+            return result;
+        }
+    }
+
+    @NonNull
+    private final Path path;
+    @NonNull
+    private final Path checkpointPath;
+    @NonNull
+    private final FileOutputStream fileStream;
+    @NonNull
+    private final FileChannel channel;
+    @NonNull
+    private final Writer writer;
+
+    /**
+     * How many bytes are written to the journal (including those still in the buffer).
+     */
+    private long writtenBytes;
+    /**
+     * How many bytes of the journal are surely on the disk.
+     */
+    private long durableBytes;
+    @NonNull
+    private final Object syncLock = new Object();
+
+    /**
+     * The unconfirmed bulks, by the first order index.
+     */
+    @NonNull
+    private final TreeMap<Long, Entry> unconfirmed = new TreeMap<>();
+    /**
+     * The first order index of the unconfirmed bulks, by their nonces.
+     */
+    @NonNull
+    private final Map<BigInteger, Long> unconfirmedByNonce = new HashMap<>();
+
+    private long nextOrderIndex;
+    @Nullable
+    private BigInteger maxNonce = null;
+    private int minedSinceCheckpoint = 0;
+    private final boolean resumed;
+
+
+    /**
+     * Open the journal; if it exists, replay it.
+     *
+     * @param runDescription the description of the run parameters (bulk sender, token, order range, etc);
+     *                       the existing journal is accepted only if it has been created with the same description.
+     * @param firstOrderIndex the first order of the run (used if the journal is created).
+     * @throws IOException if the journal cannot be read/written, or has been created for a different run.
+     */
+    public SendJournal(@NonNull Path path, @NonNull String runDescription, long firstOrderIndex) throws IOException {
+        assert path != null;
+        assert runDescription != null;
+        assert runDescription.indexOf('\t') < 0 && runDescription.indexOf('\n') < 0 : runDescription;
+        assert firstOrderIndex >= 0 : firstOrderIndex;
+
+        this.path = path;
+        this.checkpointPath = Paths.get(path.toString() + ".checkpoint");
+        this.nextOrderIndex = firstOrderIndex;
+
+        this.resumed = Files.exists(path) && Files.size(path) > 0;
+        final long validLength = resumed ? replay(runDescription) : 0;
+
+        fileStream = new FileOutputStream(path.toFile(), true);
+        channel = fileStream.getChannel();
+        // Cut off the torn last record, if any
+        channel.truncate(validLength);
+        writer = new BufferedWriter(new OutputStreamWriter(fileStream, StandardCharsets.UTF_8));
+        writtenBytes = durableBytes = validLength;
+
+        if (!resumed) {
+            append("H", VERSION, runDescription);
+            sync();
+        }
+    }
+
+    /**
+     * Read all the bulk transactions ever planned in the journal (including the superseded and the mined ones),
+     * without opening it for writing.
+     *
+     * @return the order ranges by the txhashes of their transactions, in the journal order
+     * (a range has several txhashes if its transaction has been replaced).
+     * @throws IOException if the journal cannot be read, or is not a bulk send journal.
+     */
+    @NonNull
+    public static Map<String, BulkRange> readPlanned(@NonNull Path path) throws IOException {
+        assert path != null;
+
+        final Map<String, BulkRange> result = new LinkedHashMap<>();
+        try (final FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final RecordReader reader = new RecordReader(readChannel, 0);
+            final String[] header = reader.next();
+            if (header == null || !header[0].equals("H") || header.length != 3) {
+                throw new IOException("Not a bulk send journal: " + path);
+            }
+            if (!header[1].equals(VERSION)) {
+                throw new IOException("Unsupported journal version " + header[1]);
+            }
+            String[] record;
+            while ((record = reader.next()) != null) {
+                if (record[0].equals("P")) {
+                    try {
+                        // The checkpoints repeat the records of the unconfirmed bulks
+                        result.putIfAbsent(record[4], new BulkRange(
+                                Long.parseLong(record[1]), Long.parseLong(record[2]), splitUuids(record[6])));
+                    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                        throw new IOException("Malformed journal record P", e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether the journal existed before and has been replayed.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * The first order which is not planned to any bulk yet.
+     */
+    public synchronized long getNextOrderIndex() {
+        return nextOrderIndex;
+    }
+
+    /**
+     * The highest nonce of the journaled transactions; <code>null</code> if nothing is journaled.
+     */
+    @Nullable
+    public synchronized BigInteger getMaxNonce() {
+        return maxNonce;
+    }
+
+    /**
+     * The bulks which are journaled but not known to be mined yet, ordered by nonce.
+     */
+    @NonNull
+    public synchronized List<Entry> getUnconfirmed() {
+        final List<Entry> result = new ArrayList<>(unconfirmed.values());
+        result.sort(Comparator.comparing(entry -> entry.transaction.nonce));
+        return result;
+    }
+
+    @Override
+    public void onSigned(@Nullable Object attachment, @NonNull SignedTransaction transaction) throws IOException {
+        final BulkRange range = (BulkRange) attachment;
+        assert range != null;
+
+        synchronized (this) {
+            final Entry entry = new Entry(range, transaction);
+            entry.journalPosition = appendPlanned(range, transaction);
+            putUnconfirmed(entry);
+            nextOrderIndex = Math.max(nextOrderIndex, range.lastOrderIndex + 1);
+            maxNonce = (maxNonce == null) ? transaction.nonce : maxNonce.max(transaction.nonce);
+        }
+    }
+
+    @Override
+    public void beforeSending(@Nullable Object attachment, @NonNull SignedTransaction transaction) throws IOException {
+        final BulkRange range = (BulkRange) attachment;
+        assert range != null;
+
+        final long position;
+        synchronized (this) {
+            final Entry entry = unconfirmed.get(range.firstOrderIndex);
+            // If the entry is already mined, everything is on the disk anyway.
+            position = (entry == null) ? 0 : entry.journalPosition;
+        }
+        syncUpTo(position);
+    }
+
+    @Override
+    public void onAccepted(@Nullable Object attachment, @NonNull SignedTransaction transaction) {
+        final BulkRange range = (BulkRange) attachment;
+        assert range != null;
+
+        synchronized (this) {
+            final Entry entry = unconfirmed.get(range.firstOrderIndex);
+            if (entry != null && entry.transaction.txhash.equals(transaction.txhash)) {
+                entry.accepted = true;
+            }
+            appendQuietly("S", Long.toString(range.firstOrderIndex), transaction.txhash);
+        }
+    }
+
+    @Override
+    public void onMined(@Nullable Object attachment,
+                        @NonNull SignedTransaction transaction,
+                        @NonNull Confirmation confirmation) {
+        boolean needCheckpoint = false;
+        synchronized (this) {
+            if (markMined(transaction.nonce)) {
+                appendQuietly("M", transaction.nonce.toString(), transaction.txhash,
+                        confirmation.success ? "1" : "0", confirmation.gasUsed.toString());
+                needCheckpoint = (++minedSinceCheckpoint >= CHECKPOINT_EVERY_MINED);
+            }
+        }
+        if (needCheckpoint) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                logger.error("Cannot write the journal checkpoint", e);
+            }
+        }
+    }
+
+    @Override
+    public void onFailed(@Nullable Object attachment, @NonNull Throwable cause) {
+        final BulkRange range = (BulkRange) attachment;
+        if (range != null) {
+            synchronized (this) {
+                appendQuietly("F", Long.toString(range.firstOrderIndex), escape(String.valueOf(cause.getMessage())));
+            }
+        }
+    }
+
+    /**
+     * Write the checkpoint: from now on, the journal replay may start from it.
+     */
+    public void checkpoint() throws IOException {
+        final long checkpointOffset, position;
+        synchronized (this) {
+            writer.flush();
+            checkpointOffset = writtenBytes;
+            final long watermark = unconfirmed.isEmpty() ? nextOrderIndex : unconfirmed.firstKey();
+            append("K", Long.toString(watermark), Long.toString(nextOrderIndex));
+            long lastPosition = writtenBytes;
+            for (final Entry entry : unconfirmed.values()) {
+                for (final SignedTransaction variant : entry.replaced) {
+                    appendPlanned(entry.range, variant);
+                }
+                lastPosition = entry.journalPosition = appendPlanned(entry.range, entry.transaction);
+                if (entry.accepted) {
+                    lastPosition = append("S", Long.toString(entry.range.firstOrderIndex), entry.transaction.txhash);
+                }
+            }
+            position = lastPosition;
+            minedSinceCheckpoint = 0;
+        }
+        syncUpTo(position);
+
+        final Path tempPath = Paths.get(checkpointPath.toString() + ".tmp");
+        Files.write(tempPath, Long.toString(checkpointOffset).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Force all the written records to the disk.
+     */
+    public void sync() throws IOException {
+        final long position;
+        synchronized (this) {
+            position = writtenBytes;
+        }
+        syncUpTo(position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Make sure the journal is on the disk at least up to the position.
+     * The concurrent callers share a single fsync (group commit).
+     */
+    private void syncUpTo(long position) throws IOException {
+        synchronized (syncLock) {
+            if (durableBytes >= position) {
+                return;
+            }
+            final long target;
+            synchronized (this) {
+                writer.flush();
+                target = writtenBytes;
+            }
+            channel.force(false);
+            durableBytes = target;
+        }
+    }
+
+    /**
+     * Append the <code>P</code> record for the transaction of the bulk.
+     *
+     * @return the journal position after the record.
+     */
+    private long appendPlanned(@NonNull BulkRange range, @NonNull SignedTransaction transaction) throws IOException {
+        return append("P",
+                Long.toString(range.firstOrderIndex),
+                Long.toString(range.lastOrderIndex),
+                transaction.nonce.toString(),
+                transaction.txhash,
+                transaction.hex,
+                joinUuids(range.uuids));
+    }
+
+    /**
+     * Append the record (not forcing it to the disk).
+     *
+     * @return the journal position after the record.
+     */
+    private long append(@NonNull String... fields) throws IOException {
+        final String line = String.join("\t", fields) + "\n";
+        writer.write(line);
+        writtenBytes += line.getBytes(StandardCharsets.UTF_8).length;
+        return writtenBytes;
+    }
+
+    /**
+     * Append the non-critical record, which can be restored from the blockchain if lost.
+     */
+    private void appendQuietly(@NonNull String... fields) {
+        try {
+            append(fields);
+        } catch (IOException e) {
+            logger.error("Cannot write to the journal", e);
+        }
+    }
+
+    /**
+     * Put the entry in place of the earlier one for the same orders, if any;
+     * if the entry replaces it (with the same nonce), keep its variants.
+     */
+    private void putUnconfirmed(@NonNull Entry entry) {
+        final Entry superseded = unconfirmed.put(entry.range.firstOrderIndex, entry);
+        if (superseded != null) {
+            unconfirmedByNonce.remove(superseded.transaction.nonce);
+            if (superseded.transaction.nonce.equals(entry.transaction.nonce)) {
+                // The checkpoint may repeat the variants already replayed
+                for (final SignedTransaction variant : superseded.getVariants()) {
+                    if (!variant.txhash.equals(entry.transaction.txhash)
+                            && entry.replaced.stream().noneMatch(known -> known.txhash.equals(variant.txhash))) {
+                        entry.replaced.add(variant);
+                    }
+                }
+            }
+        }
+        unconfirmedByNonce.put(entry.transaction.nonce, entry.range.firstOrderIndex);
+    }
+
+    /**
+     * @return <code>false</code> if there is no unconfirmed bulk with such nonce.
+     */
+    private boolean markMined(@NonNull BigInteger nonce) {
+        final Long firstOrderIndex = unconfirmedByNonce.remove(nonce);
+        if (firstOrderIndex == null) {
+            return false;
+        }
+        unconfirmed.remove(firstOrderIndex);
+        return true;
+    }
+
+    /**
+     * Replay the existing journal (from the latest checkpoint, if available).
+     *
+     * @return the length of the valid journal contents (excluding the torn last record, if any).
+     */
+    private long replay(@NonNull String runDescription) throws IOException {
+        final long startedAt = System.nanoTime();
+        final long fileSize = Files.size(path);
+
+        try (final FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            RecordReader reader = new RecordReader(readChannel, 0);
+            final String[] header = reader.next();
+            if (header == null || !header[0].equals("H") || header.length != 3) {
+                throw new IOException("Not a bulk send journal: " + path);
+            }
+            if (!header[1].equals(VERSION)) {
+                throw new IOException("Unsupported journal version " + header[1]);
+            }
+            if (!header[2].equals(runDescription)) {
+                throw new IOException(String.format(
+                        "The journal %s belongs to another run (%s)", path, header[2]));
+            }
+
+            final long checkpointOffset = readCheckpointOffset();
+            if (checkpointOffset > reader.position && checkpointOffset < fileSize) {
+                reader = new RecordReader(readChannel, checkpointOffset);
+            }
+
+            String[] record;
+            long records = 0;
+            while ((record = reader.next()) != null) {
+                applyRecord(record);
+                records++;
+            }
+            logger.debug("Replayed {} journal records in {} ms", records, (System.nanoTime() - startedAt) / 1000000);
+            return reader.position;
+        }
+    }
+
+    private long readCheckpointOffset() {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void applyRecord(@NonNull String[] record) throws IOException {
+        try {
+            switch (record[0]) {
+                case "P": {
+                    final long first = Long.parseLong(record[1]), last = Long.parseLong(record[2]);
+                    final BigInteger nonce = new BigInteger(record[3]);
+                    final List<String> uuids = splitUuids(record[6]);
+                    final SignedTransaction transaction =
+                            new SignedTransaction(nonce, Numeric.hexStringToByteArray(record[5]));
+                    if (!transaction.txhash.equals(record[4])) {
+                        throw new IOException("Corrupted transaction for orders " + first);
+                    }
+                    putUnconfirmed(new Entry(new BulkRange(first, last, uuids), transaction));
+                    nextOrderIndex = Math.max(nextOrderIndex, last + 1);
+                    maxNonce = (maxNonce == null) ? nonce : maxNonce.max(nonce);
+                    break;
+                }
+                case "S": {
+                    final Entry entry = unconfirmed.get(Long.parseLong(record[1]));
+                    if (entry != null && entry.transaction.txhash.equals(record[2])) {
+                        entry.accepted = true;
+                    }
+                    break;
+                }
+                case "M":
+                    markMined(new BigInteger(record[1]));
+                    break;
+                case "K":
+                    nextOrderIndex = Math.max(nextOrderIndex, Long.parseLong(record[2]));
+                    break;
+                case "F":
+                    // Informational only; the failed bulk stays unconfirmed and will be re-broadcast.
+                    break;
+                default:
+                    throw new IOException("Unknown journal record " + record[0]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed journal record " + record[0], e);
+        }
+    }
+
+    /**
+     * Buffered reader of the journal records, keeping track of the byte position.
+     */
+    static class RecordReader {
+        @NonNull
+        private final InputStream in;
+        /**
+         * The position right after the last complete record read.
+         */
+        long position;
+
+        RecordReader(@NonNull FileChannel channel, long position) throws IOException {
+            channel.position(position);
+            this.in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+            this.position = position;
+        }
+
+        /**
+         * Read the next complete record.
+         *
+         * @return <code>null</code> at the end of file, or if the last record is incomplete (torn by a crash).
+         */
+        @Nullable
+        String[] next() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    position += line.size() + 1;
+                    return new String(line.toByteArray(), StandardCharsets.UTF_8).split("\t", -1);
+                }
+                line.write(b);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Join the order uuids into a single field.
+     */
+    @NonNull
+    static String joinUuids(@NonNull List<String> uuids) {
+        final StringBuilder result = new StringBuilder();
+        for (final String uuid : uuids) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(escape(uuid));
+        }
+        return result.toString();
+    }
+
+    @NonNull
+    static List<String> splitUuids(@NonNull String field) {
+        final List<String> result = new ArrayList<>();
+        for (final String uuid : field.split(",", -1)) {
+            result.add(unescape(uuid));
+        }
+        return result;
+    }
+
+    /**
+     * Escape the characters which have the special meaning in the journal.
+     */
+    @NonNull
+    static String escape(@NonNull String value) {
+        return value.replace("%", "%25").replace(",", "%2C").replace("\t", "%09").replace("\n", "%0A");
+    }
+
+    @NonNull
+    static String unescape(@NonNull String value) {
+        return value.replace("%0A", "\n").replace("%09", "\t").replace("%2C", ",").replace("%25", "%");
+    }
+}
@@ -0,0 +1,232 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import com.icodici.universa.utnp.journal.SendJournal.RecordReader;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.utils.Numeric;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The file of the bulk transactions signed offline, to be broadcast later (maybe from another machine).
+ * <p>
+ * The file is text, one record per line, the fields are tab-separated (the same way as in {@link SendJournal}):
+ * <ul>
+ * <li><code>H version sender=… bulksender=… erc20=… chainid=…</code> – the header;</li>
+ * <li><code>T first-order last-order nonce txhash raw-transaction uuids</code> – the signed bulk transaction;
+ * the records go in the order of nonces, without gaps.</li>
+ * </ul>
+ */
+public class SignedTransactionFile {
+
+    static final String VERSION = "1";
+
+    /**
+     * A single signed bulk transaction.
+     */
+    public static class Record {
+        @NonNull
+        public final BulkRange range;
+        @NonNull
+        public final SignedTransaction transaction;
+
+        public Record(@NonNull BulkRange range, @NonNull SignedTransaction transaction) {
+            assert range != null;
+            assert transaction != null;
+
+            this.range = range;
+            this.transaction = transaction;
+        }
+    }
+
+    private SignedTransactionFile() {
+    }
+
+    /**
+     * Writer of the new file.
+     */
+    public static class Writer implements Closeable {
+        @NonNull
+        private final FileChannel channel;
+        @NonNull
+        private final BufferedWriter writer;
+        @Nullable
+        private BigInteger lastNonce = null;
+
+        /**
+         * Create the file; the existing file is never overwritten (its transactions might have been broadcast already).
+         *
+         * @param senderAddress the address of the account which has signed the transactions.
+         * @throws IOException if the file exists or cannot be created.
+         */
+        public Writer(@NonNull Path path,
+                      @NonNull String senderAddress,
+                      @NonNull String bulkSenderAddress,
+                      @NonNull String erc20Address,
+                      long chainId) throws IOException {
+            assert path != null;
+            assert senderAddress != null;
+            assert senderAddress.length() == EthereumUtils.ETHEREUM_ADDRESS_LENGTH : senderAddress;
+            assert bulkSenderAddress != null;
+            assert erc20Address != null;
+
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                throw new IOException("The file already exists: " + path);
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), 1 << 16);
+            append("H", VERSION, String.format("sender=%s bulksender=%s erc20=%s chainid=%s",
+                    senderAddress.toLowerCase(), bulkSenderAddress.toLowerCase(), erc20Address.toLowerCase(), chainId));
+        }
+
+        /**
+         * Append the next transaction (not forcing it to the disk); its nonce must follow the previous one.
+         */
+        public void write(@NonNull Record record) throws IOException {
+            assert record != null;
+            assert lastNonce == null || record.transaction.nonce.equals(lastNonce.add(BigInteger.ONE)) : record.transaction;
+
+            lastNonce = record.transaction.nonce;
+            append("T",
+                    Long.toString(record.range.firstOrderIndex),
+                    Long.toString(record.range.lastOrderIndex),
+                    record.transaction.nonce.toString(),
+                    record.transaction.txhash,
+                    record.transaction.hex,
+                    SendJournal.joinUuids(record.range.uuids));
+        }
+
+        /**
+         * Force all the written records to the disk.
+         */
+        public void sync() throws IOException {
+            writer.flush();
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                sync();
+            } finally {
+                writer.close();
+            }
+        }
+
+        private void append(@NonNull String... fields) throws IOException {
+            writer.write(String.join("\t", fields));
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Streaming reader of the file.
+     */
+    public static class Reader implements Closeable {
+        @NonNull
+        private final Path path;
+        @NonNull
+        private final FileChannel channel;
+        @NonNull
+        private final RecordReader reader;
+        @NonNull
+        private final Map<String, String> header = new HashMap<>();
+
+        /**
+         * Open the file and read its header.
+         *
+         * @throws IOException if the file cannot be read, or is not a signed transaction file.
+         */
+        public Reader(@NonNull Path path) throws IOException {
+            assert path != null;
+
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                this.reader = new RecordReader(channel, 0);
+                final String[] record = reader.next();
+                if (record == null || !record[0].equals("H") || record.length != 3) {
+                    throw new IOException("Not a signed transaction file: " + path);
+                }
+                if (!record[1].equals(VERSION)) {
+                    throw new IOException("Unsupported signed transaction file version " + record[1]);
+                }
+                for (final String pair : record[2].split(" ")) {
+                    final int separator = pair.indexOf('=');
+                    if (separator > 0) {
+                        header.put(pair.substring(0, separator), pair.substring(separator + 1));
+                    }
+                }
+                if (getSenderAddress().length() != EthereumUtils.ETHEREUM_ADDRESS_LENGTH) {
+                    throw new IOException("No sender address in the signed transaction file: " + path);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * The address of the account which has signed the transactions.
+         */
+        @NonNull
+        public String getSenderAddress() {
+            return header.getOrDefault("sender", "");
+        }
+
+        /**
+         * The value of the header field (<code>bulksender</code>, <code>erc20</code>, <code>chainid</code>);
+         * <code>null</code> if missing.
+         */
+        @Nullable
+        public String getHeaderField(@NonNull String name) {
+            return header.get(name);
+        }
+
+        /**
+         * Read the next transaction.
+         *
+         * @return <code>null</code> at the end of file (the incomplete last record, if any, is ignored).
+         * @throws IOException if the record is malformed.
+         */
+        @Nullable
+        public Record next() throws IOException {
+            final String[] record = reader.next();
+            if (record == null) {
+                return null;
+            }
+            try {
+                if (!record[0].equals("T")) {
+                    throw new IOException("Unknown signed transaction record " + record[0]);
+                }
+                final long first = Long.parseLong(record[1]), last = Long.parseLong(record[2]);
+                final SignedTransaction transaction =
+                        new SignedTransaction(new BigInteger(record[3]), Numeric.hexStringToByteArray(record[5]));
+                if (!transaction.txhash.equals(record[4])) {
+                    throw new IOException("Corrupted transaction for orders " + first + " in " + path);
+                }
+                return new Record(new BulkRange(first, last, SendJournal.splitUuids(record[6])), transaction);
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("Malformed signed transaction record " + record[0], e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
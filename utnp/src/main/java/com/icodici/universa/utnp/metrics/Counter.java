@@ -0,0 +1,42 @@
+package com.icodici.universa.utnp.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The monotonically growing count (of the requests, the retries, etc).
+ */
+public class Counter extends Metric {
+
+    @NonNull
+    private final LongAdder value = new LongAdder();
+
+    Counter(@NonNull String name, @NonNull String help) {
+        super(name, help);
+    }
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        assert amount >= 0 : amount;
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    @NonNull
+    String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(@NonNull StringBuilder out, @NonNull String labels) {
+        writeSample(out, name, labels, Long.toString(get()));
+    }
+}
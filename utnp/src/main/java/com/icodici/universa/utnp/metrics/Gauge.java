@@ -0,0 +1,45 @@
+package com.icodici.universa.utnp.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The current value which may go up and down (e.g. the number of the transactions in flight).
+ */
+public class Gauge extends Metric {
+
+    @NonNull
+    private final AtomicLong value = new AtomicLong();
+
+    Gauge(@NonNull String name, @NonNull String help) {
+        super(name, help);
+    }
+
+    public void set(long newValue) {
+        value.set(newValue);
+    }
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void dec() {
+        value.decrementAndGet();
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    @NonNull
+    String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(@NonNull StringBuilder out, @NonNull String labels) {
+        writeSample(out, name, labels, Long.toString(get()));
+    }
+}
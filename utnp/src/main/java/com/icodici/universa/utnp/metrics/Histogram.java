@@ -0,0 +1,101 @@
+package com.icodici.universa.utnp.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The distribution of the observed values (e.g. the latencies), by the fixed buckets.
+ */
+public class Histogram extends Metric {
+
+    /**
+     * The buckets for the network request durations, in seconds.
+     */
+    public static final double[] LATENCY_BUCKETS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    /**
+     * The buckets for the transaction confirmation times, in seconds.
+     */
+    public static final double[] CONFIRMATION_BUCKETS = {
+            5, 10, 15, 20, 30, 45, 60, 90, 120, 180, 300, 600, 1200, 1800, 3600};
+    /**
+     * The buckets for the ratios between 0 and 1.
+     */
+    public static final double[] RATIO_BUCKETS = {0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.85, 0.9, 0.95, 1};
+
+    @NonNull
+    private final double[] upperBounds;
+    /**
+     * The counts of the values in each bucket (not cumulative); the last one is for the values over all the bounds.
+     */
+    @NonNull
+    private final LongAdder[] bucketCounts;
+    @NonNull
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(@NonNull String name, @NonNull String help, @NonNull double[] upperBounds) {
+        super(name, help);
+        assert upperBounds != null;
+        assert upperBounds.length > 0;
+
+        this.upperBounds = upperBounds.clone();
+        Arrays.sort(this.upperBounds);
+        this.bucketCounts = new LongAdder[upperBounds.length + 1];
+        for (int i = 0; i < bucketCounts.length; i++) {
+            bucketCounts[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double value) {
+        int bucket = Arrays.binarySearch(upperBounds, value);
+        if (bucket < 0) {
+            bucket = -bucket - 1;
+        }
+        bucketCounts[bucket].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Observe the duration, in seconds.
+     *
+     * @param startedAtNanos the start of the duration, by {@link System#nanoTime()}.
+     */
+    public void observeSince(long startedAtNanos) {
+        observe((System.nanoTime() - startedAtNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public long getCount() {
+        long result = 0;
+        for (final LongAdder count : bucketCounts) {
+            result += count.sum();
+        }
+        return result;
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+
+    @Override
+    @NonNull
+    String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(@NonNull StringBuilder out, @NonNull String labels) {
+        final String separator = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            cumulative += bucketCounts[i].sum();
+            final String bound = (i < upperBounds.length) ? formatDouble(upperBounds[i]) : "+Inf";
+            writeSample(out, name + "_bucket", separator + "le=\"" + bound + "\"", Long.toString(cumulative));
+        }
+        writeSample(out, name + "_sum", labels, formatDouble(getSum()));
+        writeSample(out, name + "_count", labels, Long.toString(cumulative));
+    }
+}
@@ -0,0 +1,68 @@
+package com.icodici.universa.utnp.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * The family of metrics of the same kind, distinguished by the value of a single label
+ * (e.g. the request durations by the RPC method).
+ */
+public class LabeledMetric<T extends Metric> extends Metric {
+
+    @NonNull
+    private final String labelName;
+    @NonNull
+    private final String type;
+    @NonNull
+    private final Function<String, T> factory;
+    @NonNull
+    private final ConcurrentMap<String, T> children = new ConcurrentHashMap<>();
+
+    LabeledMetric(@NonNull String name,
+                  @NonNull String help,
+                  @NonNull String labelName,
+                  @NonNull String type,
+                  @NonNull Function<String, T> factory) {
+        super(name, help);
+        assert labelName != null;
+        assert type != null;
+        assert factory != null;
+
+        this.labelName = labelName;
+        this.type = type;
+        this.factory = factory;
+    }
+
+    /**
+     * The metric for the label value; created on the first use.
+     */
+    @NonNull
+    public T labels(@NonNull String labelValue) {
+        assert labelValue != null;
+        return children.computeIfAbsent(labelValue, factory);
+    }
+
+    @Override
+    @NonNull
+    String getType() {
+        return type;
+    }
+
+    @Override
+    void writeSamples(@NonNull StringBuilder out, @NonNull String labels) {
+        final String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (final Map.Entry<String, T> child : new TreeMap<>(children).entrySet()) {
+            child.getValue().writeSamples(out, prefix + labelName + "=\"" + escape(child.getKey()) + "\"");
+        }
+    }
+
+    @NonNull
+    private static String escape(@NonNull String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
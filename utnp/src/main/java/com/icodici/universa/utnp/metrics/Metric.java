@@ -0,0 +1,63 @@
+package com.icodici.universa.utnp.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * A single metric, exported in the Prometheus text format.
+ */
+public abstract class Metric {
+
+    @NonNull
+    final String name;
+    @NonNull
+    final String help;
+
+    Metric(@NonNull String name, @NonNull String help) {
+        assert name != null;
+        assert name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*") : name;
+        assert help != null;
+
+        this.name = name;
+        this.help = help;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The Prometheus metric type: <code>counter</code>, <code>gauge</code> or <code>histogram</code>.
+     */
+    @NonNull
+    abstract String getType();
+
+    /**
+     * Write the sample lines (without the <code>HELP</code>/<code>TYPE</code> header).
+     *
+     * @param labels the label pairs to add to every sample (e.g. <code>method="eth_call"</code>); empty if none.
+     */
+    abstract void writeSamples(@NonNull StringBuilder out, @NonNull String labels);
+
+    /**
+     * Write a single sample line.
+     */
+    static void writeSample(@NonNull StringBuilder out,
+                            @NonNull String name,
+                            @NonNull String labels,
+                            @NonNull String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    @NonNull
+    static String formatDouble(double value) {
+        if (Double.isInfinite(value)) {
+            return (value > 0) ? "+Inf" : "-Inf";
+        }
+        return (value == Math.rint(value) && Math.abs(value) < 1e15) ? Long.toString((long) value) : Double.toString(value);
+    }
+}
@@ -0,0 +1,103 @@
+package com.icodici.universa.utnp.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exporter of the metrics registry: serves it on the local HTTP endpoint (<code>/metrics</code>,
+ * for Prometheus to scrape), and/or dumps it periodically to the file.
+ */
+public class MetricsExporter implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(MetricsExporter.class);
+
+    public static final long DEFAULT_DUMP_INTERVAL_MS = 10000;
+
+    @NonNull
+    private final MetricsRegistry registry;
+    @Nullable
+    private final HttpServer server;
+    @Nullable
+    private final Path dumpPath;
+    @NonNull
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "metrics-exporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * Constructor; starts exporting at once.
+     *
+     * @param port     the port to serve the metrics on (on the loopback interface only); 0 not to serve them.
+     * @param dumpPath the file to dump the metrics to; <code>null</code> not to dump them.
+     * @throws IOException if the port cannot be listened on.
+     */
+    public MetricsExporter(@NonNull MetricsRegistry registry,
+                           int port,
+                           @Nullable Path dumpPath,
+                           long dumpIntervalMs) throws IOException {
+        assert registry != null;
+        assert port >= 0 && port <= 65535 : port;
+        assert dumpIntervalMs > 0 : dumpIntervalMs;
+
+        this.registry = registry;
+        this.dumpPath = dumpPath;
+
+        if (port == 0) {
+            server = null;
+        } else {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                final byte[] body = registry.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (final OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(scheduler);
+            server.start();
+        }
+        if (dumpPath != null) {
+            scheduler.scheduleWithFixedDelay(this::dumpQuietly, dumpIntervalMs, dumpIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop serving the metrics, and dump them for the last time.
+     */
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+        scheduler.shutdownNow();
+        dumpQuietly();
+    }
+
+    private void dumpQuietly() {
+        if (dumpPath != null) {
+            try {
+                registry.dump(dumpPath);
+            } catch (IOException e) {
+                logger.warn("Cannot dump the metrics to {}: {}", dumpPath, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.icodici.universa.utnp.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The registry of the metrics, which can be exported in the Prometheus text format.
+ * <p>
+ * The instrumented classes register their metrics in the {@link #getDefault() default registry},
+ * usually in the static fields (like the loggers). Registering the metric with the same name again
+ * returns the already registered one, so several classes can contribute to the same metric.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    /**
+     * The metrics by their names, in the order of registration.
+     */
+    @NonNull
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+
+    /**
+     * The registry used by all the instrumented classes.
+     */
+    @NonNull
+    public static MetricsRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    @NonNull
+    public Counter counter(@NonNull String name, @NonNull String help) {
+        return register(name, Counter.class, () -> new Counter(name, help));
+    }
+
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public LabeledMetric<Counter> counter(@NonNull String name, @NonNull String help, @NonNull String labelName) {
+        return register(name, LabeledMetric.class,
+                () -> new LabeledMetric<>(name, help, labelName, "counter", value -> new Counter(name, help)));
+    }
+
+    @NonNull
+    public Gauge gauge(@NonNull String name, @NonNull String help) {
+        return register(name, Gauge.class, () -> new Gauge(name, help));
+    }
+
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public LabeledMetric<Gauge> gauge(@NonNull String name, @NonNull String help, @NonNull String labelName) {
+        return register(name, LabeledMetric.class,
+                () -> new LabeledMetric<>(name, help, labelName, "gauge", value -> new Gauge(name, help)));
+    }
+
+    @NonNull
+    public Histogram histogram(@NonNull String name, @NonNull String help, @NonNull double[] upperBounds) {
+        return register(name, Histogram.class, () -> new Histogram(name, help, upperBounds));
+    }
+
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public LabeledMetric<Histogram> histogram(@NonNull String name,
+                                              @NonNull String help,
+                                              @NonNull double[] upperBounds,
+                                              @NonNull String labelName) {
+        return register(name, LabeledMetric.class,
+                () -> new LabeledMetric<>(name, help, labelName, "histogram", value -> new Histogram(name, help, upperBounds)));
+    }
+
+    /**
+     * All the metrics in the Prometheus text exposition format.
+     */
+    @NonNull
+    public String toPrometheusText() {
+        final Metric[] snapshot;
+        synchronized (metrics) {
+            snapshot = metrics.values().toArray(new Metric[0]);
+        }
+        final StringBuilder out = new StringBuilder(4096);
+        for (final Metric metric : snapshot) {
+            out.append("# HELP ").append(metric.name).append(' ')
+                    .append(metric.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.getType()).append('\n');
+            metric.writeSamples(out, "");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write all the metrics to the file (atomically replacing it), in the Prometheus text format.
+     */
+    public void dump(@NonNull Path path) throws IOException {
+        assert path != null;
+
+        final Path tempPath = Paths.get(path.toString() + ".tmp");
+        Files.write(tempPath, toPrometheusText().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @NonNull
+    private <T extends Metric> T register(@NonNull String name, @NonNull Class<T> type, @NonNull Supplier<T> factory) {
+        assert name != null;
+
+        synchronized (metrics) {
+            final Metric existing = metrics.get(name);
+            if (existing == null) {
+                final T created = factory.get();
+                metrics.put(name, created);
+                return created;
+            }
+            if (!type.isInstance(existing)) {
+                throw new IllegalArgumentException(String.format(
+                        "Metric %s is already registered as %s", name, existing.getType()));
+            }
+            return type.cast(existing);
+        }
+    }
+}
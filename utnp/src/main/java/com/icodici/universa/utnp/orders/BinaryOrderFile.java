@@ -0,0 +1,317 @@
+package com.icodici.universa.utnp.orders;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.utils.Numeric;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * The binary orders file, converted once from the JSON or CSV one by the <code>import</code> mode
+ * of <code>BulkSendCLI</code>: the orders are fixed-width records, so the reader maps the file into the memory,
+ * and skips any number of orders by moving the pointer.
+ * <p>
+ * The file starts with the 64-byte header (all the numbers are big-endian):
+ * <ul>
+ * <li>the signature {@link #MAGIC} (8 bytes);</li>
+ * <li>the width of the uuid field of the records (int), and the decimals of the amounts (int);</li>
+ * <li>the number of orders (long), and their total amount, in the minimal units (uint256, 32 bytes);</li>
+ * <li>the CRC32C of all the records (int), and the CRC32C of the previous header bytes (int).</li>
+ * </ul>
+ * Then the records follow, one per order: the length of the uuid (1 byte), the uuid in UTF-8 (padded with zeros
+ * to the width), the address (20 bytes) and the amount in the minimal units (uint256, 32 bytes).
+ * <p>
+ * Unlike the other formats, the orders read back are normalized: the addresses are lowercase
+ * (the EIP-55 checksums are verified by the import), and the amounts have exactly the given decimals.
+ */
+public class BinaryOrderFile {
+
+    /**
+     * The signature of the file (the last byte is the version).
+     */
+    static final byte[] MAGIC = "UTNPORD1".getBytes(StandardCharsets.US_ASCII);
+
+    static final int HEADER_SIZE = 64;
+    static final int ADDRESS_SIZE = 20;
+    static final int AMOUNT_SIZE = 32;
+    /**
+     * The longest uuid supported, in UTF-8 bytes.
+     */
+    public static final int MAX_UUID_WIDTH = 255;
+
+    private BinaryOrderFile() {
+    }
+
+    private static int getRecordSize(int uuidWidth) {
+        return 1 + uuidWidth + ADDRESS_SIZE + AMOUNT_SIZE;
+    }
+
+    /**
+     * Writer of the new file; the orders must be valid (see {@link OrderValidator}).
+     */
+    public static class Writer implements Closeable {
+        @NonNull
+        private final FileChannel channel;
+        @NonNull
+        private final OutputStream out;
+        private final int uuidWidth;
+        private final int decimals;
+        @NonNull
+        private final byte[] record;
+        @NonNull
+        private final CRC32C checksum = new CRC32C();
+
+        private long count = 0;
+        @NonNull
+        private BigInteger total = BigInteger.ZERO;
+
+        /**
+         * Create the file; the existing file is never overwritten (it may be referred to by the journals).
+         *
+         * @param uuidWidth the width of the uuid field, in UTF-8 bytes; all the uuids must fit it.
+         * @param decimals  the decimals of the token; the amounts must not have more digits after the decimal point.
+         * @throws IOException if the file exists or cannot be created.
+         */
+        public Writer(@NonNull Path path, int uuidWidth, int decimals) throws IOException {
+            assert path != null;
+            assert uuidWidth > 0 && uuidWidth <= MAX_UUID_WIDTH : uuidWidth;
+            assert decimals >= 0 : decimals;
+
+            this.uuidWidth = uuidWidth;
+            this.decimals = decimals;
+            this.record = new byte[getRecordSize(uuidWidth)];
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                throw new IOException("The file already exists: " + path);
+            }
+            // The header is written on close, once the count, the total and the checksum are known
+            channel.position(HEADER_SIZE);
+            out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        }
+
+        /**
+         * Append the next order.
+         *
+         * @throws IOException if the order doesn’t fit the record, or cannot be written.
+         */
+        public void write(@NonNull Order order) throws IOException {
+            assert order != null;
+            assert order.index == count : order;
+
+            final byte[] uuid = order.uuid.getBytes(StandardCharsets.UTF_8);
+            if (uuid.length > uuidWidth) {
+                throw new IOException(String.format("Order #%s has uuid longer than %s bytes", order.index, uuidWidth));
+            }
+            if (!EthereumUtils.isHexAddress(order.address)) {
+                throw new IOException(String.format("Order #%s has invalid address \"%s\"", order.index, order.address));
+            }
+            final BigInteger units;
+            try {
+                units = order.amount.movePointRight(decimals).toBigIntegerExact();
+            } catch (ArithmeticException e) {
+                throw new IOException(String.format("Order #%s has more than %s decimal digits", order.index, decimals));
+            }
+            if (units.signum() <= 0 || units.bitLength() > OrderValidator.UINT256_BITS) {
+                throw new IOException(String.format("Order #%s has amount out of uint256", order.index));
+            }
+
+            Arrays.fill(record, (byte) 0);
+            record[0] = (byte) uuid.length;
+            System.arraycopy(uuid, 0, record, 1, uuid.length);
+            System.arraycopy(Numeric.hexStringToByteArray(order.address), 0, record, 1 + uuidWidth, ADDRESS_SIZE);
+            putUint256(units, record, 1 + uuidWidth + ADDRESS_SIZE);
+            checksum.update(record);
+            out.write(record);
+
+            count++;
+            total = total.add(units);
+        }
+
+        /**
+         * Write the header, and force the file to the disk.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+                if (total.bitLength() > OrderValidator.UINT256_BITS) {
+                    throw new IOException("The total amount of the orders is out of uint256");
+                }
+                final byte[] header = new byte[HEADER_SIZE];
+                final ByteBuffer buffer = ByteBuffer.wrap(header);
+                buffer.put(MAGIC).putInt(uuidWidth).putInt(decimals).putLong(count);
+                putUint256(total, header, buffer.position());
+                buffer.position(buffer.position() + AMOUNT_SIZE);
+                buffer.putInt((int) checksum.getValue());
+                final CRC32C headerChecksum = new CRC32C();
+                headerChecksum.update(header, 0, buffer.position());
+                buffer.putInt((int) headerChecksum.getValue());
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, buffer.position());
+                }
+                channel.force(false);
+            } finally {
+                out.close();
+            }
+        }
+
+        private static void putUint256(@NonNull BigInteger value, @NonNull byte[] dest, int offset) {
+            final byte[] bytes = value.toByteArray();
+            // toByteArray() may have the leading zero byte for the sign
+            final int length = Math.min(bytes.length, AMOUNT_SIZE);
+            System.arraycopy(bytes, bytes.length - length, dest, offset + AMOUNT_SIZE - length, length);
+        }
+    }
+
+    /**
+     * Reader of the file, mapped into the memory (by the windows of up to 2 GB, the limit of a single mapping).
+     * The checksums are verified on open.
+     */
+    public static class Reader implements OrderReader {
+        @NonNull
+        private final FileChannel channel;
+        private final int uuidWidth;
+        private final int decimals;
+        private final long count;
+        @NonNull
+        private final BigInteger total;
+        private final int recordSize;
+        private final long recordsPerWindow;
+        @NonNull
+        private final MappedByteBuffer[] windows;
+        @NonNull
+        private final byte[] record;
+
+        /**
+         * Index of the order to be returned by the next {@link #readNext()} call.
+         */
+        private long nextIndex = 0;
+
+        /**
+         * Open the file, verify it and map it into the memory.
+         *
+         * @throws IOException if the file cannot be read, is not a binary orders file, or is corrupted.
+         */
+        public Reader(@NonNull Path path) throws IOException {
+            assert path != null;
+
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                int read = 0;
+                while (header.hasRemaining() && read >= 0) {
+                    read = channel.read(header, header.position());
+                }
+                if (header.hasRemaining()
+                        || !Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                    throw new IOException("Not a binary orders file: " + path);
+                }
+                final CRC32C headerChecksum = new CRC32C();
+                headerChecksum.update(header.array(), 0, HEADER_SIZE - 4);
+                if (header.getInt(HEADER_SIZE - 4) != (int) headerChecksum.getValue()) {
+                    throw new IOException("Corrupted header of the binary orders file " + path);
+                }
+                header.position(MAGIC.length);
+                uuidWidth = header.getInt();
+                decimals = header.getInt();
+                count = header.getLong();
+                final byte[] totalBytes = new byte[AMOUNT_SIZE];
+                header.get(totalBytes);
+                total = new BigInteger(1, totalBytes);
+                final int recordsChecksum = header.getInt();
+                if (uuidWidth <= 0 || uuidWidth > MAX_UUID_WIDTH || decimals < 0 || count < 0) {
+                    throw new IOException("Malformed header of the binary orders file " + path);
+                }
+
+                recordSize = getRecordSize(uuidWidth);
+                if (channel.size() != HEADER_SIZE + count * recordSize) {
+                    throw new IOException(String.format("The binary orders file %s must contain %s orders (truncated?)", path, count));
+                }
+                record = new byte[recordSize];
+                recordsPerWindow = Integer.MAX_VALUE / recordSize;
+                windows = new MappedByteBuffer[(int) ((count + recordsPerWindow - 1) / recordsPerWindow)];
+                final CRC32C checksum = new CRC32C();
+                for (int i = 0; i < windows.length; i++) {
+                    final long first = i * recordsPerWindow;
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            HEADER_SIZE + first * recordSize, Math.min(recordsPerWindow, count - first) * recordSize);
+                    checksum.update(windows[i].duplicate());
+                }
+                if (recordsChecksum != (int) checksum.getValue()) {
+                    throw new IOException("Corrupted orders in the binary orders file " + path);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * The number of orders in the file.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The total amount of the orders in the file.
+         */
+        @NonNull
+        public BigDecimal getTotal() {
+            return new BigDecimal(total, decimals);
+        }
+
+        @Override
+        public long getNextIndex() {
+            return nextIndex;
+        }
+
+        @Override
+        @Nullable
+        public Order readNext() {
+            if (nextIndex >= count) {
+                return null;
+            }
+            final MappedByteBuffer window = windows[(int) (nextIndex / recordsPerWindow)];
+            window.get((int) (nextIndex % recordsPerWindow) * recordSize, record);
+
+            final String uuid = new String(record, 1, record[0] & 0xFF, StandardCharsets.UTF_8);
+            final String address = Numeric.toHexString(record, 1 + uuidWidth, ADDRESS_SIZE, true);
+            final BigInteger units = new BigInteger(1, Arrays.copyOfRange(record, 1 + uuidWidth + ADDRESS_SIZE, recordSize));
+            return new Order(nextIndex++, uuid, address, new BigDecimal(units, decimals));
+        }
+
+        @Override
+        public long skip(long count) {
+            assert count >= 0 : count;
+
+            final long skipped = Math.min(count, this.count - nextIndex);
+            nextIndex += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The mapping itself is released once the buffers are collected
+            channel.close();
+        }
+    }
+}
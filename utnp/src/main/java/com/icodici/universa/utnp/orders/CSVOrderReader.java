@@ -0,0 +1,222 @@
+package com.icodici.universa.utnp.orders;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming reader of the CSV orders file (as exported from the spreadsheets).
+ * <p>
+ * The first line is the header naming the columns: <code>uuid</code>, <code>utnp_address</code>
+ * (or <code>address</code>) and <code>utnp_amount</code> (or <code>amount</code>), case-insensitive, in any order;
+ * the other columns are ignored. The separator (comma, semicolon or tab) is the one found in the header.
+ * The fields may be quoted (with <code>""</code> for the quote itself), but must not span several lines;
+ * the empty lines are ignored. If the separator is not a comma, the amounts may have the decimal comma.
+ */
+public class CSVOrderReader implements OrderReader {
+
+    private static final char[] SEPARATORS = {',', ';', '\t'};
+
+    @NonNull
+    private final BufferedReader reader;
+    private final char separator;
+    private final int uuidColumn, addressColumn, amountColumn;
+
+    /**
+     * Index of the order to be returned by the next {@link #readNext()} call.
+     */
+    private long nextIndex = 0;
+    /**
+     * Number of the last line read (1-based), for the error messages.
+     */
+    private long lineNumber = 0;
+
+
+    /**
+     * Open the file and read its header.
+     *
+     * @throws IOException if the file cannot be read or its header lacks the required columns.
+     */
+    public CSVOrderReader(@NonNull Path path) throws IOException {
+        assert path != null;
+
+        reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        try {
+            String header = nextLine();
+            if (header == null) {
+                throw new IOException("No CSV header found");
+            }
+            // Strip the byte order mark, if the spreadsheet has written any
+            if (header.startsWith("\uFEFF")) {
+                header = header.substring(1);
+            }
+            separator = detectSeparator(header);
+
+            int uuid = -1, address = -1, amount = -1;
+            final List<String> columns = split(header);
+            for (int i = 0; i < columns.size(); i++) {
+                switch (columns.get(i).trim().toLowerCase(Locale.ROOT)) {
+                    case "uuid":
+                        uuid = i;
+                        break;
+                    case "utnp_address":
+                    case "address":
+                        address = i;
+                        break;
+                    case "utnp_amount":
+                    case "amount":
+                        amount = i;
+                        break;
+                    default:
+                        // Ignored
+                }
+            }
+            if (uuid < 0 || address < 0 || amount < 0) {
+                throw new IOException("CSV header must contain \"uuid\", \"utnp_address\" and \"utnp_amount\" columns");
+            }
+            uuidColumn = uuid;
+            addressColumn = address;
+            amountColumn = amount;
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long getNextIndex() {
+        return nextIndex;
+    }
+
+    @Override
+    @Nullable
+    public Order readNext() throws IOException {
+        final String line = nextLine();
+        if (line == null) {
+            return null;
+        }
+
+        final List<String> fields = split(line);
+        final int requiredFields = Math.max(uuidColumn, Math.max(addressColumn, amountColumn)) + 1;
+        if (fields.size() < requiredFields) {
+            throw new IOException(String.format("Order #%s (line %s) must contain %s fields", nextIndex, lineNumber, requiredFields));
+        }
+        final String uuid = fields.get(uuidColumn).trim(), address = fields.get(addressColumn).trim();
+        String amountStr = fields.get(amountColumn).trim();
+        if (separator != ',' && amountStr.indexOf(',') >= 0 && amountStr.indexOf('.') < 0) {
+            amountStr = amountStr.replace(',', '.');
+        }
+        final BigDecimal amount;
+        try {
+            amount = new BigDecimal(amountStr);
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Order #%s (line %s) has invalid amount \"%s\"", nextIndex, lineNumber, amountStr));
+        }
+        return new Order(nextIndex++, uuid, address, amount);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        assert count >= 0 : count;
+
+        long skipped = 0;
+        while (skipped < count && nextLine() != null) {
+            nextIndex++;
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Read the next non-empty line.
+     *
+     * @return <code>null</code> at the end of file.
+     */
+    @Nullable
+    private String nextLine() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            lineNumber++;
+        } while (line != null && line.trim().isEmpty());
+        return line;
+    }
+
+    /**
+     * The separator occurring in the header the most times (outside the quotes).
+     */
+    private static char detectSeparator(@NonNull String header) {
+        final int[] counts = new int[SEPARATORS.length];
+        boolean quoted = false;
+        for (int i = 0; i < header.length(); i++) {
+            final char c = header.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                for (int s = 0; s < SEPARATORS.length; s++) {
+                    if (c == SEPARATORS[s]) {
+                        counts[s]++;
+                    }
+                }
+            }
+        }
+        int best = 0;
+        for (int s = 1; s < SEPARATORS.length; s++) {
+            if (counts[s] > counts[best]) {
+                best = s;
+            }
+        }
+        return SEPARATORS[best];
+    }
+
+    /**
+     * Split the line into the fields, unquoting them.
+     *
+     * @throws IOException if the line ends inside a quoted field.
+     */
+    @NonNull
+    private List<String> split(@NonNull String line) throws IOException {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == separator) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IOException(String.format("Unterminated quoted field at line %s", lineNumber));
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,161 @@
+package com.icodici.universa.utnp.orders;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+
+/**
+ * Streaming reader of the JSON orders file.
+ * <p>
+ * The file is expected to be a JSON object with the <code>orders</code> array of objects,
+ * each having <code>uuid</code>, <code>utnp_address</code> and <code>utnp_amount</code> fields.
+ * The orders are parsed token by token, one at a time; so the memory usage doesn't depend on the file size.
+ */
+public class JSONOrderReader implements OrderReader {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    @NonNull
+    private final JsonParser parser;
+
+    /**
+     * Index of the order to be returned by the next {@link #readNext()} call.
+     */
+    private long nextIndex = 0;
+    private boolean finished = false;
+
+
+    /**
+     * Open the file and position the reader at the start of the <code>orders</code> array.
+     *
+     * @throws IOException if the file cannot be read or doesn’t contain the <code>orders</code> array.
+     */
+    public JSONOrderReader(@NonNull Path path) throws IOException {
+        assert path != null;
+
+        parser = jsonFactory.createParser(path.toFile());
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("JSON object expected at the top level");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                final JsonToken valueToken = parser.nextToken();
+                if ("orders".equals(fieldName)) {
+                    if (valueToken != JsonToken.START_ARRAY) {
+                        throw new IOException("\"orders\" must be an array");
+                    }
+                    return;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            throw new IOException("No \"orders\" array found");
+        } catch (IOException e) {
+            parser.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long getNextIndex() {
+        return nextIndex;
+    }
+
+    @Override
+    @Nullable
+    public Order readNext() throws IOException {
+        if (!advanceToNextOrder()) {
+            return null;
+        }
+
+        String uuid = null, address = null;
+        BigDecimal amount = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            final JsonToken valueToken = parser.nextToken();
+            switch (fieldName) {
+                case "uuid":
+                    uuid = parser.getValueAsString();
+                    break;
+                case "utnp_address":
+                    address = parser.getValueAsString();
+                    break;
+                case "utnp_amount":
+                    amount = readDecimal(valueToken);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        if (uuid == null || address == null || amount == null) {
+            throw new IOException(String.format(
+                    "Order #%s must contain \"uuid\", \"utnp_address\" and \"utnp_amount\" fields", nextIndex));
+        }
+        return new Order(nextIndex++, uuid, address, amount);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        assert count >= 0 : count;
+
+        long skipped = 0;
+        while (skipped < count && advanceToNextOrder()) {
+            parser.skipChildren();
+            nextIndex++;
+            skipped++;
+        }
+        return skipped;
+    }
+
+    /**
+     * Move the parser to the <code>START_OBJECT</code> token of the next order.
+     *
+     * @return <code>false</code> if the <code>orders</code> array is over.
+     */
+    private boolean advanceToNextOrder() throws IOException {
+        if (finished) {
+            return false;
+        }
+        final JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            finished = true;
+            return false;
+        } else if (token != JsonToken.START_OBJECT) {
+            throw new IOException(String.format("Order #%s must be a JSON object", nextIndex));
+        } else {
+            return true;
+        }
+    }
+
+    @Nullable
+    private BigDecimal readDecimal(@NonNull JsonToken valueToken) throws IOException {
+        switch (valueToken) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                // Use the textual representation, so no precision is lost on the way through double.
+                return new BigDecimal(parser.getText());
+            case VALUE_STRING:
+                try {
+                    return new BigDecimal(parser.getText().trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("Order #%s has invalid amount \"%s\"", nextIndex, parser.getText()));
+                }
+            default:
+                parser.skipChildren();
+                return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
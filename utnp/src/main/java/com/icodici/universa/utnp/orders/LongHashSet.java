@@ -0,0 +1,110 @@
+package com.icodici.universa.utnp.orders;
+
+/**
+ * Minimal open-addressing hash set of primitive <code>long</code> values.
+ * <p>
+ * Takes ~16 bytes per element (at the worst load factor), without any per-element objects;
+ * used to track the already-seen address fingerprints while streaming through large order files.
+ */
+public class LongHashSet {
+
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+
+    /**
+     * The slots; 0 marks an empty slot, so the 0 value itself is tracked separately.
+     */
+    private long[] slots;
+    private int size = 0;
+    private boolean containsZero = false;
+
+
+    public LongHashSet(int expectedSize) {
+        assert expectedSize >= 0 : expectedSize;
+
+        int capacity = 16;
+        while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        slots = new long[capacity];
+    }
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public int size() {
+        return size + (containsZero ? 1 : 0);
+    }
+
+    /**
+     * Add the value to the set.
+     *
+     * @return <code>true</code> if the value has been added; <code>false</code> if it was already present.
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            final boolean added = !containsZero;
+            containsZero = true;
+            return added;
+        }
+        if (size + 1 > slots.length * MAX_LOAD_FACTOR) {
+            rehash(slots.length << 1);
+        }
+        final boolean added = insert(slots, value);
+        if (added) {
+            size++;
+        }
+        return added;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        final int mask = slots.length - 1;
+        for (int i = mix(value) & mask; ; i = (i + 1) & mask) {
+            final long slot = slots[i];
+            if (slot == 0) {
+                return false;
+            } else if (slot == value) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean insert(long[] table, long value) {
+        final int mask = table.length - 1;
+        for (int i = mix(value) & mask; ; i = (i + 1) & mask) {
+            final long slot = table[i];
+            if (slot == 0) {
+                table[i] = value;
+                return true;
+            } else if (slot == value) {
+                return false;
+            }
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        final long[] newSlots = new long[newCapacity];
+        for (final long slot : slots) {
+            if (slot != 0) {
+                insert(newSlots, slot);
+            }
+        }
+        slots = newSlots;
+    }
+
+    /**
+     * Spread the bits of the value (the finalizer of MurmurHash3).
+     */
+    private static int mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,44 @@
+package com.icodici.universa.utnp.orders;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.math.BigDecimal;
+
+/**
+ * A single payout order, as read from the input file.
+ * <p>
+ * The fields are stored exactly as they appear in the input (no normalization or validation).
+ */
+public class Order {
+
+    /**
+     * Zero-based position of the order in the input file.
+     */
+    public final long index;
+
+    @NonNull
+    public final String uuid;
+
+    @NonNull
+    public final String address;
+
+    @NonNull
+    public final BigDecimal amount;
+
+
+    public Order(long index, @NonNull String uuid, @NonNull String address, @NonNull BigDecimal amount) {
+        assert index >= 0 : index;
+        assert uuid != null;
+        assert address != null;
+        assert amount != null;
+
+        this.index = index;
+        this.uuid = uuid;
+        this.address = address;
+        this.amount = amount;
+    }
+
+    public String toString() {
+        return String.format("Order(index=%s, uuid=%s, address=%s, amount=%s)", index, uuid, address, amount);
+    }
+}
@@ -0,0 +1,64 @@
+package com.icodici.universa.utnp.orders;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Streaming reader of the orders file, whatever its format.
+ */
+public interface OrderReader extends Closeable {
+
+    /**
+     * Open the orders file of any supported format: the binary one (see {@link BinaryOrderFile}) is recognized
+     * by its signature, the CSV one (see {@link CSVOrderReader}) by the <code>.csv</code> extension;
+     * otherwise the file is read as JSON (see {@link JSONOrderReader}).
+     *
+     * @throws IOException if the file cannot be read, or is malformed.
+     */
+    @NonNull
+    static OrderReader open(@NonNull Path path) throws IOException {
+        assert path != null;
+
+        final byte[] signature = new byte[BinaryOrderFile.MAGIC.length];
+        try (final InputStream in = Files.newInputStream(path)) {
+            if (in.readNBytes(signature, 0, signature.length) == signature.length
+                    && Arrays.equals(signature, BinaryOrderFile.MAGIC)) {
+                return new BinaryOrderFile.Reader(path);
+            }
+        }
+        if (path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            return new CSVOrderReader(path);
+        }
+        return new JSONOrderReader(path);
+    }
+
+    /**
+     * Index of the order to be returned by the next {@link #readNext()} call;
+     * equal to the number of orders read or skipped so far.
+     */
+    long getNextIndex();
+
+    /**
+     * Read the next order.
+     *
+     * @return <code>null</code> if there are no more orders in the file.
+     * @throws IOException if the order is malformed or the file cannot be read.
+     */
+    @Nullable
+    Order readNext() throws IOException;
+
+    /**
+     * Skip (up to) <code>count</code> orders without parsing their contents.
+     *
+     * @return how many orders have been actually skipped (may be less than requested, if the file is over).
+     */
+    long skip(long count) throws IOException;
+}
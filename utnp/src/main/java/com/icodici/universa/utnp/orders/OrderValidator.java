@@ -0,0 +1,279 @@
+package com.icodici.universa.utnp.orders;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.journal.PaymentIndex;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Validator of the orders stream.
+ * <p>
+ * The orders are read sequentially, but validated in chunks, in parallel on the {@link ForkJoinPool#commonPool()};
+ * the per-chunk results are merged in order (the duplicate uuids and addresses are detected during the merge).
+ * The validation doesn’t stop on the first invalid order: all the problems are collected into the {@link Report}.
+ * <p>
+ * If the {@link PaymentIndex} is given, the orders already paid (by uuid) are invalid, and the repeated payments
+ * (the same amount to the same address, by another order) are suspicious.
+ */
+public class OrderValidator {
+
+    /**
+     * How many orders are validated by a single task.
+     */
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Size of <code>uint256</code>, in bits.
+     */
+    static final int UINT256_BITS = 256;
+    /**
+     * Any integer with so many decimal digits surely fits <code>uint256</code>.
+     */
+    static final int UINT256_MAX_SAFE_DIGITS = 77;
+
+    private static final String ZERO_ADDRESS = "0x0000000000000000000000000000000000000000";
+
+    /**
+     * A problem found in some order.
+     */
+    public static class Problem {
+        public final long orderIndex;
+        @NonNull
+        public final String uuid;
+        @NonNull
+        public final String message;
+
+        Problem(@NonNull Order order, @NonNull String message) {
+            this.orderIndex = order.index;
+            this.uuid = order.uuid;
+            this.message = message;
+        }
+
+        public String toString() {
+            return String.format("order #%s (%s): %s", orderIndex, uuid, message);
+        }
+    }
+
+    /**
+     * The result of the validation.
+     */
+    public static class Report {
+        /**
+         * How many orders have been validated.
+         */
+        public long count = 0;
+        /**
+         * The total amount of the valid orders.
+         */
+        @NonNull
+        public BigDecimal total = BigDecimal.ZERO;
+        /**
+         * The length of the longest uuid, in UTF-8 bytes.
+         */
+        public int maxUuidLength = 0;
+        /**
+         * The orders which cannot be sent.
+         */
+        @NonNull
+        public final List<Problem> errors = new ArrayList<>();
+        /**
+         * The orders which look suspicious (e.g. the duplicate addresses), but can be sent.
+         */
+        @NonNull
+        public final List<Problem> warnings = new ArrayList<>();
+
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+    }
+
+    private static class ChunkResult {
+        @NonNull
+        final List<Order> orders;
+        @NonNull
+        final List<Problem> errors = new ArrayList<>();
+        @NonNull
+        final List<Problem> warnings = new ArrayList<>();
+        /**
+         * The address fingerprints of the orders, in the same order; 0 for the orders with invalid addresses
+         * (the zero fingerprint of a valid address is practically impossible, so it is not checked for duplicates).
+         */
+        @NonNull
+        final long[] fingerprints;
+        /**
+         * The {@link PaymentIndex#uuidKey keys} of the uuids of the orders, in the same order.
+         */
+        @NonNull
+        final long[] uuidKeys;
+        @NonNull
+        BigDecimal total = BigDecimal.ZERO;
+        int maxUuidLength = 0;
+
+        ChunkResult(@NonNull List<Order> orders) {
+            this.orders = orders;
+            this.fingerprints = new long[orders.size()];
+            this.uuidKeys = new long[orders.size()];
+        }
+    }
+
+    private final int decimals;
+    @Nullable
+    private final PaymentIndex paidOrders;
+
+
+    /**
+     * @param decimals the decimals of the token; the amounts must not have more digits after the decimal point.
+     */
+    public OrderValidator(int decimals) {
+        this(decimals, null);
+    }
+
+    /**
+     * @param decimals   the decimals of the token; the amounts must not have more digits after the decimal point.
+     * @param paidOrders the index of the orders paid before; nothing must be recorded to it during the validation.
+     */
+    public OrderValidator(int decimals, @Nullable PaymentIndex paidOrders) {
+        assert decimals >= 0 : decimals;
+
+        this.decimals = decimals;
+        this.paidOrders = paidOrders;
+    }
+
+    /**
+     * Validate the orders from the reader.
+     *
+     * @param maxCount the maximum number of orders to read and validate.
+     * @throws IOException if the orders cannot be read (e.g. the JSON structure is broken).
+     */
+    @NonNull
+    public Report validate(@NonNull OrderReader reader, long maxCount) throws IOException {
+        assert reader != null;
+        assert maxCount >= 0 : maxCount;
+
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        // Limit the read-ahead, so the memory usage doesn’t depend on the number of orders.
+        final int maxChunksInFlight = pool.getParallelism() * 2;
+        final ArrayDeque<ForkJoinTask<ChunkResult>> inFlight = new ArrayDeque<>();
+
+        final Report report = new Report();
+        final LongHashSet seenFingerprints = new LongHashSet();
+        final LongHashSet seenUuids = new LongHashSet();
+
+        long remaining = maxCount;
+        List<Order> chunk = new ArrayList<>(CHUNK_SIZE);
+        Order order;
+        while (remaining > 0 && (order = reader.readNext()) != null) {
+            remaining--;
+            chunk.add(order);
+            if (chunk.size() == CHUNK_SIZE) {
+                if (inFlight.size() >= maxChunksInFlight) {
+                    merge(inFlight.removeFirst().join(), report, seenFingerprints, seenUuids);
+                }
+                final List<Order> toValidate = chunk;
+                inFlight.addLast(pool.submit(() -> validateChunk(toValidate)));
+                chunk = new ArrayList<>(CHUNK_SIZE);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            final List<Order> toValidate = chunk;
+            inFlight.addLast(pool.submit(() -> validateChunk(toValidate)));
+        }
+        while (!inFlight.isEmpty()) {
+            merge(inFlight.removeFirst().join(), report, seenFingerprints, seenUuids);
+        }
+        return report;
+    }
+
+    /**
+     * Validate a single order; the address fingerprint is stored to the result.
+     *
+     * @return the error message; <code>null</code> if the order is valid.
+     */
+    @Nullable
+    private String validateOrder(@NonNull Order order, @NonNull ChunkResult result, int position) {
+        if (!EthereumUtils.isHexAddress(order.address)) {
+            return String.format("address \"%s\" is invalid", order.address);
+        }
+        if (!EthereumUtils.hasValidChecksum(order.address)) {
+            return String.format("address \"%s\" has invalid EIP-55 checksum (mistyped?)", order.address);
+        }
+        final long fingerprint = EthereumUtils.addressFingerprint(order.address);
+        if (fingerprint == 0 && order.address.equals(ZERO_ADDRESS)) {
+            return "zero address; the tokens would be lost";
+        }
+        result.fingerprints[position] = fingerprint;
+
+        final BigDecimal amount = order.amount;
+        if (amount.signum() <= 0) {
+            return String.format("amount %s must be positive", amount.toPlainString());
+        }
+        if (amount.scale() > decimals && amount.stripTrailingZeros().scale() > decimals) {
+            return String.format("amount %s has more than %s decimal digits", amount.toPlainString(), decimals);
+        }
+        // Any number with up to 77 integer digits fits uint256 (2^256 ≈ 1.16 * 10^77); check exactly only the longer ones.
+        if (amount.precision() - amount.scale() + decimals > UINT256_MAX_SAFE_DIGITS
+                && amount.movePointRight(decimals).toBigInteger().bitLength() > UINT256_BITS) {
+            return String.format("amount %s doesn’t fit uint256", amount.toPlainString());
+        }
+        if (paidOrders != null && paidOrders.containsOrder(order.uuid)) {
+            return "already paid (found in the payment index)";
+        }
+        return null;
+    }
+
+    @NonNull
+    private ChunkResult validateChunk(@NonNull List<Order> orders) {
+        final ChunkResult result = new ChunkResult(orders);
+        for (int i = 0; i < orders.size(); i++) {
+            final Order order = orders.get(i);
+            result.maxUuidLength = Math.max(result.maxUuidLength, order.uuid.getBytes(StandardCharsets.UTF_8).length);
+            result.uuidKeys[i] = PaymentIndex.uuidKey(order.uuid);
+            final String error = validateOrder(order, result, i);
+            if (error == null) {
+                result.total = result.total.add(order.amount);
+                if (paidOrders != null && paidOrders.containsPayment(order.address, order.amount)) {
+                    result.warnings.add(new Problem(order, String.format(
+                            "%s to %s has already been paid by another order", order.amount.toPlainString(), order.address)));
+                }
+            } else {
+                result.errors.add(new Problem(order, error));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merge the chunk result into the report; must be called for the chunks in order.
+     */
+    private static void merge(@NonNull ChunkResult chunk,
+                              @NonNull Report report,
+                              @NonNull LongHashSet seenFingerprints,
+                              @NonNull LongHashSet seenUuids) {
+        report.count += chunk.orders.size();
+        report.total = report.total.add(chunk.total);
+        report.maxUuidLength = Math.max(report.maxUuidLength, chunk.maxUuidLength);
+        report.errors.addAll(chunk.errors);
+        report.warnings.addAll(chunk.warnings);
+        for (int i = 0; i < chunk.uuidKeys.length; i++) {
+            if (!seenUuids.add(chunk.uuidKeys[i])) {
+                report.errors.add(new Problem(chunk.orders.get(i), "duplicate uuid; the order would be paid twice"));
+            }
+        }
+        for (int i = 0; i < chunk.fingerprints.length; i++) {
+            final long fingerprint = chunk.fingerprints[i];
+            if (fingerprint != 0 && !seenFingerprints.add(fingerprint)) {
+                final Order order = chunk.orders.get(i);
+                report.warnings.add(new Problem(order, String.format("duplicate address %s", order.address)));
+            }
+        }
+    }
+}
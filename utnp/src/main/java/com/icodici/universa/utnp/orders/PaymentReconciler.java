@@ -0,0 +1,287 @@
+package com.icodici.universa.utnp.orders;
+
+import com.icodici.universa.utnp.connectors.TransferLogScanner.Transfer;
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Matches the orders to the token transfers actually found on the chain, to tell which orders
+ * have been paid exactly once, and which are unpaid, underpaid or paid twice.
+ * <p>
+ * Every transfer pays at most one order of the same address: the one with exactly the same amount,
+ * preferring the order planned to the very transaction of the transfer (by the journal, if it is given),
+ * then the earliest one not paid yet (as soon as the transfer is added). The transfers left over
+ * are the second payments of the orders with the same amount, or the partial payments of the orders
+ * still unpaid; any others are unexpected (e.g. paid by some other run from the same BulkSender).
+ * Not thread-safe.
+ */
+public class PaymentReconciler {
+
+    public enum Status {
+        PAID("paid"),
+        UNPAID("unpaid"),
+        UNDERPAID("underpaid"),
+        /**
+         * Either paid twice, or (by the partial payments) overpaid.
+         */
+        PAID_TWICE("paid twice");
+
+        @NonNull
+        public final String title;
+
+        Status(@NonNull String title) {
+            this.title = title;
+        }
+    }
+
+    /**
+     * The order, and the transfers paying it.
+     */
+    public static class Payment {
+        public final long index;
+        @NonNull
+        public final String uuid;
+        @NonNull
+        public final String address;
+        /**
+         * The amount of the order, in the minimal units of the token.
+         */
+        @NonNull
+        public final BigInteger amount;
+        @NonNull
+        public final List<Transfer> transfers = new ArrayList<>(1);
+
+        Payment(long index, @NonNull String uuid, @NonNull String address, @NonNull BigInteger amount) {
+            this.index = index;
+            this.uuid = uuid;
+            this.address = address;
+            this.amount = amount;
+        }
+
+        /**
+         * The total amount transferred for the order, in the minimal units of the token.
+         */
+        @NonNull
+        public BigInteger getPaid() {
+            BigInteger result = BigInteger.ZERO;
+            for (final Transfer transfer : transfers) {
+                result = result.add(transfer.amount);
+            }
+            return result;
+        }
+
+        @NonNull
+        public Status getStatus() {
+            final int comparison = getPaid().compareTo(amount);
+            if (transfers.isEmpty()) {
+                return Status.UNPAID;
+            } else if (comparison < 0) {
+                return Status.UNDERPAID;
+            } else if (comparison > 0) {
+                return Status.PAID_TWICE;
+            } else {
+                return Status.PAID;
+            }
+        }
+    }
+
+    /**
+     * The outcome of the reconciliation.
+     */
+    public static class Report {
+        /**
+         * How many orders have each status.
+         */
+        @NonNull
+        public final Map<Status, Long> counts = new TreeMap<>();
+        /**
+         * The orders not paid exactly once, in the order of the input.
+         */
+        @NonNull
+        public final List<Payment> problems = new ArrayList<>();
+        /**
+         * The transfers which pay no order.
+         */
+        @NonNull
+        public final List<Transfer> unexpected = new ArrayList<>();
+
+        public long getCount(@NonNull Status status) {
+            return counts.getOrDefault(status, 0L);
+        }
+    }
+
+    private final int decimals;
+    /**
+     * All the orders, in the order of the input.
+     */
+    @NonNull
+    private final List<Payment> payments = new ArrayList<>();
+    /**
+     * The orders of every address (in lowercase).
+     */
+    @NonNull
+    private final Map<String, List<Payment>> paymentsByAddress = new HashMap<>();
+    /**
+     * The transfers which have found no unpaid order with the same amount.
+     */
+    @NonNull
+    private final List<Transfer> leftOver = new ArrayList<>();
+    private long transferCount = 0;
+    /**
+     * The journaled order ranges, by the txhashes of their transactions.
+     */
+    @NonNull
+    private Map<String, BulkRange> planned = Collections.emptyMap();
+    /**
+     * The journaled txhashes, by the first order of their range.
+     */
+    @NonNull
+    private final TreeMap<Long, List<String>> plannedByFirstOrder = new TreeMap<>();
+
+
+    /**
+     * @param decimals the decimals of the token.
+     */
+    public PaymentReconciler(int decimals) {
+        assert decimals >= 0 : decimals;
+        this.decimals = decimals;
+    }
+
+    public void addOrder(@NonNull Order order) {
+        assert order != null;
+
+        final Payment payment = new Payment(order.index, order.uuid, order.address.toLowerCase(),
+                EthereumUtils.intFromDecimal(order.amount, BigInteger.valueOf(decimals)));
+        payments.add(payment);
+        paymentsByAddress.computeIfAbsent(payment.address, key -> new ArrayList<>(1)).add(payment);
+    }
+
+    /**
+     * Match the transfer to the order not paid yet (if any); all the orders must be added before.
+     */
+    public void addTransfer(@NonNull Transfer transfer) {
+        assert transfer != null;
+
+        transferCount++;
+        final BulkRange range = planned.get(transfer.txhash);
+        Payment payment = (range == null) ? null : find(transfer, range.firstOrderIndex, range.lastOrderIndex);
+        if (payment == null) {
+            payment = find(transfer, 0, Long.MAX_VALUE);
+        }
+        if (payment != null) {
+            payment.transfers.add(transfer);
+        } else {
+            leftOver.add(transfer);
+        }
+    }
+
+    /**
+     * Use the journal of the run, to match the transfers to the orders of their own bulks first.
+     * Must be called before any transfer is added.
+     *
+     * @param planned the order ranges by the txhashes, as {@link com.icodici.universa.utnp.journal.SendJournal#readPlanned}.
+     */
+    public void setPlanned(@NonNull Map<String, BulkRange> planned) {
+        assert planned != null;
+        assert transferCount == 0 : transferCount;
+
+        this.planned = planned;
+        plannedByFirstOrder.clear();
+        planned.forEach((txhash, range) ->
+                plannedByFirstOrder.computeIfAbsent(range.firstOrderIndex, key -> new ArrayList<>(1)).add(txhash));
+    }
+
+    /**
+     * The journaled transactions which should have paid the order; empty if the order is not journaled.
+     */
+    @NonNull
+    public List<String> getPlannedTxhashes(long orderIndex) {
+        final Map.Entry<Long, List<String>> entry = plannedByFirstOrder.floorEntry(orderIndex);
+        if (entry == null || planned.get(entry.getValue().get(0)).lastOrderIndex < orderIndex) {
+            return Collections.emptyList();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * How many transfers have been added.
+     */
+    public long getTransferCount() {
+        return transferCount;
+    }
+
+    /**
+     * Match the left-over transfers, once all of them are added; and report the status of every order.
+     * Called only once.
+     */
+    @NonNull
+    public Report reconcile() {
+        final Report report = new Report();
+        for (final Transfer transfer : leftOver) {
+            final Payment payment = findForLeftOver(transfer);
+            if (payment != null) {
+                payment.transfers.add(transfer);
+            } else {
+                report.unexpected.add(transfer);
+            }
+        }
+        for (final Payment payment : payments) {
+            final Status status = payment.getStatus();
+            report.counts.merge(status, 1L, Long::sum);
+            if (status != Status.PAID) {
+                report.problems.add(payment);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * The earliest order (within the index range) of the transfer recipient, with the same amount, not paid yet.
+     */
+    @Nullable
+    private Payment find(@NonNull Transfer transfer, long firstIndex, long lastIndex) {
+        final List<Payment> candidates = paymentsByAddress.get(transfer.to);
+        if (candidates != null) {
+            for (final Payment candidate : candidates) {
+                if (candidate.index >= firstIndex && candidate.index <= lastIndex
+                        && candidate.transfers.isEmpty() && candidate.amount.equals(transfer.amount)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The order the left-over transfer is the second payment of (by the same amount),
+     * or the partial payment of (by the smaller amount).
+     */
+    @Nullable
+    private Payment findForLeftOver(@NonNull Transfer transfer) {
+        final List<Payment> candidates = paymentsByAddress.get(transfer.to);
+        if (candidates == null) {
+            return null;
+        }
+        for (final Payment candidate : candidates) {
+            if (candidate.amount.equals(transfer.amount)) {
+                return candidate;
+            }
+        }
+        for (final Payment candidate : candidates) {
+            if (candidate.getPaid().add(transfer.amount).compareTo(candidate.amount) <= 0) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,266 @@
+package com.icodici.universa.utnp.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.*;
+import com.icodici.universa.utnp.metrics.Histogram;
+import com.icodici.universa.utnp.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.protocol.ObjectMapperFactory;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP transport for {@link org.web3j.protocol.Web3j}, combining the concurrent requests
+ * into the JSON-RPC 2.0 batches.
+ * <p>
+ * The requests are queued; the batch is sent as soon as <code>maxBatchSize</code> requests are queued,
+ * or when <code>batchWindowMs</code> passes after the first request of the batch is queued.
+ * The batched response is split back to the individual callers (matching the responses by their ids).
+ * <p>
+ * Only the asynchronous requests of different callers can share a batch: the synchronous {@link #send}
+ * blocks the caller until the response comes back.
+ */
+public class BatchingHttpService implements Web3jService {
+
+    private static final Logger logger = LogManager.getLogger(BatchingHttpService.class);
+
+    /**
+     * How many batches may be sent to the node concurrently.
+     */
+    static final int MAX_CONCURRENT_BATCHES = 16;
+
+    private static final Histogram batchSize = MetricsRegistry.getDefault().histogram(
+            "utnp_rpc_batch_size", "Number of the JSON-RPC requests combined into a single HTTP request",
+            new double[]{1, 2, 5, 10, 20, 50, 100, 200, 500});
+
+    private static final MediaType JSON_MEDIA_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    private static class PendingRequest<T extends Response> {
+        @NonNull
+        final Request<?, ?> request;
+        @NonNull
+        final Class<T> responseType;
+        @NonNull
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        PendingRequest(@NonNull Request<?, ?> request, @NonNull Class<T> responseType) {
+            this.request = request;
+            this.responseType = responseType;
+        }
+
+        void complete(@NonNull ObjectMapper objectMapper, @NonNull JsonNode response) {
+            try {
+                result.complete(objectMapper.treeToValue(response, responseType));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    @NonNull
+    private final String url;
+    private final int maxBatchSize;
+    private final long batchWindowMs;
+
+    @NonNull
+    private final OkHttpClient httpClient;
+    @NonNull
+    private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+    /**
+     * The ids of the requests must be unique within a batch; so they are re-assigned.
+     */
+    @NonNull
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    @NonNull
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "rpc-batch-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The requests waiting to be sent; guarded by <code>this</code>.
+     */
+    @NonNull
+    private List<PendingRequest<?>> queue = new ArrayList<>();
+    /**
+     * The flush of the current {@link #queue} by the time window; guarded by <code>this</code>.
+     */
+    @Nullable
+    private ScheduledFuture<?> scheduledFlush = null;
+
+
+    /**
+     * Constructor.
+     *
+     * @param maxBatchSize  the maximum number of requests in a single batch.
+     * @param batchWindowMs how long the first request of a batch may wait for the others.
+     */
+    public BatchingHttpService(@NonNull String url, int maxBatchSize, long batchWindowMs) {
+        assert url != null;
+        assert maxBatchSize > 0 : maxBatchSize;
+        assert batchWindowMs >= 0 : batchWindowMs;
+
+        this.url = url;
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindowMs = batchWindowMs;
+
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_CONCURRENT_BATCHES);
+        dispatcher.setMaxRequestsPerHost(MAX_CONCURRENT_BATCHES);
+        this.httpClient = new OkHttpClient.Builder().dispatcher(dispatcher).build();
+    }
+
+    @Override
+    public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+        try {
+            return sendAsync(request, responseType).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + request.getMethod());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    @Override
+    public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+        assert request != null;
+        assert responseType != null;
+
+        final PendingRequest<T> pending = new PendingRequest<>(request, responseType);
+        List<PendingRequest<?>> batchToSend = null;
+        synchronized (this) {
+            queue.add(pending);
+            if (queue.size() >= maxBatchSize || batchWindowMs == 0) {
+                batchToSend = takeQueue();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = flusher.schedule(this::flushByTime, batchWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batchToSend != null) {
+            sendBatch(batchToSend);
+        }
+        return pending.result;
+    }
+
+    /**
+     * Send everything queued when the time window passes.
+     * Runs in the {@link #flusher}.
+     */
+    private void flushByTime() {
+        final List<PendingRequest<?>> batchToSend;
+        synchronized (this) {
+            scheduledFlush = null;
+            batchToSend = queue.isEmpty() ? null : takeQueue();
+        }
+        if (batchToSend != null) {
+            sendBatch(batchToSend);
+        }
+    }
+
+    /**
+     * Take all the queued requests; must be called under the lock.
+     */
+    @NonNull
+    private List<PendingRequest<?>> takeQueue() {
+        final List<PendingRequest<?>> result = queue;
+        queue = new ArrayList<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return result;
+    }
+
+    private void sendBatch(@NonNull List<PendingRequest<?>> batch) {
+        assert !batch.isEmpty();
+
+        batchSize.observe(batch.size());
+        final Map<Long, PendingRequest<?>> byId = new HashMap<>(batch.size() * 2);
+        final String payload;
+        try {
+            for (final PendingRequest<?> pending : batch) {
+                final long id = nextId.getAndIncrement();
+                pending.request.setId(id);
+                byId.put(id, pending);
+            }
+            // The single request is sent as is, not as a batch of one.
+            payload = (batch.size() == 1)
+                    ? objectMapper.writeValueAsString(batch.get(0).request)
+                    : objectMapper.writeValueAsString(batch.stream().map(pending -> pending.request).toArray());
+        } catch (IOException e) {
+            failAll(batch, e);
+            return;
+        }
+
+        final okhttp3.Request httpRequest = new okhttp3.Request.Builder()
+                .url(url)
+                .post(RequestBody.create(JSON_MEDIA_TYPE, payload))
+                .build();
+        httpClient.newCall(httpRequest).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                failAll(batch, e);
+            }
+
+            @Override
+            public void onResponse(Call call, okhttp3.Response httpResponse) {
+                try (final ResponseBody body = httpResponse.body()) {
+                    if (!httpResponse.isSuccessful()) {
+                        throw new IOException(String.format("Node responded with HTTP %s", httpResponse.code()));
+                    }
+                    dispatchResponse(objectMapper.readTree(body.byteStream()), batch, byId);
+                } catch (IOException e) {
+                    failAll(batch, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Split the response of the node to the callers.
+     */
+    private void dispatchResponse(@NonNull JsonNode response,
+                                  @NonNull List<PendingRequest<?>> batch,
+                                  @NonNull Map<Long, PendingRequest<?>> byId) throws IOException {
+        if (batch.size() == 1) {
+            batch.get(0).complete(objectMapper, response);
+            return;
+        }
+        if (!response.isArray()) {
+            // E.g. the node doesn’t support batches at all
+            throw new IOException("Node responded to the batch with a non-batch: " + response);
+        }
+        for (final JsonNode single : response) {
+            final PendingRequest<?> pending = byId.remove(single.path("id").asLong(-1));
+            if (pending == null) {
+                logger.warn("Unexpected response in the batch: {}", single);
+            } else {
+                pending.complete(objectMapper, single);
+            }
+        }
+        if (!byId.isEmpty()) {
+            failAll(byId.values(), new IOException("No response to the request in the batch"));
+        }
+    }
+
+    private static void failAll(@NonNull Collection<PendingRequest<?>> requests, @NonNull IOException e) {
+        for (final PendingRequest<?> pending : requests) {
+            pending.result.completeExceptionally(e);
+        }
+    }
+}
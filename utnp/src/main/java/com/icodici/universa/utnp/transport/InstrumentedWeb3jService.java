@@ -0,0 +1,64 @@
+package com.icodici.universa.utnp.transport;
+
+import com.icodici.universa.utnp.metrics.Counter;
+import com.icodici.universa.utnp.metrics.Histogram;
+import com.icodici.universa.utnp.metrics.LabeledMetric;
+import com.icodici.universa.utnp.metrics.MetricsRegistry;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The decorator of the {@link Web3jService}, measuring the duration of every JSON-RPC request
+ * (by the method) and counting the failed ones.
+ */
+public class InstrumentedWeb3jService implements Web3jService {
+
+    private static final LabeledMetric<Histogram> requestDuration = MetricsRegistry.getDefault().histogram(
+            "utnp_rpc_request_duration_seconds", "Duration of the JSON-RPC requests to the node",
+            Histogram.LATENCY_BUCKETS, "method");
+    private static final LabeledMetric<Counter> requestErrors = MetricsRegistry.getDefault().counter(
+            "utnp_rpc_request_errors_total", "JSON-RPC requests failed or answered with an error", "method");
+
+    @NonNull
+    private final Web3jService service;
+
+
+    public InstrumentedWeb3jService(@NonNull Web3jService service) {
+        assert service != null;
+        this.service = service;
+    }
+
+    @Override
+    public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+        final long startedAt = System.nanoTime();
+        final T response;
+        try {
+            response = service.send(request, responseType);
+        } catch (IOException | RuntimeException e) {
+            requestErrors.labels(request.getMethod()).inc();
+            throw e;
+        } finally {
+            requestDuration.labels(request.getMethod()).observeSince(startedAt);
+        }
+        if (response.hasError()) {
+            requestErrors.labels(request.getMethod()).inc();
+        }
+        return response;
+    }
+
+    @Override
+    public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+        final long startedAt = System.nanoTime();
+        return service.sendAsync(request, responseType).whenComplete((response, throwable) -> {
+            requestDuration.labels(request.getMethod()).observeSince(startedAt);
+            if (throwable != null || response.hasError()) {
+                requestErrors.labels(request.getMethod()).inc();
+            }
+        });
+    }
+}
@@ -0,0 +1,454 @@
+package com.icodici.universa.utnp.transport;
+
+import com.icodici.universa.utnp.metrics.Counter;
+import com.icodici.universa.utnp.metrics.Gauge;
+import com.icodici.universa.utnp.metrics.Histogram;
+import com.icodici.universa.utnp.metrics.LabeledMetric;
+import com.icodici.universa.utnp.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link Web3jService} spreading the requests over several Ethereum nodes.
+ * <p>
+ * Every read request goes to one of the healthy nodes: of the two picked at random, the one with the lower
+ * smoothed latency (multiplied by its requests in progress) is used; so the fastest node gets most of
+ * the requests, but the others take the load the fastest one cannot handle.
+ * If the node cannot be reached, the request fails over to the next one.
+ * The read at the explicit block number (such as the block-pinned <code>eth_call</code>) goes only to the nodes
+ * known to have reached that block (by the health checks and the <code>eth_blockNumber</code> responses),
+ * if there are any.
+ * <p>
+ * The raw transactions (<code>eth_sendRawTransaction</code>) are sent to up to {@link #BROADCAST_FANOUT}
+ * healthy nodes at once; the first node accepting the transaction defines the result.
+ * <p>
+ * The nodes are health-checked periodically with <code>eth_blockNumber</code>: the node which doesn’t respond,
+ * or lags more than {@link #MAX_BLOCK_LAG} blocks behind the best one, gets no requests until it recovers.
+ * If all the nodes are unhealthy, all of them are used anyway.
+ */
+public class PooledWeb3jService implements Web3jService {
+
+    private static final Logger logger = LogManager.getLogger(PooledWeb3jService.class);
+
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL_MS = 2000;
+    /**
+     * The node lagging behind the best one by more blocks is considered unhealthy.
+     */
+    static final long MAX_BLOCK_LAG = 2;
+    /**
+     * To how many nodes every raw transaction is sent.
+     */
+    static final int BROADCAST_FANOUT = 3;
+    /**
+     * How long the health check waits for the nodes to respond.
+     */
+    static final long HEALTH_CHECK_TIMEOUT_MS = 5000;
+    /**
+     * How fast the smoothed latency of the node follows the latest requests.
+     */
+    static final double LATENCY_SMOOTHING = 0.2;
+
+    static final String SEND_RAW_TRANSACTION = "eth_sendRawTransaction";
+
+    /**
+     * The methods reading the state at the given block, by the index of their block parameter.
+     */
+    private static final Map<String, Integer> BLOCK_PARAMETER_INDEXES = new HashMap<>();
+
+    static {
+        BLOCK_PARAMETER_INDEXES.put("eth_call", 1);
+        BLOCK_PARAMETER_INDEXES.put("eth_estimateGas", 1);
+        BLOCK_PARAMETER_INDEXES.put("eth_getBalance", 1);
+        BLOCK_PARAMETER_INDEXES.put("eth_getCode", 1);
+        BLOCK_PARAMETER_INDEXES.put("eth_getTransactionCount", 1);
+        BLOCK_PARAMETER_INDEXES.put("eth_getStorageAt", 2);
+        BLOCK_PARAMETER_INDEXES.put("eth_getBlockByNumber", 0);
+    }
+
+    private static final LabeledMetric<Gauge> endpointHealthy = MetricsRegistry.getDefault().gauge(
+            "utnp_rpc_endpoint_healthy", "Whether the node is used for the requests (1) or not (0)", "endpoint");
+    private static final LabeledMetric<Gauge> endpointBlockLag = MetricsRegistry.getDefault().gauge(
+            "utnp_rpc_endpoint_block_lag", "How many blocks the node lags behind the best node", "endpoint");
+    private static final LabeledMetric<Histogram> endpointRequestDuration = MetricsRegistry.getDefault().histogram(
+            "utnp_rpc_endpoint_request_duration_seconds", "Duration of the JSON-RPC requests, by the node",
+            Histogram.LATENCY_BUCKETS, "endpoint");
+    private static final Counter failovers = MetricsRegistry.getDefault().counter(
+            "utnp_rpc_failovers_total", "Requests repeated on another node, as the first one couldn’t be reached");
+
+    /**
+     * A single node of the pool.
+     */
+    static class Endpoint {
+        /**
+         * The URL without the credentials; used in the logs and the metrics.
+         */
+        @NonNull
+        final String name;
+        @NonNull
+        final Web3jService service;
+
+        @NonNull
+        final AtomicInteger inProgress = new AtomicInteger();
+        /**
+         * The smoothed latency of the requests, in nanoseconds; 0 until the first request completes.
+         */
+        private double latencyNanos = 0;
+        volatile boolean healthy = true;
+        /**
+         * The latest block the node is known to have; -1 if unknown.
+         */
+        volatile long blockNumber = -1;
+
+        Endpoint(@NonNull String name, @NonNull Web3jService service) {
+            this.name = name;
+            this.service = service;
+        }
+
+        synchronized void observeLatency(long nanos) {
+            latencyNanos = (latencyNanos == 0) ? nanos : latencyNanos + (nanos - latencyNanos) * LATENCY_SMOOTHING;
+            endpointRequestDuration.labels(name).observe(nanos / 1e9);
+        }
+
+        synchronized double getScore() {
+            return (latencyNanos + 1) * (inProgress.get() + 1);
+        }
+
+        /**
+         * The node has told its latest block outside of the health check.
+         */
+        synchronized void observeBlock(long number) {
+            if (number > blockNumber) {
+                blockNumber = number;
+            }
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    @NonNull
+    private final List<Endpoint> endpoints;
+
+    @NonNull
+    private final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "rpc-health-checker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * Constructor; starts the health checks at once.
+     *
+     * @param services              the transports to the nodes, by their URLs.
+     * @param healthCheckIntervalMs how often the nodes are health-checked.
+     */
+    public PooledWeb3jService(@NonNull Map<String, Web3jService> services, long healthCheckIntervalMs) {
+        assert services != null;
+        assert !services.isEmpty();
+        assert healthCheckIntervalMs > 0 : healthCheckIntervalMs;
+
+        final List<Endpoint> created = new ArrayList<>();
+        for (final Map.Entry<String, Web3jService> entry : services.entrySet()) {
+            final Endpoint endpoint = new Endpoint(stripCredentials(entry.getKey()), entry.getValue());
+            endpointHealthy.labels(endpoint.name).set(1);
+            created.add(endpoint);
+        }
+        this.endpoints = Collections.unmodifiableList(created);
+
+        healthChecker.scheduleWithFixedDelay(() -> {
+            // The failed task would never be repeated
+            try {
+                checkHealth();
+            } catch (RuntimeException e) {
+                logger.error("Health check of the Ethereum nodes has failed", e);
+            }
+        }, 0, healthCheckIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+        try {
+            return sendAsync(request, responseType).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + request.getMethod());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    @Override
+    public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+        assert request != null;
+        assert responseType != null;
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        if (SEND_RAW_TRANSACTION.equals(request.getMethod())) {
+            broadcast(request, responseType, result);
+        } else {
+            read(request, responseType, new HashSet<>(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Send the request to the best node; on failure, repeat on the next best one not tried yet.
+     */
+    private <T extends Response> void read(@NonNull Request<?, ?> request,
+                                           @NonNull Class<T> responseType,
+                                           @NonNull Set<Endpoint> tried,
+                                           @NonNull CompletableFuture<T> result) {
+        final Endpoint endpoint = choose(tried, getBlockParameter(request));
+        if (endpoint == null) {
+            result.completeExceptionally(new IOException("No Ethereum node can be reached for " + request.getMethod()));
+            return;
+        }
+        tried.add(endpoint);
+        sendTo(endpoint, request, responseType).whenComplete((response, throwable) -> {
+            if (throwable == null) {
+                if (response instanceof EthBlockNumber && !response.hasError()) {
+                    endpoint.observeBlock(((EthBlockNumber) response).getBlockNumber().longValue());
+                }
+                result.complete(response);
+            } else if (tried.size() < endpoints.size()) {
+                logger.warn("{} failed on {} ({}), failing over", request.getMethod(), endpoint, throwable.getMessage());
+                failovers.inc();
+                read(request, responseType, tried, result);
+            } else {
+                result.completeExceptionally(throwable);
+            }
+        });
+    }
+
+    /**
+     * Send the raw transaction to several nodes at once.
+     * The result is the first successful response; if there is none, the first node rejection;
+     * if no node has responded at all, the first failure.
+     */
+    private <T extends Response> void broadcast(@NonNull Request<?, ?> request,
+                                                @NonNull Class<T> responseType,
+                                                @NonNull CompletableFuture<T> result) {
+        // The scores change concurrently; so sort by their snapshot
+        final Map<Endpoint, Double> scores = new HashMap<>();
+        for (final Endpoint endpoint : getUsable()) {
+            scores.put(endpoint, endpoint.getScore());
+        }
+        final List<Endpoint> targets = new ArrayList<>(scores.keySet());
+        targets.sort(Comparator.comparingDouble(scores::get));
+        final List<Endpoint> chosen = targets.subList(0, Math.min(BROADCAST_FANOUT, targets.size()));
+
+        final AtomicInteger remaining = new AtomicInteger(chosen.size());
+        final List<T> rejections = Collections.synchronizedList(new ArrayList<>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (final Endpoint endpoint : chosen) {
+            sendTo(endpoint, request, responseType).whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    failures.add(throwable);
+                } else if (response.hasError()) {
+                    rejections.add(response);
+                } else {
+                    result.complete(response);
+                }
+                if (remaining.decrementAndGet() == 0 && !result.isDone()) {
+                    if (!rejections.isEmpty()) {
+                        result.complete(rejections.get(0));
+                    } else {
+                        result.completeExceptionally(failures.get(0));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Send the copy of the request (the transports may modify its id) to the node, tracking its latency.
+     */
+    @NonNull
+    private <T extends Response> CompletableFuture<T> sendTo(@NonNull Endpoint endpoint,
+                                                             @NonNull Request<?, ?> request,
+                                                             @NonNull Class<T> responseType) {
+        final Request<?, T> copy = new Request<>(request.getMethod(), request.getParams(), endpoint.service, responseType);
+        final long startedAt = System.nanoTime();
+        endpoint.inProgress.incrementAndGet();
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        endpoint.service.sendAsync(copy, responseType).whenComplete((response, throwable) -> {
+            endpoint.inProgress.decrementAndGet();
+            if (throwable != null) {
+                markUnhealthy(endpoint, throwable);
+                result.completeExceptionally((throwable instanceof CompletionException) ? throwable.getCause() : throwable);
+            } else {
+                endpoint.observeLatency(System.nanoTime() - startedAt);
+                result.complete(response);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The best of two random usable nodes not tried yet; <code>null</code> if every node has been tried.
+     *
+     * @param minBlock if not negative, prefer the nodes known to have reached this block.
+     */
+    @Nullable
+    private Endpoint choose(@NonNull Set<Endpoint> tried, long minBlock) {
+        final List<Endpoint> candidates = new ArrayList<>(getUsable());
+        candidates.removeAll(tried);
+        if (candidates.isEmpty()) {
+            // The unhealthy nodes are the last resort
+            candidates.addAll(endpoints);
+            candidates.removeAll(tried);
+        }
+        if (minBlock >= 0) {
+            final List<Endpoint> reached = new ArrayList<>(candidates.size());
+            for (final Endpoint candidate : candidates) {
+                if (candidate.blockNumber >= minBlock) {
+                    reached.add(candidate);
+                }
+            }
+            // If no node is known to have the block, any may have it
+            if (!reached.isEmpty()) {
+                candidates.retainAll(reached);
+            }
+        }
+        switch (candidates.size()) {
+            case 0:
+                return null;
+            case 1:
+                return candidates.get(0);
+            default:
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final int first = random.nextInt(candidates.size());
+                final int second = (first + 1 + random.nextInt(candidates.size() - 1)) % candidates.size();
+                final Endpoint a = candidates.get(first), b = candidates.get(second);
+                return (a.getScore() <= b.getScore()) ? a : b;
+        }
+    }
+
+    /**
+     * The explicit block number the request reads the state at; -1 if it has none
+     * (or refers to <code>latest</code>, <code>pending</code>, etc).
+     */
+    static long getBlockParameter(@NonNull Request<?, ?> request) {
+        final Integer index = BLOCK_PARAMETER_INDEXES.get(request.getMethod());
+        final List<?> params = request.getParams();
+        if (index == null || params == null || params.size() <= index) {
+            return -1;
+        }
+        final Object param = params.get(index);
+        if (param instanceof DefaultBlockParameterNumber) {
+            return ((DefaultBlockParameterNumber) param).getBlockNumber().longValue();
+        } else if (param instanceof String && ((String) param).startsWith("0x")) {
+            try {
+                return Numeric.decodeQuantity((String) param).longValue();
+            } catch (RuntimeException e) {
+                // Not a quantity; left for the node to refuse
+                return -1;
+            }
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * The healthy nodes; or all of them, if none is healthy.
+     */
+    @NonNull
+    private List<Endpoint> getUsable() {
+        final List<Endpoint> result = new ArrayList<>(endpoints.size());
+        for (final Endpoint endpoint : endpoints) {
+            if (endpoint.healthy) {
+                result.add(endpoint);
+            }
+        }
+        return result.isEmpty() ? endpoints : result;
+    }
+
+    private void markUnhealthy(@NonNull Endpoint endpoint, @NonNull Throwable cause) {
+        if (endpoint.healthy && endpoints.size() > 1) {
+            logger.warn("Ethereum node {} is unhealthy: {}", endpoint, cause.getMessage());
+        }
+        endpoint.healthy = false;
+        endpointHealthy.labels(endpoint.name).set(0);
+    }
+
+    /**
+     * Ask every node for its latest block; drop the ones which don’t respond or lag behind.
+     * Runs in the {@link #healthChecker}.
+     */
+    private void checkHealth() {
+        final Map<Endpoint, CompletableFuture<EthBlockNumber>> responses = new LinkedHashMap<>();
+        for (final Endpoint endpoint : endpoints) {
+            responses.put(endpoint, sendTo(endpoint,
+                    new Request<>("eth_blockNumber", Collections.<String>emptyList(), endpoint.service, EthBlockNumber.class),
+                    EthBlockNumber.class));
+        }
+        try {
+            CompletableFuture.allOf(responses.values().toArray(new CompletableFuture[0]))
+                    .get(HEALTH_CHECK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException | TimeoutException e) {
+            // Checked one by one below
+        }
+
+        long bestBlock = -1;
+        for (final Map.Entry<Endpoint, CompletableFuture<EthBlockNumber>> entry : responses.entrySet()) {
+            final Endpoint endpoint = entry.getKey();
+            final CompletableFuture<EthBlockNumber> future = entry.getValue();
+            // The failed request has marked the node unhealthy already
+            final EthBlockNumber response = future.isCompletedExceptionally() ? null : future.getNow(null);
+            if (response == null || response.hasError()) {
+                if (!future.isCompletedExceptionally()) {
+                    markUnhealthy(endpoint, new IOException((response == null)
+                            ? "no response to the health check"
+                            : response.getError().getMessage()));
+                }
+                endpoint.blockNumber = -1;
+            } else {
+                endpoint.blockNumber = response.getBlockNumber().longValue();
+                bestBlock = Math.max(bestBlock, endpoint.blockNumber);
+            }
+        }
+
+        for (final Endpoint endpoint : endpoints) {
+            if (endpoint.blockNumber < 0) {
+                continue;
+            }
+            final long lag = bestBlock - endpoint.blockNumber;
+            endpointBlockLag.labels(endpoint.name).set(lag);
+            if (lag > MAX_BLOCK_LAG) {
+                markUnhealthy(endpoint, new IOException(String.format("lags %s blocks behind", lag)));
+            } else if (!endpoint.healthy) {
+                logger.info("Ethereum node {} is healthy again", endpoint);
+                endpoint.healthy = true;
+                endpointHealthy.labels(endpoint.name).set(1);
+            }
+        }
+    }
+
+    /**
+     * Hide the user and password, if the URL contains them.
+     */
+    @NonNull
+    static String stripCredentials(@NonNull String url) {
+        return url.replaceFirst("//[^/@]*@", "//");
+    }
+}
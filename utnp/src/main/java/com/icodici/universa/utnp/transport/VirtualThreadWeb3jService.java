@@ -0,0 +1,40 @@
+package com.icodici.universa.utnp.transport;
+
+import com.icodici.universa.utnp.ethereum.EthereumUtils;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The decorator of the blocking {@link Web3jService} (such as {@link org.web3j.protocol.http.HttpService}
+ * or {@link org.web3j.protocol.ipc.UnixIpcService}), running its asynchronous requests on the virtual threads
+ * of {@link EthereumUtils#BLOCKING_IO_EXECUTOR}, rather than on the unbounded cached thread pool of web3j.
+ * <p>
+ * Not needed for the transports which are asynchronous by themselves
+ * ({@link BatchingHttpService}, {@link WebSocketService}).
+ */
+public class VirtualThreadWeb3jService implements Web3jService {
+
+    @NonNull
+    private final Web3jService service;
+
+
+    public VirtualThreadWeb3jService(@NonNull Web3jService service) {
+        assert service != null;
+        this.service = service;
+    }
+
+    @Override
+    public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+        return service.send(request, responseType);
+    }
+
+    @Override
+    public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+        return EthereumUtils.callBlocking(() -> service.send(request, responseType));
+    }
+}
@@ -0,0 +1,441 @@
+package com.icodici.universa.utnp.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.OkHttpClient;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.protocol.ObjectMapperFactory;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebSocket transport for {@link org.web3j.protocol.Web3j}, which also receives the notifications
+ * pushed by the node (<code>eth_subscribe</code>), such as <code>newHeads</code> and <code>logs</code>.
+ * <p>
+ * The connection is kept alive by pings; when it is lost, it is re-established (with the growing delay)
+ * and all the subscriptions are renewed. The requests sent while disconnected wait for the connection;
+ * the requests which were in progress when it was lost fail with {@link IOException}
+ * (the node may have processed them or not).
+ */
+public class WebSocketService implements Web3jService, Closeable {
+
+    private static final Logger logger = LogManager.getLogger(WebSocketService.class);
+
+    static final long MIN_RECONNECT_DELAY_MS = 500;
+    static final long MAX_RECONNECT_DELAY_MS = 30000;
+    static final long PING_INTERVAL_MS = 15000;
+    /**
+     * How long a request may wait for the response (including the time waiting for the connection), by default.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 60000;
+
+    /**
+     * Receiver of the notifications of a subscription.
+     * Called in the thread reading the connection; so it should just hand the notification over.
+     */
+    public interface SubscriptionListener {
+        /**
+         * The notification pushed by the node (the <code>result</code> of the <code>eth_subscription</code> message).
+         */
+        void onNotification(@NonNull JsonNode result);
+
+        /**
+         * The connection has been re-established and the subscription renewed;
+         * the notifications of the time while disconnected are lost.
+         */
+        default void onResubscribed() {
+        }
+    }
+
+    /**
+     * The active subscription; survives the reconnections.
+     */
+    public class Subscription implements Closeable {
+        @NonNull
+        private final List<Object> params;
+        @NonNull
+        private final SubscriptionListener listener;
+        /**
+         * The id assigned by the node; changes on every reconnection.
+         */
+        @Nullable
+        private volatile String id = null;
+
+        private Subscription(@NonNull List<Object> params, @NonNull SubscriptionListener listener) {
+            this.params = params;
+            this.listener = listener;
+        }
+
+        /**
+         * Unsubscribe; no more notifications are delivered.
+         */
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+            final String currentId = id;
+            if (currentId != null) {
+                byNodeId.remove(currentId);
+                sendAsync(new Request<>("eth_unsubscribe", Collections.singletonList(currentId),
+                        WebSocketService.this, BooleanResponse.class), BooleanResponse.class);
+            }
+        }
+
+        public String toString() {
+            return String.format("Subscription(%s, id=%s)", params, id);
+        }
+    }
+
+    public static class SubscribeResponse extends Response<String> {
+    }
+
+    public static class BooleanResponse extends Response<Boolean> {
+    }
+
+    private static class PendingRequest<T extends Response> {
+        @NonNull
+        final Class<T> responseType;
+        @NonNull
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        /**
+         * Whether it has been handed over to the connection (so it is lost if the connection is lost).
+         */
+        volatile boolean sent = false;
+
+        PendingRequest(@NonNull Class<T> responseType) {
+            this.responseType = responseType;
+        }
+
+        void complete(@NonNull ObjectMapper objectMapper, @NonNull JsonNode response) {
+            try {
+                result.complete(objectMapper.treeToValue(response, responseType));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    @NonNull
+    private final String url;
+    private final long requestTimeoutMs;
+    @NonNull
+    private final OkHttpClient httpClient;
+    @NonNull
+    private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+    @NonNull
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    @NonNull
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "websocket-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The requests waiting for the response (sent or waiting for the connection), by their ids.
+     */
+    @NonNull
+    private final Map<Long, PendingRequest<?>> pending = new ConcurrentHashMap<>();
+    @NonNull
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    /**
+     * The active subscriptions, by the ids assigned by the node.
+     */
+    @NonNull
+    private final Map<String, Subscription> byNodeId = new ConcurrentHashMap<>();
+
+    /**
+     * The current connection; completed when it is open. Guarded by <code>this</code>.
+     */
+    @NonNull
+    private CompletableFuture<WebSocket> connection = new CompletableFuture<>();
+    /**
+     * The socket of the current connection (maybe not open yet). Guarded by <code>this</code>.
+     */
+    @Nullable
+    private WebSocket socket = null;
+    private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+    private boolean everOpened = false;
+    private boolean closed = false;
+
+
+    /**
+     * Constructor; starts connecting at once.
+     *
+     * @param url <code>ws://</code> or <code>wss://</code> URL of the node.
+     */
+    public WebSocketService(@NonNull String url) {
+        this(url, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Constructor; starts connecting at once.
+     *
+     * @param url              <code>ws://</code> or <code>wss://</code> URL of the node.
+     * @param requestTimeoutMs how long a request may wait for the response (including the time waiting
+     *                         for the connection).
+     */
+    public WebSocketService(@NonNull String url, long requestTimeoutMs) {
+        assert url != null;
+        assert requestTimeoutMs > 0 : requestTimeoutMs;
+
+        this.url = url;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.httpClient = new OkHttpClient.Builder()
+                .pingInterval(PING_INTERVAL_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .build();
+        connect();
+    }
+
+    @Override
+    public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+        try {
+            return sendAsync(request, responseType).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + request.getMethod());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    @Override
+    public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+        assert request != null;
+        assert responseType != null;
+
+        final long id = nextId.getAndIncrement();
+        request.setId(id);
+        final String payload;
+        try {
+            payload = objectMapper.writeValueAsString(request);
+        } catch (IOException e) {
+            final CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        final PendingRequest<T> pendingRequest = new PendingRequest<>(responseType);
+        pending.put(id, pendingRequest);
+        final ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+            if (pending.remove(id) != null) {
+                pendingRequest.result.completeExceptionally(
+                        new SocketTimeoutException(String.format("No response to %s in %s ms", request.getMethod(), requestTimeoutMs)));
+            }
+        }, requestTimeoutMs, TimeUnit.MILLISECONDS);
+        pendingRequest.result.whenComplete((response, throwable) -> timeout.cancel(false));
+
+        getConnection().thenAccept(webSocket -> {
+            pendingRequest.sent = true;
+            if (!webSocket.send(payload) && pending.remove(id) != null) {
+                pendingRequest.result.completeExceptionally(new IOException("WebSocket connection to " + url + " is closed"));
+            }
+        });
+        return pendingRequest.result;
+    }
+
+    /**
+     * Subscribe to the notifications (<code>eth_subscribe</code>); the subscription is renewed on every reconnection.
+     *
+     * @param params the parameters of <code>eth_subscribe</code>: the type of the subscription
+     *               (e.g. <code>newHeads</code>), maybe followed by its options.
+     * @return the {@link CompletableFuture} completed when the node confirms the subscription.
+     */
+    @NonNull
+    public CompletableFuture<Subscription> subscribe(@NonNull List<Object> params, @NonNull SubscriptionListener listener) {
+        assert params != null;
+        assert !params.isEmpty();
+        assert listener != null;
+
+        final Subscription subscription = new Subscription(params, listener);
+        subscriptions.add(subscription);
+        return requestSubscription(subscription).thenApply(ignored -> subscription);
+    }
+
+    /**
+     * Subscribe to the headers of the new blocks.
+     */
+    @NonNull
+    public CompletableFuture<Subscription> subscribeNewHeads(@NonNull SubscriptionListener listener) {
+        return subscribe(Collections.singletonList("newHeads"), listener);
+    }
+
+    /**
+     * Close the connection; the requests in progress fail, and no reconnection happens.
+     */
+    @Override
+    public void close() {
+        final WebSocket toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = socket;
+            socket = null;
+        }
+        if (toClose != null) {
+            toClose.close(1000, "closed");
+        }
+        for (final PendingRequest<?> pendingRequest : pending.values()) {
+            pendingRequest.sent = true;
+        }
+        failSent(new IOException("WebSocket service is closed"));
+        scheduler.shutdownNow();
+        httpClient.dispatcher().executorService().shutdown();
+    }
+
+    @NonNull
+    private synchronized CompletableFuture<WebSocket> getConnection() {
+        return connection;
+    }
+
+    /**
+     * Open the new connection; its {@link #connection} future is completed when it is open.
+     */
+    private synchronized void connect() {
+        if (closed) {
+            return;
+        }
+        final okhttp3.Request request = new okhttp3.Request.Builder().url(url).build();
+        socket = httpClient.newWebSocket(request, new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, okhttp3.Response response) {
+                opened(webSocket);
+            }
+
+            @Override
+            public void onMessage(WebSocket webSocket, String text) {
+                dispatch(text);
+            }
+
+            @Override
+            public void onClosing(WebSocket webSocket, int code, String reason) {
+                webSocket.close(1000, null);
+                disconnected(webSocket, new IOException(String.format("closed by the node (%s %s)", code, reason)));
+            }
+
+            @Override
+            public void onFailure(WebSocket webSocket, Throwable t, okhttp3.Response response) {
+                disconnected(webSocket, t);
+            }
+        });
+    }
+
+    private void opened(@NonNull WebSocket webSocket) {
+        final CompletableFuture<WebSocket> opened;
+        final boolean isReconnection;
+        synchronized (this) {
+            if (webSocket != socket) {
+                return;
+            }
+            opened = connection;
+            isReconnection = everOpened;
+            everOpened = true;
+            reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+        }
+        logger.debug("WebSocket connection to {} is open", url);
+        opened.complete(webSocket);
+        if (isReconnection) {
+            for (final Subscription subscription : subscriptions) {
+                requestSubscription(subscription).thenRun(subscription.listener::onResubscribed);
+            }
+        }
+    }
+
+    /**
+     * Fail everything in progress, and schedule the reconnection.
+     */
+    private void disconnected(@NonNull WebSocket webSocket, @NonNull Throwable cause) {
+        final long delayMs;
+        synchronized (this) {
+            if (webSocket != socket) {
+                // Already handled
+                return;
+            }
+            socket = null;
+            if (connection.isDone()) {
+                connection = new CompletableFuture<>();
+            }
+            delayMs = reconnectDelayMs;
+            reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+        }
+        logger.warn("WebSocket connection to {} is lost ({}), reconnecting in {} ms", url, cause.toString(), delayMs);
+        byNodeId.clear();
+        for (final Subscription subscription : subscriptions) {
+            subscription.id = null;
+        }
+        // The requests not sent yet wait for the reconnection
+        failSent(new IOException("WebSocket connection to " + url + " is lost", cause));
+        try {
+            scheduler.schedule(this::connect, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+        }
+    }
+
+    @NonNull
+    private CompletableFuture<Void> requestSubscription(@NonNull Subscription subscription) {
+        return sendAsync(new Request<>("eth_subscribe", subscription.params, this, SubscribeResponse.class),
+                SubscribeResponse.class).thenAccept(response -> {
+            if (response.hasError()) {
+                throw new CompletionException(new IOException(
+                        "Cannot subscribe to " + subscription.params + ": " + response.getError().getMessage()));
+            }
+            subscription.id = response.getResult();
+            if (subscriptions.contains(subscription)) {
+                byNodeId.put(response.getResult(), subscription);
+            }
+            logger.debug("Subscribed: {}", subscription);
+        });
+    }
+
+    /**
+     * Handle the message from the node: either the response, or the subscription notification.
+     */
+    private void dispatch(@NonNull String text) {
+        final JsonNode message;
+        try {
+            message = objectMapper.readTree(text);
+        } catch (IOException e) {
+            logger.warn("Malformed message from {}: {}", url, text);
+            return;
+        }
+        if ("eth_subscription".equals(message.path("method").asText())) {
+            final JsonNode params = message.path("params");
+            final Subscription subscription = byNodeId.get(params.path("subscription").asText());
+            if (subscription != null) {
+                subscription.listener.onNotification(params.path("result"));
+            }
+        } else {
+            final PendingRequest<?> pendingRequest = pending.remove(message.path("id").asLong(-1));
+            if (pendingRequest == null) {
+                // E.g. the request has timed out already
+                logger.debug("Unexpected message from {}: {}", url, text);
+            } else {
+                pendingRequest.complete(objectMapper, message);
+            }
+        }
+    }
+
+    private void failSent(@NonNull IOException e) {
+        for (final Map.Entry<Long, PendingRequest<?>> entry : pending.entrySet()) {
+            if (entry.getValue().sent && pending.remove(entry.getKey()) != null) {
+                entry.getValue().result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.icodici.universa.utnp.connectors;
+
+import org.junit.Test;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.TypeEncoder;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.DynamicArray;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.generated.Uint256;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Cross-check of the <code>balancesOf</code> encoding of {@link BulkBalanceReader} against the web3j ABI encoder.
+ */
+public class BulkBalanceReaderTest {
+
+    private static final String TOKEN = "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7";
+
+    @Test
+    public void calldataSameAsFunctionEncoder() {
+        for (final int count : new int[]{1, 2, 3, 1000}) {
+            final Random random = new Random(count);
+            final List<String> holders = new ArrayList<>();
+            final List<Address> addresses = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final String holder = String.format("0x%040x", new BigInteger(160 - (i % 4) * 40, random));
+                holders.add(holder);
+                addresses.add(new Address(holder));
+            }
+            final String expected = FunctionEncoder.encode(new Function("balancesOf",
+                    Arrays.asList(new Address(TOKEN), new DynamicArray<>(addresses)),
+                    Collections.emptyList()));
+
+            assertEquals("count " + count, expected, BulkBalanceReader.encode(TOKEN, holders));
+        }
+    }
+
+    @Test
+    public void decodeResult() {
+        final List<BigInteger> balances = Arrays.asList(
+                BigInteger.ZERO, BigInteger.ONE, BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE));
+        final List<Uint256> values = new ArrayList<>();
+        balances.forEach(balance -> values.add(new Uint256(balance)));
+        // The returned dynamic array is encoded as the tuple of a single element: the offset, then the array
+        final String encoded = "0x" + TypeEncoder.encode(new Uint256(32)) + TypeEncoder.encode(new DynamicArray<>(values));
+
+        assertEquals(balances, BulkBalanceReader.decode(encoded, 3));
+        try {
+            BulkBalanceReader.decode(encoded, 2);
+            fail("Decoded the wrong number of balances");
+        } catch (CompletionException expected) {
+        }
+        try {
+            BulkBalanceReader.decode("0x", 3);
+            fail("Decoded the empty result");
+        } catch (CompletionException expected) {
+        }
+    }
+}
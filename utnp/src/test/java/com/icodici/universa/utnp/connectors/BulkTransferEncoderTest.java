@@ -0,0 +1,203 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.ethereum.TransactionFees;
+import com.icodici.universa.utnp.ethereum.TransactionSigner;
+import com.icodici.universa.utnp.ethereum.contracts.generated.BulkSender;
+import org.junit.Test;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.Utils;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.DynamicArray;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+import org.web3j.protocol.core.methods.response.EthSendTransaction;
+import org.web3j.tx.ChainId;
+import org.web3j.tx.RawTransactionManager;
+import org.web3j.tx.response.NoOpProcessor;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Cross-check of {@link BulkTransferEncoder} and {@link TransactionSigner}
+ * against the web3j-generated BulkSender wrapper; and the transfers decoded back from the signed transactions.
+ */
+public class BulkTransferEncoderTest {
+
+    private static final String TOKEN = "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7";
+    private static final String BULK_SENDER = "0x00000000000000000000000000000000000000b5";
+    private static final int DECIMALS = 18;
+    private static final ECKeyPair KEY_PAIR = ECKeyPair.create(Numeric.hexStringToByteArray(
+            "0x4646464646464646464646464646464646464646464646464646464646464646"));
+
+    private static final BigInteger
+            GAS_PRICE = new BigInteger("21000000000"),
+            GAS_LIMIT = new BigInteger("4700000"),
+            NONCE = new BigInteger("1234");
+
+    /**
+     * Captures the raw transaction sent by the generated wrapper.
+     */
+    private static class CapturingService implements Web3jService {
+        String sentTransaction = null;
+
+        @Override
+        public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+            switch (request.getMethod()) {
+                case "eth_getTransactionCount": {
+                    final EthGetTransactionCount response = new EthGetTransactionCount();
+                    response.setResult(Numeric.toHexStringWithPrefix(NONCE));
+                    return responseType.cast(response);
+                }
+                case "eth_sendRawTransaction": {
+                    sentTransaction = (String) request.getParams().get(0);
+                    final EthSendTransaction response = new EthSendTransaction();
+                    response.setResult("0x" + String.join("", Collections.nCopies(64, "0")));
+                    return responseType.cast(response);
+                }
+                default:
+                    throw new IOException("Unexpected " + request.getMethod());
+            }
+        }
+
+        @Override
+        public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void calldataSameAsFunctionEncoder() {
+        for (final int count : new int[]{1, 2, 3, 50, 300}) {
+            final PackedTransfers transfers = makeTransfers(count);
+            final String expected = FunctionEncoder.encode(wrapperFunction(transfers));
+
+            assertEquals("count " + count, expected, Numeric.toHexString(BulkTransferEncoder.encode(TOKEN, transfers)));
+            assertEquals(BulkTransferEncoder.getCalldataLength(count), (expected.length() - 2) / 2);
+        }
+    }
+
+    @Test
+    public void encodeIntoReusedBuffer() {
+        final byte[] buffer = new byte[BulkTransferEncoder.getCalldataLength(300) + 10];
+        Arrays.fill(buffer, (byte) 0xFF);
+        BulkTransferEncoder.encode(TOKEN, makeTransfers(300), buffer, 10);
+
+        final PackedTransfers transfers = makeTransfers(7);
+        final int end = BulkTransferEncoder.encode(TOKEN, transfers, buffer, 3);
+        assertEquals(3 + BulkTransferEncoder.getCalldataLength(7), end);
+        assertArrayEquals(BulkTransferEncoder.encode(TOKEN, transfers), Arrays.copyOfRange(buffer, 3, end));
+    }
+
+    @Test
+    public void signedSameAsGeneratedWrapper() throws Exception {
+        final TransactionSigner signer = new TransactionSigner(KEY_PAIR, ChainId.MAINNET);
+        for (final int count : new int[]{1, 2, 50, 300}) {
+            final PackedTransfers transfers = makeTransfers(count);
+
+            final CapturingService service = new CapturingService();
+            final Web3j web3j = Web3j.build(service);
+            final BulkSender contract = BulkSender.load(BULK_SENDER, web3j,
+                    new RawTransactionManager(web3j, Credentials.create(KEY_PAIR), ChainId.MAINNET, new NoOpProcessor(web3j)),
+                    GAS_PRICE, GAS_LIMIT);
+            contract.bulkTransfer(TOKEN, addressesOf(transfers), amountsOf(transfers)).send();
+
+            final SignedTransaction signed = signer.sign(NONCE, GAS_PRICE, GAS_LIMIT, BULK_SENDER, BigInteger.ZERO,
+                    BulkTransferEncoder.getCalldataLength(count),
+                    (dest, offset) -> BulkTransferEncoder.encode(TOKEN, transfers, dest, offset));
+            assertEquals("count " + count, service.sentTransaction, signed.hex);
+        }
+    }
+
+    @Test
+    public void decodedFromSignedTransaction() {
+        final BulkTransferSigner signer = new BulkTransferSigner(
+                Numeric.toBytesPadded(KEY_PAIR.getPrivateKey(), 32), BULK_SENDER, GAS_PRICE);
+        for (final TransactionFees fees : new TransactionFees[]{
+                TransactionFees.legacy(GAS_PRICE), TransactionFees.eip1559(GAS_PRICE, BigInteger.ONE)}) {
+            for (final int count : new int[]{1, 2, 300}) {
+                final PackedTransfers transfers = makeTransfers(count);
+                final SignedTransaction signed = signer.sign(TOKEN, transfers, NONCE, GAS_LIMIT, fees);
+
+                final PackedTransfers decoded = BulkTransferEncoder.decode(signed.getCallData(), DECIMALS);
+                assertEquals(addressesOf(transfers), addressesOf(decoded));
+                assertEquals(amountsOf(transfers), amountsOf(decoded));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeTruncated() {
+        final byte[] calldata = BulkTransferEncoder.encode(TOKEN, makeTransfers(3));
+        BulkTransferEncoder.decode(Arrays.copyOf(calldata, calldata.length - 1), DECIMALS);
+    }
+
+    /**
+     * The transfers with various addresses (including the leading zeros) and amounts (up to the maximum uint256).
+     */
+    private static PackedTransfers makeTransfers(int count) {
+        final Random random = new Random(count);
+        final PackedTransfers transfers = new PackedTransfers(DECIMALS);
+        for (int i = 0; i < count; i++) {
+            final String address = String.format("0x%040x", new BigInteger(160 - (i % 4) * 40, random));
+            final BigInteger units;
+            switch (i % 3) {
+                case 0:
+                    units = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+                    break;
+                case 1:
+                    units = BigInteger.valueOf(i + 1);
+                    break;
+                default:
+                    units = new BigInteger(200, random).add(BigInteger.ONE);
+            }
+            transfers.add(address, new BigDecimal(units, DECIMALS));
+        }
+        return transfers;
+    }
+
+    /**
+     * The same function as built by the generated wrapper.
+     */
+    private static Function wrapperFunction(PackedTransfers transfers) {
+        return new Function(
+                "bulkTransfer",
+                Arrays.<Type>asList(new Address(TOKEN),
+                        new DynamicArray<>(Utils.typeMap(addressesOf(transfers), Address.class)),
+                        new DynamicArray<>(Utils.typeMap(amountsOf(transfers), Uint256.class))),
+                Collections.<TypeReference<?>>emptyList());
+    }
+
+    private static List<String> addressesOf(PackedTransfers transfers) {
+        final List<String> result = new ArrayList<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            result.add(transfers.getAddress(i));
+        }
+        return result;
+    }
+
+    private static List<BigInteger> amountsOf(PackedTransfers transfers) {
+        final List<BigInteger> result = new ArrayList<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            result.add(transfers.getAmount(i));
+        }
+        return result;
+    }
+}
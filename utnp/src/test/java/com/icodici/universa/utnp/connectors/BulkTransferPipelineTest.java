@@ -0,0 +1,255 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.connectors.AbstractConnector.EthereumConnection;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.ethereum.FeePolicy;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.ethereum.TransactionFees;
+import com.icodici.universa.utnp.journal.SendJournal;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link BulkTransferPipeline} against the {@link StubNode}: the transactions whose nonces are taken
+ * by somebody else are re-signed, and still hold a single in-flight permit each; the resumed transaction
+ * whose earlier variant has been mined is not taken for the one refused; the stuck transaction is replaced
+ * at the higher fees (or broadcast again, if they cannot be raised); the transaction failed to be journaled
+ * releases its permit.
+ */
+public class BulkTransferPipelineTest {
+
+    static final String
+            TOKEN = "0x9e3319636e2126e3c0bc9e3134aec5e1508a46c7",
+            BULK_SENDER = "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7";
+    static final byte[] PRIVATE_KEY = new byte[32];
+    static final BigInteger GAS_PRICE = BigInteger.valueOf(1000000000L), GAS_LIMIT = BigInteger.valueOf(1000000);
+
+    static {
+        PRIVATE_KEY[31] = 1;
+    }
+
+    private static final int MAX_IN_FLIGHT = 4;
+    private static final long REPLACEMENT_DEADLINE_MS = 300;
+
+    @Test
+    public void resignedKeepsPermit() throws Exception {
+        try (final StubNode node = new StubNode();
+             final BulkSenderConnector connector = new BulkSenderConnector(
+                     new EthereumConnection(EthereumConnection.Type.HTTP, node.getUrl()),
+                     BULK_SENDER, PRIVATE_KEY, GAS_PRICE, GAS_LIMIT)) {
+            final BulkTransferPipeline pipeline = new BulkTransferPipeline(connector, TOKEN, MAX_IN_FLIGHT, null, 0);
+            // Somebody else takes the nonces the pipeline has started with: every bulk gets "nonce too low"
+            node.mineForeign(3);
+
+            final List<CompletableFuture<String>> accepted = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                final PackedTransfers transfers = new PackedTransfers(18);
+                transfers.add(String.format("0x%040x", i + 1), BigDecimal.ONE);
+                accepted.add(pipeline.submit(transfers));
+            }
+            for (final CompletableFuture<String> future : accepted) {
+                future.join();
+            }
+            assertEquals(3, node.mine());
+            assertTrue(pipeline.awaitMined());
+            pipeline.close();
+
+            assertNull(pipeline.getFailure());
+            assertEquals(3, pipeline.getMinedCount());
+            assertEquals(BigInteger.valueOf(6), node.getMinedCount());
+            // The permit is released right after the entry is forgotten
+            for (int i = 0; i < 20 && pipeline.getAvailablePermits() < MAX_IN_FLIGHT; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(MAX_IN_FLIGHT, pipeline.getAvailablePermits());
+        }
+    }
+
+    @Test
+    public void resumedWithMinedVariant() throws Exception {
+        final Path path = Files.createTempFile("utnp-send", ".journal");
+        Files.delete(path);
+        final Path checkpointPath = Paths.get(path + ".checkpoint");
+        try (final StubNode node = new StubNode();
+             final BulkSenderConnector connector = new BulkSenderConnector(
+                     new EthereumConnection(EthereumConnection.Type.HTTP, node.getUrl()),
+                     BULK_SENDER, PRIVATE_KEY, GAS_PRICE, GAS_LIMIT)) {
+            final PackedTransfers transfers = new PackedTransfers(18);
+            transfers.add(String.format("0x%040x", 1), BigDecimal.ONE);
+            final BulkRange range = new BulkRange(0, 0, Collections.singletonList("order-0"));
+            final SignedTransaction first = connector.signBulkTransfer(TOKEN, transfers, BigInteger.ZERO, GAS_LIMIT,
+                    TransactionFees.legacy(GAS_PRICE));
+            final SignedTransaction replacement = connector.signBulkTransfer(TOKEN, transfers, BigInteger.ZERO, GAS_LIMIT,
+                    TransactionFees.legacy(GAS_PRICE.multiply(BigInteger.valueOf(2))));
+            // The first variant is mined, but the crash comes before its M record (and the replacement is never sent)
+            try (final SendJournal journal = new SendJournal(path, "test", 0)) {
+                journal.onSigned(range, first);
+                journal.onAccepted(range, first);
+                journal.onSigned(range, replacement);
+                journal.sync();
+            }
+            connector.sendSignedTransaction(first);
+            assertEquals(1, node.mine());
+
+            try (final SendJournal journal = new SendJournal(path, "test", 0)) {
+                final List<SendJournal.Entry> unconfirmed = journal.getUnconfirmed();
+                assertEquals(1, unconfirmed.size());
+                final BulkTransferPipeline pipeline = new BulkTransferPipeline(connector, TOKEN, MAX_IN_FLIGHT, journal, 0);
+                final CompletableFuture<String> accepted =
+                        pipeline.resubmit(unconfirmed.get(0).getVariants(), unconfirmed.get(0).range);
+                assertEquals(first.txhash, accepted.join());
+                assertTrue(pipeline.awaitMined());
+                pipeline.close();
+
+                assertNull(pipeline.getFailure());
+                assertEquals(1, pipeline.getMinedCount());
+                assertTrue(journal.getUnconfirmed().isEmpty());
+            }
+        } finally {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(checkpointPath);
+        }
+    }
+
+    @Test
+    public void stuckReplaced() throws Exception {
+        try (final StubNode node = new StubNode();
+             final BulkSenderConnector connector = new BulkSenderConnector(
+                     new EthereumConnection(EthereumConnection.Type.HTTP, node.getUrl()),
+                     BULK_SENDER, PRIVATE_KEY, GAS_PRICE, GAS_PRICE.multiply(BigInteger.TEN), GAS_LIMIT)) {
+            final RecordingListener listener = new RecordingListener();
+            final BulkTransferPipeline pipeline =
+                    new BulkTransferPipeline(connector, TOKEN, MAX_IN_FLIGHT, listener, REPLACEMENT_DEADLINE_MS);
+            final String original = pipeline.submit(transfers(1)).join();
+            // Not mined till the deadline
+            await(() -> listener.accepted.size() == 2);
+            final SignedTransaction replacement = listener.accepted.get(1);
+            assertEquals(original, listener.accepted.get(0).txhash);
+            assertEquals(listener.signed, listener.accepted);
+            assertEquals(BigInteger.ZERO, replacement.nonce);
+            assertEquals(TransactionFees.legacy(GAS_PRICE).raisedBy(FeePolicy.BUMP_PERCENT), replacement.getFees());
+
+            assertEquals(1, node.mine());
+            assertTrue(pipeline.awaitMined());
+            pipeline.close();
+            assertTrue(node.isMined(replacement.txhash));
+            assertEquals(Collections.singletonList(replacement), listener.mined);
+            assertEquals(MAX_IN_FLIGHT, pipeline.getAvailablePermits());
+        }
+    }
+
+    @Test
+    public void droppedRebroadcast() throws Exception {
+        try (final StubNode node = new StubNode();
+             final BulkSenderConnector connector = new BulkSenderConnector(
+                     new EthereumConnection(EthereumConnection.Type.HTTP, node.getUrl()),
+                     BULK_SENDER, PRIVATE_KEY, GAS_PRICE, GAS_LIMIT)) {
+            final RecordingListener listener = new RecordingListener();
+            final BulkTransferPipeline pipeline =
+                    new BulkTransferPipeline(connector, TOKEN, MAX_IN_FLIGHT, listener, REPLACEMENT_DEADLINE_MS);
+            final String txhash = pipeline.submit(transfers(1)).join();
+            node.drop(txhash);
+            // The fees cannot be raised above the gas price, so the very same transaction is broadcast again
+            await(() -> node.getSentCount() == 2);
+            assertEquals(1, listener.signed.size());
+
+            assertEquals(1, node.mine());
+            assertTrue(pipeline.awaitMined());
+            pipeline.close();
+            assertTrue(node.isMined(txhash));
+        }
+    }
+
+    @Test
+    public void failedJournalingReleasesPermit() throws Exception {
+        try (final StubNode node = new StubNode();
+             final BulkSenderConnector connector = new BulkSenderConnector(
+                     new EthereumConnection(EthereumConnection.Type.HTTP, node.getUrl()),
+                     BULK_SENDER, PRIVATE_KEY, GAS_PRICE, GAS_LIMIT)) {
+            final RecordingListener listener = new RecordingListener() {
+                @Override
+                public void onSigned(Object attachment, SignedTransaction transaction) throws IOException {
+                    throw new IOException("No space left on device");
+                }
+            };
+            final BulkTransferPipeline pipeline = new BulkTransferPipeline(connector, TOKEN, MAX_IN_FLIGHT, listener, 0);
+            try {
+                pipeline.submit(transfers(1));
+                fail("cannot be journaled");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertEquals(MAX_IN_FLIGHT, pipeline.getAvailablePermits());
+            assertEquals(0, pipeline.getInFlightCount());
+            assertFalse(pipeline.awaitMined());
+            pipeline.close();
+            assertEquals(0, node.getSentCount());
+        }
+    }
+
+    private static PackedTransfers transfers(int count) {
+        final PackedTransfers transfers = new PackedTransfers(18);
+        for (int i = 0; i < count; i++) {
+            transfers.add(String.format("0x%040x", i + 1), BigDecimal.ONE);
+        }
+        return transfers;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * Records the transactions signed (including the replacements), accepted and mined.
+     */
+    private static class RecordingListener implements BulkTransferPipeline.Listener {
+        final List<SignedTransaction> signed = new CopyOnWriteArrayList<>();
+        final List<SignedTransaction> accepted = new CopyOnWriteArrayList<>();
+        final List<SignedTransaction> mined = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onSigned(Object attachment, SignedTransaction transaction) throws IOException {
+            signed.add(transaction);
+        }
+
+        @Override
+        public void beforeSending(Object attachment, SignedTransaction transaction) {
+        }
+
+        @Override
+        public void onAccepted(Object attachment, SignedTransaction transaction) {
+            accepted.add(transaction);
+        }
+
+        @Override
+        public void onMined(Object attachment, SignedTransaction transaction, Confirmation confirmation) {
+            mined.add(transaction);
+        }
+
+        @Override
+        public void onFailed(Object attachment, Throwable cause) {
+        }
+    }
+}
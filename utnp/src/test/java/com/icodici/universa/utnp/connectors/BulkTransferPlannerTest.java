@@ -0,0 +1,115 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.connectors.AbstractConnector.EthereumConnection;
+import com.icodici.universa.utnp.connectors.BulkTransferPlanner.PlannedBulk;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.BULK_SENDER;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.GAS_LIMIT;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.GAS_PRICE;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.PRIVATE_KEY;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.TOKEN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link BulkTransferPlanner} with the scripted gas estimations: the bulk over the gas budget is shrunk
+ * (down to a single transfer if needed), and the single transfer over the budget fails the planning.
+ */
+public class BulkTransferPlannerTest {
+
+    private static final long MAX_GAS = BulkTransferPlanner.DEFAULT_MAX_GAS_PER_BULK;
+    private static final int MAX_TRANSFERS = 10;
+
+    @Test
+    public void shrunkToFit() throws IOException {
+        // A million per transfer: only 4 fit with the margin
+        final List<PlannedBulk> bulks = plan(12, size -> BigInteger.valueOf(size * 1000000L));
+        assertEquals(3, bulks.size());
+        assertBulk(bulks.get(0), 0, 4, 4000000);
+        assertBulk(bulks.get(1), 4, 4, 4000000);
+        assertBulk(bulks.get(2), 8, 4, 4000000);
+        assertEquals(BigInteger.valueOf((long) Math.ceil(4000000 * BulkTransferPlanner.GAS_LIMIT_MARGIN)),
+                bulks.get(0).gasLimit);
+    }
+
+    @Test
+    public void shrunkToSingle() throws IOException {
+        // Any bulk but a single transfer is so far over the budget, that not even one transfer is expected to fit
+        final List<PlannedBulk> bulks = plan(3, size -> BigInteger.valueOf((size == 1) ? 100000 : 1000000000000L));
+        assertEquals(3, bulks.size());
+        for (int i = 0; i < 3; i++) {
+            assertBulk(bulks.get(i), i, 1, 100000);
+        }
+    }
+
+    @Test
+    public void singleOverBudget() {
+        try {
+            plan(3, size -> BigInteger.valueOf(MAX_GAS * size));
+            fail("a single transfer doesn’t fit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Single transfer needs"));
+        }
+    }
+
+    /**
+     * Offer the transfers to the new holders, and plan all the bulks.
+     */
+    private static List<PlannedBulk> plan(int count, IntFunction<BigInteger> estimator) throws IOException {
+        try (final ScriptedConnector connector = new ScriptedConnector(estimator)) {
+            final BulkTransferPlanner planner = new BulkTransferPlanner(connector, TOKEN,
+                    BulkSenderConnector.UTNP_DECIMALS, MAX_GAS, MAX_TRANSFERS);
+            final List<PlannedBulk> result = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final PlannedBulk bulk = planner.offer(i, String.format("0x%040x", i + 1), BigDecimal.ONE);
+                if (bulk != null) {
+                    result.add(bulk);
+                }
+            }
+            PlannedBulk bulk;
+            while ((bulk = planner.flush()) != null) {
+                result.add(bulk);
+            }
+            return result;
+        }
+    }
+
+    private static void assertBulk(PlannedBulk bulk, long firstOrderIndex, int size, long estimatedGas) {
+        assertEquals(firstOrderIndex, bulk.firstOrderIndex);
+        assertEquals(size, bulk.transfers.size());
+        assertEquals(BigInteger.valueOf(estimatedGas), bulk.estimatedGas);
+    }
+
+    /**
+     * Estimates the gas by the number of transfers; every recipient is a new holder. Never contacts the node.
+     */
+    private static class ScriptedConnector extends BulkSenderConnector {
+        private final IntFunction<BigInteger> estimator;
+
+        ScriptedConnector(IntFunction<BigInteger> estimator) {
+            super(new EthereumConnection(EthereumConnection.Type.HTTP, "http://127.0.0.1:1/"),
+                    BULK_SENDER, PRIVATE_KEY, GAS_PRICE, GAS_LIMIT);
+            this.estimator = estimator;
+        }
+
+        @Override
+        public BigInteger estimateBulkTransferGas(String contractAddressToTransfer, PackedTransfers transfers) {
+            return estimator.apply(transfers.size());
+        }
+
+        @Override
+        public CompletableFuture<BigInteger> getTokenBalanceAsync(String tokenAddress, String holderAddress) {
+            return CompletableFuture.completedFuture(BigInteger.ZERO);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.connectors.AbstractConnector.EthereumConnection;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.journal.BurnJournal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.GAS_LIMIT;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.GAS_PRICE;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.PRIVATE_KEY;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.TOKEN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link BurnQueue} against the {@link StubNode}: the burn refused by the node leaves no nonce gap,
+ * so the next burn is mined; the burn dropped from the mempool is broadcast again, and the stuck one
+ * is replaced at the higher fees (and watched after the restart, along with the replaced one).
+ */
+public class BurnQueueTest {
+
+    private static final long REPLACEMENT_DEADLINE_MS = 500;
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("utnp-burn", ".journal");
+        Files.delete(path);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void refusedLeavesNoGap() throws Exception {
+        try (final StubNode node = new StubNode();
+             final UTNPConnector connector = new UTNPConnector(
+                     new EthereumConnection(EthereumConnection.Type.HTTP, node.getUrl()),
+                     TOKEN, PRIVATE_KEY, GAS_PRICE, GAS_LIMIT);
+             final BurnJournal journal = new BurnJournal(path, "test")) {
+            // The very first burn is refused
+            final AtomicBoolean refused = new AtomicBoolean();
+            node.setRejecter(nonce -> refused.compareAndSet(false, true) ? "insufficient funds for gas * price + value" : null);
+
+            try (final BurnQueue queue = new BurnQueue(connector, journal, 1, 0)) {
+                try {
+                    queue.submit("first", BigDecimal.ONE).join();
+                    fail("the burn must be refused");
+                } catch (CompletionException e) {
+                    assertTrue(e.getCause() instanceof TransactionRejectedException);
+                }
+
+                // Takes the nonce of the refused one
+                final CompletableFuture<String> second = queue.submit("second", BigDecimal.ONE);
+                for (int i = 0; i < 100 && !second.isDone(); i++) {
+                    node.mine();
+                    Thread.sleep(100);
+                }
+                assertTrue(second.isDone());
+                assertTrue(node.isMined(second.join()));
+                assertEquals(BigInteger.ONE, node.getMinedCount());
+                assertEquals(1, queue.getBurnCount());
+            }
+        }
+    }
+
+    @Test
+    public void droppedRebroadcast() throws Exception {
+        try (final StubNode node = new StubNode();
+             final UTNPConnector connector = createConnector(node);
+             final BurnJournal journal = new BurnJournal(path, "test");
+             final BurnQueue queue = new BurnQueue(connector, journal, 1, 0, REPLACEMENT_DEADLINE_MS, GAS_PRICE)) {
+            final CompletableFuture<String> burned = queue.submit("first", BigDecimal.ONE);
+            final String txhash = awaitBurn(journal);
+            await(() -> node.getSentCount() == 1);
+            node.drop(txhash);
+            node.mine();
+            assertFalse(burned.isDone());
+
+            // The fees cannot be raised, so the very same burn is broadcast again
+            await(() -> node.getSentCount() == 2);
+            mineUntilDone(node, burned);
+            assertEquals(txhash, burned.join());
+            assertEquals(txhash, journal.getBurnTxhash("first"));
+        }
+    }
+
+    @Test
+    public void stuckReplaced() throws Exception {
+        try (final StubNode node = new StubNode();
+             final UTNPConnector connector = createConnector(node)) {
+            final String original, replacement;
+            final CompletableFuture<String> burned;
+            try (final BurnJournal journal = new BurnJournal(path, "test");
+                 final BurnQueue queue = new BurnQueue(connector, journal, 1, 0,
+                         REPLACEMENT_DEADLINE_MS, GAS_PRICE.multiply(BigInteger.TEN))) {
+                burned = queue.submit("first", BigDecimal.ONE);
+                original = awaitBurn(journal);
+                // Not mined till the deadline
+                await(() -> journal.getUnconfirmed().get(0).getVariants().size() == 2 && node.getSentCount() == 2);
+                final SignedTransaction latest = journal.getUnconfirmed().get(0).getLatest();
+                replacement = latest.txhash;
+                assertTrue(latest.getFees().getGasPrice().compareTo(GAS_PRICE) > 0);
+            }
+            try {
+                burned.join();
+                fail("the queue is closed");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+
+            // After the restart, the replacement (the only one left in the pool) is watched
+            try (final BurnJournal journal = new BurnJournal(path, "test");
+                 final BurnQueue queue = new BurnQueue(connector, journal, 1, 0,
+                         REPLACEMENT_DEADLINE_MS, GAS_PRICE.multiply(BigInteger.TEN))) {
+                final CompletableFuture<String> resumed = queue.submit("first", BigDecimal.ONE);
+                mineUntilDone(node, resumed);
+                assertEquals(replacement, resumed.join());
+                assertFalse(node.isMined(original));
+                assertEquals(replacement, journal.getBurnTxhash("first"));
+                assertEquals(1, queue.getBurnCount());
+            }
+        }
+    }
+
+    private static UTNPConnector createConnector(StubNode node) {
+        return new UTNPConnector(new EthereumConnection(EthereumConnection.Type.HTTP, node.getUrl()),
+                TOKEN, PRIVATE_KEY, GAS_PRICE, GAS_LIMIT);
+    }
+
+    /**
+     * Wait for the burn to be journaled.
+     *
+     * @return its txhash.
+     */
+    private static String awaitBurn(BurnJournal journal) throws InterruptedException {
+        await(() -> !journal.getUnconfirmed().isEmpty());
+        return journal.getUnconfirmed().get(0).transaction.txhash;
+    }
+
+    private static void mineUntilDone(StubNode node, CompletableFuture<?> future) throws InterruptedException {
+        for (int i = 0; i < 100 && !future.isDone(); i++) {
+            node.mine();
+            Thread.sleep(100);
+        }
+        assertTrue(future.isDone());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,161 @@
+package com.icodici.universa.utnp.connectors;
+
+import org.junit.After;
+import org.junit.Test;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthLog;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link LogScanner} over the scripted node, with a log in every block: the queries too heavy for the node
+ * (refused, timed out or answered with the response too large) are bisected, and the halves never exceed
+ * the limit of the concurrent queries; the unreachable node fails the scan at once.
+ */
+public class LogScannerTest {
+
+    private static final String CONTRACT = "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7";
+    private static final int BLOCK_COUNT = 64;
+    private static final int BLOCKS_PER_QUERY = 16;
+    private static final int MAX_CONCURRENT_QUERIES = 2;
+    /**
+     * The node handles the queries of up to this many blocks.
+     */
+    private static final int MAX_BLOCKS_HANDLED = 3;
+
+    private final ScriptedService service = new ScriptedService();
+
+    @After
+    public void tearDown() {
+        service.scheduler.shutdownNow();
+    }
+
+    @Test
+    public void refusedBisectedWithinLimit() throws Exception {
+        final LogScanner<Long> scanner = createScanner();
+        assertEquals(allBlocks(), scan(scanner));
+        assertTrue(scanner.getBisectionCount() > 0);
+        assertTrue("at most " + service.maxRunning.get(), service.maxRunning.get() <= MAX_CONCURRENT_QUERIES);
+    }
+
+    @Test
+    public void heavyBisected() throws Exception {
+        for (final IOException failure : Arrays.asList(
+                new SocketTimeoutException("Read timed out"),
+                new IOException("Node responded with HTTP 413"))) {
+            service.heavyQueryFailure = failure;
+            final LogScanner<Long> scanner = createScanner();
+            assertEquals(allBlocks(), scan(scanner));
+            assertTrue(scanner.getBisectionCount() > 0);
+        }
+        assertTrue("at most " + service.maxRunning.get(), service.maxRunning.get() <= MAX_CONCURRENT_QUERIES);
+    }
+
+    @Test
+    public void unreachableNotBisected() throws Exception {
+        service.unreachable = true;
+        final LogScanner<Long> scanner = createScanner();
+        try {
+            scan(scanner);
+            fail("unreachable");
+        } catch (ConnectException e) {
+            // Expected
+        }
+        assertEquals(0, scanner.getBisectionCount());
+        assertTrue(scanner.getQueryCount() <= MAX_CONCURRENT_QUERIES);
+    }
+
+    private LogScanner<Long> createScanner() {
+        return new LogScanner<>(Web3j.build(service), CONTRACT, Collections.emptyList(),
+                log -> log.getBlockNumber().longValue(), BLOCKS_PER_QUERY, MAX_CONCURRENT_QUERIES);
+    }
+
+    private static List<Long> scan(LogScanner<Long> scanner) throws IOException, InterruptedException {
+        final List<Long> found = new ArrayList<>();
+        assertEquals(BLOCK_COUNT, scanner.scan(0, BLOCK_COUNT - 1, found::add));
+        return found;
+    }
+
+    private static List<Long> allBlocks() {
+        final List<Long> result = new ArrayList<>();
+        for (long block = 0; block < BLOCK_COUNT; block++) {
+            result.add(block);
+        }
+        return result;
+    }
+
+    /**
+     * Answers <code>eth_getLogs</code> a bit later, with a log in every block; the queries over more than
+     * {@link #MAX_BLOCKS_HANDLED} blocks are refused, or fail with {@link #heavyQueryFailure} if it is set.
+     */
+    private static class ScriptedService implements Web3jService {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        volatile IOException heavyQueryFailure = null;
+        volatile boolean unreachable = false;
+
+        @Override
+        public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+            assertEquals("eth_getLogs", request.getMethod());
+            final EthFilter filter = (EthFilter) request.getParams().get(0);
+            final long fromBlock = ((DefaultBlockParameterNumber) filter.getFromBlock()).getBlockNumber().longValueExact();
+            final long toBlock = ((DefaultBlockParameterNumber) filter.getToBlock()).getBlockNumber().longValueExact();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+
+            final CompletableFuture<T> result = new CompletableFuture<>();
+            scheduler.schedule(() -> {
+                running.decrementAndGet();
+                final boolean heavy = toBlock - fromBlock + 1 > MAX_BLOCKS_HANDLED;
+                if (unreachable) {
+                    result.completeExceptionally(new ConnectException("Connection refused"));
+                } else if (heavy && heavyQueryFailure != null) {
+                    result.completeExceptionally(heavyQueryFailure);
+                } else {
+                    final EthLog response = new EthLog();
+                    if (heavy) {
+                        response.setError(new Response.Error(-32005, "query returned more than 10000 results"));
+                    } else {
+                        final List<EthLog.LogResult> logs = new ArrayList<>();
+                        for (long block = fromBlock; block <= toBlock; block++) {
+                            final EthLog.LogObject log = new EthLog.LogObject();
+                            log.setBlockNumber(Numeric.encodeQuantity(BigInteger.valueOf(block)));
+                            logs.add(log);
+                        }
+                        response.setResult(logs);
+                    }
+                    result.complete((T) response);
+                }
+            }, 10, TimeUnit.MILLISECONDS);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.icodici.universa.utnp.connectors;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Conversion of the amounts to the minimal units by {@link PackedTransfers}: the <code>long</code> fast path
+ * must give the same <code>uint256</code> as the {@link BigInteger} arithmetic.
+ */
+public class PackedTransfersTest {
+
+    @Test
+    public void minimalUnits() {
+        // Negative scale
+        assertMinimalUnits("1E+3", 0);
+        assertMinimalUnits("1E+3", 18);
+        assertMinimalUnits("12E+17", 1);
+        // Trailing zeros, also beyond the decimals
+        assertMinimalUnits("1.500", 3);
+        assertMinimalUnits("1.500", 18);
+        assertMinimalUnits("1.500", 1);
+        assertMinimalUnits("100.000000000000000000000", 0);
+        // Precision 18 (fits long) and 19 (may not)
+        assertMinimalUnits("999999999999999999", 0);
+        assertMinimalUnits("0.999999999999999999", 18);
+        assertMinimalUnits("9999999999999999999", 0);
+        assertMinimalUnits("9.999999999999999999", 18);
+        assertMinimalUnits("9223372036854775807", 0);
+        assertMinimalUnits("9223372036854775808", 0);
+        // unscaled * multiplier overflows long
+        assertMinimalUnits("922337203685477581", 1);
+        assertMinimalUnits("92233720368547758.08", 3);
+        assertMinimalUnits("1000000000", 18);
+        assertMinimalUnits("99999999999999999", 18);
+        // The maximum uint256
+        assertMinimalUnits(new BigDecimal(BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE), 18).toPlainString(), 18);
+    }
+
+    @Test
+    public void randomMinimalUnits() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            final long unscaled = random.nextLong() >>> random.nextInt(64);
+            final int decimals = random.nextInt(25);
+            final int scale = random.nextInt(decimals + 6) - 5;
+            if (unscaled > 0) {
+                assertMinimalUnits(BigDecimal.valueOf(unscaled, scale).toString(), decimals);
+            }
+        }
+    }
+
+    @Test
+    public void invalidAmounts() {
+        assertInvalid("1.05", 1);
+        assertInvalid("0.0000000000000000001", 18);
+        assertInvalid("1.5", 0);
+        assertInvalid(new BigDecimal(BigInteger.ONE.shiftLeft(256)).toPlainString(), 0);
+        assertInvalid("1E+60", 18);
+    }
+
+    private static void assertMinimalUnits(String amount, int decimals) {
+        final BigInteger expected = new BigDecimal(amount).setScale(decimals, RoundingMode.UNNECESSARY).unscaledValue();
+        final byte[] dest = new byte[PackedTransfers.AMOUNT_SIZE + 2];
+        PackedTransfers.writeMinimalUnits(new BigDecimal(amount), decimals, dest, 1);
+        final byte[] slot = Arrays.copyOfRange(dest, 1, 1 + PackedTransfers.AMOUNT_SIZE);
+        assertEquals(amount + " @ " + decimals, expected, new BigInteger(1, slot));
+        // Nothing is written outside the slot
+        assertEquals(0, dest[0]);
+        assertEquals(0, dest[dest.length - 1]);
+
+        final PackedTransfers transfers = new PackedTransfers(decimals);
+        transfers.add("0x0000000000000000000000000000000000000001", new BigDecimal(amount));
+        final byte[] copy = new byte[PackedTransfers.AMOUNT_SIZE];
+        transfers.copyAmount(0, copy, 0);
+        assertArrayEquals(slot, copy);
+    }
+
+    private static void assertInvalid(String amount, int decimals) {
+        try {
+            PackedTransfers.writeMinimalUnits(new BigDecimal(amount), decimals, new byte[PackedTransfers.AMOUNT_SIZE], 0);
+            fail(amount + " @ " + decimals + " must be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
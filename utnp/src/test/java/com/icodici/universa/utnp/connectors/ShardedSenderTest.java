@@ -0,0 +1,263 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.icodici.universa.utnp.connectors.AbstractConnector.EthereumConnection;
+import com.icodici.universa.utnp.connectors.ShardedSender.Shard;
+import com.icodici.universa.utnp.journal.PaymentIndex;
+import com.icodici.universa.utnp.journal.SendJournal;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import com.icodici.universa.utnp.orders.OrderReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.BULK_SENDER;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.GAS_LIMIT;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.GAS_PRICE;
+import static com.icodici.universa.utnp.connectors.BulkTransferPipelineTest.TOKEN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link ShardedSender} with every shard sending to its own {@link StubNode}: the chunks are dealt in turn,
+ * the orders of the stopped (or failed) shards go to the other ones, and every order is sent once at most;
+ * the file ending before the expected orders fails the sending, once the orders dealt are sent.
+ */
+public class ShardedSenderTest {
+
+    private static final int MAX_TRANSFERS = 2;
+    private static final int CHUNK_SIZE = MAX_TRANSFERS * 2;
+    /**
+     * Every order is for a single token.
+     */
+    private static final BigInteger TOKEN_UNITS = BigInteger.TEN.pow(BulkSenderConnector.UTNP_DECIMALS.intValue());
+    private static final BigInteger PLENTY = BigInteger.TEN.pow(30);
+
+    private Path directory;
+    private PaymentIndex paymentIndex;
+    private final List<StubNode> nodes = new ArrayList<>();
+    private final List<Shard> shards = new ArrayList<>();
+    private boolean closed = false;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("utnp-shards");
+        paymentIndex = new PaymentIndex(directory.resolve("paid.index"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        closeShards();
+        nodes.forEach(StubNode::close);
+        paymentIndex.close();
+        try (final Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void dealing() throws Exception {
+        startShards(PLENTY, PLENTY, PLENTY);
+        // The chunk of orders 8-11 is planned already
+        final NavigableMap<Long, Long> planned = new TreeMap<>(Collections.singletonMap(8L, 11L));
+
+        assertEquals(0, send(24, 20, planned, null));
+        for (final Shard shard : shards) {
+            assertNull(shard.getStopReason());
+        }
+        final Map<Long, Integer> sentBy = finish();
+        assertEquals(20, sentBy.size());
+        // Chunks 0, 1, 2, 3, 4 are orders 0-3, 4-7, 12-15, 16-19, 20-23
+        assertSentBy(sentBy, 1, 0, 3);
+        assertSentBy(sentBy, 2, 4, 7);
+        assertSentBy(sentBy, 3, 12, 15);
+        assertSentBy(sentBy, 1, 16, 19);
+        assertSentBy(sentBy, 2, 20, 23);
+        assertEquals(Arrays.asList(8L, 8L, 4L), Arrays.asList(
+                shards.get(0).getOrdersSent(), shards.get(1).getOrdersSent(), shards.get(2).getOrdersSent()));
+        assertPaid(sentBy);
+    }
+
+    @Test
+    public void rebalancing() throws Exception {
+        // The second shard can afford a single bulk only
+        startShards(PLENTY, TOKEN_UNITS.multiply(BigInteger.valueOf(3)));
+
+        assertEquals(0, send(16, 16, new TreeMap<>(), null));
+        assertNull(shards.get(0).getStopReason());
+        assertNotNull(shards.get(1).getStopReason());
+        final Map<Long, Integer> sentBy = finish();
+        assertEquals(16, sentBy.size());
+        assertSentBy(sentBy, 2, 4, 5);
+        assertSentBy(sentBy, 1, 6, 7);
+        assertEquals(14, shards.get(0).getOrdersSent());
+        assertEquals(2, shards.get(1).getOrdersSent());
+        assertPaid(sentBy);
+    }
+
+    @Test
+    public void failedShard() throws Exception {
+        startShards(PLENTY, PLENTY);
+
+        // The second shard fails right after submitting orders 6-7
+        final long unsent = send(16, 16, new TreeMap<>(), (range, txid) -> {
+            if (range.firstOrderIndex == 6) {
+                throw new RuntimeException("test failure");
+            }
+        });
+        // They might have not been sent; but they are not given to the other shard
+        assertEquals(2, unsent);
+        assertNotNull(shards.get(1).getStopReason());
+        final Map<Long, Integer> sentBy = finish();
+        assertEquals(16, sentBy.size());
+        assertSentBy(sentBy, 2, 4, 7);
+        assertEquals(12, shards.get(0).getOrdersSent());
+        assertPaid(sentBy);
+    }
+
+    @Test
+    public void allStopped() throws Exception {
+        startShards(BigInteger.ZERO, BigInteger.ZERO);
+
+        assertEquals(16, send(16, 16, new TreeMap<>(), null));
+        assertTrue(finish().isEmpty());
+        assertFalse(paymentIndex.containsOrder("order-0"));
+    }
+
+    @Test
+    public void truncatedFile() throws Exception {
+        startShards(PLENTY, PLENTY);
+        try {
+            send(12, 16, new TreeMap<>(), null);
+            fail("the file has changed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("changed since the validation pass"));
+        }
+        // The chunks dealt before are still sent
+        assertEquals(12, finish().size());
+    }
+
+    /**
+     * Start a shard per budget (in the minimal token units), each sending to its own node.
+     */
+    private void startShards(BigInteger... tokens) throws IOException {
+        for (int i = 0; i < tokens.length; i++) {
+            final StubNode node = new StubNode();
+            nodes.add(node);
+            final byte[] privateKey = new byte[32];
+            privateKey[31] = (byte) (i + 1);
+            final BulkSenderConnector connector = new BulkSenderConnector(
+                    new EthereumConnection(EthereumConnection.Type.HTTP, node.getUrl()),
+                    BULK_SENDER, privateKey, GAS_PRICE, GAS_LIMIT);
+            final Shard shard = new Shard(i + 1, BULK_SENDER, connector,
+                    new BulkTransferPlanner(null, TOKEN, BulkSenderConnector.UTNP_DECIMALS,
+                            BulkTransferPlanner.DEFAULT_MAX_GAS_PER_BULK, MAX_TRANSFERS),
+                    new SendJournal(journalPath(i + 1), "test", 0), paymentIndex);
+            shard.setPipeline(new BulkTransferPipeline(connector, TOKEN, 16, shard.recorder, 0));
+            shard.setBudget(tokens[i], PLENTY);
+            shards.add(shard);
+        }
+    }
+
+    /**
+     * Send <code>count</code> orders (not planned yet) of the file of <code>total</code> ones.
+     */
+    private long send(int total,
+                      long count,
+                      NavigableMap<Long, Long> planned,
+                      BiConsumer<BulkRange, CompletableFuture<String>> onSubmitted) throws Exception {
+        final StringBuilder csv = new StringBuilder("uuid,address,amount\n");
+        for (int i = 0; i < total; i++) {
+            csv.append(String.format("order-%s,0x%040x,1\n", i, i + 1));
+        }
+        final Path ordersPath = directory.resolve("orders.csv");
+        Files.write(ordersPath, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (final OrderReader reader = OrderReader.open(ordersPath)) {
+            return new ShardedSender(shards, CHUNK_SIZE, onSubmitted).send(reader, count, planned);
+        }
+    }
+
+    /**
+     * Mine everything sent, and close the shards.
+     *
+     * @return the number of the shard which has sent every order (each must be sent once at most), by its index.
+     */
+    private Map<Long, Integer> finish() throws Exception {
+        for (int i = 0; i < shards.size(); i++) {
+            final BulkTransferPipeline pipeline = shards.get(i).getPipeline();
+            // The last bulks may reach the node after the first block
+            for (int attempt = 0; attempt < 100 && pipeline.getInFlightCount() > 0; attempt++) {
+                nodes.get(i).mine();
+                Thread.sleep(100);
+            }
+            assertTrue(pipeline.awaitMined());
+            assertNull(pipeline.getFailure());
+        }
+        closeShards();
+
+        final Map<Long, Integer> result = new TreeMap<>();
+        for (int number = 1; number <= nodes.size(); number++) {
+            final Map<Long, BulkRange> ranges = new TreeMap<>();
+            for (final BulkRange range : SendJournal.readPlanned(journalPath(number)).values()) {
+                ranges.put(range.firstOrderIndex, range);
+            }
+            for (final BulkRange range : ranges.values()) {
+                for (long index = range.firstOrderIndex; index <= range.lastOrderIndex; index++) {
+                    assertNull("order " + index + " is sent twice", result.put(index, number));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void closeShards() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Shard shard : shards) {
+            shard.getPipeline().close();
+            shard.connector.close();
+            shard.journal.close();
+        }
+    }
+
+    private Path journalPath(int shardNumber) {
+        return directory.resolve("send.journal." + shardNumber);
+    }
+
+    private static void assertSentBy(Map<Long, Integer> sentBy, int shardNumber, long firstOrder, long lastOrder) {
+        for (long index = firstOrder; index <= lastOrder; index++) {
+            assertEquals("order " + index, Integer.valueOf(shardNumber), sentBy.get(index));
+        }
+    }
+
+    private void assertPaid(Map<Long, Integer> sentBy) {
+        for (final long index : sentBy.keySet()) {
+            assertTrue("order " + index, paymentIndex.containsOrder("order-" + index));
+        }
+    }
+}
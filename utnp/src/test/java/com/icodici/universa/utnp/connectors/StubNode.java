@@ -0,0 +1,345 @@
+package com.icodici.universa.utnp.connectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.web3j.crypto.Hash;
+import org.web3j.rlp.RlpDecoder;
+import org.web3j.rlp.RlpList;
+import org.web3j.rlp.RlpString;
+import org.web3j.utils.Numeric;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * The minimal Ethereum node for the tests, serving JSON-RPC over HTTP on the loopback interface.
+ * <p>
+ * It knows a single sending account (the sender of the transactions is not recovered): the transactions wait
+ * in the pool until {@link #mine()} puts the ones with the consecutive nonces into the next block.
+ * The node refuses the transactions as geth does ("nonce too low", "already known"); the tests may
+ * also refuse them on their own, by the {@link #setRejecter(Function) rejecter}.
+ */
+public class StubNode implements Closeable {
+
+    private static final JsonNodeFactory json = JsonNodeFactory.instance;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @NonNull
+    private final HttpServer server;
+    @NonNull
+    private final ExecutorService httpExecutor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "stub-node");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // All the state is guarded by the node itself
+
+    /**
+     * The pending transactions, by their nonces.
+     */
+    @NonNull
+    private final TreeMap<BigInteger, String> pool = new TreeMap<>();
+    /**
+     * The nonces of all the accepted transactions (pending or mined), by their txhashes.
+     */
+    @NonNull
+    private final Map<String, BigInteger> nonces = new HashMap<>();
+    /**
+     * The block numbers of the mined transactions, by their txhashes.
+     */
+    @NonNull
+    private final Map<String, Long> minedIn = new HashMap<>();
+    /**
+     * The txhashes of the transactions in every block; block 0 is empty.
+     */
+    @NonNull
+    private final List<List<String>> blocks = new ArrayList<>(Collections.singletonList(Collections.emptyList()));
+    @NonNull
+    private final Set<String> reverted = new HashSet<>();
+    @NonNull
+    private BigInteger minedCount = BigInteger.ZERO;
+    private long sentCount = 0;
+    @Nullable
+    private Function<BigInteger, String> rejecter = null;
+
+
+    public StubNode() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(httpExecutor);
+        server.start();
+    }
+
+    @NonNull
+    public String getUrl() {
+        return String.format("http://127.0.0.1:%s/", server.getAddress().getPort());
+    }
+
+    /**
+     * Refuse the transactions by the nonce: the rejecter returns the error message, or <code>null</code>
+     * to accept the transaction.
+     */
+    public synchronized void setRejecter(@Nullable Function<BigInteger, String> rejecter) {
+        this.rejecter = rejecter;
+    }
+
+    /**
+     * Make the transaction reverted, once mined.
+     */
+    public synchronized void revert(@NonNull String txhash) {
+        reverted.add(txhash);
+    }
+
+    /**
+     * Drop the pending transaction from the pool, as the node evicting it does.
+     */
+    public synchronized void drop(@NonNull String txhash) {
+        final BigInteger nonce = nonces.get(txhash);
+        if (nonce != null && txhash.equals(pool.get(nonce))) {
+            pool.remove(nonce);
+            nonces.remove(txhash);
+        }
+    }
+
+    /**
+     * Mine the block with the given number of the transactions sent from the account by somebody else.
+     */
+    public synchronized void mineForeign(int count) {
+        final List<String> block = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String txhash = Numeric.toHexString(Hash.sha3(("foreign " + minedCount).getBytes()));
+            nonces.put(txhash, minedCount);
+            pool.remove(minedCount);
+            block.add(txhash);
+            minedCount = minedCount.add(BigInteger.ONE);
+        }
+        addBlock(block);
+    }
+
+    /**
+     * Mine the block with all the pending transactions whose nonces follow the mined ones.
+     *
+     * @return how many transactions have been mined.
+     */
+    public synchronized int mine() {
+        final List<String> block = new ArrayList<>();
+        String txhash;
+        while ((txhash = pool.remove(minedCount)) != null) {
+            block.add(txhash);
+            minedCount = minedCount.add(BigInteger.ONE);
+        }
+        addBlock(block);
+        return block.size();
+    }
+
+    public synchronized boolean isMined(@NonNull String txhash) {
+        return minedIn.containsKey(txhash);
+    }
+
+    /**
+     * The nonce the next transaction of the account must have to be mined.
+     */
+    @NonNull
+    public synchronized BigInteger getMinedCount() {
+        return minedCount;
+    }
+
+    /**
+     * How many <code>eth_sendRawTransaction</code> requests have been received (accepted or not).
+     */
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        httpExecutor.shutdownNow();
+    }
+
+    private void addBlock(@NonNull List<String> block) {
+        final long number = blocks.size();
+        block.forEach(txhash -> minedIn.put(txhash, number));
+        blocks.add(block);
+    }
+
+    private void handle(@NonNull HttpExchange exchange) throws IOException {
+        try {
+            final JsonNode request;
+            try (final InputStream in = exchange.getRequestBody()) {
+                request = mapper.readTree(in);
+            }
+            final JsonNode response;
+            if (request.isArray()) {
+                final ArrayNode responses = json.arrayNode();
+                request.forEach(single -> responses.add(handleSingle(single)));
+                response = responses;
+            } else {
+                response = handleSingle(request);
+            }
+            final byte[] body = mapper.writeValueAsBytes(response);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (IOException | RuntimeException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @NonNull
+    private ObjectNode handleSingle(@NonNull JsonNode request) {
+        final ObjectNode response = json.objectNode();
+        response.put("jsonrpc", "2.0");
+        response.set("id", request.get("id"));
+        try {
+            response.set("result", call(request.path("method").asText(), request.path("params")));
+        } catch (IllegalStateException e) {
+            final ObjectNode error = response.putObject("error");
+            error.put("code", -32000);
+            error.put("message", e.getMessage());
+        }
+        return response;
+    }
+
+    @NonNull
+    private synchronized JsonNode call(@NonNull String method, @NonNull JsonNode params) {
+        switch (method) {
+            case "net_version":
+                return json.textNode("1");
+            case "eth_gasPrice":
+                return quantity(BigInteger.ONE);
+            case "eth_blockNumber":
+                return quantity(BigInteger.valueOf(blocks.size() - 1));
+            case "eth_getBlockByNumber": {
+                final String tag = params.path(0).asText();
+                final long number = tag.equals("latest") ? blocks.size() - 1 : Numeric.decodeQuantity(tag).longValueExact();
+                return (number >= blocks.size()) ? json.nullNode() : block(number);
+            }
+            case "eth_getTransactionCount":
+                return quantity(params.path(1).asText().equals("pending") ? getPendingCount() : minedCount);
+            case "eth_sendRawTransaction":
+                return json.textNode(send(params.path(0).asText()));
+            case "eth_getTransactionByHash": {
+                final String txhash = params.path(0).asText();
+                if (!nonces.containsKey(txhash)) {
+                    return json.nullNode();
+                }
+                final ObjectNode transaction = json.objectNode();
+                transaction.put("hash", txhash);
+                transaction.set("nonce", quantity(nonces.get(txhash)));
+                final Long blockNumber = minedIn.get(txhash);
+                transaction.set("blockNumber", (blockNumber == null) ? json.nullNode() : quantity(BigInteger.valueOf(blockNumber)));
+                return transaction;
+            }
+            case "eth_getTransactionReceipt": {
+                final String txhash = params.path(0).asText();
+                final Long blockNumber = minedIn.get(txhash);
+                if (blockNumber == null) {
+                    return json.nullNode();
+                }
+                final ObjectNode receipt = json.objectNode();
+                receipt.put("transactionHash", txhash);
+                receipt.set("blockNumber", quantity(BigInteger.valueOf(blockNumber)));
+                receipt.put("blockHash", blockHash(blockNumber));
+                receipt.put("status", reverted.contains(txhash) ? "0x0" : "0x1");
+                receipt.set("gasUsed", quantity(BigInteger.valueOf(50000)));
+                receipt.set("cumulativeGasUsed", quantity(BigInteger.valueOf(50000)));
+                receipt.putArray("logs");
+                return receipt;
+            }
+            default:
+                throw new IllegalStateException("the method " + method + " does not exist/is not available");
+        }
+    }
+
+    @NonNull
+    private String send(@NonNull String hex) {
+        sentCount++;
+        final byte[] raw = Numeric.hexStringToByteArray(hex);
+        final String txhash = Numeric.toHexString(Hash.sha3(raw));
+        final BigInteger nonce = decodeNonce(raw);
+        final String rejection = (rejecter == null) ? null : rejecter.apply(nonce);
+        if (rejection != null) {
+            throw new IllegalStateException(rejection);
+        }
+        if (nonces.containsKey(txhash)) {
+            throw new IllegalStateException("already known");
+        }
+        if (nonce.compareTo(minedCount) < 0) {
+            throw new IllegalStateException("nonce too low");
+        }
+        final String replaced = pool.put(nonce, txhash);
+        if (replaced != null) {
+            nonces.remove(replaced);
+        }
+        nonces.put(txhash, nonce);
+        return txhash;
+    }
+
+    /**
+     * The nonce following the pending transactions without the gap.
+     */
+    @NonNull
+    private BigInteger getPendingCount() {
+        BigInteger count = minedCount;
+        while (pool.containsKey(count)) {
+            count = count.add(BigInteger.ONE);
+        }
+        return count;
+    }
+
+    /**
+     * The nonce of the legacy or EIP-1559 (type 2) transaction.
+     */
+    @NonNull
+    private static BigInteger decodeNonce(@NonNull byte[] raw) {
+        final boolean typed = (raw[0] & 0xff) < 0x7f;
+        final byte[] rlp = typed ? Arrays.copyOfRange(raw, 1, raw.length) : raw;
+        final RlpList fields = (RlpList) RlpDecoder.decode(rlp).getValues().get(0);
+        final RlpString nonce = (RlpString) fields.getValues().get(typed ? 1 : 0);
+        return new BigInteger(1, nonce.getBytes());
+    }
+
+    @NonNull
+    private ObjectNode block(long number) {
+        final ObjectNode result = json.objectNode();
+        result.set("number", quantity(BigInteger.valueOf(number)));
+        result.put("hash", blockHash(number));
+        result.put("parentHash", (number == 0) ? Numeric.toHexString(new byte[32]) : blockHash(number - 1));
+        result.set("timestamp", quantity(BigInteger.valueOf(number)));
+        final ArrayNode transactions = result.putArray("transactions");
+        blocks.get((int) number).forEach(transactions::add);
+        return result;
+    }
+
+    @NonNull
+    private static String blockHash(long number) {
+        return String.format("0x%064x", number + 1);
+    }
+
+    @NonNull
+    private static JsonNode quantity(@NonNull BigInteger value) {
+        return json.textNode(Numeric.encodeQuantity(value));
+    }
+}
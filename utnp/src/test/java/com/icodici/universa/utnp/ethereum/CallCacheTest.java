@@ -0,0 +1,140 @@
+package com.icodici.universa.utnp.ethereum;
+
+import org.junit.Test;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link CallCache} over the scripted node: the same call is made once per block, at that very block;
+ * the new block, or {@link CallCache#invalidate()}, drops the results; the failed calls are not cached.
+ */
+public class CallCacheTest {
+
+    private static final String CONTRACT = "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7";
+    private static final String BALANCE_OF = "0x70a08231";
+    private static final String DECIMALS = "0x313ce567";
+
+    private final ScriptedService service = new ScriptedService();
+    /**
+     * The latest block is checked on every call.
+     */
+    private final CallCache cache = new CallCache(Web3j.build(service), 0);
+
+    @Test
+    public void cachedWithinBlock() {
+        assertEquals("0x10:" + BALANCE_OF, cache.call(CONTRACT, BALANCE_OF).join());
+        assertEquals("0x10:" + BALANCE_OF, cache.call(CONTRACT, BALANCE_OF).join());
+        assertEquals("0x10:" + DECIMALS, cache.call(CONTRACT, DECIMALS).join());
+        assertEquals(2, service.getCount("eth_call"));
+        assertTrue(service.getCount("eth_blockNumber") >= 3);
+    }
+
+    @Test
+    public void invalidatedOnNewBlock() {
+        cache.call(CONTRACT, BALANCE_OF).join();
+        service.blockNumber = 17;
+        assertEquals("0x11:" + BALANCE_OF, cache.call(CONTRACT, BALANCE_OF).join());
+        assertEquals("0x11:" + BALANCE_OF, cache.call(CONTRACT, BALANCE_OF).join());
+        assertEquals(2, service.getCount("eth_call"));
+        assertEquals(Arrays.asList("0x10", "0x11"), service.callBlocks);
+
+        // The same block, but the state is known to have changed
+        cache.invalidate();
+        cache.call(CONTRACT, BALANCE_OF).join();
+        assertEquals(3, service.getCount("eth_call"));
+    }
+
+    @Test
+    public void failureNotCached() {
+        service.failing = true;
+        try {
+            cache.call(CONTRACT, BALANCE_OF).join();
+            fail("the call fails");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        service.failing = false;
+        assertEquals("0x10:" + BALANCE_OF, cache.call(CONTRACT, BALANCE_OF).join());
+        assertEquals(2, service.getCount("eth_call"));
+    }
+
+    /**
+     * Answers <code>eth_blockNumber</code> with {@link #blockNumber}, and <code>eth_call</code> with the block
+     * it is made at and the call data; or refuses the calls while {@link #failing}.
+     */
+    private static class ScriptedService implements Web3jService {
+        volatile long blockNumber = 16;
+        volatile boolean failing = false;
+        /**
+         * The blocks the calls have been made at.
+         */
+        final List<String> callBlocks = new CopyOnWriteArrayList<>();
+        private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+        int getCount(String method) {
+            final AtomicInteger count = counts.get(method);
+            return (count == null) ? 0 : count.get();
+        }
+
+        @Override
+        public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+            counts.computeIfAbsent(request.getMethod(), method -> new AtomicInteger()).incrementAndGet();
+            final T response;
+            try {
+                response = responseType.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IOException(e);
+            }
+            switch (request.getMethod()) {
+                case "eth_blockNumber":
+                    response.setResult(Numeric.encodeQuantity(BigInteger.valueOf(blockNumber)));
+                    break;
+                case "eth_call":
+                    if (failing) {
+                        response.setError(new Response.Error(-32000, "header not found"));
+                    } else {
+                        final String block = Numeric.encodeQuantity(
+                                ((DefaultBlockParameterNumber) request.getParams().get(1)).getBlockNumber());
+                        callBlocks.add(block);
+                        final Transaction transaction = (Transaction) request.getParams().get(0);
+                        response.setResult(block + ":" + transaction.getData());
+                    }
+                    break;
+                default:
+                    response.setError(new Response.Error(-32601, "the method " + request.getMethod() + " does not exist"));
+            }
+            return response;
+        }
+
+        @Override
+        public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+            final CompletableFuture<T> result = new CompletableFuture<>();
+            try {
+                result.complete(send(request, responseType));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.icodici.universa.utnp.ethereum;
+
+import com.icodici.universa.utnp.connectors.StubNode;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.Hash;
+import org.web3j.crypto.RawTransaction;
+import org.web3j.crypto.TransactionEncoder;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.http.HttpService;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link ConfirmationTracker} against the {@link StubNode}: the transactions are seen in the new blocks,
+ * and the ones mined before they are tracked are found by their receipts, even if the node fails to return
+ * them at first.
+ */
+public class ConfirmationTrackerTest {
+
+    private static final long POLL_INTERVAL_MS = 20;
+    private static final String RECIPIENT = "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7";
+
+    private StubNode node;
+    private FlakyService service;
+    private ConfirmationTracker tracker;
+
+    @Before
+    public void setUp() throws IOException {
+        node = new StubNode();
+        service = new FlakyService(new HttpService(node.getUrl()));
+    }
+
+    @After
+    public void tearDown() {
+        if (tracker != null) {
+            tracker.close();
+        }
+        node.close();
+    }
+
+    @Test
+    public void minedAfterTracking() throws Exception {
+        tracker = new ConfirmationTracker(Web3j.build(service), POLL_INTERVAL_MS);
+        final String first = send(0), second = send(1);
+        final CompletableFuture<Confirmation> firstMined = tracker.track(first, false);
+        final CompletableFuture<Confirmation> secondMined = tracker.track(second, false);
+        tracker.untrack(second);
+        assertEquals(2, node.mine());
+
+        final Confirmation confirmation = firstMined.get(5, TimeUnit.SECONDS);
+        assertEquals(first, confirmation.txhash);
+        assertEquals(BigInteger.ONE, confirmation.blockNumber);
+        assertTrue(confirmation.success);
+        assertEquals(0, tracker.getTrackedCount());
+        try {
+            secondMined.join();
+            fail("untracked");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void minedBeforeTracking() throws Exception {
+        final String txhash = send(0);
+        assertEquals(1, node.mine());
+        // The block with the transaction is never scanned
+        tracker = new ConfirmationTracker(Web3j.build(service), POLL_INTERVAL_MS);
+        node.mine();
+
+        service.failing = true;
+        final CompletableFuture<Confirmation> mined = tracker.track(txhash, true);
+        for (int i = 0; i < 5; i++) {
+            node.mine();
+            Thread.sleep(POLL_INTERVAL_MS * 2);
+        }
+        assertFalse(mined.isDone());
+
+        service.failing = false;
+        assertEquals(BigInteger.ONE, mined.get(5, TimeUnit.SECONDS).blockNumber);
+        assertEquals(0, tracker.getTrackedCount());
+    }
+
+    /**
+     * Send the transaction with the given nonce.
+     *
+     * @return its txhash.
+     */
+    private String send(long nonce) throws IOException {
+        final byte[] privateKey = new byte[32];
+        privateKey[31] = 1;
+        final byte[] signed = TransactionEncoder.signMessage(
+                RawTransaction.createEtherTransaction(BigInteger.valueOf(nonce), BigInteger.ONE,
+                        BigInteger.valueOf(21000), RECIPIENT, BigInteger.ONE),
+                Credentials.create(ECKeyPair.create(privateKey)));
+        final Response<?> response = Web3j.build(service).ethSendRawTransaction(Numeric.toHexString(signed)).send();
+        assertFalse(response.hasError());
+        return Numeric.toHexString(Hash.sha3(signed));
+    }
+
+    /**
+     * Fails the <code>eth_getTransactionReceipt</code> requests while {@link #failing}.
+     */
+    private static class FlakyService implements Web3jService {
+        private final Web3jService delegate;
+        volatile boolean failing = false;
+
+        FlakyService(Web3jService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+            if (isFailed(request)) {
+                throw new IOException("Connection reset");
+            }
+            return delegate.send(request, responseType);
+        }
+
+        @Override
+        public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+            if (isFailed(request)) {
+                final CompletableFuture<T> result = new CompletableFuture<>();
+                result.completeExceptionally(new IOException("Connection reset"));
+                return result;
+            }
+            return delegate.sendAsync(request, responseType);
+        }
+
+        private boolean isFailed(Request request) {
+            return failing && request.getMethod().equals("eth_getTransactionReceipt");
+        }
+    }
+}
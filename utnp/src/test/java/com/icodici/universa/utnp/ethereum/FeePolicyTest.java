@@ -0,0 +1,55 @@
+package com.icodici.universa.utnp.ethereum;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link FeePolicy}: the new transactions are never sent above the cap, and the replacements raise
+ * the fees by {@link FeePolicy#BUMP_PERCENT} (up to the cap), or not at all if the node wouldn’t accept them.
+ */
+public class FeePolicyTest {
+
+    private static final BigInteger GWEI = BigInteger.valueOf(1000000000);
+
+    @Test
+    public void cappedFees() throws IOException {
+        assertEquals(TransactionFees.legacy(gwei(20)), new FeePolicy(TransactionFees.legacy(gwei(20)), gwei(30)).getFees());
+        assertEquals(TransactionFees.legacy(gwei(15)), new FeePolicy(TransactionFees.legacy(gwei(20)), gwei(15)).getFees());
+        // The priority fee never exceeds the capped fee
+        assertEquals(TransactionFees.eip1559(gwei(15), gwei(15)),
+                new FeePolicy(TransactionFees.eip1559(gwei(40), gwei(20)), gwei(15)).getFees());
+    }
+
+    @Test
+    public void replacementFees() {
+        final FeePolicy policy = new FeePolicy(TransactionFees.legacy(gwei(20)), gwei(100));
+        assertEquals(TransactionFees.legacy(gwei(25)), policy.getReplacementFees(TransactionFees.legacy(gwei(20))));
+        assertEquals(TransactionFees.eip1559(gwei(50), gwei(5)),
+                policy.getReplacementFees(TransactionFees.eip1559(gwei(40), gwei(4))));
+        // Rounded up, so never less than the bump
+        assertEquals(TransactionFees.legacy(BigInteger.valueOf(2)), policy.getReplacementFees(TransactionFees.legacy(BigInteger.ONE)));
+    }
+
+    @Test
+    public void replacementCapped() {
+        // Capped, but still enough for the node to replace the transaction
+        assertEquals(TransactionFees.legacy(gwei(22)),
+                new FeePolicy(TransactionFees.legacy(gwei(20)), gwei(22)).getReplacementFees(TransactionFees.legacy(gwei(20))));
+        // Not raised enough
+        assertNull(new FeePolicy(TransactionFees.legacy(gwei(20)), gwei(21)).getReplacementFees(TransactionFees.legacy(gwei(20))));
+        // Already at the cap
+        assertNull(new FeePolicy(TransactionFees.legacy(gwei(20)), gwei(20)).getReplacementFees(TransactionFees.legacy(gwei(20))));
+        // The priority fee is raised enough, but the fee cap is not
+        assertNull(new FeePolicy(TransactionFees.eip1559(gwei(40), gwei(4)), gwei(42))
+                .getReplacementFees(TransactionFees.eip1559(gwei(40), gwei(4))));
+    }
+
+    private static BigInteger gwei(long value) {
+        return GWEI.multiply(BigInteger.valueOf(value));
+    }
+}
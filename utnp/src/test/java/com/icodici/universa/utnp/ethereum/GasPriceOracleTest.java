@@ -0,0 +1,168 @@
+package com.icodici.universa.utnp.ethereum;
+
+import com.icodici.universa.utnp.ethereum.GasPriceOracle.FeeHistory;
+import org.junit.Test;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link GasPriceOracle} over the scripted node: the fees suggested by <code>eth_feeHistory</code>,
+ * the legacy gas price while it fails (and <code>eth_feeHistory</code> tried again later),
+ * and the stale suggestion while the node cannot be reached.
+ */
+public class GasPriceOracleTest {
+
+    private static final BigInteger GWEI = BigInteger.valueOf(1000000000);
+
+    @Test
+    public void eip1559() throws IOException {
+        final ScriptedService service = new ScriptedService();
+        // The empty block tells nothing about the priority fees
+        service.feeHistory = history(Arrays.asList(10, 12, 20), Arrays.asList(0.5, 0.0, 0.7), Arrays.asList(1, 9, 2));
+        final TransactionFees fees = createOracle(service, 0).suggest();
+        // The median of 1 and 2 Gwei is taken as the higher one; the next base fee is doubled
+        assertEquals(TransactionFees.eip1559(GWEI.multiply(BigInteger.valueOf(42)), GWEI.multiply(BigInteger.valueOf(2))), fees);
+
+        service.feeHistory = history(Arrays.asList(10, 12, 20), Arrays.asList(0.0, 0.0, 0.0), Arrays.asList(1, 9, 2));
+        assertEquals(TransactionFees.eip1559(GWEI.multiply(BigInteger.valueOf(40)).add(GasPriceOracle.MIN_PRIORITY_FEE),
+                GasPriceOracle.MIN_PRIORITY_FEE), createOracle(service, 0).suggest());
+    }
+
+    @Test
+    public void legacyRechecked() throws Exception {
+        final ScriptedService service = new ScriptedService();
+        service.feeHistory = null;
+        final GasPriceOracle oracle = createOracle(service, 200);
+        assertEquals(TransactionFees.legacy(GWEI.multiply(BigInteger.valueOf(7))), oracle.suggest());
+        // Not asked again for a while
+        service.feeHistory = history(Arrays.asList(10, 12, 20), Arrays.asList(0.5, 0.5, 0.5), Arrays.asList(1, 1, 1));
+        assertEquals(TransactionFees.legacy(GWEI.multiply(BigInteger.valueOf(7))), oracle.suggest());
+        assertEquals(1, service.getCount("eth_feeHistory"));
+
+        Thread.sleep(300);
+        assertEquals(TransactionFees.eip1559(GWEI.multiply(BigInteger.valueOf(41)), GWEI), oracle.suggest());
+        assertEquals(2, service.getCount("eth_feeHistory"));
+    }
+
+    @Test
+    public void staleWhileUnreachable() throws IOException {
+        final ScriptedService service = new ScriptedService();
+        service.down = true;
+        final GasPriceOracle oracle = createOracle(service, 0);
+        try {
+            oracle.suggest();
+            fail("nothing suggested before");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        service.down = false;
+        service.feeHistory = null;
+        final TransactionFees fees = oracle.suggest();
+        service.down = true;
+        assertEquals(fees, oracle.suggest());
+    }
+
+    /**
+     * The oracle with no caching.
+     */
+    private static GasPriceOracle createOracle(ScriptedService service, long legacyRecheckMs) {
+        return new GasPriceOracle(Web3j.build(service), service, 3, 0, legacyRecheckMs);
+    }
+
+    /**
+     * The history of the blocks (in Gwei), with the base fee of the next one last.
+     */
+    private static FeeHistory history(List<Integer> baseFees, List<Double> gasUsedRatios, List<Integer> rewards) {
+        final FeeHistory history = new FeeHistory();
+        history.oldestBlock = "0x1";
+        history.baseFeePerGas = gwei(baseFees);
+        history.gasUsedRatio = gasUsedRatios;
+        history.reward = new ArrayList<>();
+        for (final String reward : gwei(rewards)) {
+            history.reward.add(Collections.singletonList(reward));
+        }
+        return history;
+    }
+
+    private static List<String> gwei(List<Integer> values) {
+        final List<String> result = new ArrayList<>();
+        for (final int value : values) {
+            result.add(Numeric.encodeQuantity(GWEI.multiply(BigInteger.valueOf(value))));
+        }
+        return result;
+    }
+
+    /**
+     * Answers <code>eth_feeHistory</code> with {@link #feeHistory} (or the error, if it is <code>null</code>),
+     * and <code>eth_gasPrice</code> with 7 Gwei; or fails everything while {@link #down}.
+     */
+    private static class ScriptedService implements Web3jService {
+        volatile FeeHistory feeHistory = null;
+        volatile boolean down = false;
+        private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+        int getCount(String method) {
+            final AtomicInteger count = counts.get(method);
+            return (count == null) ? 0 : count.get();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+            counts.computeIfAbsent(request.getMethod(), method -> new AtomicInteger()).incrementAndGet();
+            if (down) {
+                throw new IOException("Connection refused");
+            }
+            final T response;
+            try {
+                response = responseType.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IOException(e);
+            }
+            switch (request.getMethod()) {
+                case "eth_feeHistory":
+                    if (feeHistory == null) {
+                        response.setError(new Response.Error(-32601, "the method eth_feeHistory does not exist/is not available"));
+                    } else {
+                        response.setResult(feeHistory);
+                    }
+                    break;
+                case "eth_gasPrice":
+                    response.setResult(Numeric.encodeQuantity(GWEI.multiply(BigInteger.valueOf(7))));
+                    break;
+                default:
+                    response.setError(new Response.Error(-32601, "the method " + request.getMethod() + " does not exist"));
+            }
+            return response;
+        }
+
+        @Override
+        public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+            final CompletableFuture<T> result = new CompletableFuture<>();
+            try {
+                result.complete(send(request, responseType));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+    }
+}
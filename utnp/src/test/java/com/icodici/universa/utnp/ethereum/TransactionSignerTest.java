@@ -0,0 +1,114 @@
+package com.icodici.universa.utnp.ethereum;
+
+import org.junit.Test;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.RawTransaction;
+import org.web3j.crypto.Sign;
+import org.web3j.crypto.TransactionEncoder;
+import org.web3j.rlp.RlpDecoder;
+import org.web3j.rlp.RlpEncoder;
+import org.web3j.rlp.RlpList;
+import org.web3j.rlp.RlpString;
+import org.web3j.rlp.RlpType;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link TransactionSigner} cross-checked against web3j: the legacy transactions are byte-exact with
+ * {@link TransactionEncoder#signMessage}; the EIP-1559 ones (which web3j cannot sign) carry the given fields,
+ * and their signatures recover to the signer’s key.
+ */
+public class TransactionSignerTest {
+
+    private static final long CHAIN_ID = 1;
+    private static final String TO = "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7";
+    private static final ECKeyPair KEY_PAIR = ECKeyPair.create(BigInteger.valueOf(0x1234567));
+    /**
+     * The call data sizes: empty, short, just over the short RLP string, and with the multibyte length.
+     */
+    private static final int[] DATA_LENGTHS = {0, 4, 56, 1000, 70000};
+
+    private final TransactionSigner signer = new TransactionSigner(KEY_PAIR, CHAIN_ID);
+    private final Random random = new Random(1);
+
+    @Test
+    public void legacyAsWeb3j() {
+        for (final int dataLength : DATA_LENGTHS) {
+            final byte[] data = randomData(dataLength);
+            final BigInteger nonce = BigInteger.valueOf(dataLength), gasPrice = BigInteger.valueOf(20000000000L),
+                    gasLimit = BigInteger.valueOf(3000000), value = BigInteger.valueOf(dataLength % 2);
+            final SignedTransaction signed = signer.sign(nonce, gasPrice, gasLimit, TO, value, data.length,
+                    (dest, offset) -> System.arraycopy(data, 0, dest, offset, data.length));
+            final byte[] expected = TransactionEncoder.signMessage(
+                    RawTransaction.createTransaction(nonce, gasPrice, gasLimit, TO, value, Numeric.toHexString(data)),
+                    (byte) CHAIN_ID, Credentials.create(KEY_PAIR));
+            assertEquals("data length " + dataLength, Numeric.toHexString(expected), signed.hex);
+            assertEquals(TransactionFees.legacy(gasPrice), signed.getFees());
+        }
+    }
+
+    @Test
+    public void eip1559Recovered() throws Exception {
+        for (final int dataLength : DATA_LENGTHS) {
+            final byte[] data = randomData(dataLength);
+            final BigInteger nonce = BigInteger.valueOf(dataLength), maxPriorityFee = BigInteger.valueOf(1500000000),
+                    maxFee = BigInteger.valueOf(42000000000L), gasLimit = BigInteger.valueOf(3000000), value = BigInteger.ZERO;
+            final SignedTransaction signed = signer.signEip1559(nonce, maxPriorityFee, maxFee, gasLimit, TO, value,
+                    data.length, (dest, offset) -> System.arraycopy(data, 0, dest, offset, data.length));
+
+            final byte[] raw = Numeric.hexStringToByteArray(signed.hex);
+            assertEquals(2, raw[0]);
+            final List<RlpType> fields = ((RlpList) RlpDecoder.decode(Arrays.copyOfRange(raw, 1, raw.length))
+                    .getValues().get(0)).getValues();
+            assertEquals(12, fields.size());
+            assertEquals(BigInteger.valueOf(CHAIN_ID), integer(fields.get(0)));
+            assertEquals(nonce, integer(fields.get(1)));
+            assertEquals(maxPriorityFee, integer(fields.get(2)));
+            assertEquals(maxFee, integer(fields.get(3)));
+            assertEquals(gasLimit, integer(fields.get(4)));
+            assertEquals(TO, Numeric.toHexString(((RlpString) fields.get(5)).getBytes()));
+            assertEquals(value, integer(fields.get(6)));
+            assertArrayEquals(data, ((RlpString) fields.get(7)).getBytes());
+            assertTrue(((RlpList) fields.get(8)).getValues().isEmpty());
+            // The canonical encoding: web3j re-encodes the decoded fields to the same bytes
+            assertEquals(signed.hex, Numeric.toHexString(typed(RlpEncoder.encode(new RlpList(fields)))));
+
+            // Signed over type || rlp(the fields but the signature)
+            final byte[] signingPayload = typed(RlpEncoder.encode(new RlpList(fields.subList(0, 9))));
+            final Sign.SignatureData signature = new Sign.SignatureData(
+                    (byte) (integer(fields.get(9)).intValueExact() + 27),
+                    Numeric.toBytesPadded(integer(fields.get(10)), 32),
+                    Numeric.toBytesPadded(integer(fields.get(11)), 32));
+            assertEquals(KEY_PAIR.getPublicKey(), Sign.signedMessageToKey(signingPayload, signature));
+
+            assertEquals(TransactionFees.eip1559(maxFee, maxPriorityFee), signed.getFees());
+            assertArrayEquals(data, signed.getCallData());
+        }
+    }
+
+    private byte[] randomData(int length) {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static BigInteger integer(RlpType field) {
+        return new BigInteger(1, ((RlpString) field).getBytes());
+    }
+
+    private static byte[] typed(byte[] rlp) {
+        final byte[] result = new byte[rlp.length + 1];
+        result[0] = 2;
+        System.arraycopy(rlp, 0, result, 1, rlp.length);
+        return result;
+    }
+}
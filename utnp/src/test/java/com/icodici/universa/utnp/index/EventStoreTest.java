@@ -0,0 +1,125 @@
+package com.icodici.universa.utnp.index;
+
+import com.icodici.universa.utnp.index.TokenEvent.Kind;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Balance queries of {@link EventStore}, across the snapshots, the reopening, the rewind and the rollback.
+ */
+public class EventStoreTest {
+
+    private static final String
+            CONTRACT = "0x9e3319636e2126e3c0bc9e3134aec5e1508a46c7",
+            ALICE = "0x00000000000000000000000000000000000a11ce",
+            BOB = "0x0000000000000000000000000000000000000b0b",
+            CAROL = "0x00000000000000000000000000000000000ca201";
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("utnp-index");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (final Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void balancesAcrossSnapshots() throws IOException {
+        try (final EventStore store = EventStore.create(dir, CONTRACT, 1, 10)) {
+            store.append(new TokenEvent(0, -1, Kind.GENESIS, TokenEvent.ZERO_ADDRESS, ALICE, BigInteger.valueOf(1000), TokenEvent.ZERO_TXHASH));
+            store.commit(0, Collections.emptyMap());
+            // Alice pays Bob 10 every 3 blocks, Bob burns 1 every 7 blocks
+            for (long block = 1; block <= 100; block++) {
+                if (block % 3 == 0) {
+                    store.append(transfer(block, ALICE, BOB, 10));
+                }
+                if (block % 7 == 0) {
+                    store.append(new TokenEvent(block, 1, Kind.BURN, BOB, null, BigInteger.ONE, txhash(block)));
+                }
+                if (block % 25 == 0) {
+                    store.commit(block, Collections.singletonMap(block, txhash(block)));
+                }
+            }
+            assertTrue(store.getSnapshotCount() >= 9);
+            check(store, 100);
+        }
+
+        try (final EventStore store = EventStore.open(dir, false)) {
+            assertEquals(100, store.getLastBlock());
+            assertEquals(txhash(100), store.getBlockHash(100));
+            check(store, 100);
+            assertEquals(33 + 14, store.getHistory(BOB).size());
+            assertEquals(Kind.GENESIS, store.getHistory(ALICE).get(0).kind);
+        }
+
+        try (final EventStore store = EventStore.open(dir, true)) {
+            // Uncommitted events are forgotten
+            store.append(transfer(101, BOB, CAROL, 5));
+            store.rollback();
+            assertEquals(BigInteger.ZERO, store.getBalance(CAROL, 100));
+            store.append(transfer(101, BOB, CAROL, 5));
+            store.commit(101, Collections.emptyMap());
+            assertEquals(BigInteger.valueOf(5), store.getBalance(CAROL, 101));
+
+            store.rewind(55);
+            assertEquals(55, store.getLastBlock());
+            check(store, 55);
+            store.append(transfer(56, ALICE, CAROL, 1));
+            store.commit(60, Collections.emptyMap());
+            assertEquals(BigInteger.ONE, store.getBalance(CAROL, 60));
+            assertEquals(expectedAlice(55).subtract(BigInteger.ONE), store.getBalance(ALICE, 60));
+        }
+        try (final EventStore store = EventStore.open(dir, false)) {
+            assertEquals(60, store.getLastBlock());
+            assertEquals(BigInteger.ONE, store.getBalance(CAROL, 60));
+            check(store, 55);
+        }
+    }
+
+    private static void check(EventStore store, long lastBlock) {
+        for (long block = 0; block <= lastBlock; block++) {
+            assertEquals("block " + block, expectedAlice(block), store.getBalance(ALICE, block));
+            assertEquals("block " + block, expectedBob(block), store.getBalance(BOB, block));
+            final Map<String, BigInteger> balances = store.getBalances(block);
+            assertEquals("block " + block, expectedAlice(block), balances.get(ALICE));
+            assertEquals("block " + block, expectedBob(block), balances.getOrDefault(BOB, BigInteger.ZERO));
+            assertEquals("block " + block, BigInteger.valueOf(block / 7),
+                    store.getBurned(block).getOrDefault(BOB, BigInteger.ZERO));
+        }
+    }
+
+    private static BigInteger expectedAlice(long block) {
+        return BigInteger.valueOf(1000 - 10 * (block / 3));
+    }
+
+    private static BigInteger expectedBob(long block) {
+        return BigInteger.valueOf(10 * (block / 3) - block / 7);
+    }
+
+    private static TokenEvent transfer(long block, String from, String to, long amount) {
+        return new TokenEvent(block, 0, Kind.TRANSFER, from, to, BigInteger.valueOf(amount), txhash(block));
+    }
+
+    private static String txhash(long block) {
+        return String.format("0x%064x", block);
+    }
+}
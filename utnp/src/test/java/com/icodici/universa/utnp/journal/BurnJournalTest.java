@@ -0,0 +1,177 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.journal.BurnJournal.Batch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The state of {@link BurnJournal} after the replay: the pending requests, the unconfirmed burns (with their
+ * replacement variants), the burned and the dropped requests; and after the compaction.
+ */
+public class BurnJournalTest {
+
+    private static final String DESCRIPTION = "erc20=0x9e3319636e2126e3c0bc9e3134aec5e1508a46c7";
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("utnp-burn", ".journal");
+        Files.delete(path);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void replay() throws IOException {
+        final Batch mined, failed, requeued, unconfirmed;
+        try (final BurnJournal journal = new BurnJournal(path, DESCRIPTION)) {
+            assertFalse(journal.isResumed());
+            for (int i = 1; i <= 9; i++) {
+                journal.request("swap\t" + i, BigInteger.valueOf(i));
+            }
+            assertEquals(9, journal.getPendingCount());
+            assertEquals(Arrays.asList("swap\t1", "swap\t2"), journal.getPending(2));
+
+            mined = journal.signed(transaction(0), Arrays.asList("swap\t1", "swap\t2"));
+            assertEquals(BigInteger.valueOf(3), mined.amount);
+            journal.mined(mined, mined.transaction);
+            failed = journal.signed(transaction(1), Collections.singletonList("swap\t3"));
+            journal.failed(failed, "reverted\tfor a reason");
+            requeued = journal.signed(transaction(2), Arrays.asList("swap\t4", "swap\t5"));
+            journal.requeued(requeued);
+            unconfirmed = journal.signed(transaction(3), Arrays.asList("swap\t6", "swap\t7"));
+        }
+        // Torn by the crash
+        Files.write(path, "R\tswap 10".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (final BurnJournal journal = new BurnJournal(path, DESCRIPTION)) {
+            assertTrue(journal.isResumed());
+            assertEquals(mined.transaction.txhash, journal.getBurnTxhash("swap\t1"));
+            assertEquals(mined.transaction.txhash, journal.getBurnTxhash("swap\t2"));
+            // The failed request may be submitted again
+            assertFalse(journal.isKnown("swap\t3"));
+            assertFalse(journal.isKnown("swap 10"));
+            // The requeued ones go first
+            assertEquals(Arrays.asList("swap\t4", "swap\t5", "swap\t8", "swap\t9"), journal.getPending(10));
+            assertEquals(1, journal.getUnconfirmed().size());
+            final Batch resumed = journal.getUnconfirmed().get(0);
+            assertEquals(unconfirmed.transaction.txhash, resumed.transaction.txhash);
+            assertEquals(unconfirmed.transaction.hex, resumed.transaction.hex);
+            assertEquals(Arrays.asList("swap\t6", "swap\t7"), resumed.requestIds);
+            assertEquals(BigInteger.valueOf(13), resumed.amount);
+            assertNull(journal.getBurnTxhash("swap\t6"));
+
+            journal.request("swap 10", BigInteger.TEN);
+            journal.mined(resumed, resumed.transaction);
+        }
+
+        try (final BurnJournal journal = new BurnJournal(path, DESCRIPTION)) {
+            assertEquals(unconfirmed.transaction.txhash, journal.getBurnTxhash("swap\t7"));
+            assertTrue(journal.getUnconfirmed().isEmpty());
+            assertEquals(5, journal.getPendingCount());
+            assertEquals(BigInteger.TEN, journal.getAmount("swap 10"));
+        }
+    }
+
+    @Test
+    public void replacedVariants() throws IOException {
+        final SignedTransaction first = transaction(0), second = transaction(0, 2), third = transaction(0, 3);
+        try (final BurnJournal journal = new BurnJournal(path, DESCRIPTION)) {
+            journal.request("swap 1", BigInteger.ONE);
+            final Batch batch = journal.signed(first, Collections.singletonList("swap 1"));
+            journal.replaced(batch, second);
+            journal.replaced(batch, third);
+        }
+
+        try (final BurnJournal journal = new BurnJournal(path, DESCRIPTION)) {
+            final Batch resumed = journal.getUnconfirmed().get(0);
+            assertEquals(first.txhash, resumed.transaction.txhash);
+            assertEquals(Arrays.asList(first.txhash, second.txhash, third.txhash),
+                    resumed.getVariants().stream().map(variant -> variant.txhash).collect(Collectors.toList()));
+            assertEquals(third.hex, resumed.getLatest().hex);
+            // The burn is resolved with the variant mined
+            journal.mined(resumed, second);
+        }
+
+        try (final BurnJournal journal = new BurnJournal(path, DESCRIPTION)) {
+            assertEquals(second.txhash, journal.getBurnTxhash("swap 1"));
+        }
+    }
+
+    @Test
+    public void compacted() throws IOException {
+        final int remembered = 10, burns = BurnJournal.COMPACTION_THRESHOLD / 2;
+        try (final BurnJournal journal = new BurnJournal(path, DESCRIPTION, remembered)) {
+            for (int i = 0; i < burns; i++) {
+                journal.request("swap " + i, BigInteger.ONE);
+                final Batch batch = journal.signed(transaction(i), Collections.singletonList("swap " + i));
+                journal.mined(batch, batch.transaction);
+            }
+            // The requests in flight survive the compaction
+            journal.request("pending", BigInteger.TEN);
+            journal.request("unconfirmed", BigInteger.ONE);
+            final Batch batch = journal.signed(transaction(burns), Collections.singletonList("unconfirmed"));
+            journal.replaced(batch, transaction(burns, 2));
+
+            // Each burn has written 3 records, and only the latest burned requests are remembered
+            assertTrue(journal.getRecordCount() < BurnJournal.COMPACTION_THRESHOLD);
+            assertEquals(journal.getRecordCount(), Files.readAllLines(path).size());
+            assertNull(journal.getBurnTxhash("swap 0"));
+            assertEquals(transaction(burns - 1).txhash, journal.getBurnTxhash("swap " + (burns - 1)));
+        }
+
+        try (final BurnJournal journal = new BurnJournal(path, DESCRIPTION, remembered)) {
+            assertNull(journal.getBurnTxhash("swap " + (burns - remembered - 1)));
+            for (int i = burns - remembered; i < burns; i++) {
+                assertEquals(transaction(i).txhash, journal.getBurnTxhash("swap " + i));
+            }
+            assertEquals(Collections.singletonList("pending"), journal.getPending(10));
+            assertEquals(BigInteger.TEN, journal.getAmount("pending"));
+            final Batch resumed = journal.getUnconfirmed().get(0);
+            assertEquals(Collections.singletonList("unconfirmed"), resumed.requestIds);
+            assertEquals(transaction(burns, 2).txhash, resumed.getLatest().txhash);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void anotherQueue() throws IOException {
+        new BurnJournal(path, DESCRIPTION).close();
+        new BurnJournal(path, "erc20=0x0000000000000000000000000000000000000000").close();
+    }
+
+    /**
+     * Not a real transaction; the journal only keeps its bytes.
+     */
+    private static SignedTransaction transaction(long nonce) {
+        return transaction(nonce, 1);
+    }
+
+    /**
+     * Not a real transaction either; the variants with the same nonce differ by the fee.
+     */
+    private static SignedTransaction transaction(long nonce, int fee) {
+        return new SignedTransaction(BigInteger.valueOf(nonce),
+                new byte[]{(byte) 0xf8, (byte) (nonce >> 8), (byte) nonce, (byte) fee, 2, 3});
+    }
+}
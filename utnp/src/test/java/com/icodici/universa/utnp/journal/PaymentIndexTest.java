@@ -0,0 +1,115 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The orders recorded to {@link PaymentIndex}: looked up by the uuid and by the payment,
+ * after the growth of the table and after reopening the file.
+ */
+public class PaymentIndexTest {
+
+    private static final int DECIMALS = 18;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("utnp-paid", ".index");
+        Files.delete(path);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(Paths.get(path.toString() + ".grow"));
+    }
+
+    @Test
+    public void recordAndLookUp() throws IOException {
+        try (final PaymentIndex index = new PaymentIndex(path, INITIAL_CAPACITY)) {
+            assertFalse(index.containsOrder("first"));
+            final PackedTransfers transfers = new PackedTransfers(DECIMALS);
+            transfers.add("0x5aAeb6053F3E94C9b9A09f33669435E7Ef1BeAed", new BigDecimal("1.5"));
+            transfers.add("0x00000000000000000000000000000000000a11ce", BigDecimal.TEN);
+            index.record(Arrays.asList("first", "second"), transfers);
+
+            assertTrue(index.containsOrder("first"));
+            assertTrue(index.containsOrder("second"));
+            assertFalse(index.containsOrder("third"));
+            // The address case and the trailing zeros don’t matter
+            assertTrue(index.containsPayment("0x5aaeb6053f3e94c9b9a09f33669435e7ef1beaed", new BigDecimal("1.500")));
+            assertTrue(index.containsPayment("0x00000000000000000000000000000000000A11CE", new BigDecimal("1E+1")));
+            assertFalse(index.containsPayment("0x5aAeb6053F3E94C9b9A09f33669435E7Ef1BeAed", BigDecimal.TEN));
+            assertEquals(4, index.getKeyCount());
+
+            // Recording again changes nothing
+            index.record(Arrays.asList("first", "second"), transfers);
+            assertEquals(4, index.getKeyCount());
+        }
+    }
+
+    @Test
+    public void growAndReopen() throws IOException {
+        final int count = INITIAL_CAPACITY * 4;
+        try (final PaymentIndex index = new PaymentIndex(path, INITIAL_CAPACITY)) {
+            // A bulk at a time, as the orders are paid
+            for (int bulk = 0; bulk < count / 16; bulk++) {
+                final List<String> uuids = new ArrayList<>();
+                final PackedTransfers transfers = new PackedTransfers(DECIMALS);
+                for (int i = bulk * 16; i < (bulk + 1) * 16; i++) {
+                    uuids.add("order-" + i);
+                    transfers.add(address(i), BigDecimal.valueOf(i + 1));
+                }
+                index.record(uuids, transfers);
+            }
+            assertEquals(count * 2, index.getKeyCount());
+            // Never more than half full
+            assertEquals(INITIAL_CAPACITY * 16, index.getCapacity());
+            assertContainsAll(index, count);
+        }
+        assertFalse(Files.exists(Paths.get(path.toString() + ".grow")));
+
+        // The capacity is taken from the file
+        try (final PaymentIndex index = new PaymentIndex(path, INITIAL_CAPACITY)) {
+            assertEquals(INITIAL_CAPACITY * 16, index.getCapacity());
+            assertEquals(count * 2, index.getKeyCount());
+            assertContainsAll(index, count);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notAnIndex() throws IOException {
+        Files.write(path, new byte[PaymentIndex.HEADER_SIZE * 2]);
+        new PaymentIndex(path).close();
+    }
+
+    private static void assertContainsAll(PaymentIndex index, int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(index.containsOrder("order-" + i));
+            assertTrue(index.containsPayment(address(i), BigDecimal.valueOf(i + 1)));
+            assertFalse(index.containsOrder("order-" + (count + i)));
+            assertFalse(index.containsPayment(address(i), BigDecimal.valueOf(i + 2)));
+        }
+    }
+
+    private static String address(int i) {
+        return String.format("0x%040x", i + 1);
+    }
+}
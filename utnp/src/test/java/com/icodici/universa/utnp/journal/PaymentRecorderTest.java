@@ -0,0 +1,89 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.connectors.PackedTransfers;
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PaymentRecorder} records the orders only once their bulk is mined successfully.
+ */
+public class PaymentRecorderTest {
+
+    private Path journalPath, indexPath;
+
+    @Before
+    public void setUp() throws IOException {
+        journalPath = Files.createTempFile("utnp-send", ".journal");
+        indexPath = Files.createTempFile("utnp-paid", ".index");
+        Files.delete(journalPath);
+        Files.delete(indexPath);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(journalPath);
+        Files.deleteIfExists(Paths.get(journalPath.toString() + ".checkpoint"));
+        Files.deleteIfExists(indexPath);
+    }
+
+    @Test
+    public void recordedWhenMined() throws IOException {
+        final BulkRange paid = new BulkRange(0, 1, Arrays.asList("a", "b"));
+        final BulkRange reverted = new BulkRange(2, 2, Collections.singletonList("c"));
+        final SignedTransaction paidTx = transaction(0), revertedTx = transaction(1);
+        try (final SendJournal journal = new SendJournal(journalPath, "test", 0);
+             final PaymentIndex index = new PaymentIndex(indexPath, 64)) {
+            final PaymentRecorder recorder = new PaymentRecorder(journal, index);
+            recorder.expect(paid, transfers(2));
+            recorder.expect(reverted, transfers(1));
+            recorder.onSigned(paid, paidTx);
+            recorder.onSigned(reverted, revertedTx);
+            recorder.onAccepted(paid, paidTx);
+            recorder.onAccepted(reverted, revertedTx);
+            // Sent, but not paid yet
+            assertFalse(index.containsOrder("a"));
+
+            recorder.onMined(paid, paidTx, new Confirmation(paidTx.txhash, BigInteger.ONE, true, BigInteger.ONE));
+            recorder.onMined(reverted, revertedTx, new Confirmation(revertedTx.txhash, BigInteger.ONE, false, BigInteger.ONE));
+            assertTrue(index.containsOrder("a"));
+            assertTrue(index.containsOrder("b"));
+            assertTrue(index.containsPayment(String.format("0x%040x", 2), BigDecimal.valueOf(2)));
+            assertFalse(index.containsOrder("c"));
+            // Passed on to the journal
+            assertTrue(journal.getUnconfirmed().isEmpty());
+            assertEquals(3, journal.getNextOrderIndex());
+        }
+    }
+
+    private static PackedTransfers transfers(int count) {
+        final PackedTransfers result = new PackedTransfers(18);
+        for (int i = 1; i <= count; i++) {
+            result.add(String.format("0x%040x", i), BigDecimal.valueOf(i));
+        }
+        return result;
+    }
+
+    /**
+     * Not a real transaction; the journal only keeps its bytes.
+     */
+    private static SignedTransaction transaction(long nonce) {
+        return new SignedTransaction(BigInteger.valueOf(nonce), new byte[]{(byte) 0xf8, (byte) nonce, 1, 2, 3});
+    }
+}
@@ -0,0 +1,183 @@
+package com.icodici.universa.utnp.journal;
+
+import com.icodici.universa.utnp.ethereum.ConfirmationTracker.Confirmation;
+import com.icodici.universa.utnp.ethereum.SignedTransaction;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import com.icodici.universa.utnp.journal.SendJournal.Entry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The state of {@link SendJournal} after the replay: the next unplanned order, the highest nonce
+ * and the unconfirmed bulks, with and without the checkpoint.
+ */
+public class SendJournalTest {
+
+    private static final String DESCRIPTION = "bulk=0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7 from=0";
+
+    private Path path, checkpointPath;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("utnp-send", ".journal");
+        Files.delete(path);
+        checkpointPath = Paths.get(path.toString() + ".checkpoint");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(checkpointPath);
+    }
+
+    @Test
+    public void replay() throws IOException {
+        final BulkRange first = range(0, "a", "b,c"), second = range(2, "d\te"), third = range(3, "f", "g%0A");
+        final SignedTransaction firstTx = transaction(0), secondTx = transaction(1), thirdTx = transaction(2);
+        try (final SendJournal journal = new SendJournal(path, DESCRIPTION, 0)) {
+            assertFalse(journal.isResumed());
+            journal.onSigned(first, firstTx);
+            journal.onAccepted(first, firstTx);
+            journal.onSigned(second, secondTx);
+            journal.onAccepted(second, secondTx);
+            journal.onSigned(third, thirdTx);
+            journal.onMined(first, firstTx, mined(firstTx));
+            journal.onFailed(third, new IOException("replacement transaction underpriced\n\tat the node"));
+        }
+        // No checkpoint: the whole journal is replayed
+        Files.delete(checkpointPath);
+        // Torn by the crash
+        Files.write(path, "S\t3\t0x".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (final SendJournal journal = new SendJournal(path, DESCRIPTION, 0)) {
+            assertTrue(journal.isResumed());
+            assertEquals(5, journal.getNextOrderIndex());
+            assertEquals(BigInteger.valueOf(2), journal.getMaxNonce());
+            final List<Entry> unconfirmed = journal.getUnconfirmed();
+            assertEquals(2, unconfirmed.size());
+            assertEquals(secondTx.txhash, unconfirmed.get(0).transaction.txhash);
+            assertEquals(secondTx.hex, unconfirmed.get(0).transaction.hex);
+            assertEquals(Arrays.asList("d\te"), unconfirmed.get(0).range.uuids);
+            assertTrue(unconfirmed.get(0).accepted);
+            assertEquals(thirdTx.txhash, unconfirmed.get(1).transaction.txhash);
+            assertEquals(Arrays.asList("f", "g%0A"), unconfirmed.get(1).range.uuids);
+            assertFalse(unconfirmed.get(1).accepted);
+
+            journal.onMined(second, secondTx, mined(secondTx));
+        }
+
+        // The torn record is cut off, so the records appended after it are read well
+        try (final SendJournal journal = new SendJournal(path, DESCRIPTION, 0)) {
+            assertEquals(1, journal.getUnconfirmed().size());
+            assertEquals(thirdTx.txhash, journal.getUnconfirmed().get(0).transaction.txhash);
+        }
+
+        final Map<String, BulkRange> planned = SendJournal.readPlanned(path);
+        assertEquals(Arrays.asList(firstTx.txhash, secondTx.txhash, thirdTx.txhash), new ArrayList<>(planned.keySet()));
+        assertEquals(Arrays.asList("a", "b,c"), planned.get(firstTx.txhash).uuids);
+    }
+
+    @Test
+    public void replayFromCheckpoint() throws IOException {
+        final BulkRange first = range(10, "a"), second = range(11, "b", "c"), third = range(13, "d");
+        final SignedTransaction firstTx = transaction(7), secondTx = transaction(8), thirdTx = transaction(9);
+        final SignedTransaction replacedTx = transaction(9, 1);
+        try (final SendJournal journal = new SendJournal(path, DESCRIPTION, 10)) {
+            journal.onSigned(first, firstTx);
+            journal.onSigned(second, secondTx);
+            journal.onAccepted(second, secondTx);
+            journal.onMined(first, firstTx, mined(firstTx));
+            journal.checkpoint();
+            assertTrue(Files.exists(checkpointPath));
+
+            // After the checkpoint
+            journal.onSigned(third, thirdTx);
+            journal.onSigned(third, replacedTx);
+            journal.onFailed(second, new IOException("nonce too low"));
+            journal.sync();
+        }
+
+        try (final SendJournal journal = new SendJournal(path, DESCRIPTION, 10)) {
+            assertTrue(journal.isResumed());
+            assertEquals(14, journal.getNextOrderIndex());
+            assertEquals(BigInteger.valueOf(9), journal.getMaxNonce());
+            final List<Entry> unconfirmed = journal.getUnconfirmed();
+            assertEquals(2, unconfirmed.size());
+            assertEquals(secondTx.txhash, unconfirmed.get(0).transaction.txhash);
+            assertEquals(Arrays.asList("b", "c"), unconfirmed.get(0).range.uuids);
+            assertTrue(unconfirmed.get(0).accepted);
+            // The later record supersedes the earlier one
+            assertEquals(replacedTx.txhash, unconfirmed.get(1).transaction.txhash);
+        }
+    }
+
+    @Test
+    public void replacedVariants() throws IOException {
+        final BulkRange range = range(0, "a", "b");
+        final SignedTransaction firstTx = transaction(4), secondTx = transaction(4, 1), thirdTx = transaction(4, 2);
+        try (final SendJournal journal = new SendJournal(path, DESCRIPTION, 0)) {
+            journal.onSigned(range, firstTx);
+            journal.onAccepted(range, firstTx);
+            journal.onSigned(range, secondTx);
+            journal.checkpoint();
+            journal.onSigned(range, thirdTx);
+            journal.sync();
+        }
+
+        // From the checkpoint, then the whole journal (with the copies of the records in the checkpoint)
+        for (int pass = 0; pass < 2; pass++) {
+            try (final SendJournal journal = new SendJournal(path, DESCRIPTION, 0)) {
+                final List<Entry> unconfirmed = journal.getUnconfirmed();
+                assertEquals(1, unconfirmed.size());
+                // Any of them may be mined
+                assertEquals(Arrays.asList(firstTx.txhash, secondTx.txhash, thirdTx.txhash),
+                        unconfirmed.get(0).getVariants().stream().map(tx -> tx.txhash).collect(Collectors.toList()));
+                assertEquals(thirdTx.hex, unconfirmed.get(0).transaction.hex);
+            }
+            Files.delete(checkpointPath);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void anotherRun() throws IOException {
+        new SendJournal(path, DESCRIPTION, 0).close();
+        new SendJournal(path, "bulk=0x0000000000000000000000000000000000000000 from=0", 0).close();
+    }
+
+    private static BulkRange range(long firstOrderIndex, String... uuids) {
+        return new BulkRange(firstOrderIndex, firstOrderIndex + uuids.length - 1, Arrays.asList(uuids));
+    }
+
+    private static SignedTransaction transaction(long nonce) {
+        return transaction(nonce, 0);
+    }
+
+    /**
+     * Not a real transaction; the journal only keeps its bytes.
+     */
+    private static SignedTransaction transaction(long nonce, int version) {
+        return new SignedTransaction(BigInteger.valueOf(nonce), new byte[]{(byte) 0xf8, (byte) nonce, (byte) version, 2, 3});
+    }
+
+    private static Confirmation mined(SignedTransaction transaction) {
+        return new Confirmation(transaction.txhash, BigInteger.ONE, true, BigInteger.valueOf(50000));
+    }
+}
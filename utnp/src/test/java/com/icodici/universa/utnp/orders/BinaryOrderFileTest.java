@@ -0,0 +1,101 @@
+package com.icodici.universa.utnp.orders;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The orders of the spreadsheet-exported CSV file, converted into {@link BinaryOrderFile} and read back.
+ */
+public class BinaryOrderFileTest {
+
+    private static final int DECIMALS = 18;
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("utnp-orders");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dir.resolve("orders.csv"));
+        Files.deleteIfExists(dir.resolve("orders.bin"));
+        Files.delete(dir);
+    }
+
+    @Test
+    public void importCsv() throws IOException {
+        final Path csvPath = dir.resolve("orders.csv"), binPath = dir.resolve("orders.bin");
+        Files.write(csvPath, ("\uFEFFComment;UTNP_Amount;uuid;utnp_address\n"
+                + "\"first; \"\"quoted\"\"\";1,5;a-1;0x5aAeb6053F3E94C9b9A09f33669435E7Ef1BeAed\n"
+                + "\n"
+                + ";0.000000000000000001;\"b-2\";0xfb6916095ca1df60bb79ce92ce3ea74c37c5d359\n"
+                + ";1000000;ω-3;0x0000000000000000000000000000000000000b0b\n").getBytes(StandardCharsets.UTF_8));
+
+        final OrderValidator.Report report;
+        try (final OrderReader reader = OrderReader.open(csvPath)) {
+            assertTrue(reader instanceof CSVOrderReader);
+            report = new OrderValidator(DECIMALS).validate(reader, Long.MAX_VALUE);
+        }
+        assertTrue(report.errors.toString(), report.isValid());
+        assertEquals(3, report.count);
+        assertEquals(4, report.maxUuidLength);
+
+        try (final OrderReader reader = OrderReader.open(csvPath);
+             final BinaryOrderFile.Writer writer = new BinaryOrderFile.Writer(binPath, report.maxUuidLength, DECIMALS)) {
+            Order order;
+            while ((order = reader.readNext()) != null) {
+                writer.write(order);
+            }
+        }
+
+        try (final OrderReader reader = OrderReader.open(binPath)) {
+            assertTrue(reader instanceof BinaryOrderFile.Reader);
+            assertEquals(3, ((BinaryOrderFile.Reader) reader).getCount());
+            assertEquals(0, report.total.compareTo(((BinaryOrderFile.Reader) reader).getTotal()));
+
+            final Order first = reader.readNext();
+            assertEquals("a-1", first.uuid);
+            assertEquals("0x5aaeb6053f3e94c9b9a09f33669435e7ef1beaed", first.address);
+            assertEquals(0, new BigDecimal("1.5").compareTo(first.amount));
+            assertEquals(1, reader.skip(1));
+            final Order third = reader.readNext();
+            assertEquals(2, third.index);
+            assertEquals("ω-3", third.uuid);
+            assertEquals(0, new BigDecimal(1000000).compareTo(third.amount));
+            assertNull(reader.readNext());
+        }
+        try (final BinaryOrderFile.Reader reader = new BinaryOrderFile.Reader(binPath)) {
+            assertEquals(1, reader.skip(1));
+            assertEquals(0, new BigDecimal("1e-18").compareTo(reader.readNext().amount));
+            assertEquals(1, reader.skip(5));
+            assertNull(reader.readNext());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void corrupted() throws IOException {
+        final Path binPath = dir.resolve("orders.bin");
+        try (final BinaryOrderFile.Writer writer = new BinaryOrderFile.Writer(binPath, 36, DECIMALS)) {
+            writer.write(new Order(0, "a-1", "0x0000000000000000000000000000000000000b0b", BigDecimal.TEN));
+        }
+        try (final RandomAccessFile file = new RandomAccessFile(binPath.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            file.write(11);
+        }
+        new BinaryOrderFile.Reader(binPath).close();
+    }
+}
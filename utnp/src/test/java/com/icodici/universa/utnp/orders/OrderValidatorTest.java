@@ -0,0 +1,174 @@
+package com.icodici.universa.utnp.orders;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The checks of {@link OrderValidator}: the addresses (with their EIP-55 checksums), the amounts and the uuids.
+ */
+public class OrderValidatorTest {
+
+    /**
+     * The reference addresses of EIP-55, with the valid checksums.
+     */
+    private static final List<String> EIP55_ADDRESSES = Arrays.asList(
+            "0x5aAeb6053F3E94C9b9A09f33669435E7Ef1BeAed",
+            "0xfB6916095ca1df60bB79Ce92cE3Ea74c37c5d359",
+            "0xdbF03B407c01E7cD3CBea99509d93f8DDDC8C6FB",
+            "0xD1220A0cf47c7B9Be7A2E6BA89F429762e7b9aDb");
+
+    private static final String ALICE = "0x00000000000000000000000000000000000a11ce";
+
+    private static final BigInteger UINT256_MAX = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+
+    @Test
+    public void checksums() throws IOException {
+        for (final String address : EIP55_ADDRESSES) {
+            assertTrue(address, isValid(address, BigDecimal.ONE, 18));
+            // The single-case addresses carry no checksum
+            assertTrue(address, isValid(address.toLowerCase(), BigDecimal.ONE, 18));
+            assertTrue(address, isValid("0x" + address.substring(2).toUpperCase(), BigDecimal.ONE, 18));
+        }
+        // A single letter of another case
+        assertFalse(isValid("0x5AAeb6053F3E94C9b9A09f33669435E7Ef1BeAed", BigDecimal.ONE, 18));
+        assertFalse(isValid("0xFB6916095ca1df60bB79Ce92cE3Ea74c37c5d359", BigDecimal.ONE, 18));
+        assertFalse(isValid("0x5aAeb6053F3E94C9b9A09f33669435E7Ef1BeAeD", BigDecimal.ONE, 18));
+    }
+
+    @Test
+    public void addresses() throws IOException {
+        assertFalse(isValid("0x0000000000000000000000000000000000000000", BigDecimal.ONE, 18));
+        assertFalse(isValid("0x5aAeb6053F3E94C9b9A09f33669435E7Ef1BeAe", BigDecimal.ONE, 18));
+        assertFalse(isValid("5aAeb6053F3E94C9b9A09f33669435E7Ef1BeAed", BigDecimal.ONE, 18));
+        assertFalse(isValid("0x5aAeb6053F3E94C9b9A09f33669435E7Ef1BeAeg", BigDecimal.ONE, 18));
+    }
+
+    @Test
+    public void scale() throws IOException {
+        assertTrue(isValid(ALICE, new BigDecimal("1.25"), 2));
+        // The trailing zeros don’t matter
+        assertTrue(isValid(ALICE, new BigDecimal("1.2500"), 2));
+        assertTrue(isValid(ALICE, new BigDecimal("1E+3"), 0));
+        assertFalse(isValid(ALICE, new BigDecimal("1.255"), 2));
+        assertFalse(isValid(ALICE, new BigDecimal("0.5"), 0));
+        assertFalse(isValid(ALICE, BigDecimal.ZERO, 2));
+        assertFalse(isValid(ALICE, new BigDecimal("-1"), 2));
+    }
+
+    @Test
+    public void uint256Boundary() throws IOException {
+        assertTrue(isValid(ALICE, new BigDecimal(UINT256_MAX), 0));
+        assertFalse(isValid(ALICE, new BigDecimal(UINT256_MAX.add(BigInteger.ONE)), 0));
+        // The same in the token units
+        assertTrue(isValid(ALICE, new BigDecimal(UINT256_MAX, 18), 18));
+        assertFalse(isValid(ALICE, new BigDecimal(UINT256_MAX.add(BigInteger.ONE), 18), 18));
+        // In the scientific notation
+        assertTrue(isValid(ALICE, new BigDecimal("1E+59"), 18));
+        assertFalse(isValid(ALICE, new BigDecimal("1E+60"), 18));
+    }
+
+    @Test
+    public void allProblemsReported() throws IOException {
+        final List<Order> orders = new ArrayList<>();
+        orders.add(new Order(0, "ok", EIP55_ADDRESSES.get(0), new BigDecimal("1.5")));
+        orders.add(new Order(1, "checksum", "0x5AAeb6053F3E94C9b9A09f33669435E7Ef1BeAed", BigDecimal.ONE));
+        orders.add(new Order(2, "zero", "0x0000000000000000000000000000000000000000", BigDecimal.ONE));
+        orders.add(new Order(3, "scale", ALICE, new BigDecimal("0.001")));
+        orders.add(new Order(4, "duplicate", EIP55_ADDRESSES.get(0).toLowerCase(), new BigDecimal("2.5")));
+        orders.add(new Order(5, "negative", EIP55_ADDRESSES.get(1), new BigDecimal("-1")));
+
+        final OrderValidator.Report report = new OrderValidator(2).validate(new ListReader(orders), Long.MAX_VALUE);
+        assertFalse(report.isValid());
+        assertEquals(6, report.count);
+        assertEquals(0, new BigDecimal("4.0").compareTo(report.total));
+        assertEquals(4, report.errors.size());
+        assertEquals(Arrays.asList("checksum", "zero", "scale", "negative"),
+                Arrays.asList(report.errors.stream().map(problem -> problem.uuid).toArray()));
+        assertEquals(5, report.errors.get(3).orderIndex);
+        // The address is the same whatever its case
+        assertEquals(1, report.warnings.size());
+        assertEquals("duplicate", report.warnings.get(0).uuid);
+        assertEquals("duplicate".length(), report.maxUuidLength);
+    }
+
+    @Test
+    public void duplicateUuids() throws IOException {
+        final List<Order> orders = new ArrayList<>();
+        for (int i = 0; i < OrderValidator.CHUNK_SIZE + 10; i++) {
+            orders.add(new Order(i, "order-" + i, String.format("0x%040x", i + 1), BigDecimal.ONE));
+        }
+        // In the same chunk, and in the next one
+        orders.add(new Order(orders.size(), "order-3", String.format("0x%040x", orders.size() + 1), BigDecimal.ONE));
+        orders.set(5, new Order(5, "order-4", String.format("0x%040x", 6), BigDecimal.ONE));
+
+        final OrderValidator.Report report = new OrderValidator(0).validate(new ListReader(orders), Long.MAX_VALUE);
+        assertEquals(2, report.errors.size());
+        assertEquals(5, report.errors.get(0).orderIndex);
+        assertEquals(OrderValidator.CHUNK_SIZE + 10, report.errors.get(1).orderIndex);
+        assertTrue(report.warnings.isEmpty());
+    }
+
+    @Test
+    public void maxCount() throws IOException {
+        final List<Order> orders = new ArrayList<>();
+        for (int i = 0; i < OrderValidator.CHUNK_SIZE * 3; i++) {
+            orders.add(new Order(i, Integer.toString(i), String.format("0x%040x", i + 1), BigDecimal.ONE));
+        }
+        final long count = OrderValidator.CHUNK_SIZE * 2 + 5;
+        final OrderValidator.Report report = new OrderValidator(0).validate(new ListReader(orders), count);
+        assertTrue(report.isValid());
+        assertEquals(count, report.count);
+        assertEquals(BigDecimal.valueOf(count), report.total);
+        assertTrue(report.warnings.isEmpty());
+    }
+
+    private static boolean isValid(String address, BigDecimal amount, int decimals) throws IOException {
+        final OrderValidator.Report report = new OrderValidator(decimals).validate(
+                new ListReader(Arrays.asList(new Order(0, "uuid", address, amount))), 1);
+        assertEquals(1, report.count);
+        return report.isValid();
+    }
+
+    /**
+     * The orders from the memory.
+     */
+    static class ListReader implements OrderReader {
+        private final List<Order> orders;
+        private int next = 0;
+
+        ListReader(List<Order> orders) {
+            this.orders = orders;
+        }
+
+        @Override
+        public long getNextIndex() {
+            return next;
+        }
+
+        @Override
+        public Order readNext() {
+            return (next < orders.size()) ? orders.get(next++) : null;
+        }
+
+        @Override
+        public long skip(long count) {
+            final int skipped = (int) Math.min(count, orders.size() - next);
+            next += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
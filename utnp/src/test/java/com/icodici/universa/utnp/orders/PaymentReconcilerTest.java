@@ -0,0 +1,81 @@
+package com.icodici.universa.utnp.orders;
+
+import com.icodici.universa.utnp.connectors.TransferLogScanner.Transfer;
+import com.icodici.universa.utnp.journal.SendJournal.BulkRange;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Matching the orders to the transfers by {@link PaymentReconciler}.
+ */
+public class PaymentReconcilerTest {
+
+    private static final String
+            ALICE = "0x00000000000000000000000000000000000a11ce",
+            BOB = "0x0000000000000000000000000000000000000b0b",
+            CAROL = "0x00000000000000000000000000000000000ca201",
+            DAVE = "0x0000000000000000000000000000000000000da5";
+
+    @Test
+    public void statuses() {
+        final PaymentReconciler reconciler = new PaymentReconciler(0);
+        reconciler.addOrder(new Order(0, "a", ALICE, BigDecimal.valueOf(10)));
+        reconciler.addOrder(new Order(1, "b", BOB, BigDecimal.valueOf(20)));
+        reconciler.addOrder(new Order(2, "c", CAROL, BigDecimal.valueOf(30)));
+        reconciler.addOrder(new Order(3, "d", DAVE.toUpperCase().replace("0X", "0x"), BigDecimal.valueOf(40)));
+
+        reconciler.addTransfer(transfer("0x01", ALICE, 10));
+        reconciler.addTransfer(transfer("0x01", BOB, 20));
+        reconciler.addTransfer(transfer("0x02", BOB, 20));
+        reconciler.addTransfer(transfer("0x02", CAROL, 25));
+        reconciler.addTransfer(transfer("0x02", ALICE, 7));
+        final PaymentReconciler.Report report = reconciler.reconcile();
+
+        assertEquals(1, report.getCount(PaymentReconciler.Status.PAID));
+        assertEquals(1, report.getCount(PaymentReconciler.Status.PAID_TWICE));
+        assertEquals(1, report.getCount(PaymentReconciler.Status.UNDERPAID));
+        assertEquals(1, report.getCount(PaymentReconciler.Status.UNPAID));
+        assertEquals(3, report.problems.size());
+        assertEquals("b", report.problems.get(0).uuid);
+        assertEquals(BigInteger.valueOf(40), report.problems.get(0).getPaid());
+        assertEquals(PaymentReconciler.Status.UNDERPAID, report.problems.get(1).getStatus());
+        assertEquals(PaymentReconciler.Status.UNPAID, report.problems.get(2).getStatus());
+        // Alice’s order is already paid in full
+        assertEquals(1, report.unexpected.size());
+        assertEquals(BigInteger.valueOf(7), report.unexpected.get(0).amount);
+    }
+
+    @Test
+    public void journalPrefersOwnBulk() {
+        final PaymentReconciler reconciler = new PaymentReconciler(0);
+        // The same payment to the same address, in two bulks; only the second bulk is mined
+        reconciler.addOrder(new Order(0, "first", ALICE, BigDecimal.ONE));
+        reconciler.addOrder(new Order(1, "second", ALICE, BigDecimal.ONE));
+        final Map<String, BulkRange> planned = new HashMap<>();
+        planned.put("0x01", new BulkRange(0, 0, Arrays.asList("first")));
+        planned.put("0x02", new BulkRange(1, 1, Arrays.asList("second")));
+        planned.put("0x03", new BulkRange(1, 1, Arrays.asList("second")));
+        reconciler.setPlanned(planned);
+
+        reconciler.addTransfer(transfer("0x02", ALICE, 1));
+        final PaymentReconciler.Report report = reconciler.reconcile();
+
+        assertEquals(1, report.problems.size());
+        assertEquals("first", report.problems.get(0).uuid);
+        assertEquals(PaymentReconciler.Status.UNPAID, report.problems.get(0).getStatus());
+        assertEquals(Arrays.asList("0x01"), reconciler.getPlannedTxhashes(0));
+        assertEquals(2, reconciler.getPlannedTxhashes(1).size());
+        assertEquals(0, reconciler.getPlannedTxhashes(2).size());
+    }
+
+    private static Transfer transfer(String txhash, String to, long amount) {
+        return new Transfer(1, txhash, to, BigInteger.valueOf(amount));
+    }
+}
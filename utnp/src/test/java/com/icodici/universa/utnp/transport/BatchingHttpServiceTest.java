@@ -0,0 +1,196 @@
+package com.icodici.universa.utnp.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.Web3ClientVersion;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link BatchingHttpService} against the local HTTP server: the requests are combined into the batches
+ * with the unique ids, and the responses are split back to their callers.
+ */
+public class BatchingHttpServiceTest {
+
+    private static final JsonNodeFactory json = JsonNodeFactory.instance;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private HttpServer server;
+    /**
+     * The bodies of the HTTP requests received by the server.
+     */
+    private final List<JsonNode> received = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Makes the reply of the server to the HTTP request.
+     */
+    private volatile Function<JsonNode, JsonNode> responder = BatchingHttpServiceTest::echo;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                final JsonNode request;
+                try (final InputStream in = exchange.getRequestBody()) {
+                    request = mapper.readTree(in);
+                }
+                received.add(request);
+                final byte[] body = mapper.writeValueAsBytes(responder.apply(request));
+                exchange.sendResponseHeaders(200, body.length);
+                try (final OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void idsRemapped() throws Exception {
+        // The responses are matched by the ids, not by the order
+        responder = request -> {
+            final ArrayNode reply = json.arrayNode();
+            echo(request).forEach(single -> reply.insert(0, single));
+            return reply;
+        };
+        final BatchingHttpService service = new BatchingHttpService(getUrl(), 3, 10000);
+        final List<CompletableFuture<Web3ClientVersion>> results = new ArrayList<>();
+        for (final String value : Arrays.asList("a", "b", "c")) {
+            // The callers may use the same ids
+            final Request<String, Web3ClientVersion> request = echoRequest(service, value);
+            request.setId(1);
+            results.add(service.sendAsync(request, Web3ClientVersion.class));
+        }
+        // The batch is full: sent without waiting for the window
+        assertEquals("a", results.get(0).get(5, TimeUnit.SECONDS).getWeb3ClientVersion());
+        assertEquals("b", results.get(1).get(5, TimeUnit.SECONDS).getWeb3ClientVersion());
+        assertEquals("c", results.get(2).get(5, TimeUnit.SECONDS).getWeb3ClientVersion());
+
+        assertEquals(1, received.size());
+        final Set<Long> ids = new HashSet<>();
+        received.get(0).forEach(single -> ids.add(single.path("id").asLong()));
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    public void batchesSplit() throws Exception {
+        final BatchingHttpService service = new BatchingHttpService(getUrl(), 2, 500);
+        final List<CompletableFuture<Web3ClientVersion>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(service.sendAsync(echoRequest(service, "v" + i), Web3ClientVersion.class));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals("v" + i, results.get(i).get(5, TimeUnit.SECONDS).getWeb3ClientVersion());
+        }
+
+        assertEquals(3, received.size());
+        final List<Integer> sizes = new ArrayList<>();
+        for (final JsonNode request : received) {
+            // The single request goes as is, not as a batch of one
+            sizes.add(request.isArray() ? request.size() : 1);
+        }
+        Collections.sort(sizes);
+        assertEquals(Arrays.asList(1, 2, 2), sizes);
+        assertTrue(received.stream().anyMatch(JsonNode::isObject));
+    }
+
+    @Test
+    public void missingResponseFails() throws Exception {
+        // The node loses the response to the second request
+        responder = request -> {
+            final ArrayNode reply = (ArrayNode) echo(request);
+            reply.remove(1);
+            return reply;
+        };
+        final BatchingHttpService service = new BatchingHttpService(getUrl(), 3, 10000);
+        final List<CompletableFuture<Web3ClientVersion>> results = new ArrayList<>();
+        for (final String value : Arrays.asList("a", "b", "c")) {
+            results.add(service.sendAsync(echoRequest(service, value), Web3ClientVersion.class));
+        }
+        assertEquals("a", results.get(0).get(5, TimeUnit.SECONDS).getWeb3ClientVersion());
+        assertFailed(results.get(1));
+        assertEquals("c", results.get(2).get(5, TimeUnit.SECONDS).getWeb3ClientVersion());
+    }
+
+    @Test
+    public void nonArrayReplyFails() throws Exception {
+        // The node doesn't support the batches
+        responder = request -> {
+            final ObjectNode error = json.objectNode();
+            error.put("jsonrpc", "2.0");
+            error.putNull("id");
+            error.putObject("error").put("code", -32600).put("message", "invalid request");
+            return error;
+        };
+        final BatchingHttpService service = new BatchingHttpService(getUrl(), 2, 10000);
+        final CompletableFuture<Web3ClientVersion> first = service.sendAsync(echoRequest(service, "a"), Web3ClientVersion.class);
+        final CompletableFuture<Web3ClientVersion> second = service.sendAsync(echoRequest(service, "b"), Web3ClientVersion.class);
+        assertFailed(first);
+        assertFailed(second);
+    }
+
+    private String getUrl() {
+        return String.format("http://127.0.0.1:%s/", server.getAddress().getPort());
+    }
+
+    private static Request<String, Web3ClientVersion> echoRequest(BatchingHttpService service, String value) {
+        return new Request<>("test_echo", Collections.singletonList(value), service, Web3ClientVersion.class);
+    }
+
+    /**
+     * Respond to every request with its own parameter.
+     */
+    private static JsonNode echo(JsonNode request) {
+        if (!request.isArray()) {
+            return echoSingle(request);
+        }
+        final ArrayNode result = json.arrayNode();
+        request.forEach(single -> result.add(echoSingle(single)));
+        return result;
+    }
+
+    private static ObjectNode echoSingle(JsonNode request) {
+        final ObjectNode response = json.objectNode();
+        response.put("jsonrpc", "2.0");
+        response.set("id", request.get("id"));
+        response.set("result", request.path("params").path(0));
+        return response;
+    }
+
+    private static void assertFailed(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The request must fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.icodici.universa.utnp.transport;
+
+import com.icodici.universa.utnp.metrics.Gauge;
+import com.icodici.universa.utnp.metrics.MetricsRegistry;
+import org.junit.Test;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link PooledWeb3jService} over the in-memory nodes: the node which goes down is dropped by the health checks,
+ * and taken back once it recovers; the read fails over to another node; the raw transaction is broadcast
+ * to several nodes; the read at the explicit block goes to the node which has it.
+ */
+public class PooledWeb3jServiceTest {
+
+    private static final long HEALTH_CHECK_INTERVAL_MS = 20;
+    /**
+     * Long enough for the health checks not to interfere with the test, after the first one.
+     */
+    private static final long RARE_HEALTH_CHECK_INTERVAL_MS = 600000;
+
+    @Test
+    public void nodeDownAndBack() throws Exception {
+        final FakeNode first = new FakeNode(), second = new FakeNode();
+        second.down = true;
+        final PooledWeb3jService pool = createPool(HEALTH_CHECK_INTERVAL_MS,
+                "http://down-and-back-1/", first, "http://down-and-back-2/", second);
+        final Gauge secondHealthy = healthGauge("http://down-and-back-2/");
+
+        // The health checks go on after the failed one
+        await(() -> second.getCount("eth_blockNumber") >= 3);
+        assertEquals(0, secondHealthy.get());
+        // The reads go to the healthy node only
+        final int readsBefore = second.getCount("web3_clientVersion");
+        for (int i = 0; i < 10; i++) {
+            read(pool);
+        }
+        assertEquals(readsBefore, second.getCount("web3_clientVersion"));
+
+        second.down = false;
+        await(() -> secondHealthy.get() == 1);
+    }
+
+    @Test
+    public void failover() throws Exception {
+        final FakeNode first = new FakeNode(), second = new FakeNode();
+        second.blockNumber = 11;
+        second.down = true;
+        final PooledWeb3jService pool = createPool(RARE_HEALTH_CHECK_INTERVAL_MS,
+                "http://failover-1/", first, "http://failover-2/", second);
+        // The first health check has dropped the second node; no other will come soon
+        await(() -> healthGauge("http://failover-2/").get() == 0);
+        assertEquals("0xa", read(pool));
+
+        // The healthy node goes down, and the one thought unhealthy recovers
+        first.down = true;
+        second.down = false;
+        assertEquals("0xb", read(pool));
+        assertEquals(2, first.getCount("web3_clientVersion"));
+        assertEquals(0, healthGauge("http://failover-1/").get());
+
+        // Nothing to fail over to
+        second.down = true;
+        try {
+            read(pool);
+            fail("all the nodes are down");
+        } catch (IOException e) {
+            assertEquals("Connection refused", e.getMessage());
+        }
+    }
+
+    @Test
+    public void broadcast() throws Exception {
+        final FakeNode[] nodes = {new FakeNode(), new FakeNode(), new FakeNode(), new FakeNode()};
+        final PooledWeb3jService fourNodes = createPool(RARE_HEALTH_CHECK_INTERVAL_MS,
+                "http://broadcast-1/", nodes[0], "http://broadcast-2/", nodes[1],
+                "http://broadcast-3/", nodes[2], "http://broadcast-4/", nodes[3]);
+        assertEquals("0xa", sendRaw(fourNodes).getResult());
+        assertEquals(PooledWeb3jService.BROADCAST_FANOUT,
+                Arrays.stream(nodes).mapToInt(node -> node.getCount(PooledWeb3jService.SEND_RAW_TRANSACTION)).sum());
+
+        // As many nodes as the fanout, so every one gets the transaction
+        final FakeNode down = new FakeNode(), rejecting = new FakeNode(), accepting = new FakeNode();
+        final PooledWeb3jService pool = createPool(RARE_HEALTH_CHECK_INTERVAL_MS,
+                "http://broadcast-5/", down, "http://broadcast-6/", rejecting, "http://broadcast-7/", accepting);
+        down.down = true;
+        rejecting.rejection = "nonce too low";
+        // Accepted by one node is enough
+        assertEquals("0xa", sendRaw(pool).getResult());
+        // No node accepts; the rejection is preferred to the failure
+        accepting.down = true;
+        assertEquals("nonce too low", sendRaw(pool).getError().getMessage());
+        // No node responds
+        rejecting.down = true;
+        try {
+            sendRaw(pool);
+            fail("all the nodes are down");
+        } catch (IOException e) {
+            assertEquals("Connection refused", e.getMessage());
+        }
+    }
+
+    @Test
+    public void pinnedBlockRouted() throws Exception {
+        final FakeNode behind = new FakeNode(), ahead = new FakeNode();
+        ahead.blockNumber = 12;
+        final PooledWeb3jService pool = createPool(RARE_HEALTH_CHECK_INTERVAL_MS,
+                "http://pinned-1/", behind, "http://pinned-2/", ahead);
+        // Both are close enough to be healthy
+        await(() -> behind.getCount("eth_blockNumber") == 1 && ahead.getCount("eth_blockNumber") == 1);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("0xc", call(pool, DefaultBlockParameter.valueOf(BigInteger.valueOf(12))));
+            assertEquals("0xc", call(pool, "0xc"));
+        }
+        assertEquals(0, behind.getCount("eth_call"));
+
+        // Told by the node itself, before the next health check
+        behind.blockNumber = 13;
+        while (behind.getCount("eth_blockNumber") < 2) {
+            pool.send(new Request<>("eth_blockNumber", Collections.<String>emptyList(), pool, EthBlockNumber.class),
+                    EthBlockNumber.class);
+        }
+        assertEquals("0xd", call(pool, "0xd"));
+        // Unknown to any node, so any may have it
+        assertTrue(Arrays.asList("0xc", "0xd").contains(call(pool, "0xe")));
+    }
+
+    private static PooledWeb3jService createPool(long healthCheckIntervalMs, Object... urlsAndNodes) {
+        final Map<String, Web3jService> services = new LinkedHashMap<>();
+        for (int i = 0; i < urlsAndNodes.length; i += 2) {
+            services.put((String) urlsAndNodes[i], (Web3jService) urlsAndNodes[i + 1]);
+        }
+        return new PooledWeb3jService(services, healthCheckIntervalMs);
+    }
+
+    private static Gauge healthGauge(String url) {
+        return MetricsRegistry.getDefault().gauge(
+                "utnp_rpc_endpoint_healthy", "Whether the node is used for the requests (1) or not (0)", "endpoint")
+                .labels(url);
+    }
+
+    private static String read(PooledWeb3jService pool) throws IOException {
+        return pool.send(new Request<>("web3_clientVersion", Collections.<String>emptyList(), pool, FakeResponse.class),
+                FakeResponse.class).getResult();
+    }
+
+    private static FakeResponse sendRaw(PooledWeb3jService pool) throws IOException {
+        return pool.send(new Request<>(PooledWeb3jService.SEND_RAW_TRANSACTION, Collections.singletonList("0xf86c"),
+                pool, FakeResponse.class), FakeResponse.class);
+    }
+
+    /**
+     * <code>eth_call</code> at the block; answered with the block number of the node.
+     */
+    private static String call(PooledWeb3jService pool, Object block) throws IOException {
+        final Map<String, String> transaction = Collections.singletonMap("to", "0x9e33a5e4d19a07fb3b3e8d1c7b9a9e8c1f2e46c7");
+        return pool.send(new Request<>("eth_call", Arrays.asList(transaction, block), pool, FakeResponse.class),
+                FakeResponse.class).getResult();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(HEALTH_CHECK_INTERVAL_MS);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    public static class FakeResponse extends Response<String> {
+    }
+
+    /**
+     * The node answering every request with its block number (in hex), or failing them all while it is down;
+     * refuses the raw transactions with the {@link #rejection}, if it is set.
+     */
+    static class FakeNode implements Web3jService {
+        volatile boolean down = false;
+        volatile long blockNumber = 10;
+        volatile String rejection = null;
+        private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+        int getCount(String method) {
+            final AtomicInteger count = counts.get(method);
+            return (count == null) ? 0 : count.get();
+        }
+
+        @Override
+        public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+            return sendAsync(request, responseType).join();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+            counts.computeIfAbsent(request.getMethod(), method -> new AtomicInteger()).incrementAndGet();
+            final CompletableFuture<T> result = new CompletableFuture<>();
+            if (down) {
+                result.completeExceptionally(new IOException("Connection refused"));
+                return result;
+            }
+            try {
+                final T response = responseType.getDeclaredConstructor().newInstance();
+                if (rejection != null && request.getMethod().equals(PooledWeb3jService.SEND_RAW_TRANSACTION)) {
+                    response.setError(new Response.Error(-32000, rejection));
+                } else {
+                    response.setResult("0x" + Long.toHexString(blockNumber));
+                }
+                result.complete(response);
+            } catch (ReflectiveOperationException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.icodici.universa.utnp.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The minimal JSON-RPC node for the tests, serving WebSocket (unfragmented text frames only) on the loopback
+ * interface, one connection at a time.
+ * <p>
+ * It answers <code>eth_subscribe</code> with the new subscription id, and any other request with
+ * the block number; pushes the notifications on {@link #push}; may drop the connection, refuse the new ones,
+ * or never answer some methods.
+ */
+class StubWebSocketNode implements Closeable {
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final JsonNodeFactory json = JsonNodeFactory.instance;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @NonNull
+    private final ServerSocket server;
+    @NonNull
+    private final Thread acceptor;
+
+    /**
+     * Close the new connections at once, before the handshake.
+     */
+    volatile boolean refusing = false;
+    /**
+     * The methods never answered.
+     */
+    @NonNull
+    final Set<String> silentMethods = ConcurrentHashMap.newKeySet();
+    /**
+     * When the connections have been attempted (by {@link System#nanoTime()}), refused or not.
+     */
+    @NonNull
+    final List<Long> attemptedAt = new CopyOnWriteArrayList<>();
+
+    @NonNull
+    private final AtomicInteger subscriptionCount = new AtomicInteger();
+    @Nullable
+    private volatile Socket current = null;
+    @Nullable
+    private volatile String lastSubscriptionId = null;
+
+
+    StubWebSocketNode() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "stub-websocket-node");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @NonNull
+    String getUrl() {
+        return String.format("ws://127.0.0.1:%s/", server.getLocalPort());
+    }
+
+    /**
+     * The id of the latest subscription made.
+     */
+    @Nullable
+    String getLastSubscriptionId() {
+        return lastSubscriptionId;
+    }
+
+    /**
+     * Drop the current connection, without the closing handshake.
+     */
+    void disconnect() throws IOException {
+        final Socket socket = current;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Push the notification of the subscription over the current connection.
+     */
+    void push(@NonNull String subscriptionId, @NonNull JsonNode result) throws IOException {
+        final ObjectNode message = json.objectNode();
+        message.put("jsonrpc", "2.0");
+        message.put("method", "eth_subscription");
+        final ObjectNode params = message.putObject("params");
+        params.put("subscription", subscriptionId);
+        params.set("result", result);
+        final Socket socket = current;
+        if (socket == null) {
+            throw new IOException("Not connected");
+        }
+        writeFrame(socket, 0x1, mapper.writeValueAsBytes(message));
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.close();
+            disconnect();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            attemptedAt.add(System.nanoTime());
+            if (refusing) {
+                closeQuietly(socket);
+                continue;
+            }
+            final Thread reader = new Thread(() -> serve(socket), "stub-websocket-connection");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void serve(@NonNull Socket socket) {
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            handshake(socket, in);
+            current = socket;
+            byte[] payload;
+            int opcode;
+            while (true) {
+                final int first = in.read();
+                if (first < 0) {
+                    return;
+                }
+                opcode = first & 0x0f;
+                payload = readPayload(in);
+                if (opcode == 0x8) {
+                    writeFrame(socket, 0x8, payload);
+                    return;
+                } else if (opcode == 0x9) {
+                    writeFrame(socket, 0xA, payload);
+                } else if (opcode == 0x1) {
+                    final ObjectNode response = handle(mapper.readTree(payload));
+                    if (response != null) {
+                        writeFrame(socket, 0x1, mapper.writeValueAsBytes(response));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The connection is lost
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void handshake(@NonNull Socket socket, @NonNull DataInputStream in) throws IOException {
+        String key = null;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        if (key == null) {
+            throw new IOException("Not a WebSocket handshake");
+        }
+        final String accept;
+        try {
+            accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+                    .digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Nullable
+    private ObjectNode handle(@NonNull JsonNode request) {
+        final String method = request.path("method").asText();
+        if (silentMethods.contains(method)) {
+            return null;
+        }
+        final ObjectNode response = json.objectNode();
+        response.put("jsonrpc", "2.0");
+        response.set("id", request.get("id"));
+        switch (method) {
+            case "eth_subscribe":
+                final String id = "0x" + Integer.toHexString(subscriptionCount.incrementAndGet());
+                lastSubscriptionId = id;
+                response.put("result", id);
+                break;
+            case "eth_unsubscribe":
+                response.put("result", true);
+                break;
+            default:
+                response.put("result", "0x10");
+        }
+        return response;
+    }
+
+    @NonNull
+    private static byte[] readPayload(@NonNull DataInputStream in) throws IOException {
+        final int second = in.readUnsignedByte();
+        long length = second & 0x7f;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        final byte[] mask = new byte[4];
+        final boolean masked = (second & 0x80) != 0;
+        if (masked) {
+            in.readFully(mask);
+        }
+        final byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        if (masked) {
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i % 4];
+            }
+        }
+        return payload;
+    }
+
+    private static void writeFrame(@NonNull Socket socket, int opcode, @NonNull byte[] payload) throws IOException {
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 4);
+        frame.write(0x80 | opcode);
+        if (payload.length < 126) {
+            frame.write(payload.length);
+        } else {
+            assert payload.length <= 0xffff : payload.length;
+            frame.write(126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        }
+        frame.write(payload);
+        synchronized (socket) {
+            final OutputStream out = socket.getOutputStream();
+            out.write(frame.toByteArray());
+            out.flush();
+        }
+    }
+
+    @NonNull
+    private static String readLine(@NonNull DataInputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void closeQuietly(@NonNull Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.icodici.universa.utnp.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.icodici.universa.utnp.transport.WebSocketService.Subscription;
+import com.icodici.universa.utnp.transport.WebSocketService.SubscriptionListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link WebSocketService} against the {@link StubWebSocketNode}: the lost connection is re-established
+ * with the growing delays, the subscriptions are renewed (and the listeners told so), the requests sent while
+ * disconnected wait for the connection, and the request never answered times out.
+ */
+public class WebSocketServiceTest {
+
+    private static final long REQUEST_TIMEOUT_MS = 300;
+
+    private StubWebSocketNode node;
+    private WebSocketService service;
+
+    @Before
+    public void setUp() throws IOException {
+        node = new StubWebSocketNode();
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.close();
+        }
+        node.close();
+    }
+
+    @Test
+    public void requestTimeout() throws Exception {
+        service = new WebSocketService(node.getUrl(), REQUEST_TIMEOUT_MS);
+        assertEquals("0x10", request("eth_blockNumber").get(5, TimeUnit.SECONDS).getResult());
+
+        node.silentMethods.add("eth_blockNumber");
+        final long startedAt = System.nanoTime();
+        try {
+            request("eth_blockNumber").get(5, TimeUnit.SECONDS);
+            fail("never answered");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("No response to eth_blockNumber"));
+        }
+        assertTrue(System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MS));
+        // The connection is still usable
+        assertEquals("0x10", request("net_version").get(5, TimeUnit.SECONDS).getResult());
+    }
+
+    @Test
+    public void reconnectAndResubscribe() throws Exception {
+        service = new WebSocketService(node.getUrl(), WebSocketService.DEFAULT_REQUEST_TIMEOUT_MS);
+        final List<String> notifications = new CopyOnWriteArrayList<>();
+        final AtomicInteger resubscribed = new AtomicInteger();
+        final Subscription subscription = service.subscribeNewHeads(new SubscriptionListener() {
+            @Override
+            public void onNotification(JsonNode result) {
+                notifications.add(result.asText());
+            }
+
+            @Override
+            public void onResubscribed() {
+                resubscribed.incrementAndGet();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        final String firstId = node.getLastSubscriptionId();
+        node.push(firstId, JsonNodeFactory.instance.textNode("block 1"));
+        await(() -> notifications.size() == 1);
+
+        // The node is down for a while
+        node.refusing = true;
+        node.disconnect();
+        await(() -> node.attemptedAt.size() >= 4);
+        final CompletableFuture<FakeResponse> waiting = request("eth_blockNumber");
+        assertFalse(waiting.isDone());
+        final List<Long> attempts = node.attemptedAt;
+        final long firstGap = attempts.get(2) - attempts.get(1), secondGap = attempts.get(3) - attempts.get(2);
+        assertTrue(firstGap >= TimeUnit.MILLISECONDS.toNanos(WebSocketService.MIN_RECONNECT_DELAY_MS));
+        assertTrue(firstGap + " then " + secondGap, secondGap > firstGap * 3 / 2);
+
+        node.refusing = false;
+        assertEquals("0x10", waiting.get(10, TimeUnit.SECONDS).getResult());
+        await(() -> resubscribed.get() == 1);
+        final String secondId = node.getLastSubscriptionId();
+        assertNotEquals(firstId, secondId);
+        // Only the renewed subscription is delivered
+        node.push(firstId, JsonNodeFactory.instance.textNode("stale"));
+        node.push(secondId, JsonNodeFactory.instance.textNode("block 2"));
+        await(() -> notifications.size() == 2);
+        assertEquals("block 2", notifications.get(1));
+
+        subscription.close();
+        node.push(secondId, JsonNodeFactory.instance.textNode("block 3"));
+        // Answered after the unsubscription and the push, on the same connection
+        request("eth_blockNumber").get(5, TimeUnit.SECONDS);
+        assertEquals(2, notifications.size());
+    }
+
+    private CompletableFuture<FakeResponse> request(String method) {
+        return service.sendAsync(new Request<>(method, Collections.<String>emptyList(), service, FakeResponse.class),
+                FakeResponse.class);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    public static class FakeResponse extends Response<String> {
+    }
+}